@@ -0,0 +1,373 @@
+/**
+ * Copyright Notice
+ *
+ * This is a work of the U.S. Government and is not subject to copyright
+ * protection in the United States. Foreign copyrights may apply.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.commit.manager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import gov.vha.isaac.ochre.api.Get;
+import gov.vha.isaac.ochre.api.LookupService;
+import gov.vha.isaac.ochre.api.externalizable.ByteArrayDataBuffer;
+import gov.vha.isaac.ochre.api.externalizable.DataWriterService;
+import gov.vha.isaac.ochre.api.externalizable.OchreExternalizable;
+import gov.vha.isaac.ochre.api.externalizable.StampAlias;
+import gov.vha.isaac.ochre.api.externalizable.StampComment;
+import gov.vha.isaac.ochre.api.task.TimedTaskWithProgressTracker;
+import gov.vha.isaac.ochre.model.ObjectChronologyImpl;
+import gov.vha.isaac.ochre.model.concept.ConceptChronologyImpl;
+import gov.vha.isaac.ochre.model.sememe.SememeChronologyImpl;
+
+/**
+ * {@link ChangeSetCompactionTask}
+ * Merges change set files that are already in the database into segment files, so there are
+ * fewer files to list at startup, and to push through the changeset sync.
+ *
+ * Each segment holds the objects of up to {@link #FILES_PER_SEGMENT} change sets, in the order
+ * they were written, and is named with the write time of the newest of them, so a segment orders
+ * (see {@link #WRITE_ORDER}) before the change sets written after its own. The versions of a chronology that occurs in more than one change set are
+ * merged into one chronology, with the versions of the latest change set kept when two have the
+ * same stamp. Stamp aliases and comments are written once. The segment is a block compressed
+ * (version 2) ibdf file, which the ibdf readers read like any other change set, so another node
+ * replays it as usual.
+ *
+ * Next to each segment is an index, a text file that counts the objects of the segment, and lists
+ * the names of the change sets it replaces. A node that has already loaded all of those change sets
+ * skips the segment, and a compaction that was interrupted before it removed its change sets
+ * removes them the next time it runs.
+ *
+ * The change set writer is paused while the task runs, so the files being written are left alone.
+ * The pause of the writer excludes the pause of a changeset sync, so the two don't run at the same
+ * time.
+ *
+ * The task returns the number of change set files compacted.
+ */
+public class ChangeSetCompactionTask extends TimedTaskWithProgressTracker<Integer>
+{
+	private static final Logger LOG = LogManager.getLogger();
+
+	static final String CHANGE_SET_PREFIX = "ChangeSet-";
+	static final String SEGMENT_PREFIX = "ChangeSetSegment-";
+	static final String INDEX_SUFFIX = ".index";
+	private static final String IBDF_SUFFIX = ".ibdf";
+	private static final String JSON_SUFFIX = ".json";
+	private static final String SOURCE_KEY = "source=";
+	private static final String COMPACTION_FOLDER = "changeset-compaction";
+	static final int FILES_PER_SEGMENT = 100;
+	//The length of the write time that starts a name after its prefix, yyyy-MM-dd_HH-mm-ss
+	private static final int WRITE_TIME_LENGTH = 19;
+
+	/**
+	 * Orders change set and segment files by the write time, and then the uuid, in their names.
+	 */
+	static final Comparator<Path> WRITE_ORDER = Comparator.comparing((Path path) -> withoutPrefix(path.getFileName().toString()))
+			.thenComparing((Path path) -> path.getFileName().toString());
+
+	private final ChangeSetWriterHandler writerHandler;
+	private final Path changeSetFolder;
+	private final ConcurrentMap<String, Boolean> processedChangesets;
+	private final int minimumFiles;
+
+	/**
+	 * @param writerHandler the handler writing the change sets of this node.
+	 * @param processedChangesets the names of the change set files in the database.
+	 * @param minimumFiles the task does nothing when there are fewer change set files to compact.
+	 */
+	ChangeSetCompactionTask(ChangeSetWriterHandler writerHandler, ConcurrentMap<String, Boolean> processedChangesets, int minimumFiles)
+	{
+		this.writerHandler = writerHandler;
+		this.changeSetFolder = writerHandler.getWriteFolder();
+		this.processedChangesets = processedChangesets;
+		this.minimumFiles = Math.max(2, minimumFiles);
+		updateTitle("Compact change sets");
+		updateMessage("Looking for change sets to compact");
+	}
+
+	@Override
+	protected Integer call() throws Exception
+	{
+		writerHandler.pause();
+		try
+		{
+			removeCompactedFiles();
+			List<Path> changeSets = getFilesToCompact();
+			if (changeSets.size() < minimumFiles)
+			{
+				LOG.debug("{} change set files to compact, compaction starts at {}", changeSets.size(), minimumFiles);
+				return 0;
+			}
+			updateMessage("Compacting " + changeSets.size() + " change set files");
+			addToTotalWork(changeSets.size());
+			Path workFolder = changeSetFolder.getParent().resolve(COMPACTION_FOLDER);
+			Files.createDirectories(workFolder);
+			for (int start = 0; start < changeSets.size(); start += FILES_PER_SEGMENT)
+			{
+				writeSegment(changeSets.subList(start, Math.min(changeSets.size(), start + FILES_PER_SEGMENT)), workFolder);
+			}
+			LOG.info("Compacted {} change set files", changeSets.size());
+			return changeSets.size();
+		}
+		finally
+		{
+			writerHandler.resume();
+			Get.activeTasks().remove(this);
+		}
+	}
+
+	/**
+	 * @return the change set files that are in the database, and that are not being written,
+	 * ordered by the time they were written.
+	 */
+	private List<Path> getFilesToCompact() throws IOException
+	{
+		Set<Path> currentFiles = new HashSet<>(writerHandler.getCurrentFiles());
+		List<Path> changeSets = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(changeSetFolder, CHANGE_SET_PREFIX + "*" + IBDF_SUFFIX))
+		{
+			for (Path file : files)
+			{
+				if (!currentFiles.contains(file) && processedChangesets.containsKey(file.getFileName().toString()))
+				{
+					changeSets.add(file);
+				}
+			}
+		}
+		changeSets.sort(WRITE_ORDER);
+		return changeSets;
+	}
+
+	/**
+	 * Removes change sets that are listed by the index of a segment, which are left when a
+	 * compaction stops after it moves its segment, and before it removes the change sets.
+	 */
+	private void removeCompactedFiles() throws IOException
+	{
+		List<Path> indexes = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(changeSetFolder, SEGMENT_PREFIX + "*" + INDEX_SUFFIX))
+		{
+			files.forEach((index) -> indexes.add(index));
+		}
+		for (Path index : indexes)
+		{
+			if (Files.exists(getSegment(index)))
+			{
+				removeChangeSets(readSources(index));
+			}
+		}
+	}
+
+	private void writeSegment(List<Path> changeSets, Path workFolder) throws IOException
+	{
+		Map<Integer, ObjectChronologyImpl<?>> chronologies = new LinkedHashMap<>();
+		Map<String, OchreExternalizable> stampObjects = new LinkedHashMap<>();
+		int conceptCount = 0;
+		int sememeCount = 0;
+		int aliasCount = 0;
+		int commentCount = 0;
+		for (Path changeSet : changeSets)
+		{
+			LOG.debug("Compacting changeset file {}", changeSet.toAbsolutePath());
+			for (OchreExternalizable object : Get.binaryDataReader(changeSet).getStream().collect(Collectors.toList()))
+			{
+				switch (object.getOchreObjectType())
+				{
+				case CONCEPT:
+				case SEMEME:
+					ObjectChronologyImpl<?> chronology = (ObjectChronologyImpl<?>) object;
+					chronologies.merge(chronology.getNid(), chronology, (older, newer) -> merge(newer, older));
+					break;
+				case STAMP_ALIAS:
+					StampAlias alias = (StampAlias) object;
+					stampObjects.putIfAbsent("alias:" + alias.getStampSequence() + ":" + alias.getStampAlias(), alias);
+					break;
+				case STAMP_COMMENT:
+					StampComment comment = (StampComment) object;
+					stampObjects.putIfAbsent("comment:" + comment.getStampSequence() + ":" + comment.getComment(), comment);
+					break;
+				default:
+					throw new UnsupportedOperationException("Can't handle: " + object);
+				}
+			}
+			completedUnitOfWork();
+		}
+
+		String newest = withoutPrefix(changeSets.get(changeSets.size() - 1).getFileName().toString());
+		String segmentName = SEGMENT_PREFIX + newest.substring(0, Math.min(WRITE_TIME_LENGTH, newest.length())) + "_" + UUID.randomUUID().toString();
+		Path segment = workFolder.resolve(segmentName + IBDF_SUFFIX);
+		Path index = workFolder.resolve(segmentName + INDEX_SUFFIX);
+		DataWriterService writer = LookupService.get().getService(DataWriterService.class, "ibdfBlockWriter");
+		if (writer == null)
+		{
+			throw new IOException("ibdf block writer was requested, but not found on classpath!");
+		}
+		writer.configure(segment);
+		try
+		{
+			for (ObjectChronologyImpl<?> chronology : chronologies.values())
+			{
+				writer.put(chronology);
+				if (chronology instanceof ConceptChronologyImpl)
+				{
+					conceptCount++;
+				}
+				else
+				{
+					sememeCount++;
+				}
+			}
+			for (OchreExternalizable stampObject : stampObjects.values())
+			{
+				writer.put(stampObject);
+				if (stampObject instanceof StampAlias)
+				{
+					aliasCount++;
+				}
+				else
+				{
+					commentCount++;
+				}
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		List<String> indexLines = new ArrayList<>();
+		indexLines.add("# Change set segment " + segmentName + IBDF_SUFFIX);
+		indexLines.add("concepts=" + conceptCount);
+		indexLines.add("sememes=" + sememeCount);
+		indexLines.add("stampAliases=" + aliasCount);
+		indexLines.add("stampComments=" + commentCount);
+		changeSets.forEach((changeSet) -> indexLines.add(SOURCE_KEY + changeSet.getFileName().toString()));
+		Files.write(index, indexLines, StandardCharsets.UTF_8);
+
+		// The index is moved first, so a segment in the change set folder always has its index.
+		Files.move(index, changeSetFolder.resolve(index.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+		Files.move(segment, changeSetFolder.resolve(segment.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+		processedChangesets.put(segment.getFileName().toString(), true);
+		removeChangeSets(changeSets.stream().map((changeSet) -> changeSet.getFileName().toString()).collect(Collectors.toList()));
+		LOG.info("Wrote change set segment {} with {} concepts and {} sememes from {} change set files", segment.getFileName(), conceptCount,
+				sememeCount, changeSets.size());
+	}
+
+	/**
+	 * @return a chronology with the versions of both chronologies, with the version of the newer
+	 * chronology kept where both have a version with the same stamp.
+	 */
+	private static ObjectChronologyImpl<?> merge(ObjectChronologyImpl<?> newer, ObjectChronologyImpl<?> older)
+	{
+		int writeSequence = newer.getWriteSequence();
+		ByteArrayDataBuffer mergedData = new ByteArrayDataBuffer(newer.mergeData(writeSequence, older.getDataToWrite(writeSequence)));
+		if (newer instanceof ConceptChronologyImpl)
+		{
+			return ConceptChronologyImpl.make(mergedData);
+		}
+		return SememeChronologyImpl.make(mergedData);
+	}
+
+	/**
+	 * Removes the change set files, and the json files written with them.
+	 */
+	private void removeChangeSets(Collection<String> changeSetNames) throws IOException
+	{
+		for (String changeSetName : changeSetNames)
+		{
+			Files.deleteIfExists(changeSetFolder.resolve(changeSetName));
+			if (changeSetName.endsWith(IBDF_SUFFIX))
+			{
+				Files.deleteIfExists(changeSetFolder.resolve(changeSetName.substring(0, changeSetName.length() - IBDF_SUFFIX.length()) + JSON_SUFFIX));
+			}
+		}
+	}
+
+	/**
+	 * @return the name without its change set or segment prefix, which starts with the time the
+	 * file was written.
+	 */
+	private static String withoutPrefix(String name)
+	{
+		if (name.startsWith(SEGMENT_PREFIX))
+		{
+			return name.substring(SEGMENT_PREFIX.length());
+		}
+		if (name.startsWith(CHANGE_SET_PREFIX))
+		{
+			return name.substring(CHANGE_SET_PREFIX.length());
+		}
+		return name;
+	}
+
+	private static Path getSegment(Path index)
+	{
+		String indexName = index.getFileName().toString();
+		return index.resolveSibling(indexName.substring(0, indexName.length() - INDEX_SUFFIX.length()) + IBDF_SUFFIX);
+	}
+
+	/**
+	 * @param segment a change set file.
+	 * @return the names of the change sets merged into the file, when it is a segment with an index.
+	 */
+	static Optional<List<String>> getSources(Path segment)
+	{
+		String segmentName = segment.getFileName().toString();
+		if (!segmentName.startsWith(SEGMENT_PREFIX) || !segmentName.endsWith(IBDF_SUFFIX))
+		{
+			return Optional.empty();
+		}
+		Path index = segment.resolveSibling(segmentName.substring(0, segmentName.length() - IBDF_SUFFIX.length()) + INDEX_SUFFIX);
+		if (!Files.isRegularFile(index))
+		{
+			return Optional.empty();
+		}
+		try
+		{
+			return Optional.of(readSources(index));
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Unable to read the index of change set segment " + segment, e);
+			return Optional.empty();
+		}
+	}
+
+	private static List<String> readSources(Path index) throws IOException
+	{
+		return Files.readAllLines(index, StandardCharsets.UTF_8).stream().filter((line) -> line.startsWith(SOURCE_KEY))
+				.map((line) -> line.substring(SOURCE_KEY.length()).trim()).collect(Collectors.toList());
+	}
+}
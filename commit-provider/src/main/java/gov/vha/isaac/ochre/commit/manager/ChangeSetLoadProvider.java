@@ -18,13 +18,16 @@
  */
 package gov.vha.isaac.ochre.commit.manager;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
@@ -43,7 +46,6 @@ import gov.vha.isaac.ochre.api.SystemStatusService;
 import gov.vha.isaac.ochre.api.bootstrap.TermAux;
 import gov.vha.isaac.ochre.api.chronicle.LatestVersion;
 import gov.vha.isaac.ochre.api.commit.ChangeCheckerMode;
-import gov.vha.isaac.ochre.api.commit.CommitService;
 import gov.vha.isaac.ochre.api.component.sememe.SememeChronology;
 import gov.vha.isaac.ochre.api.component.sememe.version.SememeVersion;
 import gov.vha.isaac.ochre.api.component.sememe.version.StringSememe;
@@ -194,41 +196,59 @@ public class ChangeSetLoadProvider implements ChangeSetLoadService
 	@Override
 	public int readChangesetFiles() throws IOException
 	{
-		AtomicInteger loaded = new AtomicInteger();
 		AtomicInteger skipped = new AtomicInteger();
 		LOG.debug("Looking for .ibdf file in {}.", changesetPath.toAbsolutePath());
-		CommitService commitService = Get.commitService();
-		Files.newDirectoryStream(changesetPath, path -> path.toFile().isFile() && path.toString().endsWith(".ibdf")).forEach(path -> {
-			LOG.debug("File {}", path.toAbsolutePath());
-			try
-			{
+		List<Path> toLoad = new ArrayList<>();
+		try (DirectoryStream<Path> changesetFiles = Files.newDirectoryStream(changesetPath,
+				path -> path.toFile().isFile() && path.toString().endsWith(".ibdf")))
+		{
+			changesetFiles.forEach(path -> {
+				LOG.debug("File {}", path.toAbsolutePath());
 				if (processedChangesets != null && processedChangesets.containsKey(path.getFileName().toString()))
 				{
 					skipped.incrementAndGet();
 					LOG.debug("Skipping already processed changeset file");
 				}
+				else if (processedChangesets != null && isCompactionOfProcessedFiles(path))
+				{
+					//A segment made by another node, from change sets that were all loaded here before they were compacted.
+					processedChangesets.put(path.getFileName().toString(), true);
+					skipped.incrementAndGet();
+					LOG.debug("Skipping changeset segment of already processed changeset files");
+				}
 				else
 				{
-					loaded.incrementAndGet();
-					LOG.debug("Importing changeset file");
-					Get.binaryDataReader(path).getStream().forEach(o -> {
-						commitService.importNoChecks(o);
-					});
-					commitService.postProcessImportNoChecks();
-					if (processedChangesets != null)
-					{
-						processedChangesets.put(path.getFileName().toString(), true);
-					}
+					toLoad.add(path);
 				}
+			});
+		}
+		if (!toLoad.isEmpty())
+		{
+			ChangeSetReplayTask replayTask = new ChangeSetReplayTask(toLoad);
+			Get.activeTasks().add(replayTask);
+			Get.workExecutors().getExecutor().execute(replayTask);
+			try
+			{
+				replayTask.get();
 			}
-			catch (FileNotFoundException e)
+			catch (InterruptedException | ExecutionException e)
 			{
-				LOG.error("Change Set Load Provider failed to load file {}", path.toAbsolutePath());
+				LOG.error("Change Set Load Provider failed to load files from {}", changesetPath.toAbsolutePath());
 				throw new RuntimeException(e);
 			}
-		});
-		LOG.info("Finished Change Set Load Provider load.  Loaded {}, Skipped {} because they were previously processed", loaded.get(), skipped.get());
-		return loaded.get();
+			if (processedChangesets != null)
+			{
+				toLoad.forEach(path -> processedChangesets.put(path.getFileName().toString(), true));
+			}
+		}
+		LOG.info("Finished Change Set Load Provider load.  Loaded {}, Skipped {} because they were previously processed", toLoad.size(), skipped.get());
+		return toLoad.size();
+	}
+
+	private boolean isCompactionOfProcessedFiles(Path path)
+	{
+		Optional<List<String>> sources = ChangeSetCompactionTask.getSources(path);
+		return sources.isPresent() && !sources.get().isEmpty() && sources.get().stream().allMatch(source -> processedChangesets.containsKey(source));
 	}
 
 	private UUID readSememeDbId()
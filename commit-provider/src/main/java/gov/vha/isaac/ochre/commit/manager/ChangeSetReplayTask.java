@@ -0,0 +1,230 @@
+/**
+ * Copyright Notice
+ *
+ * This is a work of the U.S. Government and is not subject to copyright
+ * protection in the United States. Foreign copyrights may apply.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.commit.manager;
+
+import java.io.FileNotFoundException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import gov.vha.isaac.ochre.api.Get;
+import gov.vha.isaac.ochre.api.commit.CommitService;
+import gov.vha.isaac.ochre.api.component.concept.ConceptChronology;
+import gov.vha.isaac.ochre.api.component.sememe.SememeChronology;
+import gov.vha.isaac.ochre.api.externalizable.OchreExternalizable;
+import gov.vha.isaac.ochre.api.externalizable.StampAlias;
+import gov.vha.isaac.ochre.api.externalizable.StampComment;
+import gov.vha.isaac.ochre.api.task.TimedTaskWithProgressTracker;
+import gov.vha.isaac.ochre.api.util.NamedThreadFactory;
+
+/**
+ * {@link ChangeSetReplayTask}
+ * Imports change set files without checks, reading several files at once, and applying their
+ * objects through a fixed number of shards, each with a single thread.
+ *
+ * Files are ordered by the time they were written, which starts their names after the change set or
+ * segment prefix (see {@link ChangeSetCompactionTask#WRITE_ORDER}). A concept and the
+ * sememes that reference it go to the same shard, so the versions of a component are applied in the
+ * order of the files, and the taxonomy updates deferred by the imports of one concept's logic graphs
+ * are made by one thread. The deferred updates are made once, at the end of the replay.
+ *
+ * The number of files read but not yet applied is bounded, so a large number of change sets is not
+ * held in memory at once.
+ *
+ * The task returns the number of files replayed.
+ */
+public class ChangeSetReplayTask extends TimedTaskWithProgressTracker<Integer>
+{
+	private static final Logger LOG = LogManager.getLogger();
+
+	private static final int SHARD_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+	private static final int FILES_IN_FLIGHT = SHARD_COUNT * 2;
+
+	private final List<Path> changeSetFiles;
+
+	/**
+	 * @param changeSetFiles the .ibdf change set files to replay, in any order.
+	 */
+	public ChangeSetReplayTask(Collection<Path> changeSetFiles)
+	{
+		this.changeSetFiles = new ArrayList<>(changeSetFiles);
+		this.changeSetFiles.sort(ChangeSetCompactionTask.WRITE_ORDER);
+		updateTitle("Replay change sets");
+		updateMessage("Replaying " + this.changeSetFiles.size() + " change set files");
+		// A unit of work for reading each file, and for applying each object.
+		addToTotalWork(this.changeSetFiles.size());
+	}
+
+	@Override
+	protected Integer call() throws Exception
+	{
+		CommitService commitService = Get.commitService();
+		ExecutorService[] shards = new ExecutorService[SHARD_COUNT];
+		for (int i = 0; i < SHARD_COUNT; i++)
+		{
+			shards[i] = Executors.newSingleThreadExecutor(new NamedThreadFactory("ISAAC-changeset-replay-" + i, true));
+		}
+		try
+		{
+			Semaphore filesInFlight = new Semaphore(FILES_IN_FLIGHT);
+			ArrayDeque<CompletableFuture<List<OchreExternalizable>>> reads = new ArrayDeque<>();
+			List<Future<?>> applies = new ArrayList<>();
+			Iterator<Path> files = changeSetFiles.iterator();
+			while (files.hasNext() || !reads.isEmpty())
+			{
+				while (files.hasNext() && reads.size() < FILES_IN_FLIGHT)
+				{
+					Path file = files.next();
+					filesInFlight.acquire();
+					reads.add(CompletableFuture.supplyAsync(() -> read(file), Get.workExecutors().getExecutor()));
+				}
+				List<OchreExternalizable> objects = reads.removeFirst().get();
+				completedUnitOfWork();
+				addToTotalWork(objects.size());
+				apply(objects, shards, commitService, filesInFlight, applies);
+			}
+			for (Future<?> apply : applies)
+			{
+				apply.get();
+			}
+
+			updateMessage("Updating taxonomy");
+			List<Future<?>> postProcesses = new ArrayList<>();
+			for (ExecutorService shard : shards)
+			{
+				postProcesses.add(shard.submit(() -> commitService.postProcessImportNoChecks()));
+			}
+			for (Future<?> postProcess : postProcesses)
+			{
+				postProcess.get();
+			}
+			LOG.info("Replayed {} change set files", changeSetFiles.size());
+			return changeSetFiles.size();
+		}
+		finally
+		{
+			for (ExecutorService shard : shards)
+			{
+				shard.shutdown();
+			}
+			Get.activeTasks().remove(this);
+		}
+	}
+
+	private static List<OchreExternalizable> read(Path changeSetFile)
+	{
+		LOG.debug("Reading changeset file {}", changeSetFile.toAbsolutePath());
+		try
+		{
+			return Get.binaryDataReader(changeSetFile).getStream().collect(Collectors.toList());
+		}
+		catch (FileNotFoundException e)
+		{
+			LOG.error("Change Set Replay failed to read file {}", changeSetFile.toAbsolutePath());
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Submits the objects of one file to their shards. The file is no longer in flight when every
+	 * shard has applied its part.
+	 */
+	private void apply(List<OchreExternalizable> objects, ExecutorService[] shards, CommitService commitService,
+			Semaphore filesInFlight, List<Future<?>> applies)
+	{
+		List<List<OchreExternalizable>> shardObjects = new ArrayList<>(SHARD_COUNT);
+		for (int i = 0; i < SHARD_COUNT; i++)
+		{
+			shardObjects.add(new ArrayList<>());
+		}
+		objects.forEach((object) -> shardObjects.get(getShard(object)).add(object));
+
+		int shardsWithObjects = (int) shardObjects.stream().filter((list) -> !list.isEmpty()).count();
+		if (shardsWithObjects == 0)
+		{
+			filesInFlight.release();
+			return;
+		}
+		AtomicInteger shardsRemaining = new AtomicInteger(shardsWithObjects);
+		for (int i = 0; i < SHARD_COUNT; i++)
+		{
+			List<OchreExternalizable> toApply = shardObjects.get(i);
+			if (!toApply.isEmpty())
+			{
+				applies.add(shards[i].submit(() -> {
+					try
+					{
+						for (OchreExternalizable object : toApply)
+						{
+							commitService.importNoChecks(object);
+							completedUnitOfWork();
+						}
+					}
+					finally
+					{
+						if (shardsRemaining.decrementAndGet() == 0)
+						{
+							filesInFlight.release();
+						}
+					}
+				}));
+			}
+		}
+	}
+
+	/**
+	 * @return the shard of the object: the shard of the concept for a concept, and the shard of the
+	 * referenced component for a sememe.
+	 */
+	private static int getShard(OchreExternalizable object)
+	{
+		int key;
+		switch (object.getOchreObjectType())
+		{
+		case CONCEPT:
+			key = ((ConceptChronology<?>) object).getNid();
+			break;
+		case SEMEME:
+			key = ((SememeChronology<?>) object).getReferencedComponentNid();
+			break;
+		case STAMP_ALIAS:
+			key = ((StampAlias) object).getStampSequence();
+			break;
+		case STAMP_COMMENT:
+			key = ((StampComment) object).getStampSequence();
+			break;
+		default:
+			throw new UnsupportedOperationException("Can't handle: " + object);
+		}
+		return Math.floorMod(key, SHARD_COUNT);
+	}
+}
@@ -21,10 +21,15 @@ package gov.vha.isaac.ochre.commit.manager;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import org.apache.logging.log4j.LogManager;
@@ -44,10 +49,11 @@ import gov.vha.isaac.ochre.api.component.concept.ConceptChronology;
 import gov.vha.isaac.ochre.api.component.concept.ConceptVersion;
 import gov.vha.isaac.ochre.api.component.sememe.SememeChronology;
 import gov.vha.isaac.ochre.api.component.sememe.version.SememeVersion;
-import gov.vha.isaac.ochre.api.externalizable.DataWriterService;
 import gov.vha.isaac.ochre.api.externalizable.MultipleDataWriterService;
 import gov.vha.isaac.ochre.api.externalizable.OchreExternalizable;
+import gov.vha.isaac.ochre.api.metacontent.MetaContentService;
 import gov.vha.isaac.ochre.api.util.NamedThreadFactory;
+import javafx.concurrent.Task;
 
 /**
  * {@link ChangeSetWriterHandler}
@@ -62,12 +68,16 @@ public class ChangeSetWriterHandler implements ChangeSetWriterService, ChangeSet
 	private static final String jsonFileSuffix = "json";
 	private static final String ibdfFileSuffix = "ibdf";
 	private static final String CHANGESETS = "changesets";
-	private DataWriterService writer;
+	//Compact at startup once there are as many change sets to merge as go in one segment.
+	private static final int COMPACT_AT_STARTUP_AFTER = ChangeSetCompactionTask.FILES_PER_SEGMENT;
+	private MultipleDataWriterService writer;
 	private final UUID changeSetWriterHandlerUuid = UUID.randomUUID();
 	private ExecutorService changeSetWriteExecutor;
 	private boolean writeEnabled;
 	private Boolean dbBuildMode;
 	private Path changeSetFolder;
+	//Held from a pause to its resume, so a compaction and a changeset sync don't run at the same time.
+	private final ReentrantLock pauseLock = new ReentrantLock();
 
 	public ChangeSetWriterHandler() throws Exception {
 
@@ -121,6 +131,11 @@ public class ChangeSetWriterHandler implements ChangeSetWriterService, ChangeSet
 			changeSetWriteExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("ISAAC-changeset-write", false));
 			Get.postCommitService().addChangeSetListener(this);
 
+			if (!Get.configurationService().inDBBuildMode())
+			{
+				compactChangeSets(COMPACT_AT_STARTUP_AFTER);
+			}
+
 		} catch(Exception e) {
 			LOG.error("Error in ChangeSetWriterHandler post-construct ", e);
 			LookupService.getService(SystemStatusService.class).notifyServiceConfigurationFailure("Change Set Writer Handler", e);
@@ -230,18 +245,39 @@ public class ChangeSetWriterHandler implements ChangeSetWriterService, ChangeSet
 	@Override
 	public void pause() throws IOException
 	{
-		if (writer != null)
+		pauseLock.lock();
+		try
+		{
+			if (writer != null && pauseLock.getHoldCount() == 1)
+			{
+				writer.pause();
+			}
+		}
+		catch (IOException | RuntimeException e)
 		{
-			writer.pause();
+			pauseLock.unlock();
+			throw e;
 		}
 	}
 
 	@Override
 	public void resume() throws IOException
 	{
-		if (writer != null)
+		if (!pauseLock.isHeldByCurrentThread())
 		{
-			writer.resume();
+			LOG.warn("asked to resume, but not paused by this thread");
+			return;
+		}
+		try
+		{
+			if (writer != null && pauseLock.getHoldCount() == 1)
+			{
+				writer.resume();
+			}
+		}
+		finally
+		{
+			pauseLock.unlock();
 		}
 	}
 
@@ -250,4 +286,38 @@ public class ChangeSetWriterHandler implements ChangeSetWriterService, ChangeSet
 	{
 		return changeSetFolder;
 	}
+
+	/**
+	 * @return the files currently being written, which are not compacted.
+	 */
+	List<Path> getCurrentFiles()
+	{
+		MultipleDataWriterService currentWriter = writer;
+		return currentWriter == null ? new ArrayList<>() : currentWriter.getCurrentPaths();
+	}
+
+	@Override
+	public Task<Integer> compactChangeSets()
+	{
+		return compactChangeSets(2);
+	}
+
+	private Task<Integer> compactChangeSets(int minimumFiles)
+	{
+		MetaContentService mcs = LookupService.get().getService(MetaContentService.class);
+		ConcurrentMap<String, Boolean> processedChangesets;
+		if (mcs == null)
+		{
+			LOG.warn("No metacontent store, so no change sets are known to be in the database, and none will be compacted");
+			processedChangesets = new ConcurrentHashMap<>();
+		}
+		else
+		{
+			processedChangesets = mcs.<String, Boolean>openStore("processedChangesets");
+		}
+		ChangeSetCompactionTask compactionTask = new ChangeSetCompactionTask(this, processedChangesets, minimumFiles);
+		Get.activeTasks().add(compactionTask);
+		Get.workExecutors().getExecutor().execute(compactionTask);
+		return compactionTask;
+	}
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.commit.manager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import gov.vha.isaac.ochre.api.externalizable.ByteArrayDataBuffer;
+import gov.vha.isaac.ochre.api.externalizable.OchreExternalizable;
+import gov.vha.isaac.ochre.api.externalizable.OchreExternalizableObjectType;
+import gov.vha.isaac.ochre.ibdf.provider.OchreExternalizableUnparsed;
+
+/**
+ * An append only log of commits, so a commit is durable when it returns,
+ * without waiting for the concept, sememe, stamp, and identifier providers to
+ * write their segments.
+ *
+ * Each commit is one frame: the length and CRC32 of the payload, followed by
+ * the payload, which is the number of objects in the commit and then each
+ * object as an ibdf record. The objects are written with external
+ * identifiers, so they carry their stamps and UUIDs, and a replay assigns
+ * stamps and nids the same way a change set load does. A frame that was not
+ * completely written before a crash fails its length or checksum, and ends
+ * the replay of the log, so a commit is replayed entirely or not at all.
+ *
+ * Committers that append while another committer is forcing the log to disk
+ * wait for that force to finish, and then share a single force, so concurrent
+ * commits pay for one fsync between them.
+ *
+ * Each run appends to a new log file. Logs are deleted by the
+ * {@link CommitLogCheckpoint} once the providers have written their segments,
+ * and logs left by a run that did not stop are replayed by the
+ * {@link CommitLogReplayProvider}.
+ *
+ * @author kec
+ */
+final class CommitLog implements AutoCloseable {
+
+	private static final Logger LOG = LogManager.getLogger();
+
+	static final String COMMIT_LOG_FOLDER = "commit-log";
+	private static final String LOG_FILE_PREFIX = "commit-";
+	private static final String LOG_FILE_SUFFIX = ".log";
+	private static final int BUFFER_SIZE = 1024;
+
+	private final Path logPath;
+	private final FileChannel channel;
+	private final ReentrantLock appendLock = new ReentrantLock();
+	private final ReentrantLock forceLock = new ReentrantLock();
+
+	/**
+	 * The end of the last appended frame.
+	 */
+	private volatile long appendedPosition;
+	/**
+	 * The end of the data known to be on disk. Guarded by the force lock.
+	 */
+	private long forcedPosition;
+
+	private CommitLog(Path logPath) throws IOException {
+		this.logPath = logPath;
+		this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Creates a new log in the folder, after any logs already in the folder.
+	 *
+	 * @param logFolder
+	 * @return the new log.
+	 * @throws IOException
+	 */
+	static CommitLog create(Path logFolder) throws IOException {
+		Files.createDirectories(logFolder);
+		List<Path> logs = getLogs(logFolder);
+		int logNumber = logs.isEmpty() ? 1 : getLogNumber(logs.get(logs.size() - 1)) + 1;
+		Path logPath = logFolder.resolve(String.format("%s%06d%s", LOG_FILE_PREFIX, logNumber, LOG_FILE_SUFFIX));
+		LOG.info("Writing commit log: " + logPath);
+		return new CommitLog(logPath);
+	}
+
+	/**
+	 * @param logFolder
+	 * @return the logs in the folder, oldest first.
+	 * @throws IOException
+	 */
+	static List<Path> getLogs(Path logFolder) throws IOException {
+		if (!Files.isDirectory(logFolder)) {
+			return new ArrayList<>();
+		}
+		try (Stream<Path> files = Files.list(logFolder)) {
+			return files.filter((path) -> {
+				String name = path.getFileName().toString();
+				return name.startsWith(LOG_FILE_PREFIX) && name.endsWith(LOG_FILE_SUFFIX);
+			}).sorted((first, second) -> Integer.compare(getLogNumber(first), getLogNumber(second)))
+					.collect(Collectors.toList());
+		}
+	}
+
+	private static int getLogNumber(Path logPath) {
+		String name = logPath.getFileName().toString();
+		return Integer.parseInt(name.substring(LOG_FILE_PREFIX.length(), name.length() - LOG_FILE_SUFFIX.length()));
+	}
+
+	Path getLogPath() {
+		return logPath;
+	}
+
+	/**
+	 * Appends the objects as one commit, and returns when they are on disk.
+	 *
+	 * @param objects the chronologies, stamp comments, and stamp aliases of a
+	 * commit, with committed stamps.
+	 * @throws IOException
+	 */
+	void append(Collection<? extends OchreExternalizable> objects) throws IOException {
+		ByteBuffer frame = ByteBuffer.wrap(toFrame(objects));
+		long frameEnd;
+		appendLock.lock();
+		try {
+			while (frame.hasRemaining()) {
+				channel.write(frame);
+			}
+			frameEnd = channel.position();
+			appendedPosition = frameEnd;
+		} finally {
+			appendLock.unlock();
+		}
+		force(frameEnd);
+	}
+
+	/**
+	 * Forces the log to disk through at least the position. A committer that
+	 * waited for the lock while another forced the log may find its frame
+	 * already on disk.
+	 */
+	private void force(long position) throws IOException {
+		forceLock.lock();
+		try {
+			if (forcedPosition >= position) {
+				return;
+			}
+			long appended = appendedPosition;
+			channel.force(false);
+			forcedPosition = appended;
+		} finally {
+			forceLock.unlock();
+		}
+	}
+
+	private static byte[] toFrame(Collection<? extends OchreExternalizable> objects) throws IOException {
+		ByteArrayDataBuffer buffer = new ByteArrayDataBuffer(BUFFER_SIZE);
+		buffer.setExternalData(true);
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		payload.writeInt(objects.size());
+		for (OchreExternalizable object : objects) {
+			buffer.clear();
+			object.putExternal(buffer);
+			payload.writeByte(object.getOchreObjectType().getToken());
+			payload.writeByte(object.getDataFormatVersion());
+			payload.writeInt(buffer.getLimit());
+			payload.write(buffer.getData(), 0, buffer.getLimit());
+		}
+		payload.flush();
+		byte[] payloadData = payloadBytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payloadData);
+
+		ByteArrayOutputStream frameBytes = new ByteArrayOutputStream(payloadData.length + 8);
+		DataOutputStream frame = new DataOutputStream(frameBytes);
+		frame.writeInt(payloadData.length);
+		frame.writeInt((int) crc.getValue());
+		frame.write(payloadData);
+		frame.flush();
+		return frameBytes.toByteArray();
+	}
+
+	@Override
+	public void close() throws IOException {
+		appendLock.lock();
+		try {
+			if (channel.isOpen()) {
+				channel.force(true);
+				channel.close();
+			}
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Passes the objects of each complete commit in the log to the consumer,
+	 * in the order they were committed. The replay ends at the first frame
+	 * that was not completely written.
+	 *
+	 * @param logPath
+	 * @param consumer
+	 * @return the number of commits replayed.
+	 * @throws IOException
+	 */
+	static int replay(Path logPath, Consumer<OchreExternalizable> consumer) throws IOException {
+		return replayRecords(logPath, (type, data) -> consumer.accept(new OchreExternalizableUnparsed(type, data).parse()));
+	}
+
+	/**
+	 * Passes the type and data of each object of each complete commit in the
+	 * log to the consumer, without parsing the objects.
+	 *
+	 * @param logPath
+	 * @param recordConsumer
+	 * @return the number of commits replayed.
+	 * @throws IOException
+	 */
+	static int replayRecords(Path logPath, BiConsumer<OchreExternalizableObjectType, ByteArrayDataBuffer> recordConsumer)
+			throws IOException {
+		int commits = 0;
+		long remaining = Files.size(logPath);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+			while (true) {
+				int payloadLength;
+				try {
+					payloadLength = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] payloadData;
+				int expectedCrc;
+				try {
+					expectedCrc = in.readInt();
+					remaining -= 8;
+					if (payloadLength < 4 || payloadLength > remaining) {
+						throw new EOFException("Bad frame length: " + payloadLength);
+					}
+					payloadData = new byte[payloadLength];
+					in.readFully(payloadData);
+					remaining -= payloadLength;
+				} catch (EOFException e) {
+					LOG.warn("Commit log {} ends with an incomplete commit after {} commits", logPath, commits);
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(payloadData);
+				if ((int) crc.getValue() != expectedCrc) {
+					LOG.warn("Commit log {} has a commit that fails its checksum after {} commits", logPath, commits);
+					break;
+				}
+				DataInputStream payload = new DataInputStream(new ByteArrayInputStream(payloadData));
+				int objectCount = payload.readInt();
+				for (int i = 0; i < objectCount; i++) {
+					OchreExternalizableObjectType type = OchreExternalizableObjectType.fromDataStream(payload);
+					byte dataFormatVersion = payload.readByte();
+					byte[] objectData = new byte[payload.readInt()];
+					payload.readFully(objectData);
+					ByteArrayDataBuffer objectBuffer = new ByteArrayDataBuffer(objectData);
+					objectBuffer.setExternalData(true);
+					objectBuffer.setObjectDataFormatVersion(dataFormatVersion);
+					recordConsumer.accept(type, objectBuffer);
+				}
+				commits++;
+			}
+		}
+		return commits;
+	}
+}
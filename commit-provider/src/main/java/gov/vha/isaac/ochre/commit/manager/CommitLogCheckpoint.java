@@ -0,0 +1,87 @@
+/**
+ * Copyright Notice
+ *
+ * This is a work of the U.S. Government and is not subject to copyright
+ * protection in the United States. Foreign copyrights may apply.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.commit.manager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.hk2.runlevel.RunLevel;
+import org.jvnet.hk2.annotations.Service;
+import gov.vha.isaac.ochre.api.LookupService;
+import gov.vha.isaac.ochre.api.commit.CheckpointWrites;
+import gov.vha.isaac.ochre.api.memory.WriteToDiskCache;
+
+/**
+ * Deletes the commit logs once they are no longer needed. This service runs below the data store
+ * services, so it is stopped after the concept, sememe, stamp, and identifier providers have written
+ * their segments, which then hold every logged commit.
+ *
+ * If the logs of an earlier run were not replayed, as when the system did not finish starting, or if
+ * a segment or the files of the commit, stamp, or identifier provider were not written (see
+ * {@link CheckpointWrites}), the logs are kept for the next run.
+ * The segments are forced to disk before they replace the prior segments, so a written segment
+ * survives a crash after the logs are deleted.
+ */
+@Service(name = "Commit Log Checkpoint")
+@RunLevel(value = LookupService.SL_NEG_1_METADATA_STORE_STARTED_RUNLEVEL)
+public class CommitLogCheckpoint {
+
+	private static final Logger LOG = LogManager.getLogger();
+
+	private CommitLogCheckpoint() {
+		//for HK2
+	}
+
+	@PostConstruct
+	private void startMe() {
+		LOG.info("Starting CommitLogCheckpoint post-construct");
+	}
+
+	@PreDestroy
+	private void stopMe() {
+		LOG.info("Stopping CommitLogCheckpoint pre-destroy. ");
+		if (!CommitLogReplayProvider.isReplayComplete()) {
+			LOG.info("Keeping commit logs, since they were not replayed");
+			return;
+		}
+		if (!WriteToDiskCache.flushAndClearCache()) {
+			LOG.warn("Keeping commit logs, since {} segments could not be written", WriteToDiskCache.getFailedCount());
+			return;
+		}
+		Set<CheckpointWrites.Store> unwritten = CheckpointWrites.getUnwritten();
+		if (!unwritten.isEmpty()) {
+			LOG.warn("Keeping commit logs, since the files of {} were not written", unwritten);
+			return;
+		}
+		try {
+			for (Path log : CommitLog.getLogs(CommitProvider.getCommitLogFolder())) {
+				Files.delete(log);
+			}
+		} catch (IOException e) {
+			LOG.error("Failed to delete commit logs", e);
+		}
+	}
+}
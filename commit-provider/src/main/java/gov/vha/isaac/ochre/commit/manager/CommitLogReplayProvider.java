@@ -0,0 +1,89 @@
+/**
+ * Copyright Notice
+ *
+ * This is a work of the U.S. Government and is not subject to copyright
+ * protection in the United States. Foreign copyrights may apply.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.commit.manager;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.hk2.runlevel.RunLevel;
+import org.jvnet.hk2.annotations.Service;
+import gov.vha.isaac.ochre.api.Get;
+import gov.vha.isaac.ochre.api.LookupService;
+import gov.vha.isaac.ochre.api.SystemStatusService;
+import gov.vha.isaac.ochre.api.commit.CommitService;
+
+/**
+ * Replays the commit logs left by a run that did not stop, so the commits that the providers did not
+ * write to their segments before the run ended are restored. The newest log is the log of this run,
+ * and is not replayed.
+ *
+ * The commits are imported without checks, the same way change sets are loaded. A replayed log is
+ * kept until the {@link CommitLogCheckpoint} finds the providers have written their segments, so a
+ * second crash replays it again.
+ */
+@Service(name = "Commit Log Replay Provider")
+@RunLevel(value = LookupService.SL_L3)
+public class CommitLogReplayProvider {
+
+	private static final Logger LOG = LogManager.getLogger();
+
+	private static volatile boolean replayComplete = false;
+
+	private CommitLogReplayProvider() {
+		//for HK2
+	}
+
+	/**
+	 * @return true if the commit logs of earlier runs have been replayed in this run.
+	 */
+	static boolean isReplayComplete() {
+		return replayComplete;
+	}
+
+	@PostConstruct
+	private void startMe() {
+		try {
+			List<Path> logs = CommitLog.getLogs(CommitProvider.getCommitLogFolder());
+			if (logs.size() > 1) {
+				CommitService commitService = Get.commitService();
+				for (Path log : logs.subList(0, logs.size() - 1)) {
+					LOG.info("Replaying commit log: " + log);
+					int commits = CommitLog.replay(log, (ochreObject) -> commitService.importNoChecks(ochreObject));
+					commitService.postProcessImportNoChecks();
+					LOG.info("Replayed {} commits from {}", commits, log);
+				}
+			}
+			replayComplete = true;
+		} catch (Exception e) {
+			LOG.error("Error ", e);
+			LookupService.getService(SystemStatusService.class).notifyServiceConfigurationFailure("Commit Log Replay Provider", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	@PreDestroy
+	private void stopMe() {
+		LOG.info("Finished Commit Log Replay Provider pre-destroy.");
+	}
+}
@@ -55,6 +55,7 @@ import gov.vha.isaac.ochre.api.commit.AlertType;
 import gov.vha.isaac.ochre.api.commit.Alerts;
 import gov.vha.isaac.ochre.api.commit.ChangeChecker;
 import gov.vha.isaac.ochre.api.commit.CheckPhase;
+import gov.vha.isaac.ochre.api.commit.CheckpointWrites;
 import gov.vha.isaac.ochre.api.commit.ChronologyChangeListener;
 import gov.vha.isaac.ochre.api.commit.CommitRecord;
 import gov.vha.isaac.ochre.api.commit.CommitService;
@@ -87,6 +88,7 @@ public class CommitProvider implements CommitService {
 
 	private static final Logger LOG = LogManager.getLogger();
 
+	private static final String COMMIT_PROVIDER_FOLDER = "commit-provider";
 	public static final String DEFAULT_CRADLE_COMMIT_MANAGER_FOLDER = "commit-manager";
 	private static final String COMMIT_MANAGER_DATA_FILENAME = "commit-manager.data";
 	private static final String STAMP_ALIAS_MAP_FILENAME = "stamp-alias.map";
@@ -105,7 +107,6 @@ public class CommitProvider implements CommitService {
 
 	ConcurrentSkipListSet<WeakReference<ChronologyChangeListener>> changeListeners = new ConcurrentSkipListSet<>();
 	private final ConcurrentSkipListSet<ChangeChecker> checkers = new ConcurrentSkipListSet<>();
-	private long lastCommit = Long.MIN_VALUE;
 	private AtomicBoolean loadRequired = new AtomicBoolean();
 	private AtomicLong lastCommitTime = new AtomicLong(Long.MIN_VALUE);
 
@@ -137,10 +138,14 @@ public class CommitProvider implements CommitService {
 	private final SememeSequenceSet uncommittedSememesWithChecksSequenceSet = SememeSequenceSet.concurrent();
 	private final SememeSequenceSet uncommittedSememesNoChecksSequenceSet = SememeSequenceSet.concurrent();
 	private DatabaseValidity databaseValidity = DatabaseValidity.NOT_SET;
+	/**
+	 * Log of the commits of this run, so they are durable before the providers write their segments.
+	 */
+	private CommitLog commitLog;
 	
 	private CommitProvider() throws IOException {
 		try {
-			dbFolderPath = LookupService.getService(ConfigurationService.class).getChronicleFolderPath().resolve("commit-provider");
+			dbFolderPath = LookupService.getService(ConfigurationService.class).getChronicleFolderPath().resolve(COMMIT_PROVIDER_FOLDER);
 			loadRequired.set(Files.exists(dbFolderPath));
 			Files.createDirectories(dbFolderPath);
 			commitManagerFolder = dbFolderPath.resolve(DEFAULT_CRADLE_COMMIT_MANAGER_FOLDER);
@@ -158,6 +163,7 @@ public class CommitProvider implements CommitService {
 	private void startMe() {
 		try {
 			LOG.info("Starting CommitProvider post-construct");
+			CheckpointWrites.writeStarted(CheckpointWrites.Store.COMMIT_MANAGER);
 			writeCompletionService.start();
 			if (loadRequired.get()) {
 				LOG.info("Reading existing commit manager data. ");
@@ -177,6 +183,7 @@ public class CommitProvider implements CommitService {
 				stampCommentMap.read(new File(commitManagerFolder.toFile(), STAMP_COMMENT_MAP_FILENAME));
 				databaseValidity = DatabaseValidity.POPULATED_DIRECTORY;
 			}
+			commitLog = CommitLog.create(getCommitLogFolder());
 			checkers.add(new ChangeChecker()
 			{
 				@Override
@@ -217,8 +224,10 @@ public class CommitProvider implements CommitService {
 	@PreDestroy
 	private void stopMe() {
 		LOG.info("Stopping CommitProvider pre-destroy. ");
+		CheckpointWrites.writeStarted(CheckpointWrites.Store.COMMIT_MANAGER);
 		try {
 			writeCompletionService.stop();
+			commitLog.close();
 			stampAliasMap.write(new File(commitManagerFolder.toFile(), STAMP_ALIAS_MAP_FILENAME));
 			stampCommentMap.write(new File(commitManagerFolder.toFile(), STAMP_COMMENT_MAP_FILENAME));
 
@@ -231,12 +240,23 @@ public class CommitProvider implements CommitService {
 				uncommittedSememesWithChecksSequenceSet.write(out);
 				uncommittedSememesNoChecksSequenceSet.write(out);
 			}
+			CheckpointWrites.writeSucceeded(CheckpointWrites.Store.COMMIT_MANAGER);
 		}
 		catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * @return the folder of the commit logs, which may not exist.
+	 */
+	static Path getCommitLogFolder() {
+		return LookupService.getService(ConfigurationService.class).getChronicleFolderPath()
+				.resolve(COMMIT_PROVIDER_FOLDER)
+				.resolve(DEFAULT_CRADLE_COMMIT_MANAGER_FOLDER)
+				.resolve(CommitLog.COMMIT_LOG_FOLDER);
+	}
+
 	@Override
 	public String getUncommittedComponentTextSummary() {
 		StringBuilder builder = new StringBuilder("CommitProvider summary: ");
@@ -253,6 +273,19 @@ public class CommitProvider implements CommitService {
 		if (aliasCommitComment != null) {
 			stampCommentMap.addComment(stampAlias, aliasCommitComment);
 		}
+		if (commitLog != null && !Get.configurationService().inDBBuildMode()) {
+			List<OchreExternalizable> objects = new ArrayList<>();
+			objects.add(new StampAlias(stampSequence, stampAlias));
+			if (aliasCommitComment != null) {
+				objects.add(new StampComment(aliasCommitComment, stampAlias));
+			}
+			try {
+				commitLog.append(objects);
+			}
+			catch (IOException e) {
+				throw new RuntimeException("Failed to log alias: " + stampAlias + " of stamp: " + stampSequence, e);
+			}
+		}
 	}
 
 	@Override
@@ -331,6 +364,13 @@ public class CommitProvider implements CommitService {
 		return new SequentialAggregateTask<>("Canceling change", subTasks);
 	}
 
+	/**
+	 * Commit the changes of one chronology by the author of the edit coordinate. Commits of single
+	 * chronologies are serialized, since two of them could otherwise give the same versions different
+	 * commit times, and write and log the chronology twice. The uncommitted sets are updated under the
+	 * uncommitted sequence lock, so a global commit sees the chronology either before or after this
+	 * commit.
+	 */
 	@Override
 	public synchronized Task<Optional<CommitRecord>> commit(ObjectChronology<?> chronicle, EditCoordinate editCoordinate, String commitComment) {
 		// TODO make asynchronous with a actual task.
@@ -364,16 +404,7 @@ public class CommitProvider implements CommitService {
 
 		} else {
 
-			//Make it impossible to have two commits happen in the same MS - because this messes up the RelativePositionCalculator
-			final AtomicLong commitTime = new AtomicLong(System.currentTimeMillis());
-			if (commitTime.get() <= lastCommitTime.get())
-			{
-				commitTime.set(lastCommitTime.incrementAndGet());
-			}
-			else
-			{
-				lastCommitTime.set(commitTime.get());
-			}
+			final long commitTime = nextCommitTime();
 			// TODO have it only commit the versions on the sememe consistent with the edit coordinate.
 			// successful check, commit and remove uncommitted sequences...
 			StampSequenceSet stampsInCommit = new StampSequenceSet();
@@ -383,7 +414,7 @@ public class CommitProvider implements CommitService {
 
 			chronicle.getVersionList().forEach((version) -> {
 				if (((ObjectVersionImpl) version).isUncommitted() && ((ObjectVersionImpl) version).getAuthorSequence() == editCoordinate.getAuthorSequence()) {
-					((ObjectVersionImpl) version).setTime(commitTime.get());
+					((ObjectVersionImpl) version).setTime(commitTime);
 					stampsInCommit.add(((ObjectVersionImpl) version).getStampSequence());
 				}
 			});
@@ -391,21 +422,32 @@ public class CommitProvider implements CommitService {
 			if (chronicle instanceof ConceptChronology) {
 				ConceptChronology conceptChronology = (ConceptChronology) chronicle;
 				conceptsInCommit.add(conceptChronology.getConceptSequence());
-				uncommittedConceptsWithChecksSequenceSet.remove(conceptChronology.getConceptSequence());
-				uncommittedConceptsNoChecksSequenceSet.remove(conceptChronology.getConceptSequence());
+				uncommittedSequenceLock.lock();
+				try {
+					uncommittedConceptsWithChecksSequenceSet.remove(conceptChronology.getConceptSequence());
+					uncommittedConceptsNoChecksSequenceSet.remove(conceptChronology.getConceptSequence());
+				} finally {
+					uncommittedSequenceLock.unlock();
+				}
 				Get.conceptService().writeConcept(conceptChronology);
 			} else {
 				SememeChronology sememeChronology = (SememeChronology) chronicle;
 				sememesInCommit.add(sememeChronology.getSememeSequence());
-				uncommittedSememesWithChecksSequenceSet.remove(sememeChronology.getSememeSequence());
-				uncommittedSememesNoChecksSequenceSet.remove(sememeChronology.getSememeSequence());
+				uncommittedSequenceLock.lock();
+				try {
+					uncommittedSememesWithChecksSequenceSet.remove(sememeChronology.getSememeSequence());
+					uncommittedSememesNoChecksSequenceSet.remove(sememeChronology.getSememeSequence());
+				} finally {
+					uncommittedSequenceLock.unlock();
+				}
 				Get.sememeService().writeSememe(sememeChronology);
 			}
 
-			commitRecord = new CommitRecord(Instant.ofEpochMilli(commitTime.get()),
+			commitRecord = new CommitRecord(Instant.ofEpochMilli(commitTime),
 					stampsInCommit,
 					stampAliases, conceptsInCommit, sememesInCommit,
 					commitComment);
+			logCommit(commitRecord);
 		}
 
 		CommitProvider.this.handleCommitNotification(commitRecord);
@@ -424,47 +466,80 @@ public class CommitProvider implements CommitService {
 		return task;
 	}
 
+	/**
+	 * Commit the changes of the author of the edit coordinate. The changes of other authors stay
+	 * uncommitted, so commits of different authors may run at the same time. The components and
+	 * pending stamps of the commit are taken from the uncommitted sets in one critical section,
+	 * and the change checks and the rest of the commit run in the returned task.
+	 *
+	 * @param editCoordinate the edit coordinate whose author's changes are committed.
+	 * @param commitComment
+	 * @return a task that is already submitted to an executor.
+	 */
 	@Override
-	public Task<Optional<CommitRecord>> commit(EditCoordinate editCoordinate, String commitComment) {
-		// TODO, make this only commit those components with changes from the provided edit coordinate.
-		throw new UnsupportedOperationException("This implementation is broken");
-		//TODO this needs repair... pendingStampsForCommit, for example, is never populated.
-		//Also do we need to lock around the CommitTask creation to makre sure the uncommitted lists are consistent during copy?
-		//		Semaphore pendingWrites = writePermitReference.getAndSet(new Semaphore(WRITE_POOL_SIZE));
-		//		pendingWrites.acquireUninterruptibly(WRITE_POOL_SIZE);
-		//		alertCollection.clear();
-		//		lastCommit = databaseSequence.incrementAndGet();
-		//
-		//		Map<UncommittedStamp, Integer> pendingStampsForCommit = new HashMap<>();
-		//		UNCOMMITTED_STAMP_TO_STAMP_SEQUENCE_MAP.forEach((uncommittedStamp, stampSequence) -> {
-		//			if (uncommittedStamp.authorSequence == editCoordinate.getAuthorSequence()) {
-		//				Stamp stamp = new Stamp(Status.getStatusFromState(uncommittedStamp.status),
-		//						  Long.MIN_VALUE,
-		//						  Get.identifierService().getConceptNid(uncommittedStamp.authorSequence),
-		//						  Get.identifierService().getConceptNid(uncommittedStamp.moduleSequence),
-		//						  Get.identifierService().getConceptNid(uncommittedStamp.pathSequence));
-		//				addStamp(stamp, stampSequence);
-		//				UNCOMMITTED_STAMP_TO_STAMP_SEQUENCE_MAP.remove(uncommittedStamp);
-		//			}
-		//		});
-		//		UNCOMMITTED_STAMP_TO_STAMP_SEQUENCE_MAP.clear();
-		//
-		//		CommitTask task = CommitTask.get(commitComment,
-		//				  uncommittedConceptsWithChecksSequenceSet,
-		//				  uncommittedConceptsNoChecksSequenceSet,
-		//				  uncommittedSememesWithChecksSequenceSet,
-		//				  uncommittedSememesNoChecksSequenceSet,
-		//				  lastCommit,
-		//				  checkers,
-		//				  alertCollection,
-		//				  pendingStampsForCommit,
-		//				  this);
-		//		return task;
+	public CommitTask commit(EditCoordinate editCoordinate, String commitComment) {
+		// Wait for the writes already submitted, so the commit includes them.
+		Semaphore pendingWrites = writePermitReference.getAndSet(new Semaphore(WRITE_POOL_SIZE));
+		pendingWrites.acquireUninterruptibly(WRITE_POOL_SIZE);
+		long commitSequence = databaseSequence.incrementAndGet();
+		int authorSequence = editCoordinate.getAuthorSequence();
+
+		Map<UncommittedStamp, Integer> pendingStampsForCommit;
+		ConceptSequenceSet conceptsWithChecks;
+		ConceptSequenceSet conceptsNoChecks;
+		SememeSequenceSet sememesWithChecks;
+		SememeSequenceSet sememesNoChecks;
+		// The stamps and the components are taken together, so a global commit can't take one without the other.
+		uncommittedSequenceLock.lock();
+		try
+		{
+			pendingStampsForCommit = Get.stampService().getPendingStampsForCommit(authorSequence);
+			conceptsWithChecks = ConceptSequenceSet.of(uncommittedConceptsWithChecksSequenceSet.parallelStream()
+					.filter((conceptSequence) -> hasUncommittedVersion(Get.conceptService().getConcept(conceptSequence), authorSequence))
+					.toArray());
+			conceptsNoChecks = ConceptSequenceSet.of(uncommittedConceptsNoChecksSequenceSet.parallelStream()
+					.filter((conceptSequence) -> hasUncommittedVersion(Get.conceptService().getConcept(conceptSequence), authorSequence))
+					.toArray());
+			sememesWithChecks = SememeSequenceSet.of(uncommittedSememesWithChecksSequenceSet.parallelStream()
+					.filter((sememeSequence) -> hasUncommittedVersion(Get.sememeService().getSememe(sememeSequence), authorSequence))
+					.toArray());
+			sememesNoChecks = SememeSequenceSet.of(uncommittedSememesNoChecksSequenceSet.parallelStream()
+					.filter((sememeSequence) -> hasUncommittedVersion(Get.sememeService().getSememe(sememeSequence), authorSequence))
+					.toArray());
+			uncommittedConceptsWithChecksSequenceSet.andNot(conceptsWithChecks);
+			uncommittedConceptsNoChecksSequenceSet.andNot(conceptsNoChecks);
+			uncommittedSememesWithChecksSequenceSet.andNot(sememesWithChecks);
+			uncommittedSememesNoChecksSequenceSet.andNot(sememesNoChecks);
+		}
+		finally
+		{
+			uncommittedSequenceLock.unlock();
+		}
+		return CommitTaskImpl.get(commitComment,
+				conceptsWithChecks,
+				conceptsNoChecks,
+				sememesWithChecks,
+				sememesNoChecks,
+				commitSequence,
+				checkers,
+				new ConcurrentSkipListSet<>(),
+				pendingStampsForCommit,
+				this);
+	}
+
+	private static boolean hasUncommittedVersion(ObjectChronology<?> chronicle, int authorSequence) {
+		for (Object version : chronicle.getVersionList()) {
+			if (((ObjectVersionImpl) version).isUncommitted() && ((ObjectVersionImpl) version).getAuthorSequence() == authorSequence) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
 	 * Perform a global commit. The caller may chose to block on the returned
-	 * task if synchronous operation is desired.
+	 * task if synchronous operation is desired. Each commit has its own alert
+	 * collection, since commits may run at the same time.
 	 *
 	 *
 	 *
@@ -472,18 +547,16 @@ public class CommitProvider implements CommitService {
 	 * @return a task that is already submitted to an executor.
 	 */
 	@Override
-	public synchronized CommitTask commit(String commitComment) {
+	public CommitTask commit(String commitComment) {
 		Semaphore pendingWrites = writePermitReference.getAndSet(new Semaphore(WRITE_POOL_SIZE));
 		pendingWrites.acquireUninterruptibly(WRITE_POOL_SIZE);
 		alertCollection.clear();
-		lastCommit = databaseSequence.incrementAndGet();
-
-
-		Map<UncommittedStamp, Integer> pendingStampsForCommit = Get.stampService().getPendingStampsForCommit();
+		long lastCommit = databaseSequence.incrementAndGet();
 
 		try
 		{
 			uncommittedSequenceLock.lock();
+			Map<UncommittedStamp, Integer> pendingStampsForCommit = Get.stampService().getPendingStampsForCommit();
 			CommitTask task = CommitTaskImpl.get(commitComment,
 					uncommittedConceptsWithChecksSequenceSet,
 					uncommittedConceptsNoChecksSequenceSet,
@@ -491,7 +564,7 @@ public class CommitProvider implements CommitService {
 					uncommittedSememesNoChecksSequenceSet,
 					lastCommit,
 					checkers,
-					alertCollection,
+					new ConcurrentSkipListSet<>(),
 					pendingStampsForCommit,
 					this);
 			return task;
@@ -502,6 +575,79 @@ public class CommitProvider implements CommitService {
 		}
 	}
 
+	/**
+	 * Appends the chronologies and stamp comments of the commit to the commit log, and returns when
+	 * they are on disk. Concurrent commits share a force of the log. Commits are not logged in
+	 * database build mode, where a failed build is run again rather than recovered.
+	 * @param commitRecord a commit whose stamps have their commit time.
+	 */
+	protected void logCommit(CommitRecord commitRecord) {
+		if (Get.configurationService().inDBBuildMode()) {
+			return;
+		}
+		List<OchreExternalizable> objects = new ArrayList<>();
+		commitRecord.getConceptsInCommit().stream().forEach((conceptSequence)
+				-> objects.add(Get.conceptService().getConcept(conceptSequence)));
+		commitRecord.getSememesInCommit().stream().forEach((sememeSequence)
+				-> objects.add(Get.sememeService().getSememe(sememeSequence)));
+		commitRecord.getStampsInCommit().stream().forEach((stampSequence)
+				-> stampCommentMap.getComment(stampSequence).ifPresent((comment)
+						-> objects.add(new StampComment(comment, stampSequence))));
+		try {
+			commitLog.append(objects);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Failed to log commit: " + commitRecord.getCommitComment(), e);
+		}
+	}
+
+	/**
+	 * @return a commit time after the time of every earlier commit, so no two commits happen in the same
+	 * millisecond, which would mess up the RelativePositionCalculator.
+	 */
+	protected long nextCommitTime() {
+		return lastCommitTime.accumulateAndGet(System.currentTimeMillis(),
+				(lastTime, currentTime) -> currentTime > lastTime ? currentTime : lastTime + 1);
+	}
+
+	/**
+	 * Returns the components of a commit that still have uncommitted versions, such as the versions of
+	 * other authors, to the uncommitted sets.
+	 */
+	protected void retainUncommitted(ConceptSequenceSet conceptsInCommit,
+			ConceptSequenceSet conceptsToCheck,
+			SememeSequenceSet sememesInCommit,
+			SememeSequenceSet sememesToCheck) {
+		ConceptSequenceSet uncommittedConcepts = ConceptSequenceSet.of(conceptsInCommit.parallelStream()
+				.filter((conceptSequence) -> Get.conceptService().getConcept(conceptSequence).isUncommitted())
+				.toArray());
+		SememeSequenceSet uncommittedSememes = SememeSequenceSet.of(sememesInCommit.parallelStream()
+				.filter((sememeSequence) -> Get.sememeService().getSememe(sememeSequence).isUncommitted())
+				.toArray());
+		if (uncommittedConcepts.isEmpty() && uncommittedSememes.isEmpty()) {
+			return;
+		}
+		uncommittedSequenceLock.lock();
+		try {
+			uncommittedConcepts.stream().forEach((conceptSequence) -> {
+				if (conceptsToCheck.contains(conceptSequence)) {
+					uncommittedConceptsWithChecksSequenceSet.add(conceptSequence);
+				} else {
+					uncommittedConceptsNoChecksSequenceSet.add(conceptSequence);
+				}
+			});
+			uncommittedSememes.stream().forEach((sememeSequence) -> {
+				if (sememesToCheck.contains(sememeSequence)) {
+					uncommittedSememesWithChecksSequenceSet.add(sememeSequence);
+				} else {
+					uncommittedSememesNoChecksSequenceSet.add(sememeSequence);
+				}
+			});
+		} finally {
+			uncommittedSequenceLock.unlock();
+		}
+	}
+
 	protected void handleCommitNotification(CommitRecord commitRecord) {
 		changeListeners.forEach((listenerRef) -> {
 			ChronologyChangeListener listener = listenerRef.get();
@@ -134,21 +134,18 @@ public class CommitTaskImpl extends CommitTask {
 	@Override
 	protected Optional<CommitRecord> call() throws Exception {
 		try {
-			conceptsToCommit.stream().forEach((conceptSequence) -> {
+			// The alert collection is concurrent, so components are checked in parallel.
+			conceptsToCheck.parallelStream().forEach((conceptSequence) -> {
 				ConceptChronology c = Get.conceptService().getConcept(conceptSequence);
-				if (conceptsToCheck.contains(conceptSequence)) {
-					checkers.stream().forEach((check) -> {
-						check.check(c, alertCollection, CheckPhase.COMMIT);
-					});
-				}
+				checkers.stream().forEach((check) -> {
+					check.check(c, alertCollection, CheckPhase.COMMIT);
+				});
 			});
-			sememesToCommit.stream().forEach((sememeSequence) -> {
+			sememesToCheck.parallelStream().forEach((sememeSequence) -> {
 				SememeChronology sc = Get.sememeService().getSememe(sememeSequence);
-				if (sememesToCheck.contains(sememeSequence)) {
-					checkers.stream().forEach((check) -> {
-						check.check(sc, alertCollection, CheckPhase.COMMIT);
-					});
-				}
+				checkers.stream().forEach((check) -> {
+					check.check(sc, alertCollection, CheckPhase.COMMIT);
+				});
 			});
 			if (alertCollection.stream().anyMatch((alert)
 					-> (alert.getAlertType() == AlertType.ERROR))) {
@@ -159,7 +156,7 @@ public class CommitTaskImpl extends CommitTask {
 						pendingStampsForCommit);
 				return Optional.empty();
 			}
-			long commitTime = System.currentTimeMillis();
+			long commitTime = commitProvider.nextCommitTime();
 			StampSequenceSet stampSequenceSet = new StampSequenceSet();
 			pendingStampsForCommit.entrySet().stream().forEach((entry) -> {
 				int stampSequence = entry.getValue();
@@ -184,6 +181,8 @@ public class CommitTaskImpl extends CommitTask {
 						SememeSequenceSet.of(sememesToCheck).or(sememesToCommit),
 						commitComment);
 
+				commitProvider.logCommit(commitRecord);
+				commitProvider.retainUncommitted(conceptsToCommit, conceptsToCheck, sememesToCommit, sememesToCheck);
 				commitProvider.handleCommitNotification(commitRecord);
 
 				return Optional.of(commitRecord);
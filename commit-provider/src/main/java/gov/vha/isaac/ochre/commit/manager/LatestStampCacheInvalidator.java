@@ -0,0 +1,97 @@
+/**
+ * Copyright Notice
+ *
+ * This is a work of the U.S. Government and is not subject to copyright
+ * protection in the United States. Foreign copyrights may apply.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *	 http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.commit.manager;
+
+import java.util.UUID;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.hk2.runlevel.RunLevel;
+import org.jvnet.hk2.annotations.Service;
+import gov.vha.isaac.ochre.api.Get;
+import gov.vha.isaac.ochre.api.LookupService;
+import gov.vha.isaac.ochre.api.commit.ChronologyChangeListener;
+import gov.vha.isaac.ochre.api.commit.CommitRecord;
+import gov.vha.isaac.ochre.api.component.concept.ConceptChronology;
+import gov.vha.isaac.ochre.api.component.sememe.SememeChronology;
+import gov.vha.isaac.ochre.api.component.sememe.version.SememeVersion;
+import gov.vha.isaac.ochre.api.identity.StampedVersion;
+import gov.vha.isaac.ochre.api.snapshot.calculator.RelativePositionCalculator;
+
+/**
+ * Keeps the latest stamp sequences memoized by each {@link RelativePositionCalculator} current.
+ * A changed chronology is removed by nid. A commit clears every calculator's cache, since committing
+ * gives uncommitted stamps a time, which can change the latest versions of chronologies that were
+ * not written again. The stamp provider clears the caches on cancel for the same reason.
+ *
+ * Chronologies written without a change notification, as by change set replay or
+ * {@code importNoChecks}, need no invalidation, since the cache is keyed by the persisted write
+ * sequence of the chronology, which increases with every write.
+ */
+@Service(name = "Latest Stamp Cache Invalidator")
+@RunLevel(value = LookupService.SL_L1)
+public class LatestStampCacheInvalidator implements ChronologyChangeListener {
+
+	private static final Logger LOG = LogManager.getLogger();
+	private final UUID listenerId = UUID.randomUUID();
+
+	private LatestStampCacheInvalidator() {
+		//for HK2
+	}
+
+	@PostConstruct
+	private void startMe() {
+		LOG.info("Starting LatestStampCacheInvalidator post-construct");
+		Get.commitService().addChangeListener(this);
+	}
+
+	@PreDestroy
+	private void stopMe() {
+		LOG.info("Stopping LatestStampCacheInvalidator pre-destroy. ");
+		Get.commitService().removeChangeListener(this);
+		RelativePositionCalculator.clearLatestStampSequences();
+	}
+
+	@Override
+	public UUID getListenerUuid()
+	{
+		return listenerId;
+	}
+
+	@Override
+	public void handleChange(ConceptChronology<? extends StampedVersion> cc)
+	{
+		RelativePositionCalculator.invalidateLatestStampSequences(cc.getNid());
+	}
+
+	@Override
+	public void handleChange(SememeChronology<? extends SememeVersion<?>> sc)
+	{
+		RelativePositionCalculator.invalidateLatestStampSequences(sc.getNid());
+	}
+
+	@Override
+	public void handleCommit(CommitRecord commitRecord)
+	{
+		RelativePositionCalculator.clearLatestStampSequences();
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.commit.manager;
+
+import gov.vha.isaac.ochre.api.externalizable.ByteArrayDataBuffer;
+import gov.vha.isaac.ochre.api.externalizable.OchreExternalizable;
+import gov.vha.isaac.ochre.api.externalizable.OchreExternalizableObjectType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author kec
+ */
+public class CommitLogTest {
+
+    /**
+     * An object that writes only its value, so the log can be read without
+     * the services that parse chronologies.
+     */
+    private static class TestObject implements OchreExternalizable {
+
+        private final int value;
+
+        TestObject(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public void putExternal(ByteArrayDataBuffer out) {
+            out.putInt(value);
+        }
+
+        @Override
+        public byte getDataFormatVersion() {
+            return 0;
+        }
+
+        @Override
+        public OchreExternalizableObjectType getOchreObjectType() {
+            return OchreExternalizableObjectType.STAMP_COMMENT;
+        }
+    }
+
+    /**
+     * Appends commits of 1, 2, and 3 objects, valued by commit.
+     *
+     * @return the length of the log after each commit.
+     */
+    private static long[] writeLog(Path logPath) throws IOException {
+        long[] lengths = new long[3];
+        try (CommitLog log = CommitLog.create(logPath.getParent())) {
+            Assert.assertEquals(logPath, log.getLogPath());
+            for (int commit = 0; commit < 3; commit++) {
+                List<TestObject> objects = new ArrayList<>();
+                for (int i = 0; i <= commit; i++) {
+                    objects.add(new TestObject(commit));
+                }
+                log.append(objects);
+                lengths[commit] = Files.size(logPath);
+            }
+        }
+        return lengths;
+    }
+
+    private static Path createLogFolder() throws IOException {
+        Path logFolder = Files.createTempDirectory("commit-log-test");
+        logFolder.toFile().deleteOnExit();
+        return logFolder;
+    }
+
+    private static Path firstLog(Path logFolder) {
+        Path logPath = logFolder.resolve("commit-000001.log");
+        logPath.toFile().deleteOnExit();
+        return logPath;
+    }
+
+    private static int replay(Path logPath, List<Integer> values) throws IOException {
+        return CommitLog.replayRecords(logPath, (type, data) -> {
+            Assert.assertEquals(OchreExternalizableObjectType.STAMP_COMMENT, type);
+            values.add(data.getInt());
+        });
+    }
+
+    @Test
+    public void replayWholeLog() throws Exception {
+        Path logPath = firstLog(createLogFolder());
+        writeLog(logPath);
+
+        List<Integer> values = new ArrayList<>();
+        Assert.assertEquals(3, replay(logPath, values));
+        Assert.assertEquals(Arrays.asList(0, 1, 1, 2, 2, 2), values);
+    }
+
+    @Test
+    public void replayStopsAtTornFrame() throws Exception {
+        Path logPath = firstLog(createLogFolder());
+        long[] lengths = writeLog(logPath);
+
+        // Within the payload of the last commit.
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+            channel.truncate(lengths[2] - 3);
+        }
+        List<Integer> values = new ArrayList<>();
+        Assert.assertEquals(2, replay(logPath, values));
+        Assert.assertEquals(Arrays.asList(0, 1, 1), values);
+
+        // Within the length of the last commit.
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+            channel.truncate(lengths[1] + 2);
+        }
+        values.clear();
+        Assert.assertEquals(2, replay(logPath, values));
+        Assert.assertEquals(Arrays.asList(0, 1, 1), values);
+    }
+
+    @Test
+    public void replayStopsAtBadChecksum() throws Exception {
+        Path logPath = firstLog(createLogFolder());
+        long[] lengths = writeLog(logPath);
+
+        // Flip a byte of the payload of the second commit.
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate(1);
+            channel.read(data, lengths[1] - 1);
+            data.put(0, (byte) (data.get(0) ^ 0xFF));
+            data.rewind();
+            channel.write(data, lengths[1] - 1);
+        }
+        List<Integer> values = new ArrayList<>();
+        Assert.assertEquals(1, replay(logPath, values));
+        Assert.assertEquals(Arrays.asList(0), values);
+    }
+}
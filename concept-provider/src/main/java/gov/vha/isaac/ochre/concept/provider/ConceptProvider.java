@@ -33,9 +33,11 @@ import gov.vha.isaac.ochre.api.component.sememe.version.DescriptionSememe;
 import gov.vha.isaac.ochre.api.coordinate.LanguageCoordinate;
 import gov.vha.isaac.ochre.api.coordinate.StampCoordinate;
 import gov.vha.isaac.ochre.api.collections.ConceptSequenceSet;
+import gov.vha.isaac.ochre.api.memory.CacheStore;
 import gov.vha.isaac.ochre.model.concept.ConceptChronologyImpl;
 import gov.vha.isaac.ochre.model.concept.ConceptSnapshotImpl;
 import gov.vha.isaac.ochre.model.waitfree.CasSequenceObjectMap;
+import gov.vha.isaac.ochre.model.waitfree.SegmentStorage;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -129,7 +131,8 @@ public class ConceptProvider implements ConceptService {
             }
 
             conceptMap = new CasSequenceObjectMap<>(new ConceptSerializer(),
-                    ochreConceptPath, "seg.", ".ochre-concepts.map");
+                    ochreConceptPath, "seg.", ".ochre-concepts.map", SegmentStorage.forStore("concept"),
+                    CacheStore.CONCEPT);
         } catch (IOException | IllegalStateException e) {
             LookupService.getService(SystemStatusService.class).notifyServiceConfigurationFailure("ChRonicled Assertion Database of Logical Expressions (OCHRE)", e);
             throw e;
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.ibdf.provider;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import org.glassfish.hk2.api.PerLookup;
+import org.jvnet.hk2.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import gov.vha.isaac.ochre.api.Get;
+import gov.vha.isaac.ochre.api.LookupService;
+import gov.vha.isaac.ochre.api.chronicle.ObjectChronology;
+import gov.vha.isaac.ochre.api.externalizable.ByteArrayDataBuffer;
+import gov.vha.isaac.ochre.api.externalizable.DataWriterService;
+import gov.vha.isaac.ochre.api.externalizable.OchreExternalizable;
+import gov.vha.isaac.ochre.api.metacontent.MetaContentService;
+
+/**
+ * Writes an IBDF version 2 file, with the records in deflate compressed
+ * blocks, followed by a block index (see {@link IbdfBlockIndex} and
+ * {@link IbdfBlockFileWriter}).
+ *
+ * A block is written when it holds {@link IbdfBlockFileWriter#BLOCK_SIZE}
+ * bytes of records, and on a flush, close, or pause. The block index is
+ * written on close, and removed again when a closed file is configured for
+ * more writes, so a paused writer resumes by adding blocks to the file.
+ *
+ * @author kec
+ */
+@Service(name="ibdfBlockWriter")
+@PerLookup
+public class BinaryDataBlockWriterProvider implements DataWriterService {
+
+    private static final int BUFFER_SIZE = 1024;
+    private Logger logger = LoggerFactory.getLogger(BinaryDataBlockWriterProvider.class);
+    private Semaphore pauseBlock = new Semaphore(1);
+
+    Path dataPath;
+    ByteArrayDataBuffer buffer = new ByteArrayDataBuffer(BUFFER_SIZE);
+    IbdfBlockFileWriter output;
+
+    private BinaryDataBlockWriterProvider() throws IOException {
+        //for HK2
+    }
+
+    /**
+     * For non-HK2 use cases
+     * @param dataPath
+     * @throws IOException
+     */
+    public BinaryDataBlockWriterProvider(Path dataPath) throws IOException {
+        this();
+        configure(dataPath);
+    }
+
+    /**
+     * Opens the file for writing. A file that already has blocks is reopened
+     * at the end of its last whole block.
+     *
+     * @param path
+     * @throws IOException if the file exists, and is not an IBDF version 2
+     * file.
+     */
+    @Override
+    public synchronized void configure(Path path) throws IOException {
+        if (this.output != null) {
+            throw new RuntimeException("Reconfiguration is not supported");
+        }
+        dataPath = path;
+        output = new IbdfBlockFileWriter(dataPath);
+        buffer.setExternalData(true);
+        logger.info("ibdf block writer has been configured to write to " + dataPath.toAbsolutePath().toString());
+        if (!Get.configurationService().inDBBuildMode()) {
+            //record this file as already being in the database if we are in 'normal' run mode.
+            MetaContentService mcs = LookupService.get().getService(MetaContentService.class);
+            if (mcs != null) {
+               ConcurrentMap<String, Boolean> processedChangesets = mcs.<String, Boolean>openStore("processedChangesets");
+               processedChangesets.put(path.getFileName().toString(), true);
+            }
+        }
+    }
+
+    @Override
+    public Path getCurrentPath()
+    {
+        return dataPath;
+    }
+
+    @Override
+    public void put(OchreExternalizable ochreObject) throws RuntimeException
+    {
+        try
+        {
+            pauseBlock.acquireUninterruptibly();
+            synchronized (this) {
+                buffer.clear();
+                ochreObject.putExternal(buffer);
+                int nid = ochreObject instanceof ObjectChronology ? ((ObjectChronology<?>) ochreObject).getNid() : IbdfBlockIndex.NO_NID;
+                output.write(ochreObject.getOchreObjectType().getToken(), ochreObject.getDataFormatVersion(), buffer.getData(),
+                        buffer.getLimit(), nid);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            pauseBlock.release();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try
+        {
+            output.close();
+        }
+        finally
+        {
+            output = null;
+        }
+    }
+
+    /**
+     * Writes the records put since the last block as a block, so they are in
+     * the file if the writer does not close.
+     * @throws IOException
+     * @see gov.vha.isaac.ochre.api.externalizable.DataWriterService#flush()
+     */
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        if (output != null)
+        {
+            output.flush();
+        }
+    }
+
+    @Override
+    public void pause() throws IOException
+    {
+        if (output == null)
+        {
+            logger.warn("already paused!");
+            return;
+        }
+        pauseBlock.acquireUninterruptibly();
+        close();
+        logger.debug("ibdf block writer paused");
+    }
+
+    @Override
+    public void resume() throws IOException
+    {
+        if (pauseBlock.availablePermits() == 1)
+        {
+            logger.warn("asked to resume, but not paused?");
+            return;
+        }
+        if (output == null)
+        {
+            configure(dataPath);
+        }
+        pauseBlock.release();
+        logger.debug("ibdf block writer resumed");
+    }
+}
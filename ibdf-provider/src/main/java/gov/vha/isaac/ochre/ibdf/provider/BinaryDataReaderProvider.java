@@ -19,57 +19,128 @@ import gov.vha.isaac.ochre.api.externalizable.BinaryDataReaderService;
 import gov.vha.isaac.ochre.api.externalizable.ByteArrayDataBuffer;
 import gov.vha.isaac.ochre.api.externalizable.OchreExternalizable;
 import gov.vha.isaac.ochre.api.externalizable.OchreExternalizableObjectType;
-import gov.vha.isaac.ochre.api.externalizable.StampAlias;
-import gov.vha.isaac.ochre.api.externalizable.StampComment;
 import gov.vha.isaac.ochre.api.task.TimedTaskWithProgressTracker;
-import gov.vha.isaac.ochre.model.concept.ConceptChronologyImpl;
-import gov.vha.isaac.ochre.model.sememe.SememeChronologyImpl;
-import java.io.DataInputStream;
 import java.io.EOFException;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Spliterator;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 /**
+ * Reads an IBDF file through a record index (see {@link IbdfRecordIndex}),
+ * so that the stream of records can be split by record range and parsed on
+ * multiple threads. Each split reads its records in blocks, with positional
+ * reads of the shared file channel. A sequential stream reads the records in
+ * blocks from the start of the file, without building the index, so the file
+ * is read once.
+ *
+ * An IBDF version 2 file is read through its block index (see
+ * {@link IbdfBlockIndex}) instead, and split by block range, so each split
+ * also decompresses its own blocks.
  *
  * @author kec
  */
-public class BinaryDataReaderProvider 
-        extends TimedTaskWithProgressTracker<Integer> 
-        implements BinaryDataReaderService, Spliterator<OchreExternalizable> {
+public class BinaryDataReaderProvider
+        extends TimedTaskWithProgressTracker<Integer>
+        implements BinaryDataReaderService {
+
+    private static final int BLOCK_SIZE = 1 << 20;
+    /**
+     * Splits below this number of records are not split further.
+     */
+    private static final int MIN_SPLIT_RECORDS = 256;
 
     Path dataPath;
-    DataInputStream input;
-    int streamBytes;
-    int objects = 0;
+    FileChannel channel;
+    IbdfRecordIndex recordIndex;
+    IbdfBlockIndex blockIndex;
+    /**
+     * The number of records, or -1 until the file is indexed.
+     */
+    int recordCount = -1;
+    long fileLength;
+    AtomicInteger objects = new AtomicInteger();
     CountDownLatch complete = new CountDownLatch(1);
 
     public BinaryDataReaderProvider(Path dataPath) throws FileNotFoundException {
         this.dataPath = dataPath;
-        this.input = new DataInputStream(new FileInputStream(dataPath.toFile()));
+        if (!Files.exists(dataPath)) {
+            throw new FileNotFoundException(dataPath.toString());
+        }
         try {
-            streamBytes = input.available();
-            addToTotalWork(streamBytes);
+            this.channel = FileChannel.open(dataPath, StandardOpenOption.READ);
+            if (IbdfBlockIndex.isBlockFormat(dataPath)) {
+                this.blockIndex = IbdfBlockIndex.load(channel, dataPath);
+                this.recordCount = blockIndex.getRecordCount();
+                addToTotalWork(blockIndex.getUncompressedLength());
+            } else {
+                this.fileLength = channel.size();
+                addToTotalWork(fileLength);
+            }
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * @return an ordered, sequential stream of the records of the file.
+     */
     @Override
     public Stream<OchreExternalizable> getStream() {
-        running();
-        return StreamSupport.stream(this, false);
+        return start(false);
      }
 
     /**
-     * 
-     * @return the number of objects read. 
+     * @return an ordered, parallel stream of the records of the file. Use
+     * forEachOrdered where the order of the file must be preserved.
+     */
+    @Override
+    public Stream<OchreExternalizable> getParallelStream() {
+        return start(true);
+    }
+
+    /**
+     * The returned stream closes the file when it is closed, for callers
+     * that do not consume the whole stream.
+     */
+    private Stream<OchreExternalizable> start(boolean parallel) {
+        running();
+        try {
+            if (blockIndex == null && parallel && recordIndex == null) {
+                recordIndex = IbdfRecordIndex.build(channel, dataPath);
+                recordCount = recordIndex.getRecordCount();
+            }
+            if (recordCount == 0 || (recordIndex == null && fileLength == 0)) {
+                close();
+            }
+        } catch (IOException ex) {
+            close();
+            throw new RuntimeException(ex);
+        }
+        Stream<OchreExternalizable> stream;
+        if (blockIndex != null) {
+            stream = StreamSupport.stream(new IbdfBlockSpliterator(blockIndex, channel, 0, blockIndex.getBlockCount(),
+                    (recordLength) -> recordRead(recordLength)), parallel).map((unparsed) -> unparsed.parse());
+        } else if (recordIndex != null) {
+            stream = StreamSupport.stream(new RecordSpliterator(0, recordCount), parallel);
+        } else {
+            stream = StreamSupport.stream(new SequentialRecordSpliterator(), parallel);
+        }
+        return stream.onClose(() -> close());
+    }
+
+    /**
+     *
+     * @return the number of objects read.
       */
     @Override
     protected Integer call() {
@@ -78,71 +149,198 @@ public class BinaryDataReaderProvider
         } catch (InterruptedException ex) {
             throw new RuntimeException(ex);
         }
-        return objects;
+        return objects.get();
     }
 
     @Override
     public void close() {
         try {
-            input.close();
-            done();
-            complete.countDown();
+            channel.close();
+            if (complete.getCount() > 0) {
+                done();
+                complete.countDown();
+            }
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
-    @Override
-    public boolean tryAdvance(Consumer<? super OchreExternalizable> action) {
-        try {
-                int startBytes = input.available();
-                OchreExternalizableObjectType type = OchreExternalizableObjectType.fromDataStream(input);
-                byte dataFormatVersion = input.readByte();
-                int recordSize = input.readInt();
-                byte[] objectData = new byte[recordSize];
-                input.readFully(objectData);
-                ByteArrayDataBuffer buffer = new ByteArrayDataBuffer(objectData);
-                buffer.setExternalData(true);
-                buffer.setObjectDataFormatVersion(dataFormatVersion);
-                switch (type) {
-                    case CONCEPT:
-                        action.accept(ConceptChronologyImpl.make(buffer));
-                       break;
-                    case SEMEME:
-                        action.accept(SememeChronologyImpl.make(buffer));
-                       break;
-                   case STAMP_ALIAS:
-                       action.accept(new StampAlias(buffer));
-                       break;
-                    case STAMP_COMMENT:
-                       action.accept(new StampComment(buffer));
-                       break;
-                    default:
-                        throw new UnsupportedOperationException("Can't handle: " + type);
+    private void recordRead(int recordLength) {
+        completedUnitsOfWork(recordLength);
+        if (objects.incrementAndGet() == recordCount) {
+            close();
+        }
+    }
+
+    /**
+     * Parses the record at the position of the buffer, and advances the
+     * buffer past the record.
+     */
+    private void readObject(ByteBuffer recordBuffer, Consumer<? super OchreExternalizable> action) {
+        OchreExternalizableObjectType type = OchreExternalizableObjectType.fromToken(recordBuffer.get());
+        byte dataFormatVersion = recordBuffer.get();
+        byte[] objectData = new byte[recordBuffer.getInt()];
+        recordBuffer.get(objectData);
+        ByteArrayDataBuffer buffer = new ByteArrayDataBuffer(objectData);
+        buffer.setExternalData(true);
+        buffer.setObjectDataFormatVersion(dataFormatVersion);
+        action.accept(new OchreExternalizableUnparsed(type, buffer).parse());
+    }
+
+    /**
+     * The records of the whole file in order, read in blocks from the start
+     * of the file. Does not split.
+     */
+    private class SequentialRecordSpliterator implements Spliterator<OchreExternalizable> {
+
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        /**
+         * The offset in the file of the start of the block.
+         */
+        private long blockStart = 0;
+
+        SequentialRecordSpliterator() {
+            block.limit(0);
+        }
+
+        /**
+         * Makes the block hold at least the needed bytes from its position,
+         * reading past the bytes it still holds.
+         */
+        private void fill(int needed) throws IOException {
+            if (block.remaining() >= needed) {
+                return;
+            }
+            blockStart += block.position();
+            if (block.capacity() < needed) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(BLOCK_SIZE, needed));
+                larger.put(block);
+                block = larger;
+            } else {
+                block.compact();
+            }
+            block.limit((int) Math.min(block.capacity(), fileLength - blockStart));
+            while (block.hasRemaining()) {
+                if (channel.read(block, blockStart + block.position()) < 0) {
+                    break;
                 }
-                objects++;
-                completedUnitsOfWork(startBytes - input.available());
+            }
+            block.flip();
+            if (block.remaining() < needed) {
+                throw new EOFException("Unexpected end of: " + dataPath);
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super OchreExternalizable> action) {
+            try {
+                if (blockStart + block.position() >= fileLength) {
+                    close();
+                    return false;
+                }
+                fill(IbdfRecordIndex.RECORD_HEADER_SIZE);
+                fill(IbdfRecordIndex.RECORD_HEADER_SIZE + block.getInt(block.position() + 2));
+                int recordStart = block.position();
+                readObject(block, action);
+                recordRead(block.position() - recordStart);
                 return true;
-            } catch (EOFException ex) {
-                close();
-                return false;
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
             }
-    }
+        }
 
-    @Override
-    public Spliterator<OchreExternalizable> trySplit() {
-        return null;
-    }
+        @Override
+        public Spliterator<OchreExternalizable> trySplit() {
+            return null;
+        }
 
-    @Override
-    public long estimateSize() {
-        return Long.MAX_VALUE;
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | IMMUTABLE | NONNULL;
+        }
     }
 
-    @Override
-    public int characteristics() {
-        return IMMUTABLE | NONNULL;
+    /**
+     * The records in [next, end) of the record index.
+     */
+    private class RecordSpliterator implements Spliterator<OchreExternalizable> {
+
+        private int next;
+        private final int end;
+        private ByteBuffer block;
+        private long blockStart = -1;
+
+        RecordSpliterator(int start, int end) {
+            this.next = start;
+            this.end = end;
+        }
+
+        /**
+         * @return a buffer positioned at the start of the record, holding the
+         * whole record.
+         */
+        private ByteBuffer readRecord(int record) throws IOException {
+            long offset = recordIndex.getOffset(record);
+            int length = recordIndex.getLength(record);
+            if (block == null || offset < blockStart || offset + length > blockStart + block.limit()) {
+                if (block == null || block.capacity() < length) {
+                    block = ByteBuffer.allocate(Math.max(BLOCK_SIZE, length));
+                }
+                long endOfSplit = recordIndex.getOffset(end);
+                block.clear();
+                block.limit((int) Math.min(block.capacity(), endOfSplit - offset));
+                while (block.hasRemaining()) {
+                    if (channel.read(block, offset + block.position()) < 0) {
+                        throw new EOFException("Unexpected end of: " + dataPath);
+                    }
+                }
+                block.flip();
+                blockStart = offset;
+            }
+            block.position((int) (offset - blockStart));
+            return block;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super OchreExternalizable> action) {
+            if (next >= end) {
+                return false;
+            }
+            int record = next++;
+            try {
+                readObject(readRecord(record), action);
+                recordRead(recordIndex.getLength(record));
+                return true;
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        @Override
+        public Spliterator<OchreExternalizable> trySplit() {
+            int remaining = end - next;
+            if (remaining < MIN_SPLIT_RECORDS * 2) {
+                return null;
+            }
+            int middle = next + (remaining / 2);
+            Spliterator<OchreExternalizable> prefix = new RecordSpliterator(next, middle);
+            next = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - next;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+        }
     }
 }
@@ -15,11 +15,13 @@
  */
 package gov.vha.isaac.ochre.ibdf.provider;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Spliterator;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -42,6 +44,9 @@ import gov.vha.isaac.ochre.api.task.TimedTaskWithProgressTracker;
 /**
  * 
  * {@link BinaryDataReaderQueueProvider}
+ * 
+ * Reads the records of an IBDF file in order, on one thread, and parses them on several.  The blocks of an 
+ * IBDF version 2 file are decompressed as they are read.
  *
  * @author <a href="mailto:daniel.armbrust.list@gmail.com">Dan Armbrust</a>
  */
@@ -72,16 +77,29 @@ public class BinaryDataReaderQueueProvider
 	public BinaryDataReaderQueueProvider(Path dataPath) throws FileNotFoundException
 	{
 		this.dataPath = dataPath;
-		this.input = new DataInputStream(new FileInputStream(dataPath.toFile()));
+		if (!Files.exists(dataPath))
+		{
+			throw new FileNotFoundException(dataPath.toString());
+		}
 		try
 		{
-			streamBytes = input.available();
-			addToTotalWork(streamBytes);
+			if (IbdfBlockIndex.isBlockFormat(dataPath))
+			{
+				IbdfBlockInputStream blockInput = new IbdfBlockInputStream(dataPath);
+				this.input = new DataInputStream(blockInput);
+				streamBytes = (int) blockInput.getBlockIndex().getUncompressedLength();
+			}
+			else
+			{
+				this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(dataPath.toFile()), 1 << 20));
+				streamBytes = (int) dataPath.toFile().length();
+			}
 		}
-		catch (IOException ex)
+		catch (IOException e)
 		{
-			throw new RuntimeException(ex);
+			throw new RuntimeException(e);
 		}
+		addToTotalWork(streamBytes);
 	}
 
 	private Stream<OchreExternalizableUnparsed> getStreamInternal()
@@ -148,7 +166,6 @@ public class BinaryDataReaderQueueProvider
 	{
 		try
 		{
-			int startBytes = input.available();
 			OchreExternalizableObjectType type = OchreExternalizableObjectType.fromDataStream(input);
 			byte dataFormatVersion = input.readByte();
 			int recordSize = input.readInt();
@@ -159,7 +176,7 @@ public class BinaryDataReaderQueueProvider
 			buffer.setObjectDataFormatVersion(dataFormatVersion);
 			action.accept(new OchreExternalizableUnparsed(type, buffer));
 			objects++;
-			completedUnitsOfWork(startBytes - input.available());
+			completedUnitsOfWork(IbdfRecordIndex.RECORD_HEADER_SIZE + recordSize);
 			return true;
 		}
 		catch (EOFException ex)
@@ -267,4 +284,4 @@ public class BinaryDataReaderQueueProvider
 		}
 		return parsedData;
 	}
-}
\ No newline at end of file
+}
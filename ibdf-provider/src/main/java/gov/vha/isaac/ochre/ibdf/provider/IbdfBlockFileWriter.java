@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.ibdf.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes records to an IBDF version 2 file (see {@link IbdfBlockIndex}), in
+ * deflate compressed blocks.
+ *
+ * A block is written when it holds {@link #BLOCK_SIZE} bytes of records, and
+ * on a flush or close. The block index is written on close. Opening a file
+ * that already has blocks removes its block index, or the torn tail of a file
+ * that was not closed, and adds blocks after the last whole block.
+ *
+ * @author kec
+ */
+final class IbdfBlockFileWriter implements AutoCloseable {
+
+    static final int BLOCK_SIZE = 1 << 18;
+    private static final int MIN_INDEX_CAPACITY = IbdfBlockIndex.INDEX_ENTRY_SIZE * 64;
+
+    private final FileChannel channel;
+    private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+    private final DataOutputStream block = new DataOutputStream(blockBytes);
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private byte[] deflated = new byte[BLOCK_SIZE];
+    private int blockRecordCount;
+    private int blockFirstNid = IbdfBlockIndex.NO_NID;
+    private ByteBuffer indexEntries;
+    private int blockCount;
+
+    /**
+     * @param dataPath a new or empty file, or an IBDF version 2 file with
+     * deflate compression.
+     * @throws IOException if the file exists, and is not an IBDF version 2
+     * file with deflate compression.
+     */
+    IbdfBlockFileWriter(Path dataPath) throws IOException {
+        channel = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(IbdfBlockIndex.FILE_HEADER_SIZE);
+                header.putInt(IbdfBlockIndex.FILE_MAGIC).put(IbdfBlockIndex.FORMAT_VERSION).put(IbdfBlockIndex.COMPRESSION_DEFLATE);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                indexEntries = ByteBuffer.allocate(MIN_INDEX_CAPACITY);
+                blockCount = 0;
+            } else {
+                IbdfBlockIndex index = IbdfBlockIndex.load(channel, dataPath);
+                if (index.getCompression() != IbdfBlockIndex.COMPRESSION_DEFLATE) {
+                    throw new IOException("Can't append deflate blocks to: " + dataPath);
+                }
+                channel.truncate(index.getIndexOffset());
+                ByteBuffer entries = index.getEntries();
+                indexEntries = ByteBuffer.allocate(Math.max(MIN_INDEX_CAPACITY, entries.capacity() * 2));
+                entries.flip();
+                indexEntries.put(entries);
+                blockCount = index.getBlockCount();
+            }
+            channel.position(channel.size());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            deflater.end();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a record to the current block, and writes the block if full.
+     *
+     * @param token the type token of the record.
+     * @param dataFormatVersion
+     * @param data the record data, as written by putExternal.
+     * @param length the length of the record data.
+     * @param nid the nid of a chronology, or {@link IbdfBlockIndex#NO_NID}.
+     * @throws IOException
+     */
+    void write(byte token, byte dataFormatVersion, byte[] data, int length, int nid) throws IOException {
+        if (blockFirstNid == IbdfBlockIndex.NO_NID) {
+            blockFirstNid = nid;
+        }
+        block.writeByte(token);
+        block.writeByte(dataFormatVersion);
+        block.writeInt(length);
+        block.write(data, 0, length);
+        blockRecordCount++;
+        if (blockBytes.size() >= BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Compresses the records added since the last block, and writes them as a
+     * block.
+     */
+    private void writeBlock() throws IOException {
+        if (blockRecordCount == 0) {
+            return;
+        }
+        byte[] records = blockBytes.toByteArray();
+        deflater.reset();
+        deflater.setInput(records);
+        deflater.finish();
+        int storedLength = 0;
+        while (!deflater.finished()) {
+            if (storedLength == deflated.length) {
+                deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            }
+            storedLength += deflater.deflate(deflated, storedLength, deflated.length - storedLength);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(deflated, 0, storedLength);
+
+        long offset = channel.position();
+        ByteBuffer header = ByteBuffer.allocate(IbdfBlockIndex.BLOCK_HEADER_SIZE);
+        header.putInt(storedLength).putInt(records.length).putInt(blockRecordCount).putInt(blockFirstNid).putInt((int) crc.getValue());
+        header.flip();
+        ByteBuffer stored = ByteBuffer.wrap(deflated, 0, storedLength);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        while (stored.hasRemaining()) {
+            channel.write(stored);
+        }
+
+        if (indexEntries.remaining() < IbdfBlockIndex.INDEX_ENTRY_SIZE) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(MIN_INDEX_CAPACITY, indexEntries.capacity() * 2));
+            indexEntries.flip();
+            grown.put(indexEntries);
+            indexEntries = grown;
+        }
+        header.flip();
+        indexEntries.putLong(offset).put(header);
+        blockCount++;
+
+        blockBytes.reset();
+        blockRecordCount = 0;
+        blockFirstNid = IbdfBlockIndex.NO_NID;
+    }
+
+    /**
+     * Writes the records added since the last block as a block, so they are
+     * in the file if the writer does not close.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        writeBlock();
+    }
+
+    /**
+     * Writes the last block and the block index, and closes the file.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+            indexEntries.flip();
+            IbdfBlockIndex.writeIndex(channel, indexEntries, blockCount);
+            channel.force(false);
+        } finally {
+            channel.close();
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.ibdf.provider;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The blocks of an IBDF version 2 file, a block compressed container for
+ * the records of an IBDF file.
+ *
+ * The file starts with a header: the int {@link #FILE_MAGIC}, the format
+ * version byte, and the compression byte. The header is followed by the
+ * blocks. Each block is a block header, and then the stored data of the
+ * block. The block header holds the stored length, the uncompressed length,
+ * the record count, the nid of the first chronology in the block (or
+ * {@link #NO_NID}), and the CRC32 of the stored data, all as ints. The
+ * uncompressed data of a block is a run of whole IBDF records, as written to
+ * a version 1 file.
+ *
+ * The blocks are followed by the block index, which repeats the offset and
+ * header of each block, and by the trailer: the long offset of the block
+ * index, the int block count, the int CRC32 of the block index, and the int
+ * {@link #TRAILER_MAGIC}. A file without a valid trailer, as left by a writer
+ * that did not close, is indexed by reading the block headers in turn, up to
+ * the first block that is not whole or fails its checksum.
+ *
+ * Version 1 files start with a record type token, which is never the first
+ * byte of the file magic.
+ *
+ * @author kec
+ */
+public class IbdfBlockIndex {
+
+    private static final Logger LOG = LogManager.getLogger();
+
+    public static final int FILE_MAGIC = 0x1BDF0002;
+    public static final byte FORMAT_VERSION = 2;
+    public static final byte COMPRESSION_NONE = 0;
+    public static final byte COMPRESSION_DEFLATE = 1;
+    public static final int NO_NID = 0;
+
+    static final int FILE_HEADER_SIZE = 6;
+    static final int BLOCK_HEADER_SIZE = 20;
+    static final int INDEX_ENTRY_SIZE = 8 + BLOCK_HEADER_SIZE;
+    static final int TRAILER_SIZE = 20;
+    static final int TRAILER_MAGIC = 0x1BDF00FF;
+
+    private final byte compression;
+    private final long indexOffset;
+    private final long[] offsets;
+    private final int[] storedLengths;
+    private final int[] uncompressedLengths;
+    private final int[] recordCounts;
+    private final int[] firstNids;
+    private final int[] crcs;
+    /**
+     * Block count + 1 entries, the last being the number of records.
+     */
+    private final long[] firstRecords;
+
+    private IbdfBlockIndex(byte compression, long indexOffset, int blockCount, ByteBuffer entries) {
+        this.compression = compression;
+        this.indexOffset = indexOffset;
+        this.offsets = new long[blockCount];
+        this.storedLengths = new int[blockCount];
+        this.uncompressedLengths = new int[blockCount];
+        this.recordCounts = new int[blockCount];
+        this.firstNids = new int[blockCount];
+        this.crcs = new int[blockCount];
+        this.firstRecords = new long[blockCount + 1];
+        for (int block = 0; block < blockCount; block++) {
+            offsets[block] = entries.getLong();
+            storedLengths[block] = entries.getInt();
+            uncompressedLengths[block] = entries.getInt();
+            recordCounts[block] = entries.getInt();
+            firstNids[block] = entries.getInt();
+            crcs[block] = entries.getInt();
+            firstRecords[block + 1] = firstRecords[block] + recordCounts[block];
+        }
+    }
+
+    /**
+     * @param dataPath
+     * @return true if the file starts with the IBDF version 2 file magic.
+     * @throws IOException
+     */
+    public static boolean isBlockFormat(Path dataPath) throws IOException {
+        if (Files.size(dataPath) < FILE_HEADER_SIZE) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            readFully(channel, magic, 0);
+            return magic.getInt(0) == FILE_MAGIC;
+        }
+    }
+
+    /**
+     * @param dataPath an IBDF version 2 file.
+     * @return the block index of the file.
+     * @throws IOException
+     */
+    public static IbdfBlockIndex load(Path dataPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.READ)) {
+            return load(channel, dataPath);
+        }
+    }
+
+    static IbdfBlockIndex load(FileChannel channel, Path dataPath) throws IOException {
+        long fileLength = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if (fileLength < FILE_HEADER_SIZE) {
+            throw new IOException("Not an IBDF version 2 file: " + dataPath);
+        }
+        readFully(channel, header, 0);
+        if (header.getInt(0) != FILE_MAGIC || header.get(4) != FORMAT_VERSION) {
+            throw new IOException("Not an IBDF version 2 file: " + dataPath);
+        }
+        byte compression = header.get(5);
+        if (compression != COMPRESSION_NONE && compression != COMPRESSION_DEFLATE) {
+            throw new IOException("Unsupported IBDF compression " + compression + " in: " + dataPath);
+        }
+
+        if (fileLength >= FILE_HEADER_SIZE + TRAILER_SIZE) {
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(channel, trailer, fileLength - TRAILER_SIZE);
+            long indexOffset = trailer.getLong(0);
+            int blockCount = trailer.getInt(8);
+            int indexCrc = trailer.getInt(12);
+            if (trailer.getInt(16) == TRAILER_MAGIC && blockCount >= 0
+                    && indexOffset >= FILE_HEADER_SIZE
+                    && indexOffset + ((long) blockCount * INDEX_ENTRY_SIZE) == fileLength - TRAILER_SIZE) {
+                ByteBuffer entries = ByteBuffer.allocate(blockCount * INDEX_ENTRY_SIZE);
+                readFully(channel, entries, indexOffset);
+                CRC32 crc = new CRC32();
+                crc.update(entries.array());
+                if ((int) crc.getValue() == indexCrc) {
+                    return new IbdfBlockIndex(compression, indexOffset, blockCount, entries);
+                }
+            }
+        }
+        LOG.warn("IBDF file has no valid block index, reading block headers: " + dataPath);
+        return scan(channel, compression, fileLength);
+    }
+
+    /**
+     * Indexes the whole blocks of a file without a trailer. The index offset
+     * of the result is the end of the last whole block.
+     */
+    private static IbdfBlockIndex scan(FileChannel channel, byte compression, long fileLength) throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 64);
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        long offset = FILE_HEADER_SIZE;
+        int blockCount = 0;
+        while (offset + BLOCK_HEADER_SIZE <= fileLength) {
+            blockHeader.clear();
+            readFully(channel, blockHeader, offset);
+            int storedLength = blockHeader.getInt(0);
+            if (storedLength < 0 || offset + BLOCK_HEADER_SIZE + storedLength > fileLength) {
+                break;
+            }
+            ByteBuffer stored = ByteBuffer.allocate(storedLength);
+            readFully(channel, stored, offset + BLOCK_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(stored.array());
+            if ((int) crc.getValue() != blockHeader.getInt(16)) {
+                break;
+            }
+            if (!entries.hasRemaining()) {
+                int position = entries.position();
+                entries = ByteBuffer.wrap(Arrays.copyOf(entries.array(), entries.capacity() * 2));
+                entries.position(position);
+            }
+            entries.putLong(offset);
+            entries.put(blockHeader.array());
+            blockCount++;
+            offset += BLOCK_HEADER_SIZE + storedLength;
+        }
+        entries.flip();
+        return new IbdfBlockIndex(compression, offset, blockCount, entries);
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at: " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads a block, checks it against its checksum, and decompresses it.
+     *
+     * @param channel the channel of the file.
+     * @param block
+     * @return a buffer holding the records of the block.
+     * @throws IOException if the block fails its checksum, or does not
+     * decompress to its uncompressed length.
+     */
+    public ByteBuffer readBlock(FileChannel channel, int block) throws IOException {
+        ByteBuffer stored = ByteBuffer.allocate(storedLengths[block]);
+        readFully(channel, stored, offsets[block] + BLOCK_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(stored.array());
+        if ((int) crc.getValue() != crcs[block]) {
+            throw new IOException("IBDF block " + block + " at " + offsets[block] + " fails its checksum");
+        }
+        if (compression == COMPRESSION_NONE) {
+            return stored;
+        }
+        byte[] records = new byte[uncompressedLengths[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored.array());
+            int length = 0;
+            while (length < records.length && !inflater.finished()) {
+                int inflated = inflater.inflate(records, length, records.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != records.length) {
+                throw new IOException("IBDF block " + block + " at " + offsets[block] + " is " + length
+                        + " bytes, expected " + records.length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("IBDF block " + block + " at " + offsets[block] + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(records);
+    }
+
+    /**
+     * Writes the block index and trailer.
+     *
+     * @param channel the channel of the file, positioned at the end of the
+     * last block.
+     * @throws IOException
+     */
+    static void writeIndex(FileChannel channel, ByteBuffer entries, int blockCount) throws IOException {
+        long indexOffset = channel.position();
+        CRC32 crc = new CRC32();
+        crc.update(entries.array(), 0, entries.limit());
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.putLong(indexOffset).putInt(blockCount).putInt((int) crc.getValue()).putInt(TRAILER_MAGIC);
+        trailer.flip();
+        while (entries.hasRemaining()) {
+            channel.write(entries);
+        }
+        while (trailer.hasRemaining()) {
+            channel.write(trailer);
+        }
+    }
+
+    /**
+     * @return the block index entries, for a writer that appends to the file.
+     */
+    ByteBuffer getEntries() {
+        ByteBuffer entries = ByteBuffer.allocate(getBlockCount() * INDEX_ENTRY_SIZE);
+        for (int block = 0; block < getBlockCount(); block++) {
+            entries.putLong(offsets[block]).putInt(storedLengths[block]).putInt(uncompressedLengths[block])
+                    .putInt(recordCounts[block]).putInt(firstNids[block]).putInt(crcs[block]);
+        }
+        return entries;
+    }
+
+    public byte getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return the end of the last block, where the block index starts.
+     */
+    public long getIndexOffset() {
+        return indexOffset;
+    }
+
+    public int getBlockCount() {
+        return offsets.length;
+    }
+
+    /**
+     * @param block
+     * @return the offset in the file of the header of the block.
+     */
+    public long getOffset(int block) {
+        return offsets[block];
+    }
+
+    public int getRecordCount(int block) {
+        return recordCounts[block];
+    }
+
+    /**
+     * @param block
+     * @return the nid of the first chronology of the block, or
+     * {@link #NO_NID} if the block has no chronology.
+     */
+    public int getFirstNid(int block) {
+        return firstNids[block];
+    }
+
+    public int getUncompressedLength(int block) {
+        return uncompressedLengths[block];
+    }
+
+    /**
+     * @param block a block, or the block count.
+     * @return the number of records before the block.
+     */
+    public long getFirstRecord(int block) {
+        return firstRecords[block];
+    }
+
+    /**
+     * @return the number of records in the file.
+     */
+    public int getRecordCount() {
+        return (int) firstRecords[firstRecords.length - 1];
+    }
+
+    /**
+     * @return the length of the records of the file, uncompressed.
+     */
+    public long getUncompressedLength() {
+        long length = 0;
+        for (int uncompressedLength : uncompressedLengths) {
+            length += uncompressedLength;
+        }
+        return length;
+    }
+
+    /**
+     * @param record
+     * @return the block holding the record.
+     */
+    public int getBlock(long record) {
+        int block = Arrays.binarySearch(firstRecords, record);
+        if (block < 0) {
+            return -block - 2;
+        }
+        // Skip empty blocks that start at the same record.
+        while (block < recordCounts.length && recordCounts[block] == 0) {
+            block++;
+        }
+        return block;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.ibdf.provider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The records of the blocks of an IBDF version 2 file, in order, in the
+ * record format of an IBDF version 1 file.
+ *
+ * @author kec
+ */
+final class IbdfBlockInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final IbdfBlockIndex blockIndex;
+    private int nextBlock = 0;
+    private ByteBuffer block = ByteBuffer.allocate(0);
+
+    IbdfBlockInputStream(Path dataPath) throws IOException {
+        channel = FileChannel.open(dataPath, StandardOpenOption.READ);
+        try {
+            blockIndex = IbdfBlockIndex.load(channel, dataPath);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    IbdfBlockIndex getBlockIndex() {
+        return blockIndex;
+    }
+
+    /**
+     * @return false at the end of the last block.
+     */
+    private boolean fill() throws IOException {
+        while (!block.hasRemaining()) {
+            if (nextBlock >= blockIndex.getBlockCount()) {
+                return false;
+            }
+            block = blockIndex.readBlock(channel, nextBlock++);
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return fill() ? block.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, block.remaining());
+        block.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.ibdf.provider;
+
+import gov.vha.isaac.ochre.api.externalizable.ByteArrayDataBuffer;
+import gov.vha.isaac.ochre.api.externalizable.OchreExternalizableObjectType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * The records of the blocks in [next, end) of the block index of an IBDF
+ * version 2 file. Blocks are read with positional reads of the shared file
+ * channel, and decompressed by the thread that reads them. A split divides
+ * the blocks not yet started.
+ *
+ * @author kec
+ */
+final class IbdfBlockSpliterator implements Spliterator<OchreExternalizableUnparsed> {
+
+    private final IbdfBlockIndex blockIndex;
+    private final FileChannel channel;
+    private final IntConsumer recordRead;
+    private int next;
+    private final int end;
+    private ByteBuffer block;
+    private long nextRecord;
+
+    /**
+     * @param blockIndex
+     * @param channel the channel of the file.
+     * @param start the first block.
+     * @param end the block after the last.
+     * @param recordRead passed the length of each record read, including its
+     * header.
+     */
+    IbdfBlockSpliterator(IbdfBlockIndex blockIndex, FileChannel channel, int start, int end, IntConsumer recordRead) {
+        this.blockIndex = blockIndex;
+        this.channel = channel;
+        this.recordRead = recordRead;
+        this.next = start;
+        this.end = end;
+        this.nextRecord = blockIndex.getFirstRecord(start);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super OchreExternalizableUnparsed> action) {
+        try {
+            while (block == null || !block.hasRemaining()) {
+                if (next >= end) {
+                    return false;
+                }
+                block = blockIndex.readBlock(channel, next++);
+            }
+            OchreExternalizableObjectType type = OchreExternalizableObjectType.fromToken(block.get());
+            byte dataFormatVersion = block.get();
+            byte[] objectData = new byte[block.getInt()];
+            block.get(objectData);
+            ByteArrayDataBuffer buffer = new ByteArrayDataBuffer(objectData);
+            buffer.setExternalData(true);
+            buffer.setObjectDataFormatVersion(dataFormatVersion);
+            nextRecord++;
+            action.accept(new OchreExternalizableUnparsed(type, buffer));
+            recordRead.accept(IbdfRecordIndex.RECORD_HEADER_SIZE + objectData.length);
+            return true;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public Spliterator<OchreExternalizableUnparsed> trySplit() {
+        if ((block != null && block.hasRemaining()) || end - next < 2) {
+            return null;
+        }
+        int middle = next + ((end - next) / 2);
+        Spliterator<OchreExternalizableUnparsed> prefix = new IbdfBlockSpliterator(blockIndex, channel, next, middle, recordRead);
+        next = middle;
+        nextRecord = blockIndex.getFirstRecord(middle);
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return blockIndex.getFirstRecord(end) - nextRecord;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.ibdf.provider;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The start offset of each record of an IBDF file. Each record is a type
+ * token byte, a data format version byte, an int record size, and the record
+ * data, so the offsets are found by reading the record headers and skipping
+ * the record data.
+ *
+ * The index is kept in memory only, since IBDF files are often read from
+ * folders that should not be written, such as a changeset folder or a
+ * resolved Maven artifact. It is only needed to split a parallel stream, so
+ * a sequential read of a file does not build it.
+ *
+ * @author kec
+ */
+public class IbdfRecordIndex {
+
+    public static final int RECORD_HEADER_SIZE = 6;
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    /**
+     * Record count + 1 entries, the last being the length of the file.
+     */
+    private final long[] offsets;
+
+    private IbdfRecordIndex(long[] offsets) {
+        this.offsets = offsets;
+    }
+
+    /**
+     * Reads the record headers of the file in blocks, with positional reads
+     * of the channel, and skips the blocks that hold only record data.
+     *
+     * @param channel the channel of an IBDF file.
+     * @param dataPath the path of the file, for messages.
+     * @return the record index of the file.
+     * @throws IOException
+     */
+    static IbdfRecordIndex build(FileChannel channel, Path dataPath) throws IOException {
+        long[] offsets = new long[1024];
+        int count = 0;
+        long offset = 0;
+        long length = channel.size();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        long blockStart = 0;
+        block.limit(0);
+        while (offset < length) {
+            if (offset + RECORD_HEADER_SIZE > blockStart + block.limit()) {
+                block.clear();
+                block.limit((int) Math.min(block.capacity(), length - offset));
+                while (block.hasRemaining()) {
+                    if (channel.read(block, offset + block.position()) < 0) {
+                        break;
+                    }
+                }
+                block.flip();
+                blockStart = offset;
+                if (block.limit() < RECORD_HEADER_SIZE) {
+                    throw new EOFException("Truncated record at " + offset + " of: " + dataPath);
+                }
+            }
+            if (count + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = offset;
+            int recordSize = block.getInt((int) (offset - blockStart) + 2);
+            if (recordSize < 0) {
+                throw new IOException("Invalid record size " + recordSize + " at " + offset + " of: " + dataPath);
+            }
+            offset += RECORD_HEADER_SIZE + recordSize;
+        }
+        if (offset != length) {
+            throw new EOFException("Truncated record at " + offsets[count - 1] + " of: " + dataPath);
+        }
+        offsets[count] = offset;
+        return new IbdfRecordIndex(Arrays.copyOf(offsets, count + 1));
+    }
+
+    public int getRecordCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @param record
+     * @return the offset in the file of the header of the record.
+     */
+    public long getOffset(int record) {
+        return offsets[record];
+    }
+
+    /**
+     * @param record
+     * @return the length of the record, including its header.
+     */
+    public int getLength(int record) {
+        return (int) (offsets[record + 1] - offsets[record]);
+    }
+
+    /**
+     * @return the length of the file.
+     */
+    public long getFileLength() {
+        return offsets[offsets.length - 1];
+    }
+}
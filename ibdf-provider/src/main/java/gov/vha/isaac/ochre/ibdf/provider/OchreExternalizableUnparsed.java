@@ -42,6 +42,16 @@ public class OchreExternalizableUnparsed
 		type_ = type;
 	}
 
+	OchreExternalizableObjectType getType()
+	{
+		return type_;
+	}
+
+	ByteArrayDataBuffer getData()
+	{
+		return data_;
+	}
+
 	public OchreExternalizable parse()
 	{
 		switch (type_)
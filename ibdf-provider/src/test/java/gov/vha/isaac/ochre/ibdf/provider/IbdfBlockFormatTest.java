@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.ibdf.provider;
+
+import gov.vha.isaac.ochre.api.externalizable.OchreExternalizableObjectType;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.StreamSupport;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author kec
+ */
+public class IbdfBlockFormatTest {
+
+    private static final byte TOKEN = OchreExternalizableObjectType.STAMP_ALIAS.getToken();
+    private static final byte VERSION = 1;
+
+    private static byte[] record(int i) {
+        byte[] data = new byte[100 + (i % 50) * 20];
+        for (int j = 0; j < data.length; j++) {
+            data[j] = (byte) (i * 31 + j);
+        }
+        return data;
+    }
+
+    private static void write(IbdfBlockFileWriter writer, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            byte[] data = record(i);
+            writer.write(TOKEN, VERSION, data, data.length, i + 1);
+        }
+    }
+
+    /**
+     * Checks that the file holds the records [0, count), in order, through
+     * the spliterator, sequential and parallel, and through the input stream.
+     */
+    private static void assertRecords(Path file, int count) throws IOException {
+        IbdfBlockIndex index = IbdfBlockIndex.load(file);
+        Assert.assertEquals(count, index.getRecordCount());
+        if (count > 0) {
+            Assert.assertEquals(1, index.getFirstNid(0));
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (boolean parallel : new boolean[] {false, true}) {
+                AtomicInteger next = new AtomicInteger();
+                AtomicLong bytesRead = new AtomicLong();
+                IbdfBlockSpliterator spliterator = new IbdfBlockSpliterator(index, channel, 0, index.getBlockCount(),
+                        (recordLength) -> bytesRead.addAndGet(recordLength));
+                Assert.assertEquals(count, spliterator.estimateSize());
+                StreamSupport.stream(spliterator, parallel).forEachOrdered((unparsed) -> {
+                    int i = next.getAndIncrement();
+                    Assert.assertEquals(OchreExternalizableObjectType.STAMP_ALIAS, unparsed.getType());
+                    Assert.assertEquals(VERSION, unparsed.getData().getObjectDataFormatVersion());
+                    Assert.assertArrayEquals(record(i), unparsed.getData().getData());
+                });
+                Assert.assertEquals(count, next.get());
+                Assert.assertEquals(index.getUncompressedLength(), bytesRead.get());
+            }
+        }
+
+        try (DataInputStream input = new DataInputStream(new IbdfBlockInputStream(file))) {
+            int i = 0;
+            for (int token = input.read(); token >= 0; token = input.read()) {
+                Assert.assertEquals(TOKEN, (byte) token);
+                Assert.assertEquals(VERSION, input.readByte());
+                byte[] data = new byte[input.readInt()];
+                input.readFully(data);
+                Assert.assertArrayEquals(record(i++), data);
+            }
+            Assert.assertEquals(count, i);
+        }
+    }
+
+    @Test
+    public void resumedWriterAppendsBlocks() throws IOException {
+        Path file = Files.createTempFile("blocks", ".ibdf");
+        try {
+            try (IbdfBlockFileWriter writer = new IbdfBlockFileWriter(file)) {
+                write(writer, 0, 300);
+                writer.flush();
+                write(writer, 300, 2000);
+            }
+            int closedBlocks = IbdfBlockIndex.load(file).getBlockCount();
+            Assert.assertTrue(closedBlocks > 2);
+
+            try (IbdfBlockFileWriter writer = new IbdfBlockFileWriter(file)) {
+                write(writer, 2000, 2200);
+            }
+            IbdfBlockIndex index = IbdfBlockIndex.load(file);
+            Assert.assertEquals(closedBlocks + 1, index.getBlockCount());
+            Assert.assertEquals(2001, index.getFirstNid(closedBlocks));
+            Assert.assertEquals(2000, index.getFirstRecord(closedBlocks));
+            assertRecords(file, 2200);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void resumedWriterWithoutBlocks() throws IOException {
+        Path file = Files.createTempFile("empty", ".ibdf");
+        try {
+            new IbdfBlockFileWriter(file).close();
+            Assert.assertEquals(0, IbdfBlockIndex.load(file).getBlockCount());
+            assertRecords(file, 0);
+
+            try (IbdfBlockFileWriter writer = new IbdfBlockFileWriter(file)) {
+                for (int i = 0; i < 100; i++) {
+                    write(writer, i * 10, (i + 1) * 10);
+                    writer.flush();
+                }
+            }
+            Assert.assertEquals(100, IbdfBlockIndex.load(file).getBlockCount());
+            assertRecords(file, 1000);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void tornTailIsDropped() throws IOException {
+        Path file = Files.createTempFile("torn", ".ibdf");
+        try {
+            List<Integer> flushedCounts = new ArrayList<>();
+            try (IbdfBlockFileWriter writer = new IbdfBlockFileWriter(file)) {
+                for (int i = 0; i < 5; i++) {
+                    write(writer, i * 100, (i + 1) * 100);
+                    writer.flush();
+                    flushedCounts.add((i + 1) * 100);
+                }
+            }
+            IbdfBlockIndex index = IbdfBlockIndex.load(file);
+            Assert.assertEquals(5, index.getBlockCount());
+
+            // The index, the trailer, and part of the last block are lost, as if the writer stopped mid block.
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(index.getOffset(4) + IbdfBlockIndex.BLOCK_HEADER_SIZE + 10);
+            }
+            Assert.assertEquals(4, IbdfBlockIndex.load(file).getBlockCount());
+            assertRecords(file, flushedCounts.get(3));
+
+            try (IbdfBlockFileWriter writer = new IbdfBlockFileWriter(file)) {
+                write(writer, 400, 600);
+            }
+            Assert.assertEquals(5, IbdfBlockIndex.load(file).getBlockCount());
+            assertRecords(file, 600);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreNotAppended() throws IOException {
+        Path file = Files.createTempFile("other", ".ibdf");
+        try {
+            Files.write(file, Arrays.asList("not an ibdf file"));
+            new IbdfBlockFileWriter(file).close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -51,6 +51,7 @@ import gov.vha.isaac.ochre.api.collections.LruCache;
 import gov.vha.isaac.ochre.api.collections.NidSet;
 import gov.vha.isaac.ochre.api.collections.SememeSequenceSet;
 import gov.vha.isaac.ochre.api.collections.UuidIntMapMap;
+import gov.vha.isaac.ochre.api.commit.CheckpointWrites;
 import gov.vha.isaac.ochre.api.component.concept.ConceptSpecification;
 import gov.vha.isaac.ochre.api.component.sememe.SememeSnapshotService;
 import gov.vha.isaac.ochre.api.component.sememe.version.StringSememe;
@@ -108,6 +109,7 @@ public class IdentifierProvider implements IdentifierService, IdentifiedObjectSe
     private void startMe() {
         try {
             LOG.info("Starting IdentifierProvider post-construct - reading from " + folderPath);
+            CheckpointWrites.writeStarted(CheckpointWrites.Store.IDENTIFIERS);
             if (!loadRequired.get()) {
                 final String conceptSequenceMapBaseName = "concept-sequence.map";
                 LOG.info("Loading {} from dir {}.", conceptSequenceMapBaseName, folderPath.toAbsolutePath().normalize().toString());
@@ -133,6 +135,7 @@ public class IdentifierProvider implements IdentifierService, IdentifiedObjectSe
 
     @PreDestroy
     private void stopMe() {
+        CheckpointWrites.writeStarted(CheckpointWrites.Store.IDENTIFIERS);
         try {
             uuidIntMapMap.setShutdown(true);
             LOG.info("conceptSequence: {}", conceptSequenceMap.getNextSequence());
@@ -142,6 +145,7 @@ public class IdentifierProvider implements IdentifierService, IdentifiedObjectSe
             sememeSequenceMap.write(new File(folderPath.toFile(), "sememe-sequence.map"));
             LOG.info("writing uuid-nid-map.");
             uuidIntMapMap.write();
+            CheckpointWrites.writeSucceeded(CheckpointWrites.Store.IDENTIFIERS);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
@@ -291,14 +295,16 @@ public class IdentifierProvider implements IdentifierService, IdentifiedObjectSe
         if (nid > 0) {
             throw new RuntimeException("Sequence passed to a function that expects a nid!");
         }
-        //If we have a cache in uuidIntMapMap, read from there, it is faster.
-        //If we don't have a cache, then uuidIntMapMap will be extremely slow, so try this first.
-        if (!uuidIntMapMap.cacheContainsNid(nid)) {
-            Optional<? extends ObjectChronology<? extends StampedVersion>> optionalObj
-                    = Get.identifiedObjectService().getIdentifiedObjectChronology(nid);
-            if (optionalObj.isPresent()) {
-                return Optional.of(optionalObj.get().getPrimordialUuid());
-            }
+        Optional<UUID> primordialUuid = uuidIntMapMap.getPrimordialUuidForNid(nid);
+        if (primordialUuid.isPresent()) {
+            return primordialUuid;
+        }
+        Optional<? extends ObjectChronology<? extends StampedVersion>> optionalObj
+                = Get.identifiedObjectService().getIdentifiedObjectChronology(nid);
+        if (optionalObj.isPresent()) {
+            UUID uuid = optionalObj.get().getPrimordialUuid();
+            uuidIntMapMap.setPrimordialUuidForNid(nid, uuid);
+            return Optional.of(uuid);
         }
         UUID[] uuids = uuidIntMapMap.getKeysForValue(nid);
         //In the use case of directly writing files (converting terminology) this is a normal occurrence
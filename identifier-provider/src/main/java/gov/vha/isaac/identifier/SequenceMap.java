@@ -5,7 +5,6 @@
  */
 package gov.vha.isaac.identifier;
 
-import gov.vha.isaac.ochre.api.collections.NativeIntIntHashMap;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
@@ -14,30 +13,91 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.OptionalInt;
-import java.util.concurrent.locks.StampedLock;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.IntStream;
 
 /**
  * Sequences start at 1.
+ *
+ * Since sequences are dense from {@link #FIRST_SEQUENCE}, and nids are dense
+ * from Integer.MIN_VALUE, both directions of the map are held in segmented
+ * int arrays: sequence to nid indexed by sequence, and nid to sequence indexed
+ * by (nid - Integer.MIN_VALUE). Segments are allocated on demand, and zero
+ * marks an absent entry in both directions, since zero is neither a valid
+ * sequence nor a valid nid. Reads are lock free; additions and removals are
+ * serialized on the map.
+ *
+ * The map is persisted as {@link #FORMAT_MAGIC}, the next sequence, and the
+ * nid for each sequence below the next sequence, and is bulk loaded through a
+ * {@code MappedByteBuffer}. Files written as nid, sequence pairs by earlier
+ * versions are still read.
+ *
  * @author kec
  */
 public class SequenceMap {
 
     public static final int FIRST_SEQUENCE = 1;
-    private static final double MINIMUM_LOAD_FACTOR = 0.75;
-    private static final double MAXIMUM_LOAD_FACTOR = 0.9;
 
-    StampedLock sl = new StampedLock();
+    /**
+     * Negative, so that it cannot be mistaken for the size that begins a file
+     * written as nid, sequence pairs.
+     */
+    private static final int FORMAT_MAGIC = 0xA5EC0002;
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int MAX_NID_SEGMENTS = 1 << (32 - SEGMENT_SHIFT);
+    private static final int MAX_SEQUENCE_SEGMENTS = 1 << (31 - SEGMENT_SHIFT);
+
+    private volatile int nextSequence = FIRST_SEQUENCE;
+    private volatile int size = 0;
+
+    private final AtomicReferenceArray<AtomicIntegerArray> nidSequenceSegments
+            = new AtomicReferenceArray<>(MAX_NID_SEGMENTS);
+    private final AtomicReferenceArray<AtomicIntegerArray> sequenceNidSegments
+            = new AtomicReferenceArray<>(MAX_SEQUENCE_SEGMENTS);
+
+    /**
+     * @param defaultCapacity the expected number of sequences, segments for
+     * which are allocated up front.
+     */
+    public SequenceMap(int defaultCapacity) {
+        for (int sequence = 0; sequence < defaultCapacity; sequence += SEGMENT_SIZE) {
+            getSegment(sequenceNidSegments, sequence >>> SEGMENT_SHIFT, true);
+        }
+    }
 
-    int nextSequence = FIRST_SEQUENCE;
+    private static AtomicIntegerArray getSegment(AtomicReferenceArray<AtomicIntegerArray> segments,
+            int segmentIndex, boolean create) {
+        AtomicIntegerArray segment = segments.get(segmentIndex);
+        if (segment == null && create) {
+            segments.compareAndSet(segmentIndex, null, new AtomicIntegerArray(SEGMENT_SIZE));
+            segment = segments.get(segmentIndex);
+        }
+        return segment;
+    }
 
-    final NativeIntIntHashMap nidSequenceMap;
-    final NativeIntIntHashMap sequenceNidMap;
+    private static int nidIndex(int nid) {
+        return nid - Integer.MIN_VALUE;
+    }
 
-    public SequenceMap(int defaultCapacity) {
-        nidSequenceMap = new NativeIntIntHashMap(defaultCapacity, MINIMUM_LOAD_FACTOR, MAXIMUM_LOAD_FACTOR);
-        sequenceNidMap = new NativeIntIntHashMap(defaultCapacity, MINIMUM_LOAD_FACTOR, MAXIMUM_LOAD_FACTOR);
+    private static int get(AtomicReferenceArray<AtomicIntegerArray> segments, int index) {
+        AtomicIntegerArray segment = segments.get(index >>> SEGMENT_SHIFT);
+        if (segment == null) {
+            return 0;
+        }
+        return segment.get(index & SEGMENT_MASK);
+    }
+
+    private static void set(AtomicReferenceArray<AtomicIntegerArray> segments, int index, int value) {
+        getSegment(segments, index >>> SEGMENT_SHIFT, true).set(index & SEGMENT_MASK, value);
     }
 
     public int getNextSequence() {
@@ -45,172 +105,151 @@ public class SequenceMap {
     }
 
     public int getSize() {
-        assert nidSequenceMap.size() == sequenceNidMap.size() : "nidSequenceMap.size() = "
-                + nidSequenceMap.size() + " sequenceNidMap.size() = " + sequenceNidMap.size();
-        return sequenceNidMap.size();
+        return size;
     }
 
     public boolean containsNid(int nid) {
-        long stamp = sl.tryOptimisticRead();
-        boolean value = nidSequenceMap.containsKey(nid);
-        if (!sl.validate(stamp)) {
-            stamp = sl.readLock();
-            try {
-                value = nidSequenceMap.containsKey(nid);
-            } finally {
-                sl.unlockRead(stamp);
-            }
-        }
-        return value;
+        return getSequenceFast(nid) != 0;
     }
 
+    /**
+     * @param nid
+     * @return the sequence for the nid, or 0 if the nid has no sequence.
+     */
     public int getSequenceFast(int nid) {
-        long stamp = sl.tryOptimisticRead();
-        int value = nidSequenceMap.get(nid);
-        if (!sl.validate(stamp)) {
-            stamp = sl.readLock();
-            try {
-                value = nidSequenceMap.get(nid);
-            } finally {
-                sl.unlockRead(stamp);
-            }
-        }
-        return value;
+        return get(nidSequenceSegments, nidIndex(nid));
     }
 
     public OptionalInt getSequence(int nid) {
-        if (containsNid(nid)) {
-            long stamp = sl.tryOptimisticRead();
-            int value = nidSequenceMap.get(nid);
-            if (!sl.validate(stamp)) {
-                stamp = sl.readLock();
-                try {
-                    value = nidSequenceMap.get(nid);
-                } finally {
-                    sl.unlockRead(stamp);
-                }
-            }
-            return OptionalInt.of(value);
+        int sequence = getSequenceFast(nid);
+        if (sequence == 0) {
+            return OptionalInt.empty();
         }
-        return OptionalInt.empty();
+        return OptionalInt.of(sequence);
     }
 
     public OptionalInt getNid(int sequence) {
-        long stamp = sl.tryOptimisticRead();
-        int value = sequenceNidMap.get(sequence);
-        if (!sl.validate(stamp)) {
-            stamp = sl.readLock();
-            try {
-                value = sequenceNidMap.get(sequence);
-            } finally {
-                sl.unlockRead(stamp);
-            }
-        }
-        if (value == 0) {
+        int nid = getNidFast(sequence);
+        if (nid == 0) {
             return OptionalInt.empty();
         }
-        return OptionalInt.of(value);
+        return OptionalInt.of(nid);
     }
 
+    /**
+     * @param sequence
+     * @return the nid for the sequence, or 0 if the sequence has no nid.
+     */
     public int getNidFast(int sequence) {
-        long stamp = sl.tryOptimisticRead();
-        int value = sequenceNidMap.get(sequence);
-        if (!sl.validate(stamp)) {
-            stamp = sl.readLock();
-            try {
-                value = sequenceNidMap.get(sequence);
-            } finally {
-                sl.unlockRead(stamp);
-            }
+        if (sequence < FIRST_SEQUENCE) {
+            return 0;
         }
-        return value;
+        return get(sequenceNidSegments, sequence);
     }
 
     public int addNid(int nid) {
-        long stamp = sl.writeLock();
-        try {
-            if (!nidSequenceMap.containsKey(nid)) {
-                int sequence = nextSequence++;
-                nidSequenceMap.put(nid, sequence);
-                sequenceNidMap.put(sequence, nid);
-                return sequence;
-            }
-            return nidSequenceMap.get(nid);
-        } finally {
-            sl.unlockWrite(stamp);
-        }
+        return addNidIfMissing(nid);
     }
-    
-    public void removeNid(int nid) {
-        long stamp = sl.writeLock();
-        try {
-            if (nidSequenceMap.containsKey(nid)) {
-                int sequence = nidSequenceMap.get(nid);
-                nidSequenceMap.removeKey(nid);
-                sequenceNidMap.removeKey(sequence);
-            }
-        } finally {
-            sl.unlockWrite(stamp);
+
+    public synchronized void removeNid(int nid) {
+        int sequence = getSequenceFast(nid);
+        if (sequence != 0) {
+            set(nidSequenceSegments, nidIndex(nid), 0);
+            set(sequenceNidSegments, sequence, 0);
+            size--;
         }
     }
 
     public int addNidIfMissing(int nid) {
-        long stamp = sl.tryOptimisticRead();
-        boolean containsKey = nidSequenceMap.containsKey(nid);
-        int value = nidSequenceMap.get(nid);
-        if (sl.validate(stamp) && containsKey) {
-            return value;
+        int sequence = getSequenceFast(nid);
+        if (sequence != 0) {
+            return sequence;
         }
-        stamp = sl.writeLock();
-        try {
-            if (nidSequenceMap.containsKey(nid)) {
-                return nidSequenceMap.get(nid);
+        synchronized (this) {
+            sequence = getSequenceFast(nid);
+            if (sequence != 0) {
+                return sequence;
             }
-                value = nextSequence++;
-                nidSequenceMap.put(nid, value);
-                sequenceNidMap.put(value, nid);
-                return value;
-        } finally {
-            sl.unlockWrite(stamp);
+            sequence = nextSequence;
+            // Publish the nid for the sequence before the sequence for the nid,
+            // so that a reader that finds the sequence also finds the nid.
+            set(sequenceNidSegments, sequence, nid);
+            set(nidSequenceSegments, nidIndex(nid), sequence);
+            size++;
+            nextSequence = sequence + 1;
+            return sequence;
         }
     }
 
     public IntStream getSequenceStream() {
-        return IntStream.of(sequenceNidMap.keys().elements());
+        return IntStream.range(FIRST_SEQUENCE, nextSequence)
+                .filter(sequence -> getNidFast(sequence) != 0);
     }
 
     public IntStream getConceptNidStream() {
-        return IntStream.of(nidSequenceMap.keys().elements());
+        return IntStream.range(FIRST_SEQUENCE, nextSequence)
+                .map(sequence -> getNidFast(sequence))
+                .filter(nid -> nid != 0);
     }
 
-    public void write(File mapFile) throws IOException {
-        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mapFile)))) {
-            output.writeInt(nidSequenceMap.size());
+    public synchronized void write(File mapFile) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mapFile), 1 << 16))) {
+            output.writeInt(FORMAT_MAGIC);
             output.writeInt(nextSequence);
-            nidSequenceMap.forEachPair((int nid, int sequence) -> {
-                try {
-                    output.writeInt(nid);
-                    output.writeInt(sequence);
-                    return true;
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
+            for (int sequence = FIRST_SEQUENCE; sequence < nextSequence; sequence++) {
+                output.writeInt(getNidFast(sequence));
+            }
+        }
+    }
+
+    public synchronized void read(File mapFile) throws IOException {
+        int formatMarker;
+        try (DataInputStream input = new DataInputStream(new FileInputStream(mapFile))) {
+            formatMarker = input.readInt();
+        }
+        if (formatMarker != FORMAT_MAGIC) {
+            readPairs(mapFile);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(mapFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            IntBuffer ints = buffer.asIntBuffer();
+            ints.get(); // FORMAT_MAGIC
+            int readNextSequence = ints.get();
+            int[] segmentData = new int[SEGMENT_SIZE];
+            int readSize = 0;
+            for (int start = 0; start < readNextSequence; start += SEGMENT_SIZE) {
+                int first = Math.max(start, FIRST_SEQUENCE);
+                int end = (int) Math.min((long) start + SEGMENT_SIZE, readNextSequence);
+                Arrays.fill(segmentData, 0);
+                ints.get(segmentData, first - start, end - first);
+                sequenceNidSegments.set(start >>> SEGMENT_SHIFT, new AtomicIntegerArray(segmentData));
+                for (int i = first - start; i < end - start; i++) {
+                    int nid = segmentData[i];
+                    if (nid != 0) {
+                        set(nidSequenceSegments, nidIndex(nid), start + i);
+                        readSize++;
+                    }
                 }
-            });
+            }
+            size = readSize;
+            nextSequence = readNextSequence;
         }
     }
 
-    public void read(File mapFile) throws IOException {
+    private void readPairs(File mapFile) throws IOException {
         try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)))) {
-            int size = input.readInt();
-            nextSequence = input.readInt();
-            nidSequenceMap.ensureCapacity(size);
-            sequenceNidMap.ensureCapacity(size);
-            for (int i = 0; i < size; i++) {
+            int pairCount = input.readInt();
+            int readNextSequence = input.readInt();
+            for (int i = 0; i < pairCount; i++) {
                 int nid = input.readInt();
                 int sequence = input.readInt();
-                nidSequenceMap.put(nid, sequence);
-                sequenceNidMap.put(sequence, nid);
+                set(sequenceNidSegments, sequence, nid);
+                set(nidSequenceSegments, nidIndex(nid), sequence);
             }
+            size = pairCount;
+            nextSequence = readNextSequence;
         }
     }
 }
@@ -17,25 +17,12 @@ import au.csiro.ontology.model.Feature;
 import au.csiro.ontology.model.Literal;
 import au.csiro.ontology.model.Operator;
 import au.csiro.ontology.model.Role;
-import gov.vha.isaac.ochre.api.logic.LogicNode;
-import gov.vha.isaac.ochre.model.logic.node.AndNode;
-import gov.vha.isaac.ochre.model.logic.node.internal.ConceptNodeWithSequences;
-import gov.vha.isaac.ochre.model.logic.node.internal.FeatureNodeWithSequences;
-import gov.vha.isaac.ochre.model.logic.node.LiteralNodeBoolean;
-import gov.vha.isaac.ochre.model.logic.node.LiteralNodeFloat;
-import gov.vha.isaac.ochre.model.logic.node.LiteralNodeInstant;
-import gov.vha.isaac.ochre.model.logic.node.LiteralNodeInteger;
-import gov.vha.isaac.ochre.model.logic.node.LiteralNodeString;
-import gov.vha.isaac.ochre.model.logic.node.NecessarySetNode;
-import gov.vha.isaac.ochre.model.logic.node.internal.RoleNodeSomeWithSequences;
-import gov.vha.isaac.ochre.model.logic.node.RootNode;
-import gov.vha.isaac.ochre.model.logic.node.SufficientSetNode;
-import gov.vha.isaac.ochre.api.DataSource;
 import gov.vha.isaac.ochre.api.Get;
 import gov.vha.isaac.ochre.api.component.sememe.version.LogicGraphSememe;
 import gov.vha.isaac.ochre.api.collections.ConceptSequenceSet;
 import gov.vha.isaac.ochre.api.collections.ConcurrentSequenceObjectMap;
-import gov.vha.isaac.ochre.model.logic.LogicalExpressionOchreImpl;
+import gov.vha.isaac.ochre.api.logic.NodeSemantic;
+import gov.vha.isaac.ochre.model.logic.FlatLogicGraph;
 import java.util.Calendar;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
@@ -104,63 +91,58 @@ public class GraphToAxiomTranslator {
 
     /**
      * Translates the logicGraphSememe into a set of axioms, and adds those axioms 
-     * to the internal set of axioms. 
+     * to the internal set of axioms. The graph data is read in place, 
+     * without creating logic node objects. 
      * @param logicGraphSememe 
      */
     public void convertToAxiomsAndAdd(LogicGraphSememe logicGraphSememe) {
         loadedConcepts.add(logicGraphSememe.getReferencedComponentNid());
-        LogicalExpressionOchreImpl logicGraph = new LogicalExpressionOchreImpl(logicGraphSememe.getGraphData(), DataSource.INTERNAL);
-        generateAxioms(logicGraph.getRoot(), logicGraphSememe.getReferencedComponentNid(), logicGraph);
+        FlatLogicGraph logicGraph = new FlatLogicGraph(logicGraphSememe.getGraphData());
+        generateAxioms(logicGraph.getRootNodeIndex(), logicGraphSememe.getReferencedComponentNid(), logicGraph);
     }
 
-    private Optional<Literal> generateLiterals(LogicNode logicNode, Concept c, LogicalExpressionOchreImpl logicGraph) {
-        switch (logicNode.getNodeSemantic()) {
+    private Optional<Literal> generateLiterals(int nodeIndex, Concept c, FlatLogicGraph logicGraph) {
+        switch (logicGraph.getNodeSemantic(nodeIndex)) {
             case LITERAL_BOOLEAN:
-                LiteralNodeBoolean literalNodeBoolean = (LiteralNodeBoolean) logicNode;
-                return Optional.of(Factory.createBooleanLiteral(literalNodeBoolean.getLiteralValue()));
+                return Optional.of(Factory.createBooleanLiteral(logicGraph.getBooleanLiteral(nodeIndex)));
             case LITERAL_FLOAT:
-                LiteralNodeFloat literalNodeFloat = (LiteralNodeFloat) logicNode;
-                return Optional.of(Factory.createFloatLiteral(literalNodeFloat.getLiteralValue()));
+                return Optional.of(Factory.createFloatLiteral(logicGraph.getFloatLiteral(nodeIndex)));
             case LITERAL_INSTANT:
-                LiteralNodeInstant literalNodeInstant = (LiteralNodeInstant) logicNode;
                 Calendar calendar = Calendar.getInstance();
-                calendar.setTimeInMillis(literalNodeInstant.getLiteralValue().toEpochMilli());
+                calendar.setTimeInMillis(logicGraph.getInstantLiteral(nodeIndex).toEpochMilli());
                 return Optional.of(Factory.createDateLiteral(calendar));
             case LITERAL_INTEGER:
-                LiteralNodeInteger literalNodeInteger = (LiteralNodeInteger) logicNode;
-                return Optional.of(Factory.createIntegerLiteral(literalNodeInteger.getLiteralValue()));
+                return Optional.of(Factory.createIntegerLiteral(logicGraph.getIntegerLiteral(nodeIndex)));
             case LITERAL_STRING:
-                LiteralNodeString literalNodeString = (LiteralNodeString) logicNode;
-                return Optional.of(Factory.createStringLiteral(literalNodeString.getLiteralValue()));
+                return Optional.of(Factory.createStringLiteral(logicGraph.getStringLiteral(nodeIndex)));
             default:
-                throw new UnsupportedOperationException("Expected literal logicNode, found: " + logicNode
+                throw new UnsupportedOperationException("Expected literal logicNode, found: " + logicGraph.getNodeSemantic(nodeIndex)
                         + " Concept: " + c + " graph: " + logicGraph);
         }
     }
 
-    private Optional<Concept> generateAxioms(LogicNode logicNode, int conceptNid, LogicalExpressionOchreImpl logicGraph) {
-        switch (logicNode.getNodeSemantic()) {
+    private Optional<Concept> generateAxioms(int nodeIndex, int conceptNid, FlatLogicGraph logicGraph) {
+        switch (logicGraph.getNodeSemantic(nodeIndex)) {
             case AND:
-                return processAnd((AndNode) logicNode, conceptNid, logicGraph);
+                return processAnd(nodeIndex, conceptNid, logicGraph);
             case CONCEPT:
-                ConceptNodeWithSequences conceptNode = (ConceptNodeWithSequences) logicNode;
-                return Optional.of(getConcept(conceptNode.getConceptSequence()));
+                return Optional.of(getConcept(logicGraph.getConceptSequence(nodeIndex)));
             case DEFINITION_ROOT:
-                processRoot(logicNode, conceptNid, logicGraph);
+                processRoot(nodeIndex, conceptNid, logicGraph);
                 break;
             case DISJOINT_WITH:
                 throw new UnsupportedOperationException("Not supported by SnoRocket/EL++.");
             case FEATURE:
-                return processFeatureNode((FeatureNodeWithSequences) logicNode, conceptNid, logicGraph);
+                return processFeatureNode(nodeIndex, conceptNid, logicGraph);
             case NECESSARY_SET:
-                processNecessarySet((NecessarySetNode) logicNode, conceptNid, logicGraph);
+                processNecessarySet(nodeIndex, conceptNid, logicGraph);
                 break;
             case OR:
                 throw new UnsupportedOperationException("Not supported by SnoRocket/EL++.");
             case ROLE_ALL:
                 throw new UnsupportedOperationException("Not supported by SnoRocket/EL++.");
             case ROLE_SOME:
-                return processRoleNodeSome((RoleNodeSomeWithSequences) logicNode, conceptNid, logicGraph);
+                return processRoleNodeSome(nodeIndex, conceptNid, logicGraph);
             case SUBSTITUTION_BOOLEAN:
                 throw new UnsupportedOperationException("Supported, but not yet implemented.");
             case SUBSTITUTION_CONCEPT:
@@ -174,7 +156,7 @@ public class GraphToAxiomTranslator {
             case SUBSTITUTION_STRING:
                 throw new UnsupportedOperationException("Supported, but not yet implemented.");
             case SUFFICIENT_SET:
-                processSufficientSet((SufficientSetNode) logicNode, conceptNid, logicGraph);
+                processSufficientSet(nodeIndex, conceptNid, logicGraph);
                 break;
             case TEMPLATE:
                 throw new UnsupportedOperationException("Supported, but not yet implemented.");
@@ -183,32 +165,31 @@ public class GraphToAxiomTranslator {
             case LITERAL_INSTANT:
             case LITERAL_INTEGER:
             case LITERAL_STRING:
-                throw new UnsupportedOperationException("Expected concept logicNode, found literal logicNode: " + logicNode
+                throw new UnsupportedOperationException("Expected concept logicNode, found literal logicNode: " + logicGraph.getNodeSemantic(nodeIndex)
                         + " Concept: " + conceptNid + " graph: " + logicGraph);
             default:
-                throw new UnsupportedOperationException("Can't handle: " + logicNode.getNodeSemantic());
+                throw new UnsupportedOperationException("Can't handle: " + logicGraph.getNodeSemantic(nodeIndex));
         }
         return Optional.empty();
     }
 
-    private Optional<Concept> processAnd(AndNode andNode, int conceptNid, LogicalExpressionOchreImpl logicGraph) {
-        LogicNode[] childrenLogicNodes = andNode.getChildren();
-        Concept[] conjunctionConcepts = new Concept[childrenLogicNodes.length];
-        for (int i = 0; i < childrenLogicNodes.length; i++) {
-            conjunctionConcepts[i] = generateAxioms(childrenLogicNodes[i], conceptNid, logicGraph).get();
+    private Optional<Concept> processAnd(int andNodeIndex, int conceptNid, FlatLogicGraph logicGraph) {
+        Concept[] conjunctionConcepts = new Concept[logicGraph.getChildCount(andNodeIndex)];
+        for (int i = 0; i < conjunctionConcepts.length; i++) {
+            conjunctionConcepts[i] = generateAxioms(logicGraph.getChildIndex(andNodeIndex, i), conceptNid, logicGraph).get();
         }
         return Optional.of(Factory.createConjunction(conjunctionConcepts));
     }
 
-    private void processSufficientSet(SufficientSetNode sufficientSetNode, int conceptNid, LogicalExpressionOchreImpl logicGraph) {
-        LogicNode[] children = sufficientSetNode.getChildren();
-        if (children.length != 1) {
+    private void processSufficientSet(int sufficientSetNodeIndex, int conceptNid, FlatLogicGraph logicGraph) {
+        if (logicGraph.getChildCount(sufficientSetNodeIndex) != 1) {
             throw new IllegalStateException("SufficientSetNode can only have one child. Concept: " + conceptNid + " graph: " + logicGraph);
         }
-        if (!(children[0] instanceof AndNode)) {
+        int childIndex = logicGraph.getChildIndex(sufficientSetNodeIndex, 0);
+        if (logicGraph.getNodeSemantic(childIndex) != NodeSemantic.AND) {
             throw new IllegalStateException("SufficientSetNode can only have AND for a child. Concept: " + conceptNid + " graph: " + logicGraph);
         }
-        Optional<Concept> conjunctionConcept = generateAxioms(children[0], conceptNid, logicGraph);
+        Optional<Concept> conjunctionConcept = generateAxioms(childIndex, conceptNid, logicGraph);
         if (conjunctionConcept.isPresent()) {
             axioms.add(new ConceptInclusion(getConcept(conceptNid), conjunctionConcept.get()));
             axioms.add(new ConceptInclusion(conjunctionConcept.get(), getConcept(conceptNid)));
@@ -217,15 +198,15 @@ public class GraphToAxiomTranslator {
         }
     }
 
-    private void processNecessarySet(NecessarySetNode necessarySetNode, int conceptNid, LogicalExpressionOchreImpl logicGraph) {
-        LogicNode[] children = necessarySetNode.getChildren();
-        if (children.length != 1) {
+    private void processNecessarySet(int necessarySetNodeIndex, int conceptNid, FlatLogicGraph logicGraph) {
+        if (logicGraph.getChildCount(necessarySetNodeIndex) != 1) {
             throw new IllegalStateException("necessarySetNode can only have one child. Concept: " + conceptNid + " graph: " + logicGraph);
         }
-        if (!(children[0] instanceof AndNode)) {
+        int childIndex = logicGraph.getChildIndex(necessarySetNodeIndex, 0);
+        if (logicGraph.getNodeSemantic(childIndex) != NodeSemantic.AND) {
             throw new IllegalStateException("necessarySetNode can only have AND for a child. Concept: " + conceptNid + " graph: " + logicGraph);
         }
-        Optional<Concept> conjunctionConcept = generateAxioms(children[0], conceptNid, logicGraph);
+        Optional<Concept> conjunctionConcept = generateAxioms(childIndex, conceptNid, logicGraph);
         if (conjunctionConcept.isPresent()) {
             axioms.add(new ConceptInclusion(getConcept(conceptNid), conjunctionConcept.get()));
         } else {
@@ -233,23 +214,22 @@ public class GraphToAxiomTranslator {
         }
     }
 
-    private void processRoot(LogicNode logicNode, int conceptNid, LogicalExpressionOchreImpl logicGraph) throws IllegalStateException {
-        RootNode rootNode = (RootNode) logicNode;
-        for (LogicNode child : rootNode.getChildren()) {
-            Optional<Concept> axiom = generateAxioms(child, conceptNid, logicGraph);
+    private void processRoot(int rootNodeIndex, int conceptNid, FlatLogicGraph logicGraph) throws IllegalStateException {
+        int childCount = logicGraph.getChildCount(rootNodeIndex);
+        for (int i = 0; i < childCount; i++) {
+            Optional<Concept> axiom = generateAxioms(logicGraph.getChildIndex(rootNodeIndex, i), conceptNid, logicGraph);
             if (axiom.isPresent()) {
                 throw new IllegalStateException("Children of root logicNode should not return axioms. Concept: " + conceptNid + " graph: " + logicGraph);
             }
         }
     }
 
-    private Optional<Concept> processRoleNodeSome(RoleNodeSomeWithSequences roleNodeSome, int conceptNid, LogicalExpressionOchreImpl logicGraph) {
-        Role theRole = getRole(roleNodeSome.getTypeConceptSequence());
-        LogicNode[] children = roleNodeSome.getChildren();
-        if (children.length != 1) {
+    private Optional<Concept> processRoleNodeSome(int roleNodeSomeIndex, int conceptNid, FlatLogicGraph logicGraph) {
+        Role theRole = getRole(logicGraph.getTypeConceptSequence(roleNodeSomeIndex));
+        if (logicGraph.getChildCount(roleNodeSomeIndex) != 1) {
             throw new IllegalStateException("RoleNodeSome can only have one child. Concept: " + conceptNid + " graph: " + logicGraph);
         }
-        Optional<Concept> restrictionConcept = generateAxioms(children[0], conceptNid, logicGraph);
+        Optional<Concept> restrictionConcept = generateAxioms(logicGraph.getChildIndex(roleNodeSomeIndex, 0), conceptNid, logicGraph);
         if (restrictionConcept.isPresent()) {
             return Optional.of(Factory.createExistential(theRole, restrictionConcept.get()));
         }
@@ -264,15 +244,14 @@ public class GraphToAxiomTranslator {
         return sequenceLogicConceptMap.get(sequence);
     }
 
-    private Optional<Concept> processFeatureNode(FeatureNodeWithSequences featureNode, int conceptNid, LogicalExpressionOchreImpl logicGraph) {
-        Feature theFeature = getFeature(featureNode.getTypeConceptSequence());
-        LogicNode[] children = featureNode.getChildren();
-        if (children.length != 1) {
+    private Optional<Concept> processFeatureNode(int featureNodeIndex, int conceptNid, FlatLogicGraph logicGraph) {
+        Feature theFeature = getFeature(logicGraph.getTypeConceptSequence(featureNodeIndex));
+        if (logicGraph.getChildCount(featureNodeIndex) != 1) {
             throw new IllegalStateException("FeatureNode can only have one child. Concept: " + conceptNid + " graph: " + logicGraph);
         }
-        Optional<Literal> optionalLiteral = generateLiterals(children[0], getConcept(conceptNid), logicGraph);
+        Optional<Literal> optionalLiteral = generateLiterals(logicGraph.getChildIndex(featureNodeIndex, 0), getConcept(conceptNid), logicGraph);
         if (optionalLiteral.isPresent()) {
-            switch (featureNode.getOperator()) {
+            switch (logicGraph.getOperator(featureNodeIndex)) {
                 case EQUALS:
                     return Optional.of(Factory.createDatatype(theFeature, Operator.EQUALS, optionalLiteral.get()));
                 case GREATER_THAN:
@@ -284,7 +263,7 @@ public class GraphToAxiomTranslator {
                 case LESS_THAN_EQUALS:
                     return Optional.of(Factory.createDatatype(theFeature, Operator.LESS_THAN_EQUALS, optionalLiteral.get()));
                 default:
-                    throw new UnsupportedOperationException(featureNode.getOperator().toString());
+                    throw new UnsupportedOperationException(logicGraph.getOperator(featureNodeIndex).toString());
             }
         }
         throw new UnsupportedOperationException("Child of FeatureNode node cannot return null concept. Concept: " + conceptNid + " graph: " + logicGraph);
@@ -18,10 +18,10 @@ package gov.vha.isaac.ochre.logic.csiro.classify.tasks;
 import static gov.vha.isaac.ochre.api.logic.LogicalExpressionBuilder.And;
 import static gov.vha.isaac.ochre.api.logic.LogicalExpressionBuilder.NecessarySet;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.logging.log4j.LogManager;
@@ -80,7 +80,9 @@ import javafx.concurrent.Task;
     }
 
     private ClassifierResults collectResults(Ontology classifiedResult, ConceptSequenceSet affectedConcepts) {
-        HashSet<ConceptSequenceSet> equivalentSets = new HashSet<>();
+        // The stream runs on many threads, so results are collected in thread safe sets.
+        Set<ConceptSequenceSet> equivalentSets = ConcurrentHashMap.newKeySet();
+        ConceptSequenceSet equivalentConceptSequences = ConceptSequenceSet.concurrent();
         affectedConcepts.parallelStream().forEach((conceptSequence) -> {
             Node node = classifiedResult.getNode(Integer.toString(conceptSequence));
             if (node == null) {
@@ -89,15 +91,15 @@ import javafx.concurrent.Task;
             Set<String> equivalentConcepts = node.getEquivalentConcepts();
             if (node.getEquivalentConcepts().size() > 1) {
                 ConceptSequenceSet equivalentSet = new ConceptSequenceSet();
-                equivalentSets.add(equivalentSet);
                 equivalentConcepts.forEach((equivalentConceptSequence) -> {
                     equivalentSet.add(Integer.parseInt(equivalentConceptSequence));
-                    affectedConcepts.add(Integer.parseInt(equivalentConceptSequence));
+                    equivalentConceptSequences.add(Integer.parseInt(equivalentConceptSequence));
                 });
+                equivalentSets.add(equivalentSet);
             } else {
                 equivalentConcepts.forEach((equivalentConceptSequence) -> {
                     try {
-                        affectedConcepts.add(Integer.parseInt(equivalentConceptSequence));
+                        equivalentConceptSequences.add(Integer.parseInt(equivalentConceptSequence));
 
                     } catch (NumberFormatException numberFormatException) {
                         if (equivalentConceptSequence.equals("_BOTTOM_")
@@ -110,6 +112,7 @@ import javafx.concurrent.Task;
                 });
             }
         });
+        affectedConcepts.addAll(equivalentConceptSequences.stream());
 
         return new ClassifierResults(affectedConcepts, equivalentSets, writeBackInferred(classifiedResult, affectedConcepts));
     }
@@ -122,8 +125,6 @@ import javafx.concurrent.Task;
         SememeBuilderService sememeBuilderService = Get.sememeBuilderService();
         CommitService commitService = Get.commitService();
 
-        //TODO Dan notes, for reasons not yet understood, this parallelStream call isn't working.  JVisualVM tells me that all of this
-        //work is occurring on a single thread.  Need to figure out why...
         affectedConcepts.parallelStream().forEach((conceptSequence) -> {
             try {
                 SememeSequenceSet inferredSememeSequences
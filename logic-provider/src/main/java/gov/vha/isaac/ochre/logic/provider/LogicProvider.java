@@ -37,10 +37,8 @@ import gov.vha.isaac.ochre.api.coordinate.StampCoordinate;
 import gov.vha.isaac.ochre.api.dag.Graph;
 import gov.vha.isaac.ochre.api.relationship.RelationshipAdaptorChronicleKey;
 import gov.vha.isaac.ochre.api.relationship.RelationshipVersionAdaptor;
+import gov.vha.isaac.ochre.model.logic.FlatLogicGraph;
 import gov.vha.isaac.ochre.model.logic.LogicalExpressionOchreImpl;
-import gov.vha.isaac.ochre.model.logic.node.AndNode;
-import gov.vha.isaac.ochre.model.logic.node.internal.ConceptNodeWithSequences;
-import gov.vha.isaac.ochre.model.logic.node.internal.RoleNodeSomeWithSequences;
 import gov.vha.isaac.ochre.model.relationship.RelationshipAdaptorChronicleKeyImpl;
 import gov.vha.isaac.ochre.model.relationship.RelationshipAdaptorChronologyImpl;
 import gov.vha.isaac.ochre.model.relationship.RelationshipVersionAdaptorImpl;
@@ -239,23 +237,29 @@ public class LogicProvider implements LogicService {
     }
     
     private void processNode(Node<? extends LogicGraphSememe<?>> node,
-           LogicalExpression previousExpression,
+           LogicalExpression previousExpression, FlatLogicGraph previousGraph, int originSequence,
             Stream.Builder<RelationshipVersionAdaptorImpl> streamBuilder, PremiseType premiseType) {
         
-        LogicalExpression newExpression = node.getData().getLogicalExpression();
+        FlatLogicGraph newGraph = new FlatLogicGraph(node.getData().getGraphData());
+        LogicalExpression newExpression = null;
         int stampSequence = node.getData().getStampSequence();
         int inactiveStampSequence = Get.stampService().getRetiredStampSequence(stampSequence);
         if (previousExpression == null) {
-            processRootExpression(newExpression, streamBuilder, stampSequence, premiseType);
+            processRootExpression(newGraph, originSequence, streamBuilder, stampSequence, premiseType);
+            if (!node.getChildren().isEmpty()) {
+                newExpression = node.getData().getLogicalExpression();
+            }
         } else {
+            newExpression = node.getData().getLogicalExpression();
+            // Added roots are nodes of the new expression, and deleted roots of the previous expression. 
             IsomorphicResults comparison = newExpression.findIsomorphisms(previousExpression);
             comparison.getAddedRelationshipRoots().forEach((addedRelRoot) -> 
-                    processRelNode(addedRelRoot, streamBuilder, newExpression, stampSequence, premiseType));
-            comparison.getDeletedRelationshipRoots().forEach((addedRelRoot) -> 
-                    processRelNode(addedRelRoot, streamBuilder, newExpression, inactiveStampSequence, premiseType));
+                    processRelNode(newGraph, addedRelRoot.getNodeIndex(), streamBuilder, originSequence, stampSequence, premiseType));
+            comparison.getDeletedRelationshipRoots().forEach((deletedRelRoot) -> 
+                    processRelNode(previousGraph, deletedRelRoot.getNodeIndex(), streamBuilder, originSequence, inactiveStampSequence, premiseType));
         }
         for (Node<? extends LogicGraphSememe<?>> child: node.getChildren()) {
-            processNode(child, newExpression, streamBuilder, premiseType);
+            processNode(child, newExpression, newGraph, originSequence, streamBuilder, premiseType);
         }
     }
 
@@ -265,51 +269,39 @@ public class LogicProvider implements LogicService {
             PremiseType premiseType) {
 
         Stream.Builder<RelationshipVersionAdaptorImpl> streamBuilder = Stream.builder();
+        int originConceptSequence = Get.identifierService().getConceptSequence(logicGraphChronology.getReferencedComponentNid());
         
         // one graph for each origin... Usually only one. 
          
         for (Graph<? extends LogicGraphSememe<?>> versionGraph: logicGraphChronology.getVersionGraphList()) {
             Node<? extends LogicGraphSememe<?>> node = versionGraph.getRoot();
-            processNode(node, null, streamBuilder, premiseType);
+            processNode(node, null, null, originConceptSequence, streamBuilder, premiseType);
         }
-        
-        int originConceptSequence = Get.identifierService().getConceptSequence(logicGraphChronology.getReferencedComponentNid());
-        logicGraphChronology.getVersionList().forEach((logicVersion) -> {
-            LogicalExpressionOchreImpl expression
-                    = new LogicalExpressionOchreImpl(logicVersion.getGraphData(),
-                            DataSource.INTERNAL,
-                            originConceptSequence);
-        });
 
         return streamBuilder.build();
     }
 
-    private void processRootExpression(LogicalExpression expression, 
+    private void processRootExpression(FlatLogicGraph logicGraph, int originSequence,
             Stream.Builder<RelationshipVersionAdaptorImpl> streamBuilder, 
             int stampSequence, 
             PremiseType premiseType) {
-        expression.getRoot()
-                .getChildStream().forEach((necessaryOrSufficientSet) -> {
-                    necessaryOrSufficientSet.getChildStream().forEach((LogicNode andOrOrLogicNode)
-                            -> andOrOrLogicNode.getChildStream().forEach((LogicNode aLogicNode) -> {
-                processRelNode(aLogicNode, streamBuilder, expression, stampSequence, premiseType);
-                            }));
-                });
+        logicGraph.forEachRelationshipRoot((nodeIndex) -> 
+                processRelNode(logicGraph, nodeIndex, streamBuilder, originSequence, stampSequence, premiseType));
     }
 
-    private void processRelNode(LogicNode aLogicNode, Stream.Builder<RelationshipVersionAdaptorImpl> streamBuilder,
-                                LogicalExpression expression, int stampSequence, PremiseType premiseType) throws UnsupportedOperationException {
-        switch (aLogicNode.getNodeSemantic()) {
+    private void processRelNode(FlatLogicGraph logicGraph, int nodeIndex, Stream.Builder<RelationshipVersionAdaptorImpl> streamBuilder,
+                                int originSequence, int stampSequence, PremiseType premiseType) throws UnsupportedOperationException {
+        switch (logicGraph.getNodeSemantic(nodeIndex)) {
             case CONCEPT:
-                streamBuilder.accept(createIsaRel(expression.getConceptSequence(),
-                        (ConceptNodeWithSequences) aLogicNode,
+                streamBuilder.accept(createIsaRel(originSequence,
+                        logicGraph, nodeIndex,
                         stampSequence,
                         premiseType));
                 break;
             case ROLE_SOME:
                 
-                createSomeRole(expression.getConceptSequence(),
-                        (RoleNodeSomeWithSequences) aLogicNode,
+                createSomeRole(originSequence,
+                        logicGraph, nodeIndex,
                         stampSequence,
                         premiseType, 0).forEach((someRelAdaptor) -> {
                             streamBuilder.accept(someRelAdaptor);
@@ -318,37 +310,37 @@ public class LogicProvider implements LogicService {
             case FEATURE:
                 break;  //TODO Keith, not sure how this should be handled
             default:
-                throw new UnsupportedOperationException("Can't handle: " + aLogicNode.getNodeSemantic());
+                throw new UnsupportedOperationException("Can't handle: " + logicGraph.getNodeSemantic(nodeIndex));
         }
     }
 
     private RelationshipVersionAdaptorImpl createIsaRel(int originSequence,
-            ConceptNodeWithSequences destinationNode,
+            FlatLogicGraph logicGraph, int destinationNodeIndex,
             int stampSequence, PremiseType premiseType) {
-        int destinationSequence = Get.identifierService().getConceptSequence(destinationNode.getConceptSequence());
+        int destinationSequence = Get.identifierService().getConceptSequence(logicGraph.getConceptSequence(destinationNodeIndex));
         int typeSequence = MetaData.IS_A.getConceptSequence();
         int group = 0;
 
         RelationshipAdaptorChronicleKeyImpl key
                 = new RelationshipAdaptorChronicleKeyImpl(originSequence,
-                        destinationSequence, typeSequence, group, premiseType, destinationNode.getNodeIndex());
+                        destinationSequence, typeSequence, group, premiseType, (short) destinationNodeIndex);
         return new RelationshipVersionAdaptorImpl(key, stampSequence);
 
     }
 
     private Stream<RelationshipVersionAdaptorImpl> createSomeRole(int originSequence,
-            RoleNodeSomeWithSequences someNode,
+            FlatLogicGraph logicGraph, int someNodeIndex,
             int stampSequence, PremiseType premiseType, int roleGroup) {
 
         Stream.Builder<RelationshipVersionAdaptorImpl> roleStream = Stream.builder();
 
-        if (someNode.getTypeConceptSequence() == MetaData.ROLE_GROUP.getConceptSequence()) {
-            AndNode andNode = (AndNode) someNode.getOnlyChild();
-            andNode.getChildStream().forEach((roleGroupSomeNode) -> {
-                if (roleGroupSomeNode instanceof RoleNodeSomeWithSequences)
+        if (logicGraph.getTypeConceptSequence(someNodeIndex) == MetaData.ROLE_GROUP.getConceptSequence()) {
+            int andNodeIndex = logicGraph.getOnlyChildIndex(someNodeIndex);
+            logicGraph.forEachChild(andNodeIndex, (roleGroupSomeNodeIndex) -> {
+                if (logicGraph.getNodeSemantic(roleGroupSomeNodeIndex) == NodeSemantic.ROLE_SOME)
                 {
-                    createSomeRole(originSequence, (RoleNodeSomeWithSequences) roleGroupSomeNode,
-                            stampSequence, premiseType, someNode.getNodeIndex())
+                    createSomeRole(originSequence, logicGraph, roleGroupSomeNodeIndex,
+                            stampSequence, premiseType, someNodeIndex)
                             .forEach((adaptor) -> {
                                 roleStream.add(adaptor);
                             });
@@ -360,19 +352,18 @@ public class LogicProvider implements LogicService {
             });
 
         } else {
-            LogicNode restriction = someNode.getOnlyChild();
+            int restrictionNodeIndex = logicGraph.getOnlyChildIndex(someNodeIndex);
             int destinationSequence;
-            if (restriction.getNodeSemantic() == NodeSemantic.CONCEPT) {
-                ConceptNodeWithSequences restrictionNode = (ConceptNodeWithSequences) someNode.getOnlyChild();
-                destinationSequence = Get.identifierService().getConceptSequence(restrictionNode.getConceptSequence());
+            if (logicGraph.getNodeSemantic(restrictionNodeIndex) == NodeSemantic.CONCEPT) {
+                destinationSequence = Get.identifierService().getConceptSequence(logicGraph.getConceptSequence(restrictionNodeIndex));
             } else {
                 destinationSequence = MetaData.ANONYMOUS_CONCEPT.getConceptSequence();
             }
-            int typeSequence = Get.identifierService().getConceptSequence(someNode.getTypeConceptSequence());
+            int typeSequence = Get.identifierService().getConceptSequence(logicGraph.getTypeConceptSequence(someNodeIndex));
 
             RelationshipAdaptorChronicleKeyImpl key
                     = new RelationshipAdaptorChronicleKeyImpl(originSequence,
-                            destinationSequence, typeSequence, roleGroup, premiseType, someNode.getNodeIndex());
+                            destinationSequence, typeSequence, roleGroup, premiseType, (short) someNodeIndex);
             roleStream.accept(new RelationshipVersionAdaptorImpl(key, stampSequence));
         }
         return roleStream.build();
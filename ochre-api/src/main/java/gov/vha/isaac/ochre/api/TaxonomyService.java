@@ -77,6 +77,17 @@ public interface TaxonomyService extends DatabaseServices {
      */
     ConceptSequenceSet getAncestorOfSequenceSet(int childId, TaxonomyCoordinate tc);
 
+    /**
+     * Adds the ancestors of the child to a set supplied by the caller, so a
+     * caller that walks many concepts can reuse one set rather than have a
+     * set created for each concept.
+     *
+     * @param childId a concept sequence or nid for the child concept
+     * @param tc coordinate used to compute the taxonomy
+     * @param ancestors the set to add the ancestor concept sequences to.
+     */
+    void addAncestorSequences(int childId, TaxonomyCoordinate tc, ConceptSequenceSet ancestors);
+
     /**
      *
      * @param tc the taxonomy coordinate used to compute the taxonomic
@@ -162,6 +173,16 @@ public interface TaxonomyService extends DatabaseServices {
 
     IntStream getTaxonomyParentSequences(int childId, TaxonomyCoordinate tc);
 
+    /**
+     * Adds the parents of the child to a set supplied by the caller, without
+     * creating a stream of the parents.
+     *
+     * @param childId a concept sequence or nid for the child concept
+     * @param tc coordinate used to compute the taxonomy
+     * @param parentSequences the set to add the parent concept sequences to.
+     */
+    void addTaxonomyParentSequences(int childId, TaxonomyCoordinate tc, ConceptSequenceSet parentSequences);
+
     IntStream getTaxonomyParentSequences(int childId);
 
     IntStream getRoots(TaxonomyCoordinate sc);
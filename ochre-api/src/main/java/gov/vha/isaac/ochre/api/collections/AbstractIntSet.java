@@ -58,7 +58,7 @@ public abstract class AbstractIntSet<T extends AbstractIntSet<T>> {
 
     protected AbstractIntSet(Concurrency concurrency) {
         if (concurrency == Concurrency.THREAD_SAFE) {
-            intSet = new ConcurrentSkipListIntegerSet();
+            intSet = new ConcurrentBitmapIntSet();
         } else {
             intSet = new RoaringIntSet();
         }
@@ -277,13 +277,7 @@ public abstract class AbstractIntSet<T extends AbstractIntSet<T>> {
      * @return the set members as an {@code IntStream}
      */
     public IntStream parallelStream() {
-        if (intSet.isEmpty()) {
-            return IntStream.empty();
-        }
-        Supplier<? extends Spliterator.OfInt> streamSupplier = this.get();
-        return StreamSupport.intStream(streamSupplier,
-                streamSupplier.get().characteristics(),
-                true);
+        return intSet.parallelStream();
     }
 
     public int[] asArray() {
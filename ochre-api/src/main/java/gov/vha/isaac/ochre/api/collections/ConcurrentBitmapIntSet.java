@@ -0,0 +1,338 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.collections;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.OptionalInt;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A thread safe set of ints, that adds, removes, and tests members without
+ * locks or boxing.
+ *
+ * As in a roaring bitmap, members are grouped in containers by their high 16
+ * bits. Each container is a bitmap of 1024 atomic longs, created the first
+ * time one of its members is added, and changed a word at a time with compare
+ * and set. Containers are found through a fixed two level directory, so a
+ * container is never moved once created. A container is kept after its
+ * members are removed, so a set that is cleared and filled again, like the
+ * uncommitted sets of the commit provider, does not allocate again.
+ *
+ * Streams and iterators are over a snapshot of the members, in the order of a
+ * roaring bitmap. A snapshot taken while other threads change the set has
+ * each member that was in the set for the whole snapshot, and none that was
+ * out of the set for the whole snapshot.
+ *
+ * @author kec
+ */
+public class ConcurrentBitmapIntSet implements IntSet {
+
+	private static final int SEGMENT_BITS = 8;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	private static final int WORDS_PER_CONTAINER = (1 << 16) / 64;
+
+	/**
+	 * Containers by high 16 bits, in segments of 256 created on demand.
+	 */
+	private final AtomicReferenceArray<AtomicReferenceArray<AtomicLongArray>> directory
+			  = new AtomicReferenceArray<>(SEGMENT_SIZE);
+	private final LongAdder size = new LongAdder();
+
+	protected ConcurrentBitmapIntSet() {
+
+	}
+
+	protected ConcurrentBitmapIntSet(int... members) {
+		for (int member : members) {
+			add(member);
+		}
+	}
+
+	protected ConcurrentBitmapIntSet(IntStream memberStream) {
+		memberStream.forEach((member) -> add(member));
+	}
+
+	private AtomicLongArray getContainer(int key) {
+		AtomicReferenceArray<AtomicLongArray> segment = directory.get(key >>> SEGMENT_BITS);
+		if (segment == null) {
+			return null;
+		}
+		return segment.get(key & (SEGMENT_SIZE - 1));
+	}
+
+	private AtomicLongArray getOrCreateContainer(int key) {
+		int segmentIndex = key >>> SEGMENT_BITS;
+		AtomicReferenceArray<AtomicLongArray> segment = directory.get(segmentIndex);
+		if (segment == null) {
+			directory.compareAndSet(segmentIndex, null, new AtomicReferenceArray<>(SEGMENT_SIZE));
+			segment = directory.get(segmentIndex);
+		}
+		int containerIndex = key & (SEGMENT_SIZE - 1);
+		AtomicLongArray container = segment.get(containerIndex);
+		if (container == null) {
+			segment.compareAndSet(containerIndex, null, new AtomicLongArray(WORDS_PER_CONTAINER));
+			container = segment.get(containerIndex);
+		}
+		return container;
+	}
+
+	private static int key(int item) {
+		return item >>> 16;
+	}
+
+	private static int wordIndex(int item) {
+		return (item & 0xFFFF) >>> 6;
+	}
+
+	@Override
+	public void add(int item) {
+		AtomicLongArray container = getOrCreateContainer(key(item));
+		int wordIndex = wordIndex(item);
+		long bit = 1L << item;
+		while (true) {
+			long word = container.get(wordIndex);
+			if ((word & bit) != 0) {
+				return;
+			}
+			if (container.compareAndSet(wordIndex, word, word | bit)) {
+				size.increment();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void addAll(IntStream intStream) {
+		intStream.forEach((item) -> add(item));
+	}
+
+	@Override
+	public void remove(int item) {
+		AtomicLongArray container = getContainer(key(item));
+		if (container == null) {
+			return;
+		}
+		int wordIndex = wordIndex(item);
+		long bit = 1L << item;
+		while (true) {
+			long word = container.get(wordIndex);
+			if ((word & bit) == 0) {
+				return;
+			}
+			if (container.compareAndSet(wordIndex, word, word & ~bit)) {
+				size.decrement();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(int item) {
+		AtomicLongArray container = getContainer(key(item));
+		return container != null && (container.get(wordIndex(item)) & (1L << item)) != 0;
+	}
+
+	/**
+	 * Removes the members a word at a time. Members added by other threads
+	 * while the set is cleared may remain.
+	 */
+	@Override
+	public void clear() {
+		for (int segmentIndex = 0; segmentIndex < SEGMENT_SIZE; segmentIndex++) {
+			AtomicReferenceArray<AtomicLongArray> segment = directory.get(segmentIndex);
+			if (segment == null) {
+				continue;
+			}
+			for (int containerIndex = 0; containerIndex < SEGMENT_SIZE; containerIndex++) {
+				AtomicLongArray container = segment.get(containerIndex);
+				if (container == null) {
+					continue;
+				}
+				for (int wordIndex = 0; wordIndex < WORDS_PER_CONTAINER; wordIndex++) {
+					if (container.get(wordIndex) != 0) {
+						size.add(-Long.bitCount(container.getAndSet(wordIndex, 0)));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of elements in this set.
+	 */
+	@Override
+	public int size() {
+		return (int) size.sum();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size.sum() == 0;
+	}
+
+	@Override
+	public OptionalInt findFirst() {
+		for (int segmentIndex = 0; segmentIndex < SEGMENT_SIZE; segmentIndex++) {
+			AtomicReferenceArray<AtomicLongArray> segment = directory.get(segmentIndex);
+			if (segment == null) {
+				continue;
+			}
+			for (int containerIndex = 0; containerIndex < SEGMENT_SIZE; containerIndex++) {
+				AtomicLongArray container = segment.get(containerIndex);
+				if (container == null) {
+					continue;
+				}
+				for (int wordIndex = 0; wordIndex < WORDS_PER_CONTAINER; wordIndex++) {
+					long word = container.get(wordIndex);
+					if (word != 0) {
+						return OptionalInt.of((((segmentIndex << SEGMENT_BITS) | containerIndex) << 16)
+								  | (wordIndex << 6) | Long.numberOfTrailingZeros(word));
+					}
+				}
+			}
+		}
+		return OptionalInt.empty();
+	}
+
+	/**
+	 *
+	 * @return a snapshot of the members, in the order of a roaring bitmap.
+	 */
+	@Override
+	public int[] asArray() {
+		int[] members = new int[Math.max(16, size() + 16)];
+		int count = 0;
+		for (int segmentIndex = 0; segmentIndex < SEGMENT_SIZE; segmentIndex++) {
+			AtomicReferenceArray<AtomicLongArray> segment = directory.get(segmentIndex);
+			if (segment == null) {
+				continue;
+			}
+			for (int containerIndex = 0; containerIndex < SEGMENT_SIZE; containerIndex++) {
+				AtomicLongArray container = segment.get(containerIndex);
+				if (container == null) {
+					continue;
+				}
+				int high = ((segmentIndex << SEGMENT_BITS) | containerIndex) << 16;
+				for (int wordIndex = 0; wordIndex < WORDS_PER_CONTAINER; wordIndex++) {
+					long word = container.get(wordIndex);
+					while (word != 0) {
+						if (count == members.length) {
+							members = Arrays.copyOf(members, members.length * 2);
+						}
+						members[count++] = high | (wordIndex << 6) | Long.numberOfTrailingZeros(word);
+						word &= word - 1;
+					}
+				}
+			}
+		}
+		return count == members.length ? members : Arrays.copyOf(members, count);
+	}
+
+	/**
+	 *
+	 * @return a snapshot of the set members as an {@code IntStream}
+	 */
+	@Override
+	public IntStream stream() {
+		return Arrays.stream(asArray());
+	}
+
+	/**
+	 *
+	 * @return a snapshot of the set members as an {@code IntStream}
+	 */
+	@Override
+	public IntStream parallelStream() {
+		int[] members = asArray();
+		if (members.length == 0) {
+			return IntStream.empty();
+		}
+		return StreamSupport.intStream(new RoaringContainerSpliterator(members), true);
+	}
+
+	@Override
+	public PrimitiveIterator.OfInt getIntIterator() {
+		return Arrays.stream(asArray()).iterator();
+	}
+
+	@Override
+	public PrimitiveIterator.OfInt getReverseIntIterator() {
+		int[] members = asArray();
+		return new PrimitiveIterator.OfInt() {
+			int index = members.length;
+
+			@Override
+			public int nextInt() {
+				if (index == 0) {
+					throw new NoSuchElementException();
+				}
+				return members[--index];
+			}
+
+			@Override
+			public boolean hasNext() {
+				return index > 0;
+			}
+		};
+	}
+
+	@Override
+	public IntSet or(IntSet otherSet) {
+		otherSet.stream().forEach((item) -> add(item));
+		return this;
+	}
+
+	@Override
+	public IntSet and(IntSet otherSet) {
+		for (int item : asArray()) {
+			if (!otherSet.contains(item)) {
+				remove(item);
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public IntSet andNot(IntSet otherSet) {
+		otherSet.stream().forEach((item) -> remove(item));
+		return this;
+	}
+
+	@Override
+	public IntSet xor(IntSet otherSet) {
+		for (int item : otherSet.asArray()) {
+			if (contains(item)) {
+				remove(item);
+			} else {
+				add(item);
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(asArray());
+	}
+
+}
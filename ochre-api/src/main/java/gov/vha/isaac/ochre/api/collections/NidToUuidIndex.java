@@ -0,0 +1,342 @@
+package gov.vha.isaac.ochre.api.collections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A dense reverse index from nid to UUID. One UUID of each nid is held as a
+ * pair of longs at position (nid - Integer.MIN_VALUE) of a segmented
+ * primitive array, so that it is found with a single array read. Any further
+ * UUIDs assigned to the nid are held in a separate map.
+ *
+ * The UUID at the position is the first recorded for the nid until the
+ * primordial UUID of the nid is recorded with {@link #setPrimordialUuid(int, UUID)},
+ * which moves it to the position and marks it as primordial. Only a UUID
+ * marked as primordial is returned by {@link #getPrimordialUuid(int)}, since
+ * the first UUID recorded for a nid need not be the primordial UUID of its
+ * chronology.
+ *
+ * A most significant long of zero marks an empty position, which is safe
+ * since the version bits of any UUID generated by the name based or random
+ * algorithms are non zero.
+ *
+ * The pairs are persisted as a header holding the number of positions in
+ * use, followed by the pairs themselves and a bit for each position that
+ * marks a primordial UUID, and are bulk loaded through a
+ * {@code MappedByteBuffer}.
+ *
+ * Created by kec on 7/27/14.
+ */
+public class NidToUuidIndex {
+
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int MAX_SEGMENTS = 1 << (32 - SEGMENT_SHIFT);
+    private static final int FLAG_WORDS = SEGMENT_SIZE / 64;
+
+    private final AtomicReferenceArray<AtomicLongArray> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+    /**
+     * For each segment, a bit for each position that holds the primordial
+     * UUID of its nid. Created before the segment is published.
+     */
+    private final AtomicReferenceArray<AtomicLongArray> primordialFlags = new AtomicReferenceArray<>(MAX_SEGMENTS);
+    private final ConcurrentHashMap<Integer, UUID[]> additionalUuids = new ConcurrentHashMap<>();
+
+    private static long toIndex(int nid) {
+        return (long) nid - Integer.MIN_VALUE;
+    }
+
+    private AtomicLongArray getSegment(int segmentIndex, boolean create) {
+        AtomicLongArray segment = segments.get(segmentIndex);
+        if (segment == null && create) {
+            primordialFlags.compareAndSet(segmentIndex, null, new AtomicLongArray(FLAG_WORDS));
+            segments.compareAndSet(segmentIndex, null, new AtomicLongArray(SEGMENT_SIZE * 2));
+            segment = segments.get(segmentIndex);
+        }
+        return segment;
+    }
+
+    private static boolean holds(AtomicLongArray segment, int position, UUID uuid) {
+        return segment.get(position) == uuid.getMostSignificantBits()
+                && segment.get(position + 1) == uuid.getLeastSignificantBits();
+    }
+
+    private void addAdditional(int nid, UUID uuid) {
+        additionalUuids.compute(nid, (key, uuids) -> {
+            if (uuids == null) {
+                return new UUID[] {uuid};
+            }
+            if (Arrays.asList(uuids).contains(uuid)) {
+                return uuids;
+            }
+            UUID[] newUuids = Arrays.copyOf(uuids, uuids.length + 1);
+            newUuids[uuids.length] = uuid;
+            return newUuids;
+        });
+    }
+
+    private void removeAdditional(int nid, UUID uuid) {
+        additionalUuids.computeIfPresent(nid, (key, uuids) -> {
+            UUID[] newUuids = Arrays.stream(uuids).filter((additional) -> !additional.equals(uuid))
+                    .toArray(UUID[]::new);
+            return newUuids.length == 0 ? null : newUuids;
+        });
+    }
+
+    /**
+     * Record that the UUID identifies the nid.
+     *
+     * @param nid
+     * @param uuid
+     */
+    public void add(int nid, UUID uuid) {
+        long index = toIndex(nid);
+        AtomicLongArray segment = getSegment((int) (index >>> SEGMENT_SHIFT), true);
+        int position = ((int) index & SEGMENT_MASK) * 2;
+        synchronized (segment) {
+            if (segment.get(position) == 0) {
+                segment.set(position + 1, uuid.getLeastSignificantBits());
+                segment.set(position, uuid.getMostSignificantBits());
+            } else if (!holds(segment, position, uuid)) {
+                addAdditional(nid, uuid);
+            }
+        }
+    }
+
+    /**
+     * Record that the UUID is the primordial UUID of the nid. A primordial
+     * UUID, once recorded, is not replaced.
+     *
+     * @param nid
+     * @param uuid
+     */
+    public void setPrimordialUuid(int nid, UUID uuid) {
+        long index = toIndex(nid);
+        int segmentIndex = (int) (index >>> SEGMENT_SHIFT);
+        AtomicLongArray segment = getSegment(segmentIndex, true);
+        AtomicLongArray flags = primordialFlags.get(segmentIndex);
+        int slot = (int) index & SEGMENT_MASK;
+        int position = slot * 2;
+        long bit = 1L << slot;
+        synchronized (segment) {
+            if ((flags.get(slot >>> 6) & bit) != 0) {
+                return;
+            }
+            long msb = segment.get(position);
+            if (msb != 0 && !holds(segment, position, uuid)) {
+                addAdditional(nid, new UUID(msb, segment.get(position + 1)));
+                removeAdditional(nid, uuid);
+            }
+            segment.set(position + 1, uuid.getLeastSignificantBits());
+            segment.set(position, uuid.getMostSignificantBits());
+            // Set after the pair, so a reader that sees the bit sees the pair.
+            flags.getAndAccumulate(slot >>> 6, bit, (word, mask) -> word | mask);
+        }
+    }
+
+    /**
+     * @param nid
+     * @return the primordial UUID recorded for the nid, if any.
+     */
+    public Optional<UUID> getPrimordialUuid(int nid) {
+        long index = toIndex(nid);
+        int segmentIndex = (int) (index >>> SEGMENT_SHIFT);
+        AtomicLongArray flags = primordialFlags.get(segmentIndex);
+        if (flags == null) {
+            return Optional.empty();
+        }
+        int slot = (int) index & SEGMENT_MASK;
+        if ((flags.get(slot >>> 6) & (1L << slot)) == 0) {
+            return Optional.empty();
+        }
+        AtomicLongArray segment = segments.get(segmentIndex);
+        return Optional.of(new UUID(segment.get(slot * 2), segment.get(slot * 2 + 1)));
+    }
+
+    public boolean containsNid(int nid) {
+        AtomicLongArray segment = getSegment((int) (toIndex(nid) >>> SEGMENT_SHIFT), false);
+        return segment != null && segment.get(((int) toIndex(nid) & SEGMENT_MASK) * 2) != 0;
+    }
+
+    /**
+     * @param nid
+     * @return all UUIDs recorded for the nid, the primordial UUID, or if it
+     * is not recorded, the first UUID recorded, first.
+     */
+    public UUID[] getUuids(int nid) {
+        long index = toIndex(nid);
+        AtomicLongArray segment = getSegment((int) (index >>> SEGMENT_SHIFT), false);
+        if (segment == null) {
+            return new UUID[0];
+        }
+        int position = ((int) index & SEGMENT_MASK) * 2;
+        UUID first;
+        UUID[] additional;
+        // The pair and the additional UUIDs change together when a primordial UUID is recorded.
+        synchronized (segment) {
+            long msb = segment.get(position);
+            if (msb == 0) {
+                return new UUID[0];
+            }
+            first = new UUID(msb, segment.get(position + 1));
+            additional = additionalUuids.get(nid);
+        }
+        if (additional == null) {
+            return new UUID[] {first};
+        }
+        UUID[] uuids = new UUID[additional.length + 1];
+        uuids[0] = first;
+        System.arraycopy(additional, 0, uuids, 1, additional.length);
+        return uuids;
+    }
+
+    /**
+     * @return the highest nid with a UUID, or Integer.MIN_VALUE - 1 as a long
+     * if there is none.
+     */
+    public long getHighestNid() {
+        return getUsedPositions() - 1 + Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return the number of positions from Integer.MIN_VALUE up to and
+     * including the highest nid with a UUID.
+     */
+    private long getUsedPositions() {
+        for (int segmentIndex = MAX_SEGMENTS - 1; segmentIndex >= 0; segmentIndex--) {
+            AtomicLongArray segment = segments.get(segmentIndex);
+            if (segment != null) {
+                for (int i = SEGMENT_SIZE - 1; i >= 0; i--) {
+                    if (segment.get(i * 2) != 0) {
+                        return ((long) segmentIndex << SEGMENT_SHIFT) + i + 1;
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Write the index. Each file is written to a temporary file that then
+     * replaces it, so a failed write leaves the prior file in place.
+     *
+     * @param primaryFile file for the UUIDs held by position.
+     * @param additionalFile file for any further UUIDs.
+     * @throws IOException
+     */
+    public void write(File primaryFile, File additionalFile) throws IOException {
+        long usedPositions = getUsedPositions();
+        File primaryTemp = new File(primaryFile.getParentFile(), primaryFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(primaryTemp), 1 << 16))) {
+            out.writeLong(usedPositions);
+            for (long index = 0; index < usedPositions; index++) {
+                AtomicLongArray segment = segments.get((int) (index >>> SEGMENT_SHIFT));
+                int position = ((int) index & SEGMENT_MASK) * 2;
+                out.writeLong(segment == null ? 0 : segment.get(position));
+                out.writeLong(segment == null ? 0 : segment.get(position + 1));
+            }
+            for (long index = 0; index < usedPositions; index += 64) {
+                AtomicLongArray flags = primordialFlags.get((int) (index >>> SEGMENT_SHIFT));
+                out.writeLong(flags == null ? 0 : flags.get(((int) index & SEGMENT_MASK) >>> 6));
+            }
+        }
+        File additionalTemp = new File(additionalFile.getParentFile(), additionalFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(additionalTemp)))) {
+            Map<Integer, UUID[]> snapshot = new java.util.HashMap<>(additionalUuids);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<Integer, UUID[]> entry : snapshot.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                for (UUID uuid : entry.getValue()) {
+                    out.writeLong(uuid.getMostSignificantBits());
+                    out.writeLong(uuid.getLeastSignificantBits());
+                }
+            }
+        }
+        replace(primaryTemp, primaryFile);
+        replace(additionalTemp, additionalFile);
+    }
+
+    private static void replace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Replace the content of this index with the content of the files.
+     *
+     * @param primaryFile file for the UUIDs held by position.
+     * @param additionalFile file for any further UUIDs.
+     * @throws IOException
+     */
+    public void read(File primaryFile, File additionalFile) throws IOException {
+        clear();
+        try (FileChannel channel = FileChannel.open(primaryFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            long usedPositions = buffer.getLong(0);
+            buffer.position(8);
+            LongBuffer pairs = buffer.asLongBuffer();
+            long[] segmentData = new long[SEGMENT_SIZE * 2];
+            for (long start = 0; start < usedPositions; start += SEGMENT_SIZE) {
+                int count = (int) Math.min(SEGMENT_SIZE, usedPositions - start);
+                Arrays.fill(segmentData, 0);
+                pairs.get(segmentData, 0, count * 2);
+                segments.set((int) (start >>> SEGMENT_SHIFT), new AtomicLongArray(segmentData));
+            }
+            long[] flagData = new long[FLAG_WORDS];
+            for (long start = 0; start < usedPositions; start += SEGMENT_SIZE) {
+                int count = (int) Math.min(SEGMENT_SIZE, usedPositions - start);
+                Arrays.fill(flagData, 0);
+                pairs.get(flagData, 0, (count + 63) >>> 6);
+                primordialFlags.set((int) (start >>> SEGMENT_SHIFT), new AtomicLongArray(flagData));
+            }
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(additionalFile)))) {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                int nid = in.readInt();
+                UUID[] uuids = new UUID[in.readInt()];
+                for (int j = 0; j < uuids.length; j++) {
+                    uuids[j] = new UUID(in.readLong(), in.readLong());
+                }
+                additionalUuids.put(nid, uuids);
+            }
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < MAX_SEGMENTS; i++) {
+            segments.set(i, null);
+            primordialFlags.set(i, null);
+        }
+        additionalUuids.clear();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.collections;
+
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+
+/**
+ * A splittable spliterator over a snapshot of the members of a
+ * {@link RoaringIntSet}, in the order of the bitmap.
+ *
+ * A split divides the remaining members at the boundary between two roaring
+ * containers (members with different high 16 bits) nearest the middle, so
+ * that each half covers whole containers. When no boundary leaves each half at
+ * least a quarter of the members, as when they are all in one container, the
+ * split is at the middle. Sizes are exact.
+ *
+ * @author kec
+ */
+final class RoaringContainerSpliterator implements Spliterator.OfInt {
+
+    /**
+     * Fewer remaining members than this are not split.
+     */
+    private static final int MIN_SPLIT_SIZE = 64;
+
+    private final int[] members;
+    private int index;
+    private final int fence;
+
+    /**
+     * @param members the members of the set, in the order of the bitmap. The
+     * array is not copied, and must not be modified.
+     */
+    RoaringContainerSpliterator(int[] members) {
+        this(members, 0, members.length);
+    }
+
+    private RoaringContainerSpliterator(int[] members, int index, int fence) {
+        this.members = members;
+        this.index = index;
+        this.fence = fence;
+    }
+
+    private static int key(int member) {
+        return member >>> 16;
+    }
+
+    /**
+     * @return the first index in [from, to) with a container key not less
+     * than the key, or to if there is none.
+     */
+    private int firstIndexOfKey(int key, int from, int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (key(members[middle]) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public Spliterator.OfInt trySplit() {
+        int remaining = fence - index;
+        if (remaining < MIN_SPLIT_SIZE) {
+            return null;
+        }
+        int middle = index + (remaining >>> 1);
+        int middleKey = key(members[middle]);
+        int containerStart = firstIndexOfKey(middleKey, index, middle);
+        int containerEnd = firstIndexOfKey(middleKey + 1, middle, fence);
+        // A boundary is used only if it leaves each half a quarter of the members.
+        int quarter = remaining >>> 2;
+        int split = middle;
+        if (middle - containerStart <= containerEnd - middle) {
+            if (containerStart - index >= quarter) {
+                split = containerStart;
+            } else if (fence - containerEnd >= quarter) {
+                split = containerEnd;
+            }
+        } else if (fence - containerEnd >= quarter) {
+            split = containerEnd;
+        } else if (containerStart - index >= quarter) {
+            split = containerStart;
+        }
+        RoaringContainerSpliterator prefix = new RoaringContainerSpliterator(members, index, split);
+        index = split;
+        return prefix;
+    }
+
+    @Override
+    public boolean tryAdvance(IntConsumer action) {
+        if (index < fence) {
+            action.accept(members[index++]);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(IntConsumer action) {
+        int[] a = members;
+        int end = fence;
+        int i = index;
+        index = end;
+        for (; i < end; i++) {
+            action.accept(a[i]);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        return fence - index;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.DISTINCT
+                | Spliterator.IMMUTABLE
+                | Spliterator.NONNULL
+                | Spliterator.ORDERED
+                | Spliterator.SIZED
+                | Spliterator.SUBSIZED
+                | Spliterator.SORTED;
+    }
+
+    @Override
+    public Comparator<? super Integer> getComparator() {
+        return null;
+    }
+}
@@ -148,6 +148,8 @@ public class RoaringIntSet implements IntSet {
 	}
 
 	/**
+	 * The stream is over a snapshot of the members, and splits on roaring
+	 * container boundaries.
 	 *
 	 * @return the set members as an {@code IntStream}
 	 */
@@ -156,10 +158,7 @@ public class RoaringIntSet implements IntSet {
 		if (rbmp.isEmpty()) {
 			return IntStream.empty();
 		}
-		Supplier<? extends Spliterator.OfInt> streamSupplier = this.get();
-		return StreamSupport.intStream(streamSupplier,
-				  streamSupplier.get().characteristics(),
-				  true);
+		return StreamSupport.intStream(new RoaringContainerSpliterator(rbmp.toArray()), true);
 	}
 
 	@Override
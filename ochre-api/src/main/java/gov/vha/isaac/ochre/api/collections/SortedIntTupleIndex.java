@@ -0,0 +1,492 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.collections;
+
+import gov.vha.isaac.ochre.api.util.NamedThreadFactory;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A sorted set of int tuples of fixed arity (2 or 3), held as primitive int
+ * arrays rather than as key objects, and supporting range queries on tuple
+ * prefixes. Tuples are ordered field by field, using signed comparison.
+ *
+ * New tuples are inserted into a small sorted delta buffer. When the buffer
+ * fills, it is frozen into an immutable sorted run, and runs are merged in
+ * the background so that each run is at least twice the size of the next
+ * newer run, keeping the number of runs logarithmic in the number of tuples.
+ * Queries binary search the delta buffer and each run.
+ *
+ * The index is persisted as the number of tuples followed by the tuples in
+ * sorted order, and a sorted file is bulk loaded as a single run.
+ *
+ * @author kec
+ */
+public class SortedIntTupleIndex {
+
+    /**
+     * Receives a tuple, as the fields at offset, offset + 1, ... of the
+     * array. The array must not be modified or retained.
+     */
+    @FunctionalInterface
+    public interface TupleProcedure {
+
+        void apply(int[] tuples, int offset);
+    }
+
+    private static final int DELTA_CAPACITY = 1024;
+    /**
+     * Above this number of runs, adding threads merge runs themselves rather
+     * than leaving it to the background.
+     */
+    private static final int MAX_RUNS = 48;
+    private static final ExecutorService MERGE_EXECUTOR = Executors.newSingleThreadExecutor(
+            new NamedThreadFactory("SortedIntTupleIndex merge", true));
+
+    private static final class Run {
+
+        final int[] tuples;
+        final int size;
+
+        Run(int[] tuples, int size) {
+            this.tuples = tuples;
+            this.size = size;
+        }
+    }
+
+    private final int arity;
+    private final StampedLock lock = new StampedLock();
+    private final Object mergeLock = new Object();
+    private final AtomicBoolean mergeScheduled = new AtomicBoolean();
+
+    /**
+     * Oldest, and largest, first. Replaced, never modified.
+     */
+    private volatile Run[] runs = new Run[0];
+    private final int[] delta;
+    private int deltaSize = 0;
+
+    /**
+     * @param arity the number of fields in each tuple, 2 or 3.
+     */
+    public SortedIntTupleIndex(int arity) {
+        if (arity < 2 || arity > 3) {
+            throw new IllegalArgumentException("Arity must be 2 or 3. Found: " + arity);
+        }
+        this.arity = arity;
+        this.delta = new int[DELTA_CAPACITY * arity];
+    }
+
+    public int getArity() {
+        return arity;
+    }
+
+    private int compare(int[] tuples, int index, int first, int second, int third) {
+        int offset = index * arity;
+        int c = Integer.compare(tuples[offset], first);
+        if (c != 0) {
+            return c;
+        }
+        c = Integer.compare(tuples[offset + 1], second);
+        if (c != 0 || arity == 2) {
+            return c;
+        }
+        return Integer.compare(tuples[offset + 2], third);
+    }
+
+    /**
+     * @return the index of the first of the size tuples that is not less than
+     * the key.
+     */
+    private int lowerBound(int[] tuples, int size, int first, int second, int third) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(tuples, mid, first, second, third) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private boolean contains(int[] tuples, int size, int first, int second, int third) {
+        int index = lowerBound(tuples, size, first, second, third);
+        return index < size && compare(tuples, index, first, second, third) == 0;
+    }
+
+    public boolean add(int first, int second) {
+        return add(first, second, 0);
+    }
+
+    /**
+     * @param first
+     * @param second
+     * @param third ignored if the arity is 2.
+     * @return true if the tuple was not already present.
+     */
+    public boolean add(int first, int second, int third) {
+        boolean mergeNeeded;
+        long stamp = lock.writeLock();
+        try {
+            for (Run run : runs) {
+                if (contains(run.tuples, run.size, first, second, third)) {
+                    return false;
+                }
+            }
+            int index = lowerBound(delta, deltaSize, first, second, third);
+            if (index < deltaSize && compare(delta, index, first, second, third) == 0) {
+                return false;
+            }
+            int offset = index * arity;
+            System.arraycopy(delta, offset, delta, offset + arity, (deltaSize - index) * arity);
+            delta[offset] = first;
+            delta[offset + 1] = second;
+            if (arity == 3) {
+                delta[offset + 2] = third;
+            }
+            deltaSize++;
+            if (deltaSize < DELTA_CAPACITY) {
+                return true;
+            }
+            freezeDelta();
+            mergeNeeded = runs.length > MAX_RUNS;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (mergeNeeded) {
+            mergeRuns();
+        } else if (mergeScheduled.compareAndSet(false, true)) {
+            MERGE_EXECUTOR.execute(() -> {
+                mergeScheduled.set(false);
+                mergeRuns();
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Must be called holding the write lock.
+     */
+    private void freezeDelta() {
+        if (deltaSize == 0) {
+            return;
+        }
+        Run[] expanded = Arrays.copyOf(runs, runs.length + 1);
+        expanded[runs.length] = new Run(Arrays.copyOf(delta, deltaSize * arity), deltaSize);
+        runs = expanded;
+        deltaSize = 0;
+    }
+
+    private Run merge(Run older, Run newer) {
+        int[] merged = new int[(older.size + newer.size) * arity];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < older.size && j < newer.size) {
+            int offset = j * arity;
+            int third = arity == 3 ? newer.tuples[offset + 2] : 0;
+            if (compare(older.tuples, i, newer.tuples[offset], newer.tuples[offset + 1], third) <= 0) {
+                System.arraycopy(older.tuples, i++ * arity, merged, k++ * arity, arity);
+            } else {
+                System.arraycopy(newer.tuples, j++ * arity, merged, k++ * arity, arity);
+            }
+        }
+        System.arraycopy(older.tuples, i * arity, merged, k * arity, (older.size - i) * arity);
+        k += older.size - i;
+        System.arraycopy(newer.tuples, j * arity, merged, k * arity, (newer.size - j) * arity);
+        return new Run(merged, older.size + newer.size);
+    }
+
+    /**
+     * Merge adjacent runs until each run is at least twice the size of the
+     * next newer run.
+     */
+    private void mergeRuns() {
+        synchronized (mergeLock) {
+            while (true) {
+                Run[] current = runs;
+                int pair = -1;
+                for (int i = current.length - 2; i >= 0; i--) {
+                    if (current[i].size < 2 * current[i + 1].size) {
+                        pair = i;
+                        break;
+                    }
+                }
+                if (pair < 0) {
+                    return;
+                }
+                replacePair(current[pair], current[pair + 1], merge(current[pair], current[pair + 1]));
+            }
+        }
+    }
+
+    /**
+     * Replace two adjacent runs with their merge. Runs are only ever appended
+     * by other threads, so the pair is still adjacent.
+     */
+    private void replacePair(Run older, Run newer, Run merged) {
+        long stamp = lock.writeLock();
+        try {
+            Run[] current = runs;
+            int index = 0;
+            while (current[index] != older) {
+                index++;
+            }
+            Run[] replacement = new Run[current.length - 1];
+            System.arraycopy(current, 0, replacement, 0, index);
+            replacement[index] = merged;
+            System.arraycopy(current, index + 2, replacement, index + 1, current.length - index - 2);
+            runs = replacement;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Merge the delta buffer and all runs into a single run.
+     */
+    public void compact() {
+        compactRuns();
+    }
+
+    /**
+     * Merge the delta buffer and the runs, as of one point in time, into a
+     * single run, which replaces them.
+     *
+     * @return the merged run, which holds every tuple added before the call.
+     */
+    private Run compactRuns() {
+        synchronized (mergeLock) {
+            Run[] snapshot;
+            long stamp = lock.writeLock();
+            try {
+                freezeDelta();
+                snapshot = runs;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            if (snapshot.length == 0) {
+                return new Run(new int[0], 0);
+            }
+            Run merged = snapshot[snapshot.length - 1];
+            for (int i = snapshot.length - 2; i >= 0; i--) {
+                merged = merge(snapshot[i], merged);
+            }
+            if (snapshot.length > 1) {
+                replacePrefix(snapshot.length, merged);
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Replace the oldest runs with their merge. Runs are only ever appended
+     * by other threads, so they are still the oldest.
+     */
+    private void replacePrefix(int count, Run merged) {
+        long stamp = lock.writeLock();
+        try {
+            Run[] current = runs;
+            Run[] replacement = new Run[current.length - count + 1];
+            replacement[0] = merged;
+            System.arraycopy(current, count, replacement, 1, current.length - count);
+            runs = replacement;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean contains(int first, int second) {
+        return contains(first, second, 0);
+    }
+
+    public boolean contains(int first, int second, int third) {
+        long stamp = lock.readLock();
+        try {
+            if (contains(delta, deltaSize, first, second, third)) {
+                return true;
+            }
+            for (Run run : runs) {
+                if (contains(run.tuples, run.size, first, second, third)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Apply the procedure to each tuple with the given first field, in no
+     * particular order.
+     *
+     * @param first
+     * @param procedure
+     */
+    public void forEachWithPrefix(int first, TupleProcedure procedure) {
+        forEachInRange(first, Integer.MIN_VALUE, Integer.MIN_VALUE,
+                first, Integer.MAX_VALUE, Integer.MAX_VALUE, procedure);
+    }
+
+    /**
+     * Apply the procedure to each tuple with the given first and second
+     * fields, in no particular order. Only meaningful for an arity of 3.
+     *
+     * @param first
+     * @param second
+     * @param procedure
+     */
+    public void forEachWithPrefix(int first, int second, TupleProcedure procedure) {
+        forEachInRange(first, second, Integer.MIN_VALUE,
+                first, second, Integer.MAX_VALUE, procedure);
+    }
+
+    /**
+     * Apply the procedure to each tuple between the low and high tuples,
+     * inclusive, in no particular order. The procedure is applied without
+     * holding a lock, so it may add to this index.
+     */
+    public void forEachInRange(int lowFirst, int lowSecond, int lowThird,
+            int highFirst, int highSecond, int highThird, TupleProcedure procedure) {
+        Run[] snapshot;
+        int[] deltaRange;
+        long stamp = lock.readLock();
+        try {
+            snapshot = runs;
+            int start = lowerBound(delta, deltaSize, lowFirst, lowSecond, lowThird);
+            int end = start;
+            while (end < deltaSize && compare(delta, end, highFirst, highSecond, highThird) <= 0) {
+                end++;
+            }
+            deltaRange = Arrays.copyOfRange(delta, start * arity, end * arity);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (int offset = 0; offset < deltaRange.length; offset += arity) {
+            procedure.apply(deltaRange, offset);
+        }
+        for (Run run : snapshot) {
+            forEachInRange(run.tuples, run.size, lowFirst, lowSecond, lowThird,
+                    highFirst, highSecond, highThird, procedure);
+        }
+    }
+
+    private void forEachInRange(int[] tuples, int size, int lowFirst, int lowSecond, int lowThird,
+            int highFirst, int highSecond, int highThird, TupleProcedure procedure) {
+        for (int index = lowerBound(tuples, size, lowFirst, lowSecond, lowThird);
+                index < size && compare(tuples, index, highFirst, highSecond, highThird) <= 0;
+                index++) {
+            procedure.apply(tuples, index * arity);
+        }
+    }
+
+    /**
+     * Apply the procedure to every tuple, in no particular order.
+     *
+     * @param procedure
+     */
+    public void forEach(TupleProcedure procedure) {
+        forEachInRange(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE,
+                Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, procedure);
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            int size = deltaSize;
+            for (Run run : runs) {
+                size += run.size;
+            }
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Write every tuple added before the call, compacting the index.
+     *
+     * @param indexFile
+     * @throws IOException
+     */
+    public void write(File indexFile) throws IOException {
+        Run run = compactRuns();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFile), 1 << 16))) {
+            out.writeInt(run.size);
+            for (int i = 0; i < run.size * arity; i++) {
+                out.writeInt(run.tuples[i]);
+            }
+        }
+    }
+
+    /**
+     * Add the tuples of the file to this index. If this index is empty and the
+     * tuples of the file are sorted and unique, as written by
+     * {@link #write(File)}, they are loaded as a single run.
+     *
+     * @param indexFile
+     * @throws IOException
+     */
+    public void read(File indexFile) throws IOException {
+        int[] tuples;
+        int size;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            IntBuffer ints = buffer.asIntBuffer();
+            size = ints.get();
+            tuples = new int[size * arity];
+            ints.get(tuples);
+        }
+        boolean sorted = true;
+        for (int i = 1; i < size && sorted; i++) {
+            int offset = i * arity;
+            sorted = compare(tuples, i - 1, tuples[offset], tuples[offset + 1],
+                    arity == 3 ? tuples[offset + 2] : 0) < 0;
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (sorted && runs.length == 0 && deltaSize == 0) {
+                if (size > 0) {
+                    runs = new Run[]{new Run(tuples, size)};
+                }
+                return;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        for (int i = 0; i < size; i++) {
+            int offset = i * arity;
+            add(tuples[offset], tuples[offset + 1], arity == 3 ? tuples[offset + 2] : 0);
+        }
+    }
+}
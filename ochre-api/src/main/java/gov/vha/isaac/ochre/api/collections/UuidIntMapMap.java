@@ -6,8 +6,7 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -15,10 +14,11 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import gov.vha.isaac.ochre.api.collections.uuidnidmap.ConcurrentUuidToIntHashMap;
 import gov.vha.isaac.ochre.api.collections.uuidnidmap.UuidToIntMap;
+import gov.vha.isaac.ochre.api.memory.CacheStore;
+import gov.vha.isaac.ochre.api.memory.DiskIoPriority;
 import gov.vha.isaac.ochre.api.memory.DiskSemaphore;
 import gov.vha.isaac.ochre.api.memory.HoldInMemoryCache;
 import gov.vha.isaac.ochre.api.memory.MemoryManagedReference;
-import gov.vha.isaac.ochre.api.memory.WriteToDiskCache;
 import gov.vha.isaac.ochre.api.util.UUIDUtil;
 
 /**
@@ -29,11 +29,9 @@ public class UuidIntMapMap implements UuidToIntMap {
     private static final Logger LOG = LogManager.getLogger();
     private static final int DEFAULT_TOTAL_MAP_SIZE = 15000000;
     public static final int NUMBER_OF_MAPS = 256;
-    
-    public static int NID_TO_UUID_CACHE_SIZE = 0;  //defaults to disabled / not normally used.
-    //Loader utility code sets this to a much larger value, as there is no alternate cache to get from nid back to UUID
-    //when the data isn't being written to the DB.
-    
+    private static final String NID_TO_UUID_INDEX_FILE = "nid-uuid.index";
+    private static final String NID_TO_ADDITIONAL_UUIDS_FILE = "nid-uuid-additional.index";
+
     private static final int DEFAULT_MAP_SIZE = DEFAULT_TOTAL_MAP_SIZE / NUMBER_OF_MAPS;
     private static final double MIN_LOAD_FACTOR = 0.75;
     private static final double MAX_LOAD_FACTOR = 0.9;
@@ -50,23 +48,68 @@ public class UuidIntMapMap implements UuidToIntMap {
 
     private final MemoryManagedReference<ConcurrentUuidToIntHashMap>[] maps = new MemoryManagedReference[NUMBER_OF_MAPS];
     private final File folder;
-    
-    private LruCache<Integer, UUID[]> nidToPrimoridialCache = null;
-    
+    private final NidToUuidIndex nidToUuidIndex = new NidToUuidIndex();
+    /**
+     * The highest nid the index is known to hold every UUID of. A nid above
+     * it was assigned after the index was last written, and if its UUIDs are
+     * not in the index, as after a crash, they are found in the shards.
+     */
+    private volatile long indexedThroughNid = Long.MAX_VALUE;
+
     private UuidIntMapMap(File folder) {
         folder.mkdirs();
         this.folder = folder;
         for (int i = 0; i < maps.length; i++) {
-            maps[i] = new MemoryManagedReference<>(
-                    null,
-                    new File(folder, i + "-uuid-nid.map"), SERIALIZER);
-            WriteToDiskCache.addToCache(maps[i]);
-        }
-        if (NID_TO_UUID_CACHE_SIZE > 0) {
-            nidToPrimoridialCache = new LruCache<>(NID_TO_UUID_CACHE_SIZE);
+            maps[i] = newMapReference(null, new File(folder, i + "-uuid-nid.map"));
         }
+        readNidToUuidIndex();
         LOG.debug("Created UuidIntMapMap: " + this);
     }
+
+    /**
+     * Read the nid to UUID index written by the last {@link #write()}. The
+     * index holds every nid assigned before that write. Nids assigned since,
+     * and not written to the index because the system stopped without a
+     * write, are found in the shards on first use.
+     */
+    private void readNidToUuidIndex() {
+        File indexFile = new File(folder, NID_TO_UUID_INDEX_FILE);
+        File additionalFile = new File(folder, NID_TO_ADDITIONAL_UUIDS_FILE);
+        try {
+            if (indexFile.exists() && additionalFile.exists()) {
+                nidToUuidIndex.read(indexFile, additionalFile);
+                indexedThroughNid = nidToUuidIndex.getHighestNid();
+            } else if (folder.list((dir, name) -> name.endsWith("-uuid-nid.map")).length > 0) {
+                rebuildNidToUuidIndex();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Rebuild the nid to UUID index from the map shards. The shards do not
+     * record the primordial UUID of a nid, so it is recorded again as the
+     * chronology of the nid is read.
+     */
+    private void rebuildNidToUuidIndex() {
+        LOG.info("Rebuilding nid to UUID index from: " + folder);
+        nidToUuidIndex.clear();
+        for (int i = 0; i < NUMBER_OF_MAPS; i++) {
+            getMap(i).forEachPair((long[] uuid, int nid) -> {
+                nidToUuidIndex.add(nid, new UUID(uuid[0], uuid[1]));
+                return true;
+            });
+        }
+    }
+    
+    private static MemoryManagedReference<ConcurrentUuidToIntHashMap> newMapReference(
+            ConcurrentUuidToIntHashMap map, File mapFile) {
+        MemoryManagedReference<ConcurrentUuidToIntHashMap> reference = 
+                new MemoryManagedReference<>(map, mapFile, SERIALIZER);
+        reference.setCacheStore(CacheStore.UUID_NID);
+        return reference;
+    }
     
     public static UuidIntMapMap create(File folder) {
         return new UuidIntMapMap(folder);
@@ -79,6 +122,8 @@ public class UuidIntMapMap implements UuidToIntMap {
                 maps[i].write();
             }
         }
+        nidToUuidIndex.write(new File(folder, NID_TO_UUID_INDEX_FILE),
+                new File(folder, NID_TO_ADDITIONAL_UUIDS_FILE));
     }
 
 
@@ -90,21 +135,18 @@ public class UuidIntMapMap implements UuidToIntMap {
             if (maps[i].get() == null) {
                 File mapFile = new File(folder, i + "-uuid-nid.map");
                 if (mapFile.exists()) {
-                    DiskSemaphore.acquire();
+                    DiskSemaphore.acquire(mapFile, DiskIoPriority.FOREGROUND);
                     try (DataInputStream in = new DataInputStream(new BufferedInputStream(
                             new FileInputStream(mapFile)))) {
-                        maps[i] = new MemoryManagedReference<>(SERIALIZER.deserialize(in),
-                                mapFile, SERIALIZER);
-                        WriteToDiskCache.addToCache(maps[i]);
+                        maps[i] = newMapReference(SERIALIZER.deserialize(in), mapFile);
                         LOG.trace("UuidIntMapMap restored: " + i + " from: " + this + " file: " + mapFile.getAbsolutePath());
                     } finally {
-                        DiskSemaphore.release();
+                        DiskSemaphore.release(mapFile, DiskIoPriority.FOREGROUND);
                     }
                 } else {
-                    maps[i] = new MemoryManagedReference<>(
+                    maps[i] = newMapReference(
                             new ConcurrentUuidToIntHashMap(DEFAULT_MAP_SIZE, MIN_LOAD_FACTOR, MAX_LOAD_FACTOR),
-                            new File(folder, i + "-uuid-nid.map"), SERIALIZER);
-                    WriteToDiskCache.addToCache(maps[i]);
+                            new File(folder, i + "-uuid-nid.map"));
 
                 }
             }
@@ -173,31 +215,16 @@ public class UuidIntMapMap implements UuidToIntMap {
 //            }
             maps[mapIndex].elementUpdated();
             map.put(keyAsArray, nid, stamp);
-            updateCache(nid, uuidKey);
+            nidToUuidIndex.add(nid, uuidKey);
             return nid;
         } finally {
             map.getStampedLock().unlockWrite(stamp);
         }
     }
 
-    private void updateCache(int nid, UUID uuidKey) {
-        if (nidToPrimoridialCache != null) {
-            UUID[] temp = nidToPrimoridialCache.get(nid);
-            UUID[] temp1;
-            if (temp == null) {
-                temp1 = new UUID[] {uuidKey};
-            }
-            else {
-                temp1 = Arrays.copyOf(temp, temp.length + 1);
-                temp1[temp.length] = uuidKey;
-            }
-            nidToPrimoridialCache.put(nid, temp1);
-        }
-    }
-
     @Override
     public boolean put(UUID uuidKey, int value) {
-        updateCache(value, uuidKey);
+        nidToUuidIndex.add(value, uuidKey);
         int mapIndex = getMapIndex(uuidKey);
         long[] keyAsArray = UUIDUtil.convert(uuidKey);
         ConcurrentUuidToIntHashMap map = getMap(mapIndex);
@@ -224,24 +251,62 @@ public class UuidIntMapMap implements UuidToIntMap {
     }
 
 
+    /**
+     * @param value a nid.
+     * @return the UUIDs mapped to the nid, the primordial UUID, if recorded,
+     * first.
+     */
     public UUID[] getKeysForValue(int value) {
-        if (nidToPrimoridialCache != null) {
-            UUID[] cacheHit = nidToPrimoridialCache.get(value);
-            if (cacheHit != null && cacheHit.length > 0) {
-                return cacheHit;
-            }
-        }
-        ArrayList<UUID> uuids = new ArrayList<>();
-        for (int index = 0; index < maps.length; index++) {
-            getMap(index).keysOf(value).stream().forEach(uuid -> {
-                uuids.add(uuid);
-            });
+        UUID[] uuids = nidToUuidIndex.getUuids(value);
+        if (uuids.length == 0 && value > indexedThroughNid) {
+            addUnindexedNids();
+            uuids = nidToUuidIndex.getUuids(value);
         }
-        UUID[] temp = uuids.toArray(new UUID[uuids.size()]);
-        if (nidToPrimoridialCache != null && temp.length > 0) {
-            nidToPrimoridialCache.put(value, temp);
+        return uuids;
+    }
+
+    /**
+     * Add the nids above {@link #indexedThroughNid} to the index from the
+     * shards, once, after a start without a current index.
+     */
+    private void addUnindexedNids() {
+        lock.lock();
+        try {
+            long indexedThrough = indexedThroughNid;
+            if (indexedThrough == Long.MAX_VALUE) {
+                return;
+            }
+            LOG.info("Adding nids after " + indexedThrough + " to nid to UUID index from: " + folder);
+            for (int i = 0; i < NUMBER_OF_MAPS; i++) {
+                getMap(i).forEachPair((long[] uuid, int nid) -> {
+                    if (nid > indexedThrough) {
+                        nidToUuidIndex.add(nid, new UUID(uuid[0], uuid[1]));
+                    }
+                    return true;
+                });
+            }
+            indexedThroughNid = Long.MAX_VALUE;
+        } finally {
+            lock.unlock();
         }
-        return temp;
+    }
+
+    /**
+     * @param nid
+     * @return the primordial UUID recorded for the nid, if any.
+     */
+    public Optional<UUID> getPrimordialUuidForNid(int nid) {
+        return nidToUuidIndex.getPrimordialUuid(nid);
+    }
+
+    /**
+     * Record the primordial UUID of a nid, as given by its chronology.
+     *
+     * @param nid
+     * @param uuid
+     */
+    public void setPrimordialUuidForNid(int nid, UUID uuid) {
+        nidToUuidIndex.setPrimordialUuid(nid, uuid);
     }
     
     public void reportStats(Logger log) {
@@ -250,20 +315,6 @@ public class UuidIntMapMap implements UuidToIntMap {
         }
     }
     
-    /**
-     * This method is an optimization for loader patterns, where it can be faster to read the nid to UUID from this cache, 
-     * but only if the cache actually as the value.
-     * @param nid
-     * @return
-     */
-    public boolean cacheContainsNid(int nid) {
-        if (nidToPrimoridialCache != null) {
-            return nidToPrimoridialCache.containsKey(nid);
-        }
-        return false;
-    }
-
-
     public boolean isShutdown() {
         return shutdown;
     }
@@ -20,6 +20,7 @@ package gov.vha.isaac.ochre.api.commit;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import javafx.concurrent.Task;
 import org.jvnet.hk2.annotations.Contract;
 
 /**
@@ -60,6 +61,10 @@ public interface ChangeSetWriterService
 	 * resume is called. This feature is useful when you want to ensure the file on disk doesn't change while another thread picks
 	 * up the file and pushes it to git, for example.
 	 * 
+	 * A pause excludes the pauses of other threads until it is resumed, so a changeset sync and a
+	 * compaction, which both pause the writer, do not run at the same time.  A thread may pause again
+	 * while paused, and must resume once for each pause.
+	 * 
 	 * Ensure that if pause() is called, that resume is called from the same thread.
 	 * 
 	 * @throws IOException
@@ -79,4 +84,13 @@ public interface ChangeSetWriterService
 	 */
 	public Path getWriteFolder();
 
+	/**
+	 * Merge the change sets that are already in the database into larger segment files, and remove the
+	 * merged change sets.  Change sets that are still being written are left alone.  The writer is
+	 * paused while the task runs.
+	 * 
+	 * @return the running task, which returns the number of change set files compacted.
+	 */
+	public Task<Integer> compactChangeSets();
+
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.commit;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The stores whose files the commit logs stand in for, and whether each wrote
+ * its files when it was last stopped. The commit logs may be deleted only
+ * once every store has written its files, since until then the logs are the
+ * only durable copy of the commits.
+ *
+ * A store marks itself unwritten when it starts to write, and written only
+ * after its last write succeeds, so a failed write leaves it unwritten.
+ *
+ * @author kec
+ */
+public final class CheckpointWrites {
+
+    public enum Store {
+        COMMIT_MANAGER, STAMPS, IDENTIFIERS;
+    }
+
+    private static final Set<Store> WRITTEN = EnumSet.noneOf(Store.class);
+
+    private CheckpointWrites() {
+    }
+
+    public static synchronized void writeStarted(Store store) {
+        WRITTEN.remove(store);
+    }
+
+    public static synchronized void writeSucceeded(Store store) {
+        WRITTEN.add(store);
+    }
+
+    /**
+     * @return the stores that have not written their files since they were
+     * last started, or were not stopped.
+     */
+    public static synchronized Set<Store> getUnwritten() {
+        Set<Store> unwritten = EnumSet.allOf(Store.class);
+        unwritten.removeAll(WRITTEN);
+        return unwritten;
+    }
+}
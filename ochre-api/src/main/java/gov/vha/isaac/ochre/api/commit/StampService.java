@@ -32,6 +32,26 @@ public interface StampService extends DatabaseServices {
 
     long getTimeForStamp(int stampSequence);
 
+    /**
+     * Resolves the fields that position a stamp on a path, for many stamps
+     * in one call.
+     *
+     * @param stampSequences the stamps to resolve.
+     * @param count the number of stamps to resolve, from the start of the
+     * array.
+     * @param times receives the time of each stamp.
+     * @param moduleSequences receives the module sequence of each stamp.
+     * @param pathSequences receives the path sequence of each stamp.
+     */
+    default void getStampPositions(int[] stampSequences, int count,
+            long[] times, int[] moduleSequences, int[] pathSequences) {
+        for (int i = 0; i < count; i++) {
+            times[i] = getTimeForStamp(stampSequences[i]);
+            moduleSequences[i] = getModuleSequenceForStamp(stampSequences[i]);
+            pathSequences[i] = getPathSequenceForStamp(stampSequences[i]);
+        }
+    }
+
     boolean isNotCanceled(int stampSequence);
 
     boolean isUncommitted(int stampSequence);
@@ -111,6 +131,17 @@ public interface StampService extends DatabaseServices {
      */
     Map<UncommittedStamp, Integer> getPendingStampsForCommit();
 
+    /**
+     * Used by the commit manager to get the pending stamps of one author, so
+     * that the commits of different authors do not include each other's
+     * changes. Should only be used by developers creating their own commit
+     * service.
+     *
+     * @param authorSequence
+     * @return
+     */
+    Map<UncommittedStamp, Integer> getPendingStampsForCommit(int authorSequence);
+
     /**
      * Used to revert a commit in progress, i.e. a commit that failed because of
      * a data check error, or some other intervening circumstance. Not for use
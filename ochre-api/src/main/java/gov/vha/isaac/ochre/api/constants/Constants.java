@@ -54,4 +54,29 @@ public class Constants
 	 */
 	public static final String ISAAC_DEBUG = "gov.vha.isaac.ochre.api.constants.isaac-debug";
 	
+	/**
+	 * Prefix for properties that select how the segment files of a sequence object map are read from disk.  The store name 
+	 * ("concept", "sememe" or "taxonomy") is appended to the prefix, and the value must be the name of a 
+	 * gov.vha.isaac.ochre.model.waitfree.SegmentStorage constant, such as <code>MAPPED</code>.  If not set, segments
+	 * are read by deserializing the entire segment.
+	 */
+	public static final String SEGMENT_STORAGE_PROPERTY_PREFIX = "gov.vha.isaac.ochre.api.constants.segment-storage.";
+	
+	/**
+	 * The maximum number of disk reads and writes the memory managed stores may perform at once.  Defaults to the number of 
+	 * processors, up to 4.  Increase for storage, such as NVMe, that benefits from a deeper queue.
+	 */
+	public static final String DISK_IO_CONCURRENCY = "gov.vha.isaac.ochre.api.constants.disk-io-concurrency";
+	
+	/**
+	 * The maximum number of background segment flushes that may run at once, out of {@link #DISK_IO_CONCURRENCY}.  Defaults to 1.
+	 */
+	public static final String DISK_IO_BACKGROUND_CONCURRENCY = "gov.vha.isaac.ochre.api.constants.disk-io-background-concurrency";
+	
+	/**
+	 * The number of foreground disk operations that may start while a background segment flush waits, after which the flush
+	 * starts ahead of waiting foreground operations.  Defaults to 8.
+	 */
+	public static final String DISK_IO_FOREGROUND_PER_BACKGROUND = "gov.vha.isaac.ochre.api.constants.disk-io-foreground-per-background";
+	
 }
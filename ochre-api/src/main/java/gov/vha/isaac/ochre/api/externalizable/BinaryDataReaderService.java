@@ -30,4 +30,13 @@ public interface BinaryDataReaderService extends AutoCloseable {
      * @return
      */
     Stream<OchreExternalizable> getStream();
+
+    /**
+     * Return a parallel stream of the ochreExternlizables, parsed on multiple threads.
+     *
+     * The stream is ordered, so {@code forEachOrdered} may be used where the order
+     * of the file must be preserved.
+     * @return
+     */
+    Stream<OchreExternalizable> getParallelStream();
 }
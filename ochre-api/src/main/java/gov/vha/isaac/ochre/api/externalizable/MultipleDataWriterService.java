@@ -23,6 +23,7 @@ import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -320,4 +321,17 @@ public class MultipleDataWriterService implements DataWriterService
 	{
 		throw new UnsupportedOperationException("Method not supported");
 	}
+
+	/**
+	 * @return the file each of the writers is currently writing to.
+	 */
+	public List<Path> getCurrentPaths()
+	{
+		ArrayList<Path> paths = new ArrayList<>();
+		for (DataWriterService writer : writers_)
+		{
+			paths.add(writer.getCurrentPath());
+		}
+		return paths;
+	}
 }
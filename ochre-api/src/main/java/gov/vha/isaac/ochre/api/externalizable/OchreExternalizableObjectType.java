@@ -45,7 +45,10 @@ public enum OchreExternalizableObjectType {
     }
 
     public static OchreExternalizableObjectType fromDataStream(DataInput input) throws IOException {
-        byte token = input.readByte();
+        return fromToken(input.readByte());
+    }
+
+    public static OchreExternalizableObjectType fromToken(byte token) {
         switch (token) {
             case 1:
                 return CONCEPT;
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.memory;
+
+/**
+ * The stores whose memory managed references share the 
+ * {@link HoldInMemoryCache}. Each store receives its own share of the cache
+ * budget, as given by the current {@link MemoryConfigurations}.
+ *
+ * @author kec
+ */
+public enum CacheStore {
+    CONCEPT, SEMEME, TAXONOMY, UUID_NID, OTHER;
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.memory;
+
+/**
+ * The priority of a disk operation, as seen by a {@link DiskIoScheduler}.
+ *
+ * @author kec
+ */
+public enum DiskIoPriority {
+    /**
+     * Reads and writes that a caller is waiting on, such as loading a segment
+     * that is not resident in memory.
+     */
+    FOREGROUND,
+    /**
+     * Writes that nothing is waiting on, such as flushing dirty segments from
+     * the {@link WriteToDiskCache}. These yield to foreground operations.
+     */
+    BACKGROUND;
+}
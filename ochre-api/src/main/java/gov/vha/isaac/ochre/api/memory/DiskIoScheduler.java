@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.memory;
+
+/**
+ * Controls access to the disk by the memory managed stores. Each disk 
+ * operation is bracketed by a call to {@link #acquire(DiskIoPriority)} and a 
+ * call to {@link #release(DiskIoPriority)} with the same priority.
+ *
+ * @author kec
+ */
+public interface DiskIoScheduler {
+
+    /**
+     * Block, without interruption, until an operation of the given priority
+     * may proceed.
+     *
+     * @param priority the priority of the operation.
+     */
+    void acquire(DiskIoPriority priority);
+
+    /**
+     * Signal that an operation acquired with the given priority is complete.
+     *
+     * @param priority the priority of the operation.
+     */
+    void release(DiskIoPriority priority);
+
+    /**
+     * @return the number of operations waiting to proceed.
+     */
+    int getQueueDepth();
+
+    /**
+     * @param priority
+     * @return the number of operations of the given priority that have been
+     * acquired.
+     */
+    long getAcquireCount(DiskIoPriority priority);
+
+    /**
+     * @param priority
+     * @return the total time, in nanoseconds, that operations of the given
+     * priority have waited to proceed.
+     */
+    long getTotalWaitNanos(DiskIoPriority priority);
+
+    /**
+     * @param priority
+     * @return the longest time, in nanoseconds, that an operation of the given
+     * priority has waited to proceed.
+     */
+    long getMaxWaitNanos(DiskIoPriority priority);
+}
@@ -15,21 +15,147 @@
  */
 package gov.vha.isaac.ochre.api.memory;
 
-import java.util.concurrent.Semaphore;
+import gov.vha.isaac.ochre.api.constants.Constants;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Entry point through which the memory managed stores obtain access to the
+ * disk. Operations on a file are scheduled by a {@link DiskIoScheduler} for
+ * the device (file store) that holds the file, so a busy device does not
+ * hold up operations on another. By default each device has a
+ * {@link PriorityDiskIoScheduler} configured by the
+ * {@link Constants#DISK_IO_CONCURRENCY},
+ * {@link Constants#DISK_IO_BACKGROUND_CONCURRENCY} and
+ * {@link Constants#DISK_IO_FOREGROUND_PER_BACKGROUND} system properties.
  *
  * @author kec
  */
 public class DiskSemaphore {
-    private static final Semaphore WRITE_SEMAPHORE = new Semaphore(1, true);
-    
+    private static final int DEFAULT_CONCURRENCY =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int DEFAULT_BACKGROUND_CONCURRENCY = 1;
+
+    /**
+     * Schedules operations without a file, and operations on a file whose
+     * device cannot be determined.
+     */
+    private static final DiskIoScheduler defaultScheduler = newScheduler();
+    private static final ConcurrentHashMap<FileStore, DiskIoScheduler> deviceSchedulers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<File, DiskIoScheduler> folderSchedulers = new ConcurrentHashMap<>();
+    /**
+     * When set, schedules all operations, regardless of device.
+     */
+    private static volatile DiskIoScheduler sharedScheduler;
+
+    private static DiskIoScheduler newScheduler() {
+        return new PriorityDiskIoScheduler(
+                Integer.getInteger(Constants.DISK_IO_CONCURRENCY, DEFAULT_CONCURRENCY),
+                Integer.getInteger(Constants.DISK_IO_BACKGROUND_CONCURRENCY, DEFAULT_BACKGROUND_CONCURRENCY),
+                Integer.getInteger(Constants.DISK_IO_FOREGROUND_PER_BACKGROUND,
+                        PriorityDiskIoScheduler.DEFAULT_FOREGROUND_PER_BACKGROUND));
+    }
+
+    /**
+     * Acquire access for a foreground operation.
+     */
     public static void acquire() {
-        WRITE_SEMAPHORE.acquireUninterruptibly();
+        acquire(DiskIoPriority.FOREGROUND);
     }
-    
+
+    /**
+     * Release access acquired by {@link #acquire()}.
+     */
     public static void release() {
-        WRITE_SEMAPHORE.release();
+        release(DiskIoPriority.FOREGROUND);
+    }
+
+    public static void acquire(DiskIoPriority priority) {
+        getScheduler().acquire(priority);
+    }
+
+    public static void release(DiskIoPriority priority) {
+        getScheduler().release(priority);
+    }
+
+    /**
+     * Acquire access for an operation on a file, from the scheduler of the
+     * device that holds the file.
+     *
+     * @param file the file to read or write.
+     * @param priority the priority of the operation.
+     */
+    public static void acquire(File file, DiskIoPriority priority) {
+        getScheduler(file).acquire(priority);
     }
-    
+
+    /**
+     * Release access acquired by {@link #acquire(File, DiskIoPriority)}.
+     *
+     * @param file the file read or written.
+     * @param priority the priority of the operation.
+     */
+    public static void release(File file, DiskIoPriority priority) {
+        getScheduler(file).release(priority);
+    }
+
+    /**
+     * @return the scheduler of operations without a file.
+     */
+    public static DiskIoScheduler getScheduler() {
+        DiskIoScheduler shared = sharedScheduler;
+        return shared != null ? shared : defaultScheduler;
+    }
+
+    /**
+     * @param file
+     * @return the scheduler of the device that holds the file.
+     */
+    public static DiskIoScheduler getScheduler(File file) {
+        DiskIoScheduler shared = sharedScheduler;
+        if (shared != null) {
+            return shared;
+        }
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (folder == null) {
+            return defaultScheduler;
+        }
+        DiskIoScheduler scheduler = folderSchedulers.get(folder);
+        if (scheduler == null) {
+            scheduler = folderSchedulers.computeIfAbsent(folder, DiskSemaphore::findDeviceScheduler);
+        }
+        return scheduler;
+    }
+
+    private static DiskIoScheduler findDeviceScheduler(File folder) {
+        // The folder may not be created yet, in which case it will be on the device of its nearest existing ancestor.
+        for (File existing = folder; existing != null; existing = existing.getParentFile()) {
+            if (existing.exists()) {
+                try {
+                    FileStore store = Files.getFileStore(existing.toPath());
+                    return deviceSchedulers.computeIfAbsent(store, (newStore) -> newScheduler());
+                } catch (IOException e) {
+                    return defaultScheduler;
+                }
+            }
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * Replace the schedulers of all devices with one scheduler. Must only be
+     * called while no disk operations are in progress, since an operation
+     * acquired from a prior scheduler would otherwise be released to the new
+     * one.
+     *
+     * @param newScheduler the scheduler to use for subsequent operations, or
+     * null to return to a scheduler for each device.
+     */
+    public static void setScheduler(DiskIoScheduler newScheduler) {
+        sharedScheduler = newScheduler;
+    }
+
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.memory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A count-min sketch that estimates how often a key has been accessed
+ * recently. Counts saturate at 15, and are halved once the number of recorded
+ * accesses reaches ten times the width of the sketch, so that the estimate
+ * favors recent popularity.
+ *
+ * @author kec
+ */
+class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb9f7b7d1, 0x3c6ef372, 0xa54ff53a};
+
+    private final int widthMask;
+    private final AtomicIntegerArray counts;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * @param width the number of counters per row, rounded up to a power of
+     * two.
+     */
+    FrequencySketch(int width) {
+        int powerOfTwoWidth = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        this.widthMask = powerOfTwoWidth - 1;
+        this.counts = new AtomicIntegerArray(powerOfTwoWidth * DEPTH);
+        this.sampleSize = powerOfTwoWidth * 10;
+    }
+
+    private int index(int key, int row) {
+        int hash = (key ^ SEEDS[row]) * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (row * (widthMask + 1)) + (hash & widthMask);
+    }
+
+    void increment(int key) {
+        boolean incremented = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(key, row);
+            int count = counts.get(index);
+            if (count < MAX_COUNT && counts.compareAndSet(index, count, count + 1)) {
+                incremented = true;
+            }
+        }
+        if (incremented && additions.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(int key) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counts.get(index(key, row)));
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        additions.set(0);
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, counts.get(i) >>> 1);
+        }
+    }
+}
@@ -1,51 +1,359 @@
 package gov.vha.isaac.ochre.api.memory;
 
-import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Holds strong references to recently and frequently used memory managed
+ * objects, so that they are not reclaimed as soft references.
+ *
+ * Each {@link CacheStore} has a byte budget, determined by the current
+ * {@link MemoryConfigurations}, and charged with the payload size of each
+ * cached reference. New references enter a small window, and on leaving the
+ * window compete for admission to the main region against a victim sampled
+ * from it: the reference with the higher estimated access frequency is kept
+ * (a simplification of the W-TinyLFU policy).
+ *
+ * As in W-TinyLFU implementations, the hot paths do not contend on shared
+ * state: accesses are recorded in striped, lossy read buffers that one thread
+ * at a time drains into the frequency sketch, and additions are queued and
+ * applied by whichever thread obtains the lock of the store.
+ *
  * Created by kec on 4/10/15.
  */
 public class HoldInMemoryCache {
 
-    private static final int CACHE_SIZE = 512;
-    private static final int GENERATIONS = 3;
-    private static final LinkedBlockingDeque<Set<MemoryManagedReference>> queue = new LinkedBlockingDeque();
+    private static final double WINDOW_SHARE = 0.01;
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+    private static final FrequencySketch FREQUENCY_SKETCH = new FrequencySketch(1 << 16);
+    private static final AccessBuffer ACCESS_BUFFER = new AccessBuffer();
+    private static final EnumMap<CacheStore, StoreCache> STORE_CACHES = new EnumMap<>(CacheStore.class);
+    private static volatile MemoryConfigurations memoryConfiguration = MemoryConfigurations.IMPORT;
 
-    private static final AtomicReference<Set<MemoryManagedReference>> cacheRef = new AtomicReference<>(new ConcurrentSkipListSet<>());
-    private static final AtomicInteger cacheCount = new AtomicInteger();
+    static {
+        for (CacheStore store : CacheStore.values()) {
+            STORE_CACHES.put(store, new StoreCache(memoryConfiguration.getCacheBudget(store)));
+        }
+    }
 
     public static void addToCache(MemoryManagedReference newRef) {
+        STORE_CACHES.get(newRef.getCacheStore()).add(newRef);
+    }
+
+    /**
+     * Record a use of the referent of the reference, for the frequency
+     * estimates that govern admission and eviction.
+     * @param ref the reference whose referent was used.
+     */
+    public static void recordAccess(MemoryManagedReference ref) {
+        ACCESS_BUFFER.record(ref.getCacheKey());
+        if (ref.isInCache()) {
+            STORE_CACHES.get(ref.getCacheStore()).hits.increment();
+        }
+    }
+
+    public static void clearCache() {
+        STORE_CACHES.values().forEach(StoreCache::clear);
+    }
+
+    /**
+     * Apply the cache budgets of the configuration, evicting references from
+     * stores that are over their new budget.
+     * @param configuration the configuration to apply.
+     */
+    public static void setMemoryConfiguration(MemoryConfigurations configuration) {
+        memoryConfiguration = configuration;
+        STORE_CACHES.forEach((store, cache) -> cache.setBudget(configuration.getCacheBudget(store)));
+    }
+
+    public static MemoryConfigurations getMemoryConfiguration() {
+        return memoryConfiguration;
+    }
+
+    public static long getHitCount(CacheStore store) {
+        return STORE_CACHES.get(store).hits.sum();
+    }
+
+    public static long getMissCount(CacheStore store) {
+        return STORE_CACHES.get(store).misses.sum();
+    }
+
+    public static long getEvictionCount(CacheStore store) {
+        return STORE_CACHES.get(store).evictions.sum();
+    }
+
+    public static long getRejectionCount(CacheStore store) {
+        return STORE_CACHES.get(store).rejections.sum();
+    }
+
+    public static long getCachedBytes(CacheStore store) {
+        return STORE_CACHES.get(store).getCachedBytes();
+    }
 
-        Set<MemoryManagedReference> cache = cacheRef.get();
-        if (!cache.contains(newRef)) {
-            newRef.cacheEntry();
-            cache.add(newRef);
-            int count = cacheCount.incrementAndGet();
-            if (count > CACHE_SIZE) {
-                if (cacheRef.compareAndSet(cache, new ConcurrentSkipListSet<>())) {
-                    queue.addFirst(cache);
-                    while (queue.size() > GENERATIONS) {
-                        Set<MemoryManagedReference> oldCache = queue.removeLast();
-                        oldCache.stream().forEach(memoryManagedReference -> {
-                            memoryManagedReference.cacheExit();
-                        });
+    public static String getStatistics() {
+        StringBuilder sb = new StringBuilder("HoldInMemoryCache{").append(memoryConfiguration);
+        STORE_CACHES.forEach((store, cache) -> sb.append(", ").append(store).append(cache));
+        return sb.append('}').toString();
+    }
+
+    private static int frequency(MemoryManagedReference ref) {
+        return FREQUENCY_SKETCH.frequency(ref.getCacheKey());
+    }
+
+    /**
+     * Striped ring buffers of accessed cache keys, drained into the frequency
+     * sketch when full. A thread records into the stripe chosen by its id,
+     * and an access is dropped when its stripe is full and being drained, so
+     * the frequency estimates are approximate, as they are in any case.
+     */
+    private static class AccessBuffer {
+
+        private static final int STRIPES = Integer.highestOneBit(
+                Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+        private static final int STRIPE_SIZE = 64;
+
+        private final AtomicIntegerArray keys = new AtomicIntegerArray(STRIPES * STRIPE_SIZE);
+        private final AtomicInteger[] counts = new AtomicInteger[STRIPES];
+        private final ReentrantLock drainLock = new ReentrantLock();
+
+        AccessBuffer() {
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                counts[stripe] = new AtomicInteger();
+            }
+        }
+
+        void record(int key) {
+            int stripe = ((int) Thread.currentThread().getId() * 0x9E3779B9 >>> 16) & (STRIPES - 1);
+            int index = counts[stripe].getAndIncrement();
+            if (index < STRIPE_SIZE) {
+                keys.lazySet((stripe * STRIPE_SIZE) + index, key);
+            }
+            if (index >= STRIPE_SIZE - 1) {
+                drain(stripe);
+            }
+        }
+
+        private void drain(int stripe) {
+            if (!drainLock.tryLock()) {
+                return;
+            }
+            try {
+                if (counts[stripe].get() >= STRIPE_SIZE) {
+                    for (int index = 0; index < STRIPE_SIZE; index++) {
+                        FREQUENCY_SKETCH.increment(keys.get((stripe * STRIPE_SIZE) + index));
                     }
+                    counts[stripe].set(0);
                 }
+            } finally {
+                drainLock.unlock();
             }
         }
-
     }
 
-    public static void clearCache() {
-        queue.stream().forEach((Set<MemoryManagedReference> referenceSet)-> {
-            referenceSet.stream().forEach((MemoryManagedReference ref) -> {
+    private static class StoreCache {
+
+        private final ArrayDeque<MemoryManagedReference> window = new ArrayDeque<>();
+        private final ArrayList<MemoryManagedReference> main = new ArrayList<>();
+        private final HashMap<MemoryManagedReference, Integer> mainIndexes = new HashMap<>();
+        private final HashMap<MemoryManagedReference, Long> chargedSizes = new HashMap<>();
+        private final ConcurrentLinkedQueue<MemoryManagedReference> pendingAdds = new ConcurrentLinkedQueue<>();
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private long budget;
+        private long windowBytes = 0;
+        private long mainBytes = 0;
+
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+        final LongAdder rejections = new LongAdder();
+
+        StoreCache(long budget) {
+            this.budget = budget;
+        }
+
+        private long windowBudget() {
+            return (long) (budget * WINDOW_SHARE);
+        }
+
+        private long mainBudget() {
+            return budget - windowBudget();
+        }
+
+        /**
+         * Queues the reference for admission, holding its referent until then,
+         * and applies the queued additions unless another thread holds the
+         * lock, in which case that thread applies them.
+         */
+        void add(MemoryManagedReference ref) {
+            ref.cacheEntry();
+            pendingAdds.add(ref);
+            while (!pendingAdds.isEmpty() && lock.tryLock()) {
+                try {
+                    applyPendingAdds();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Must be called while holding the lock.
+         */
+        private void applyPendingAdds() {
+            MemoryManagedReference ref;
+            while ((ref = pendingAdds.poll()) != null) {
+                admit(ref);
+            }
+        }
+
+        /**
+         * Admits a reference to the window, taking over the cache entry made
+         * when it was queued.
+         */
+        private void admit(MemoryManagedReference ref) {
+            if (chargedSizes.containsKey(ref) || ref.get() == null) {
+                ref.cacheExit();
+                return;
+            }
+            misses.increment();
+            long size = ref.getPayloadSize();
+            chargedSizes.put(ref, size);
+            window.addLast(ref);
+            windowBytes += size;
+            while (windowBytes > windowBudget() && window.size() > 1) {
+                MemoryManagedReference candidate = window.pollFirst();
+                windowBytes -= chargedSizes.get(candidate);
+                admitToMain(candidate);
+            }
+        }
+
+        private void admitToMain(MemoryManagedReference candidate) {
+            long size = chargedSizes.get(candidate);
+            if (size > mainBudget()) {
+                reject(candidate);
+                return;
+            }
+            int candidateFrequency = frequency(candidate);
+            while (mainBytes + size > mainBudget()) {
+                MemoryManagedReference victim = sampleVictim();
+                if (candidateFrequency <= frequency(victim)) {
+                    reject(candidate);
+                    return;
+                }
+                removeFromMain(victim);
+                evictions.increment();
+            }
+            mainIndexes.put(candidate, main.size());
+            main.add(candidate);
+            mainBytes += size;
+        }
+
+        /**
+         * @return the least frequently used of a random sample of the main
+         * region, or the least recently read if frequencies are equal.
+         */
+        private MemoryManagedReference sampleVictim() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            MemoryManagedReference victim = main.get(random.nextInt(main.size()));
+            int victimFrequency = frequency(victim);
+            for (int i = 1; i < EVICTION_SAMPLE_SIZE; i++) {
+                MemoryManagedReference sample = main.get(random.nextInt(main.size()));
+                int sampleFrequency = frequency(sample);
+                if (sampleFrequency < victimFrequency
+                        || (sampleFrequency == victimFrequency
+                        && sample.getLastElementReadTime() < victim.getLastElementReadTime())) {
+                    victim = sample;
+                    victimFrequency = sampleFrequency;
+                }
+            }
+            return victim;
+        }
+
+        private void reject(MemoryManagedReference candidate) {
+            chargedSizes.remove(candidate);
+            candidate.cacheExit();
+            rejections.increment();
+        }
+
+        private void removeFromMain(MemoryManagedReference ref) {
+            int index = mainIndexes.remove(ref);
+            MemoryManagedReference last = main.remove(main.size() - 1);
+            if (last != ref) {
+                main.set(index, last);
+                mainIndexes.put(last, index);
+            }
+            mainBytes -= chargedSizes.remove(ref);
+            ref.cacheExit();
+        }
+
+        void setBudget(long budget) {
+            lock.lock();
+            try {
+                applyPendingAdds();
+                applyBudget(budget);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void applyBudget(long budget) {
+            this.budget = budget;
+            while (windowBytes > windowBudget() && !window.isEmpty()) {
+                MemoryManagedReference ref = window.pollFirst();
+                windowBytes -= chargedSizes.remove(ref);
                 ref.cacheExit();
-                referenceSet.remove(ref);
-            });
-        }); 
+                evictions.increment();
+            }
+            while (mainBytes > mainBudget() && !main.isEmpty()) {
+                removeFromMain(sampleVictim());
+                evictions.increment();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                applyPendingAdds();
+                clearAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void clearAll() {
+            window.forEach(MemoryManagedReference::cacheExit);
+            main.forEach(MemoryManagedReference::cacheExit);
+            window.clear();
+            main.clear();
+            mainIndexes.clear();
+            chargedSizes.clear();
+            windowBytes = 0;
+            mainBytes = 0;
+        }
+
+        long getCachedBytes() {
+            lock.lock();
+            try {
+                return windowBytes + mainBytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "{bytes=" + getCachedBytes() + "/" + budget + ", hits=" + hits.sum()
+                    + ", misses=" + misses.sum() + ", evictions=" + evictions.sum()
+                    + ", rejections=" + rejections.sum() + "}";
+        }
     }
 }
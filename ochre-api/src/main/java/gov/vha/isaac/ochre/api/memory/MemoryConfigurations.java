@@ -15,11 +15,53 @@
  */
 package gov.vha.isaac.ochre.api.memory;
 
+import java.util.EnumMap;
+
 /**
+ * Memory profiles for particular tasks. Each profile gives the share of the 
+ * maximum heap that the {@link HoldInMemoryCache} may use, and how that 
+ * budget is divided between the {@link CacheStore}s.
  *
  * @author kec
  */
 public enum MemoryConfigurations {
-    IMPORT, CLASSIFY;
-    
+    /**
+     * Loading and editing content: favor sememes and the UUID to nid maps, 
+     * which are written to most heavily. 
+     */
+    IMPORT(0.40, 0.15, 0.40, 0.10, 0.30, 0.05),
+    /**
+     * Classification: leave most of the heap to the classifier, favoring the 
+     * concept and taxonomy stores that axiom extraction and result processing
+     * read. 
+     */
+    CLASSIFY(0.20, 0.30, 0.30, 0.30, 0.05, 0.05);
+
+    private final double heapFraction;
+    private final EnumMap<CacheStore, Double> storeShares = new EnumMap<>(CacheStore.class);
+
+    private MemoryConfigurations(double heapFraction, double conceptShare, double sememeShare, 
+            double taxonomyShare, double uuidNidShare, double otherShare) {
+        this.heapFraction = heapFraction;
+        storeShares.put(CacheStore.CONCEPT, conceptShare);
+        storeShares.put(CacheStore.SEMEME, sememeShare);
+        storeShares.put(CacheStore.TAXONOMY, taxonomyShare);
+        storeShares.put(CacheStore.UUID_NID, uuidNidShare);
+        storeShares.put(CacheStore.OTHER, otherShare);
+    }
+
+    /**
+     * @return the share of the maximum heap that the cache may use.
+     */
+    public double getHeapFraction() {
+        return heapFraction;
+    }
+
+    /**
+     * @param store
+     * @return the number of bytes of the cache budget given to the store.
+     */
+    public long getCacheBudget(CacheStore store) {
+        return (long) (Runtime.getRuntime().maxMemory() * heapFraction * storeShares.get(store));
+    }
 }
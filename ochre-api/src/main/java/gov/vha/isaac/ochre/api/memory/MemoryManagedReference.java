@@ -5,7 +5,11 @@ import org.apache.mahout.math.map.HashFunctions;
 import java.io.*;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.LongAdder;
@@ -20,6 +24,7 @@ public class MemoryManagedReference<T extends Object> extends SoftReference<T> i
 
     private static final AtomicInteger objectIdSupplier = new AtomicInteger();
     private static final AtomicInteger referenceSequenceSupplier = new AtomicInteger(Integer.MIN_VALUE + 1);
+    private static final long DEFAULT_PAYLOAD_SIZE = 64 * 1024;
 
     private final int objectId = objectIdSupplier.getAndIncrement();
 
@@ -34,16 +39,25 @@ public class MemoryManagedReference<T extends Object> extends SoftReference<T> i
     private final AtomicReference<T> strongReferenceForUpdate = new AtomicReference<>();
     private final AtomicReference<T> strongReferenceForCache= new AtomicReference<>();
 
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private volatile long firstUnwrittenUpdateTime = Long.MAX_VALUE;
+    private final Object writeLock = new Object();
+
     private final LongAdder hits = new LongAdder();
     private final AtomicInteger cacheCount = new AtomicInteger();
 
     private final File diskLocation;
     private final DataSerializer<T> serializer;
+    private final int cacheKey;
+
+    private volatile CacheStore cacheStore = CacheStore.OTHER;
+    private volatile long payloadSize = -1;
 
     public MemoryManagedReference(T referent, File diskLocation, DataSerializer<T> serializer) {
         super(referent);
         this.diskLocation = diskLocation;
         this.serializer = serializer;
+        this.cacheKey = diskLocation.getAbsolutePath().hashCode();
     }
 
     public MemoryManagedReference(T referent, ReferenceQueue<? super T> q, File diskLocation,
@@ -51,17 +65,77 @@ public class MemoryManagedReference<T extends Object> extends SoftReference<T> i
         super(referent, q);
         this.diskLocation = diskLocation;
         this.serializer = serializer;
+        this.cacheKey = diskLocation.getAbsolutePath().hashCode();
+    }
+
+    public CacheStore getCacheStore() {
+        return cacheStore;
+    }
+
+    /**
+     * @param cacheStore the store whose {@link HoldInMemoryCache} budget is
+     * charged for this reference.
+     */
+    public void setCacheStore(CacheStore cacheStore) {
+        this.cacheStore = cacheStore;
+    }
+
+    /**
+     * @return a key that is the same for all references to the same disk
+     * location, so that access frequency survives reloading the referent.
+     */
+    public int getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * @return the serialized size of the referent when last written, or if it
+     * has not been written by this reference, the size of the file on disk, 
+     * or 64KB when there is no file yet. 
+     */
+    public long getPayloadSize() {
+        long size = payloadSize;
+        if (size < 0) {
+            size = diskLocation.length();
+            if (size == 0) {
+                size = DEFAULT_PAYLOAD_SIZE;
+            }
+            payloadSize = size;
+        }
+        return size;
+    }
+
+    public boolean isInCache() {
+        return cacheCount.get() > 0;
     }
 
     public void elementUpdated() {
         this.strongReferenceForUpdate.set(this.get());
         lastElementUpdateSequence = referenceSequenceSupplier.getAndIncrement();
         lastElementUpdateTime = System.currentTimeMillis();
+        if (writeScheduled.compareAndSet(false, true)) {
+            long updateTime = lastElementUpdateTime;
+            firstUnwrittenUpdateTime = updateTime;
+            WriteToDiskCache.scheduleWrite(this, updateTime);
+        }
+    }
+
+    /**
+     * @return the time of the first update not yet written to disk, or
+     * Long.MAX_VALUE if there is none.
+     */
+    public long getFirstUnwrittenUpdateTime() {
+        return firstUnwrittenUpdateTime;
     }
 
     public void elementRead() {
         hits.increment();
         this.lastElementReadTime = System.currentTimeMillis();
+        HoldInMemoryCache.recordAccess(this);
+    }
+
+    public long getLastElementReadTime() {
+        return lastElementReadTime;
     }
 
     public Duration timeSinceLastRead() {
@@ -83,23 +157,81 @@ public class MemoryManagedReference<T extends Object> extends SoftReference<T> i
     }
 
     public void write() {
-        T objectToWrite = strongReferenceForUpdate.get();
-        if (objectToWrite != null) {
-            strongReferenceForUpdate.set(null);
-            DiskSemaphore.acquire();
-            lastWriteToDiskSequence = referenceSequenceSupplier.getAndIncrement();
-            lastWriteToDiskTime = System.currentTimeMillis();
-            diskLocation.getParentFile().mkdirs();
-            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
-                    new FileOutputStream(diskLocation)))) {
-                serializer.serialize(out, objectToWrite);
-            } catch (FileNotFoundException e) {
-                throw new RuntimeException(e);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            } finally {
-                DiskSemaphore.release();
+        write(DiskIoPriority.FOREGROUND);
+    }
+
+    /**
+     * Write the referent to disk if it has been updated since it was last written.
+     * If the write fails, the referent is left unwritten, and the write is
+     * scheduled again.
+     *
+     * @param priority the priority with which to schedule the write.
+     */
+    public void write(DiskIoPriority priority) {
+        synchronized (writeLock) {
+            // Updates after this point schedule another write.
+            writeScheduled.set(false);
+            long firstUpdateTime = firstUnwrittenUpdateTime;
+            firstUnwrittenUpdateTime = Long.MAX_VALUE;
+            T objectToWrite = strongReferenceForUpdate.getAndSet(null);
+            if (objectToWrite != null) {
+                try {
+                    writeObject(objectToWrite, priority);
+                    WriteToDiskCache.writeSucceeded(this);
+                } catch (RuntimeException e) {
+                    strongReferenceForUpdate.compareAndSet(null, objectToWrite);
+                    firstUnwrittenUpdateTime = Math.min(firstUpdateTime, firstUnwrittenUpdateTime);
+                    if (writeScheduled.compareAndSet(false, true)) {
+                        WriteToDiskCache.scheduleWrite(this, System.currentTimeMillis());
+                    }
+                    WriteToDiskCache.writeFailed(this);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void writeObject(T objectToWrite, DiskIoPriority priority) {
+        DiskSemaphore.acquire(diskLocation, priority);
+        // Updates after this point are not in the write.
+        int writeSequence = referenceSequenceSupplier.getAndIncrement();
+        long writeTime = System.currentTimeMillis();
+        diskLocation.getParentFile().mkdirs();
+        File tempLocation = new File(diskLocation.getParentFile(), diskLocation.getName() + ".tmp");
+        try(FileOutputStream fileOut = new FileOutputStream(tempLocation);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            serializer.serialize(out, objectToWrite);
+            payloadSize = out.size();
+            // On disk before it replaces the prior file, so a commit log is not deleted for a write a crash would lose.
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            DiskSemaphore.release(diskLocation, priority);
+        }
+        replace(tempLocation, diskLocation);
+        lastWriteToDiskSequence = writeSequence;
+        lastWriteToDiskTime = writeTime;
+    }
+
+    /**
+     * Replace the target with the source by rename, so that readers of the 
+     * target never observe a partially written file. Subclasses that hold a
+     * view of the target file discard it around the rename.
+     */
+    protected void replace(File source, File target) {
+        try {
+            try {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, 
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
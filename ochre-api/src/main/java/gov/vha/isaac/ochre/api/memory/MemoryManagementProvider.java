@@ -29,6 +29,7 @@ public class MemoryManagementProvider implements MemoryManagementService {
     @Override
     public void setMemoryConfiguration(MemoryConfigurations memoryConfiguration) {
         System.out.println("Setting memory configuration to: " + memoryConfiguration);
+        HoldInMemoryCache.setMemoryConfiguration(memoryConfiguration);
         switch (memoryConfiguration) {
             case CLASSIFY:
                 // reclaim as much memory as possible...
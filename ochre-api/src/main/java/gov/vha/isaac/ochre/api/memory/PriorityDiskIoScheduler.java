@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.memory;
+
+import java.util.EnumMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link DiskIoScheduler} that allows a configurable number of concurrent
+ * operations, of which at most a configurable number may be background
+ * operations. A background operation does not start while any foreground
+ * operation is waiting, unless a configurable number of foreground operations
+ * have started while it waited, so background operations keep a minimum share
+ * of the disk under sustained foreground load.
+ *
+ * @author kec
+ */
+public class PriorityDiskIoScheduler implements DiskIoScheduler {
+
+    /**
+     * The number of foreground operations that may start while a background
+     * operation waits, by default.
+     */
+    public static final int DEFAULT_FOREGROUND_PER_BACKGROUND = 8;
+
+    private final int maxConcurrent;
+    private final int maxBackground;
+    private final int foregroundPerBackground;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition foregroundReady = lock.newCondition();
+    private final Condition backgroundReady = lock.newCondition();
+
+    private int active = 0;
+    private int activeBackground = 0;
+    private int waitingForeground = 0;
+    private int waitingBackground = 0;
+    /**
+     * Foreground operations started while a background operation waited,
+     * since the last background operation started.
+     */
+    private int foregroundSinceBackground = 0;
+
+    private final EnumMap<DiskIoPriority, LongAdder> acquireCounts = new EnumMap<>(DiskIoPriority.class);
+    private final EnumMap<DiskIoPriority, LongAdder> waitNanos = new EnumMap<>(DiskIoPriority.class);
+    private final EnumMap<DiskIoPriority, LongAccumulator> maxWaitNanos = new EnumMap<>(DiskIoPriority.class);
+
+    /**
+     * @param maxConcurrent the maximum number of operations that may proceed
+     * at once.
+     * @param maxBackground the maximum number of background operations that
+     * may proceed at once.
+     */
+    public PriorityDiskIoScheduler(int maxConcurrent, int maxBackground) {
+        this(maxConcurrent, maxBackground, DEFAULT_FOREGROUND_PER_BACKGROUND);
+    }
+
+    /**
+     * @param maxConcurrent the maximum number of operations that may proceed
+     * at once.
+     * @param maxBackground the maximum number of background operations that
+     * may proceed at once.
+     * @param foregroundPerBackground the number of foreground operations that
+     * may start while a background operation waits, after which the background
+     * operation starts ahead of waiting foreground operations.
+     */
+    public PriorityDiskIoScheduler(int maxConcurrent, int maxBackground, int foregroundPerBackground) {
+        if (maxConcurrent < 1 || maxBackground < 1 || foregroundPerBackground < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1: " 
+                    + maxConcurrent + ", " + maxBackground + ", " + foregroundPerBackground);
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxBackground = Math.min(maxBackground, maxConcurrent);
+        this.foregroundPerBackground = foregroundPerBackground;
+        for (DiskIoPriority priority : DiskIoPriority.values()) {
+            acquireCounts.put(priority, new LongAdder());
+            waitNanos.put(priority, new LongAdder());
+            maxWaitNanos.put(priority, new LongAccumulator(Math::max, 0));
+        }
+    }
+
+    @Override
+    public void acquire(DiskIoPriority priority) {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (priority == DiskIoPriority.FOREGROUND) {
+                waitingForeground++;
+                try {
+                    while (active >= maxConcurrent || isBackgroundDue()) {
+                        foregroundReady.awaitUninterruptibly();
+                    }
+                } finally {
+                    waitingForeground--;
+                }
+                if (waitingBackground > 0) {
+                    foregroundSinceBackground++;
+                }
+            } else {
+                waitingBackground++;
+                try {
+                    while (active >= maxConcurrent || activeBackground >= maxBackground 
+                            || (waitingForeground > 0 && foregroundSinceBackground < foregroundPerBackground)) {
+                        backgroundReady.awaitUninterruptibly();
+                    }
+                } finally {
+                    waitingBackground--;
+                }
+                activeBackground++;
+                foregroundSinceBackground = 0;
+            }
+            active++;
+            signalWaiters();
+        } finally {
+            lock.unlock();
+        }
+        long waited = System.nanoTime() - start;
+        acquireCounts.get(priority).increment();
+        waitNanos.get(priority).add(waited);
+        maxWaitNanos.get(priority).accumulate(waited);
+    }
+
+    @Override
+    public void release(DiskIoPriority priority) {
+        lock.lock();
+        try {
+            active--;
+            if (priority == DiskIoPriority.BACKGROUND) {
+                activeBackground--;
+            }
+            signalWaiters();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if a waiting background operation has waited for its share
+     * of foreground operations, and may start. Must be called while holding
+     * the lock.
+     */
+    private boolean isBackgroundDue() {
+        return waitingBackground > 0 && activeBackground < maxBackground 
+                && foregroundSinceBackground >= foregroundPerBackground;
+    }
+
+    /**
+     * Wake the waiters that may be able to proceed. Must be called while
+     * holding the lock.
+     */
+    private void signalWaiters() {
+        if (active >= maxConcurrent) {
+            return;
+        }
+        if (isBackgroundDue()) {
+            backgroundReady.signal();
+        } else if (waitingForeground > 0) {
+            foregroundReady.signal();
+        } else if (waitingBackground > 0 && activeBackground < maxBackground) {
+            backgroundReady.signal();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return waitingForeground + waitingBackground;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getAcquireCount(DiskIoPriority priority) {
+        return acquireCounts.get(priority).sum();
+    }
+
+    @Override
+    public long getTotalWaitNanos(DiskIoPriority priority) {
+        return waitNanos.get(priority).sum();
+    }
+
+    @Override
+    public long getMaxWaitNanos(DiskIoPriority priority) {
+        return maxWaitNanos.get(priority).get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PriorityDiskIoScheduler{maxConcurrent=");
+        sb.append(maxConcurrent).append(", maxBackground=").append(maxBackground)
+                .append(", foregroundPerBackground=").append(foregroundPerBackground)
+                .append(", queueDepth=").append(getQueueDepth());
+        for (DiskIoPriority priority : DiskIoPriority.values()) {
+            long count = getAcquireCount(priority);
+            sb.append(", ").append(priority).append(": count=").append(count)
+                    .append(" avgWaitMs=").append(count == 0 ? 0 : getTotalWaitNanos(priority) / count / 1000000.0)
+                    .append(" maxWaitMs=").append(getMaxWaitNanos(priority) / 1000000.0);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -1,22 +1,92 @@
 package gov.vha.isaac.ochre.api.memory;
 
-import java.util.Optional;
-import java.util.concurrent.ConcurrentSkipListSet;
+import gov.vha.isaac.ochre.api.util.NamedThreadFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
+ * Writes memory managed references to disk once they have held an unwritten
+ * update for {@link #WRITE_INTERVAL_IN_MS}. References schedule themselves
+ * when they are first updated after a write (see
+ * {@link MemoryManagedReference#elementUpdated()}), and are written in order
+ * of that first update. The writer thread blocks until the oldest scheduled
+ * reference is due, then writes it along with any other references that are
+ * due, using a small pool of writer threads.
+ *
+ * A reference whose write fails stays unwritten, and is scheduled again.
+ *
  * Created by kec on 4/10/15.
  */
 public class WriteToDiskCache {
 
+    private static final Logger LOG = LogManager.getLogger();
+
     private static final int WRITE_INTERVAL_IN_MS = 15000;
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final int WRITER_THREADS = 2;
 
     static final Thread writerThread;
 
-    static ConcurrentSkipListSet<MemoryManagedReference> cacheSet = new ConcurrentSkipListSet<>();
+    private static final DelayQueue<ScheduledWrite> scheduledWrites = new DelayQueue<>();
+    /**
+     * Scheduled writes that have not completed, whether waiting in the queue,
+     * or taken by the writer thread.
+     */
+    private static final Set<ScheduledWrite> outstandingWrites = ConcurrentHashMap.newKeySet();
+    /**
+     * References whose last write failed.
+     */
+    private static final Set<MemoryManagedReference> failedReferences = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService writerPool = Executors.newFixedThreadPool(WRITER_THREADS,
+            new NamedThreadFactory("WriteToDiskCache writer", true));
+
+    private static final LongAdder referencesWritten = new LongAdder();
+    private static final LongAdder batchesWritten = new LongAdder();
+    private static final LongAdder totalWriteLatencyMs = new LongAdder();
+    private static final LongAccumulator maxWriteLatencyMs = new LongAccumulator(Math::max, 0);
 
     static {
         writerThread = new Thread(new WriteToDiskRunnable(), "WriteToDiskCache thread");
         writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private static class ScheduledWrite implements Delayed {
+
+        final MemoryManagedReference reference;
+        final long firstUpdateTime;
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+        ScheduledWrite(MemoryManagedReference reference, long firstUpdateTime) {
+            this.reference = reference;
+            this.firstUpdateTime = firstUpdateTime;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(firstUpdateTime + WRITE_INTERVAL_IN_MS - System.currentTimeMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(firstUpdateTime, ((ScheduledWrite) o).firstUpdateTime);
+        }
     }
 
     public static class WriteToDiskRunnable implements Runnable {
@@ -24,55 +94,126 @@ public class WriteToDiskCache {
         @Override
         public void run() {
             while (true) {
-                Optional<MemoryManagedReference> optionalReference = cacheSet.stream().
-                        filter((memoryManagedReference) -> {
-                            if (memoryManagedReference.get() == null) {
-                                cacheSet.remove(memoryManagedReference);
-                                return false;
-                            }
-
-                            return memoryManagedReference.hasUnwrittenUpdate();
-                        }).max((o1, o2) -> {
-                            if (o1.msSinceLastUnwrittenUpdate() > o2.msSinceLastUnwrittenUpdate()) {
-                                return 1;
-                            }
-                            if (o1.msSinceLastUnwrittenUpdate() < o2.msSinceLastUnwrittenUpdate()) {
-                                return -1;
-                            }
-                            return 0;
-                        });
-                boolean written = false;
-                if (optionalReference.isPresent()) {
-                    written = true;
-                    MemoryManagedReference ref = (MemoryManagedReference) optionalReference.get();
-                    if (ref.msSinceLastUnwrittenUpdate() > WRITE_INTERVAL_IN_MS) {
-                        ref.write();
-                    }
+                try {
+                    List<ScheduledWrite> batch = new ArrayList<>();
+                    batch.add(scheduledWrites.take());
+                    scheduledWrites.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    write(batch, DiskIoPriority.BACKGROUND);
+                } catch (InterruptedException e) {
+                    // continue work
+                } catch (RuntimeException e) {
+                    LOG.error("Unexpected error writing to disk", e);
                 }
-                if (!written) {
-                    try {
-                        writerThread.wait(WRITE_INTERVAL_IN_MS);
-                    } catch (InterruptedException e) {
-                        // continue work
-                    }
+            }
+        }
+    }
+
+    /**
+     * Schedule the reference to be written once its first unwritten update is
+     * {@link #WRITE_INTERVAL_IN_MS} old.
+     *
+     * @param reference a reference that has been updated since it was last
+     * written.
+     * @param firstUpdateTime the time of the first unwritten update.
+     */
+    static void scheduleWrite(MemoryManagedReference reference, long firstUpdateTime) {
+        ScheduledWrite scheduledWrite = new ScheduledWrite(reference, firstUpdateTime);
+        outstandingWrites.add(scheduledWrite);
+        scheduledWrites.add(scheduledWrite);
+    }
+
+    static void writeSucceeded(MemoryManagedReference reference) {
+        if (!failedReferences.isEmpty()) {
+            failedReferences.remove(reference);
+        }
+    }
+
+    static void writeFailed(MemoryManagedReference reference) {
+        failedReferences.add(reference);
+    }
+
+    private static void write(List<ScheduledWrite> batch, DiskIoPriority priority) {
+        List<Future<?>> futures = new ArrayList<>(batch.size());
+        for (ScheduledWrite scheduledWrite : batch) {
+            futures.add(writerPool.submit(() -> {
+                try {
+                    scheduledWrite.reference.write(priority);
+                    long latency = System.currentTimeMillis() - scheduledWrite.firstUpdateTime;
+                    totalWriteLatencyMs.add(latency);
+                    maxWriteLatencyMs.accumulate(latency);
+                    referencesWritten.increment();
+                } finally {
+                    outstandingWrites.remove(scheduledWrite);
+                    scheduledWrite.completion.complete(null);
                 }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                LOG.error("Error writing to disk", e.getCause());
             }
         }
+        batchesWritten.increment();
+    }
+
+    /**
+     * Write all references with unwritten updates, without waiting for the
+     * write interval to elapse, and wait for the writes already in progress.
+     *
+     * @return true if every write succeeded, and no reference is left
+     * unwritten by a failed write.
+     */
+    public static boolean flushAndClearCache() {
+        List<ScheduledWrite> inProgress = new ArrayList<>(outstandingWrites);
+        List<ScheduledWrite> batch = new ArrayList<>();
+        Iterator<ScheduledWrite> iterator = scheduledWrites.iterator();
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+            iterator.remove();
+        }
+        write(batch, DiskIoPriority.FOREGROUND);
+        // Writes taken by the writer thread before the flush.
+        inProgress.forEach((scheduledWrite) -> scheduledWrite.completion.join());
+        return failedReferences.isEmpty();
+    }
+
+    /**
+     * @return the number of references left unwritten by a failed write.
+     */
+    public static int getFailedCount() {
+        return failedReferences.size();
+    }
+
+    /**
+     * @return the number of references waiting to be written.
+     */
+    public static int getBacklog() {
+        return scheduledWrites.size();
+    }
+
+    public static long getReferencesWritten() {
+        return referencesWritten.sum();
+    }
+
+    public static long getBatchesWritten() {
+        return batchesWritten.sum();
     }
 
-    public static void addToCache(MemoryManagedReference newRef) {
-        cacheSet.add(newRef);
+    /**
+     * @return the mean time, in milliseconds, from the first unwritten update
+     * of a reference to its write.
+     */
+    public static double getMeanWriteLatencyMs() {
+        long count = referencesWritten.sum();
+        return count == 0 ? 0 : (double) totalWriteLatencyMs.sum() / count;
     }
 
-    public static void flushAndClearCache() {
-        cacheSet.stream().
-                forEach((memoryManagedReference) -> {
-                    
-                    cacheSet.remove(memoryManagedReference);
-                    while (memoryManagedReference.hasUnwrittenUpdate()) {
-                        memoryManagedReference.clear();
-                        memoryManagedReference.write();
-                    }
-                });
+    public static long getMaxWriteLatencyMs() {
+        return maxWriteLatencyMs.get();
     }
 }
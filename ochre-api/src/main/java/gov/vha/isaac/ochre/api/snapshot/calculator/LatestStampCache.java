@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY_STATE_SET KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.snapshot.calculator;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of the latest stamp sequences of chronologies for one
+ * {@link RelativePositionCalculator}, keyed by chronology nid and write
+ * sequence, so a chronology that is written again misses the cache.
+ *
+ * The cache is direct mapped: each nid has one slot, and a new entry
+ * replaces whatever entry held the slot. Entries are immutable, so readers
+ * and writers never lock.
+ *
+ * @author kec
+ */
+final class LatestStampCache {
+
+    private static final int SLOT_BITS = 14;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+
+    private static final class Entry {
+
+        final int nid;
+        final int writeSequence;
+        final int[] latestStampSequences;
+
+        Entry(int nid, int writeSequence, int[] latestStampSequences) {
+            this.nid = nid;
+            this.writeSequence = writeSequence;
+            this.latestStampSequences = latestStampSequences;
+        }
+    }
+
+    private volatile AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(1 << SLOT_BITS);
+
+    private static int slot(int nid) {
+        int hash = nid * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & SLOT_MASK;
+    }
+
+    /**
+     * @param nid
+     * @param writeSequence
+     * @param computer computes the latest stamp sequences on a miss.
+     * @return the latest stamp sequences. The array must not be modified.
+     */
+    int[] get(int nid, int writeSequence, Supplier<int[]> computer) {
+        // An entry computed across a clear goes to the discarded slots.
+        AtomicReferenceArray<Entry> current = slots;
+        int slot = slot(nid);
+        Entry entry = current.get(slot);
+        if (entry != null && entry.nid == nid && entry.writeSequence == writeSequence) {
+            return entry.latestStampSequences;
+        }
+        int[] latestStampSequences = computer.get();
+        current.set(slot, new Entry(nid, writeSequence, latestStampSequences));
+        return latestStampSequences;
+    }
+
+    void invalidate(int nid) {
+        AtomicReferenceArray<Entry> current = slots;
+        int slot = slot(nid);
+        Entry entry = current.get(slot);
+        if (entry != null && entry.nid == nid) {
+            current.compareAndSet(slot, entry, null);
+        }
+    }
+
+    void clear() {
+        slots = new AtomicReferenceArray<>(1 << SLOT_BITS);
+    }
+}
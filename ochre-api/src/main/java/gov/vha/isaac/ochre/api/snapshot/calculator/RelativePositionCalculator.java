@@ -30,6 +30,7 @@ import gov.vha.isaac.ochre.api.collections.StampSequenceSet;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
@@ -37,6 +38,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 import javax.inject.Singleton;
 import org.apache.logging.log4j.LogManager;
@@ -82,6 +84,7 @@ public class RelativePositionCalculator implements OchreCache {
 	 * computer.
 	 */
 	OpenIntObjectHashMap<Segment> pathSequenceSegmentMap;
+	private final LatestStampCache latestStampCache = new LatestStampCache();
 
 	public RelativePositionCalculator() {
 		// No arg constructor for HK2 managed instance
@@ -237,6 +240,16 @@ public class RelativePositionCalculator implements OchreCache {
 		return RelativePosition.CONTRADICTION;
 	}
 
+	/**
+	 * @param stampSequence1
+	 * @param stampSequence2
+	 * @return the position of the first stamp relative to the second, using
+	 * the stamp precedence of the coordinate of this calculator.
+	 */
+	public RelativePosition fastRelativePosition(int stampSequence1, int stampSequence2) {
+		return fastRelativePosition(stampSequence1, stampSequence2, coordinate.getStampPrecedence());
+	}
+
 	public RelativePosition fastRelativePosition(int stampSequence1, int stampSequence2, StampPrecedence precedencePolicy) {
 		long ss1Time = Get.stampService().getTimeForStamp(stampSequence1);
 		int ss1ModuleSequence = Get.stampService().getModuleSequenceForStamp(stampSequence1);
@@ -295,6 +308,13 @@ public class RelativePositionCalculator implements OchreCache {
 		return coordinate.getStampPosition();
 	}
 
+	/**
+	 * @return the states a latest stamp must have to be kept by the coordinate.
+	 */
+	public EnumSet<State> getAllowedStates() {
+		return coordinate.getAllowedStates();
+	}
+
 	public boolean onRoute(StampedVersion v) {
 		Segment seg = (Segment) pathSequenceSegmentMap.get(v.getPathSequence());
 		if (seg != null) {
@@ -328,6 +348,129 @@ public class RelativePositionCalculator implements OchreCache {
 		return fastRelativePosition(v1, v2, StampPrecedence.PATH);
 	}
 
+	/**
+	 * Memoized form of {@link #getLatestStampSequencesAsArray(IntStream)} for
+	 * the versions of a chronology as written to the store. Entries are keyed
+	 * by nid and write sequence, and are cleared on commit, when the times of
+	 * uncommitted stamps change.
+	 *
+	 * @param nid the nid of the chronology.
+	 * @param writeSequence the write sequence of the chronology.
+	 * @param stampSequences supplies the stamps of the chronology's versions
+	 * on a cache miss.
+	 * @return the latest stamp sequences, which must not be modified.
+	 */
+	public int[] getLatestStampSequences(int nid, int writeSequence, Supplier<IntStream> stampSequences) {
+		return latestStampCache.get(nid, writeSequence,
+				  () -> getLatestStampSequences(stampSequences.get().toArray()));
+	}
+
+	/**
+	 * Batch form of {@link #getLatestStampSequencesAsArray(IntStream)}. The
+	 * time, module, and path of each stamp are resolved once, in one call to
+	 * the stamp service, and the stamps on route are then compared with each
+	 * other from those arrays. A stamp is latest if no other stamp on route
+	 * is after it; of equal stamps, the lowest sequence is kept.
+	 *
+	 * @param stampSequences the stamps of the versions of a chronology. The
+	 * array is not modified.
+	 * @return the sorted latest stamp sequences with an allowed state.
+	 */
+	public int[] getLatestStampSequences(int[] stampSequences) {
+		int[] stamps = stampSequences.clone();
+		Arrays.sort(stamps);
+		int count = 0;
+		for (int i = 0; i < stamps.length; i++) {
+			if (i == 0 || stamps[i] != stamps[i - 1]) {
+				stamps[count++] = stamps[i];
+			}
+		}
+		long[] times = new long[count];
+		int[] modules = new int[count];
+		int[] paths = new int[count];
+		Get.stampService().getStampPositions(stamps, count, times, modules, paths);
+
+		// Keep the stamps on route, with their segments.
+		Segment[] segments = new Segment[count];
+		int onRouteCount = 0;
+		for (int i = 0; i < count; i++) {
+			Segment segment = (Segment) pathSequenceSegmentMap.get(paths[i]);
+			if (segment != null && segment.containsPosition(paths[i], modules[i], times[i])) {
+				stamps[onRouteCount] = stamps[i];
+				times[onRouteCount] = times[i];
+				segments[onRouteCount] = segment;
+				onRouteCount++;
+			}
+		}
+
+		int[] latest = new int[onRouteCount];
+		int latestCount = 0;
+		StampPrecedence precedence = coordinate.getStampPrecedence();
+		EnumSet<State> allowedStates = coordinate.getAllowedStates();
+		for (int i = 0; i < onRouteCount; i++) {
+			boolean isLatest = true;
+			for (int j = 0; j < onRouteCount && isLatest; j++) {
+				if (j != i) {
+					switch (relativePosition(times[j], segments[j], times[i], segments[i], precedence)) {
+						case AFTER:
+							isLatest = false;
+							break;
+						case EQUAL:
+							isLatest = j > i;
+							break;
+						default:
+							break;
+					}
+				}
+			}
+			if (isLatest && allowedStates.contains(Get.stampService().getStatusForStamp(stamps[i]))) {
+				latest[latestCount++] = stamps[i];
+			}
+		}
+		return latestCount == latest.length ? latest : Arrays.copyOf(latest, latestCount);
+	}
+
+	/**
+	 * {@link #fastRelativePosition(int, int, StampPrecedence)} for two stamps
+	 * already known to be on route.
+	 */
+	private static RelativePosition relativePosition(long time1, Segment segment1, long time2, Segment segment2,
+			  StampPrecedence precedencePolicy) {
+		if (segment1 == segment2 || precedencePolicy == StampPrecedence.TIME) {
+			if (time1 < time2) {
+				return RelativePosition.BEFORE;
+			}
+			if (time1 > time2) {
+				return RelativePosition.AFTER;
+			}
+			return RelativePosition.EQUAL;
+		}
+		if (segment1.precedingSegments.contains(segment2.segmentSequence)) {
+			return RelativePosition.BEFORE;
+		}
+		if (segment2.precedingSegments.contains(segment1.segmentSequence)) {
+			return RelativePosition.AFTER;
+		}
+		return RelativePosition.CONTRADICTION;
+	}
+
+	/**
+	 * Remove any latest stamp sequences cached for a chronology, in all
+	 * calculators.
+	 *
+	 * @param nid the nid of the chronology.
+	 */
+	public static void invalidateLatestStampSequences(int nid) {
+		CALCULATOR_CACHE.values().forEach((calculator) -> calculator.latestStampCache.invalidate(nid));
+	}
+
+	/**
+	 * Remove all latest stamp sequences cached by all calculators.
+	 */
+	public static void clearLatestStampSequences() {
+		CALCULATOR_CACHE.values().forEach((calculator) -> calculator.latestStampCache.clear());
+	}
+
 	public int[] getLatestStampSequencesAsArray(IntStream stampSequenceStream) {
 		return getLatestStampSequencesAsSet(stampSequenceStream).asArray();
 	}
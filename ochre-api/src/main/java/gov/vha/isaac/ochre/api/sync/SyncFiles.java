@@ -140,6 +140,13 @@ public interface SyncFiles
 	 * @throws IllegalArgumentException - if the passed parameters are invalid
 	 */
 	public void addUntrackedFiles() throws IllegalArgumentException, IOException;
+
+	/**
+	 * Equivalent of calling {@link #removeFiles(String...)} for each managed file which has been deleted from the localFolder.
+	 * @throws IOException - Thrown if an error occurs accessing local or remote resources
+	 * @throws IllegalArgumentException - if the passed parameters are invalid
+	 */
+	public void removeMissingFiles() throws IllegalArgumentException, IOException;
 	
 	/**
 	 * Mark the specified files as files that should be removed from the server.  This is a local operation only - does not push to the server.
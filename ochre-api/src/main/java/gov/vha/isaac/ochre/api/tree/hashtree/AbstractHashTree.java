@@ -55,6 +55,19 @@ public abstract class AbstractHashTree implements Tree {
         parentSequence_ChildSequenceArray_Map = new OpenIntObjectHashMap<>(initialSize);
     }
 
+    /**
+     * Copy the maps of another tree. The parent and child arrays are shared
+     * with the other tree, so they must be replaced, never modified.
+     *
+     * @param another the tree to copy.
+     */
+    @SuppressWarnings("unchecked")
+    protected AbstractHashTree(AbstractHashTree another) {
+        childSequence_ParentSequenceArray_Map = (OpenIntObjectHashMap<int[]>) another.childSequence_ParentSequenceArray_Map.clone();
+        parentSequence_ChildSequenceArray_Map = (OpenIntObjectHashMap<int[]>) another.parentSequence_ChildSequenceArray_Map.clone();
+        maxSequence = another.maxSequence;
+    }
+
     @Override
     public final TreeNodeVisitData breadthFirstProcess(int startSequence, ObjIntConsumer<TreeNodeVisitData> consumer) {
         TreeNodeVisitData nodeVisitData = new TreeNodeVisitData(maxSequence);
@@ -33,6 +33,23 @@ public class HashTreeWithBitSets extends AbstractHashTree {
         conceptSequences = new ConceptSequenceSet();
     }
 
+    /**
+     * A copy of another tree, that may be changed with
+     * {@link #replaceParents(int, int[])} before it is published to readers,
+     * without changing the other tree.
+     *
+     * @param another the tree to copy.
+     */
+    public HashTreeWithBitSets(HashTreeWithBitSets another) {
+        super(another);
+        conceptSequencesWithParents = new ConceptSequenceSet();
+        conceptSequencesWithParents.or(another.conceptSequencesWithParents);
+        conceptSequencesWithChildren = new ConceptSequenceSet();
+        conceptSequencesWithChildren.or(another.conceptSequencesWithChildren);
+        conceptSequences = new ConceptSequenceSet();
+        conceptSequences.or(another.conceptSequences);
+    }
+
 
     public void addChildren(int parentSequence, int[] childSequenceArray) {
         maxSequence = Math.max(parentSequence, maxSequence);
@@ -76,6 +93,62 @@ public class HashTreeWithBitSets extends AbstractHashTree {
         }
     }
 
+    /**
+     * Replace the parents of a concept, and update the children of the
+     * parents that were removed or added. Arrays in the maps are replaced,
+     * never modified, so that copies of this tree are not changed.
+     *
+     * @param childSequence the concept to update.
+     * @param parentSequenceArray the new parents of the concept, without
+     * duplicates.
+     */
+    public void replaceParents(int childSequence, int[] parentSequenceArray) {
+        int[] oldParentSequences = getParentSequences(childSequence);
+        for (int oldParentSequence : oldParentSequences) {
+            if (IntStream.of(parentSequenceArray).noneMatch((sequence) -> sequence == oldParentSequence)) {
+                int[] remainingChildren = IntStream.of(getChildrenSequences(oldParentSequence))
+                        .filter((sequence) -> sequence != childSequence).toArray();
+                if (remainingChildren.length == 0) {
+                    parentSequence_ChildSequenceArray_Map.removeKey(oldParentSequence);
+                    conceptSequencesWithChildren.remove(oldParentSequence);
+                } else {
+                    parentSequence_ChildSequenceArray_Map.put(oldParentSequence, remainingChildren);
+                }
+                updateNodeMembership(oldParentSequence);
+            }
+        }
+        for (int parentSequence : parentSequenceArray) {
+            if (IntStream.of(oldParentSequences).noneMatch((sequence) -> sequence == parentSequence)) {
+                int[] children = getChildrenSequences(parentSequence);
+                int[] newChildren = Arrays.copyOf(children, children.length + 1);
+                newChildren[children.length] = childSequence;
+                parentSequence_ChildSequenceArray_Map.put(parentSequence, newChildren);
+                conceptSequencesWithChildren.add(parentSequence);
+                conceptSequences.add(parentSequence);
+                maxSequence = Math.max(parentSequence, maxSequence);
+            }
+        }
+        if (parentSequenceArray.length == 0) {
+            childSequence_ParentSequenceArray_Map.removeKey(childSequence);
+            conceptSequencesWithParents.remove(childSequence);
+        } else {
+            childSequence_ParentSequenceArray_Map.put(childSequence, parentSequenceArray);
+            conceptSequencesWithParents.add(childSequence);
+            maxSequence = Math.max(childSequence, maxSequence);
+        }
+        updateNodeMembership(childSequence);
+    }
+
+    /**
+     * A concept is a node of the tree while it has a parent or a child.
+     */
+    private void updateNodeMembership(int sequence) {
+        if (conceptSequencesWithParents.contains(sequence) || conceptSequencesWithChildren.contains(sequence)) {
+            conceptSequences.add(sequence);
+        } else {
+            conceptSequences.remove(sequence);
+        }
+    }
 
     @Override
     public int[] getRootSequences() {
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.collections;
+
+import java.util.stream.IntStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author kec
+ */
+public class ConcurrentBitmapIntSetTest {
+
+    @Test
+    public void concurrentAddAndRemove() {
+        ConcurrentBitmapIntSet set = new ConcurrentBitmapIntSet();
+        IntStream.range(0, 1000000).parallel().forEach((i) -> set.add(i));
+        Assert.assertEquals(1000000, set.size());
+        IntStream.range(0, 1000000).parallel().filter((i) -> i % 2 == 0).forEach((i) -> set.remove(i));
+        Assert.assertEquals(500000, set.size());
+        Assert.assertTrue(set.contains(999999));
+        Assert.assertFalse(set.contains(999998));
+        Assert.assertEquals(1, set.findFirst().getAsInt());
+        Assert.assertEquals(500000, set.parallelStream().count());
+        set.clear();
+        Assert.assertTrue(set.isEmpty());
+        Assert.assertEquals(0, set.asArray().length);
+    }
+
+    @Test
+    public void snapshotIsInRoaringOrder() {
+        ConcurrentBitmapIntSet set = new ConcurrentBitmapIntSet(-1, 70000, 5, Integer.MIN_VALUE, 5);
+        Assert.assertEquals(4, set.size());
+        Assert.assertArrayEquals(new int[]{5, 70000, Integer.MIN_VALUE, -1}, set.asArray());
+        Assert.assertEquals(-1, set.getReverseIntIterator().nextInt());
+    }
+
+    @Test
+    public void setOperations() {
+        ConcurrentBitmapIntSet set = new ConcurrentBitmapIntSet(1, 2, 3);
+        set.or(new RoaringIntSet(3, 4));
+        Assert.assertArrayEquals(new int[]{1, 2, 3, 4}, set.asArray());
+        set.andNot(new RoaringIntSet(1));
+        Assert.assertArrayEquals(new int[]{2, 3, 4}, set.asArray());
+        set.and(new RoaringIntSet(2, 3, 9));
+        Assert.assertArrayEquals(new int[]{2, 3}, set.asArray());
+        set.xor(new RoaringIntSet(3, 7));
+        Assert.assertArrayEquals(new int[]{2, 7}, set.asArray());
+    }
+
+    @Test
+    public void concurrentSequenceSetsSupportSetOperations() {
+        ConceptSequenceSet set = ConceptSequenceSet.concurrent();
+        set.or(ConceptSequenceSet.of(1, 2, 3));
+        set.andNot(ConceptSequenceSet.of(2));
+        Assert.assertArrayEquals(new int[]{1, 3}, set.asArray());
+    }
+}
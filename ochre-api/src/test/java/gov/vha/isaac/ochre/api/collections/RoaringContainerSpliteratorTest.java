@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.collections;
+
+import java.util.Spliterator;
+import java.util.stream.IntStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author kec
+ */
+public class RoaringContainerSpliteratorTest {
+
+    @Test
+    public void splitsOnContainerBoundaries() {
+        // Four containers of 1000 members each.
+        int[] members = IntStream.range(0, 4).flatMap((key) -> IntStream.range(key << 16, (key << 16) + 1000)).toArray();
+        Spliterator.OfInt suffix = new RoaringContainerSpliterator(members);
+        Spliterator.OfInt prefix = suffix.trySplit();
+        Assert.assertNotNull(prefix);
+        Assert.assertEquals(2000, prefix.estimateSize());
+        Assert.assertEquals(2000, suffix.estimateSize());
+        suffix.tryAdvance((int member) -> Assert.assertEquals(2 << 16, member));
+        Assert.assertEquals(1999, suffix.estimateSize());
+    }
+
+    @Test
+    public void splitsOneContainerAtTheMiddle() {
+        int[] members = IntStream.range(0, 1000).toArray();
+        Spliterator.OfInt suffix = new RoaringContainerSpliterator(members);
+        Spliterator.OfInt prefix = suffix.trySplit();
+        Assert.assertEquals(500, prefix.estimateSize());
+        Assert.assertEquals(500, suffix.estimateSize());
+        Assert.assertTrue(suffix.hasCharacteristics(Spliterator.SUBSIZED));
+    }
+
+    @Test
+    public void parallelStreamVisitsEachMemberOnce() {
+        ConceptSequenceSet set = ConceptSequenceSet.of(IntStream.range(0, 500000).filter((i) -> i % 3 != 0));
+        Assert.assertEquals(set.size(), set.parallelStream().count());
+        Assert.assertEquals(set.stream().asLongStream().sum(), set.parallelStream().asLongStream().sum());
+        Assert.assertArrayEquals(set.asArray(), set.parallelStream().toArray());
+    }
+}
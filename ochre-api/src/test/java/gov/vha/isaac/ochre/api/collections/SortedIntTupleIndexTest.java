@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.collections;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author kec
+ */
+public class SortedIntTupleIndexTest {
+
+    @Test
+    public void prefixQueriesSpanRuns() {
+        SortedIntTupleIndex index = new SortedIntTupleIndex(3);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(index.add(Integer.MIN_VALUE + (i % 100), i % 7, i));
+        }
+        Assert.assertFalse(index.add(Integer.MIN_VALUE, 0, 0));
+        Assert.assertEquals(10000, index.size());
+
+        AtomicInteger count = new AtomicInteger();
+        index.forEachWithPrefix(Integer.MIN_VALUE + 5, (int[] tuples, int offset) -> {
+            Assert.assertEquals(Integer.MIN_VALUE + 5, tuples[offset]);
+            count.incrementAndGet();
+        });
+        Assert.assertEquals(100, count.get());
+
+        count.set(0);
+        index.forEachWithPrefix(Integer.MIN_VALUE + 5, 5, (int[] tuples, int offset) -> count.incrementAndGet());
+        Assert.assertEquals(15, count.get());
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        SortedIntTupleIndex index = new SortedIntTupleIndex(2);
+        for (int i = 5000; i > 0; i--) {
+            index.add(i % 10, i);
+        }
+        File indexFile = File.createTempFile("sorted-int-tuple-index", ".keys");
+        indexFile.deleteOnExit();
+        index.write(indexFile);
+
+        SortedIntTupleIndex readIndex = new SortedIntTupleIndex(2);
+        readIndex.read(indexFile);
+        Assert.assertEquals(5000, readIndex.size());
+        Assert.assertTrue(readIndex.contains(3, 4993));
+        Assert.assertFalse(readIndex.contains(3, 4994));
+    }
+
+    @Test
+    public void procedureMayAdd() throws Exception {
+        SortedIntTupleIndex index = new SortedIntTupleIndex(2);
+        for (int i = 0; i < 1500; i++) {
+            index.add(1, i);
+        }
+        // The last 476 tuples are still in the delta buffer.
+        index.forEachWithPrefix(1, (int[] tuples, int offset) -> index.add(2, tuples[offset + 1]));
+        Assert.assertEquals(3000, index.size());
+
+        File indexFile = File.createTempFile("sorted-int-tuple-index", ".keys");
+        indexFile.deleteOnExit();
+        index.write(indexFile);
+        SortedIntTupleIndex readIndex = new SortedIntTupleIndex(2);
+        readIndex.read(indexFile);
+        Assert.assertEquals(3000, readIndex.size());
+        Assert.assertTrue(readIndex.contains(2, 1499));
+    }
+}
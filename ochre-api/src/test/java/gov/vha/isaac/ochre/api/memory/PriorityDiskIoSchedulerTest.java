@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.api.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author kec
+ */
+public class PriorityDiskIoSchedulerTest {
+
+    @Test
+    public void concurrentForegroundAcquires() throws Exception {
+        PriorityDiskIoScheduler scheduler = new PriorityDiskIoScheduler(2, 1);
+        scheduler.acquire(DiskIoPriority.FOREGROUND);
+        scheduler.acquire(DiskIoPriority.FOREGROUND);
+        Assert.assertEquals(2, scheduler.getAcquireCount(DiskIoPriority.FOREGROUND));
+        scheduler.release(DiskIoPriority.FOREGROUND);
+        scheduler.release(DiskIoPriority.FOREGROUND);
+        Assert.assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void backgroundWaitsForForeground() throws Exception {
+        PriorityDiskIoScheduler scheduler = new PriorityDiskIoScheduler(1, 1);
+        scheduler.acquire(DiskIoPriority.FOREGROUND);
+
+        AtomicBoolean backgroundRan = new AtomicBoolean();
+        CountDownLatch backgroundDone = new CountDownLatch(1);
+        Thread background = new Thread(() -> {
+            scheduler.acquire(DiskIoPriority.BACKGROUND);
+            backgroundRan.set(true);
+            scheduler.release(DiskIoPriority.BACKGROUND);
+            backgroundDone.countDown();
+        });
+        background.start();
+
+        AtomicBoolean backgroundRanFirst = new AtomicBoolean();
+        CountDownLatch foregroundDone = new CountDownLatch(1);
+        Thread foreground = new Thread(() -> {
+            scheduler.acquire(DiskIoPriority.FOREGROUND);
+            backgroundRanFirst.set(backgroundRan.get());
+            scheduler.release(DiskIoPriority.FOREGROUND);
+            foregroundDone.countDown();
+        });
+        while (scheduler.getQueueDepth() < 1) {
+            Thread.sleep(1);
+        }
+        foreground.start();
+        while (scheduler.getQueueDepth() < 2) {
+            Thread.sleep(1);
+        }
+
+        scheduler.release(DiskIoPriority.FOREGROUND);
+        Assert.assertTrue(foregroundDone.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(backgroundDone.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(backgroundRanFirst.get());
+        Assert.assertTrue(backgroundRan.get());
+        Assert.assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void backgroundGetsShareUnderForegroundLoad() throws Exception {
+        PriorityDiskIoScheduler scheduler = new PriorityDiskIoScheduler(1, 1, 2);
+        scheduler.acquire(DiskIoPriority.FOREGROUND);
+
+        List<DiskIoPriority> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        DiskIoPriority[] priorities = {DiskIoPriority.BACKGROUND, DiskIoPriority.FOREGROUND, 
+            DiskIoPriority.FOREGROUND, DiskIoPriority.FOREGROUND};
+        for (DiskIoPriority priority : priorities) {
+            Thread thread = new Thread(() -> {
+                scheduler.acquire(priority);
+                order.add(priority);
+                scheduler.release(priority);
+            });
+            threads.add(thread);
+            thread.start();
+            while (scheduler.getQueueDepth() < threads.size()) {
+                Thread.sleep(1);
+            }
+        }
+
+        // Each foreground release finds foreground operations still waiting.
+        scheduler.release(DiskIoPriority.FOREGROUND);
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        Assert.assertEquals(4, order.size());
+        Assert.assertEquals(DiskIoPriority.FOREGROUND, order.get(0));
+        Assert.assertEquals(DiskIoPriority.FOREGROUND, order.get(1));
+        Assert.assertEquals(DiskIoPriority.BACKGROUND, order.get(2));
+        Assert.assertEquals(DiskIoPriority.FOREGROUND, order.get(3));
+        Assert.assertEquals(0, scheduler.getQueueDepth());
+    }
+}
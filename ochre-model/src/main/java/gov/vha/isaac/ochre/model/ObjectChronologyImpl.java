@@ -762,12 +762,29 @@ public abstract class ObjectChronologyImpl<V extends ObjectVersionImpl>
         return results;
     }
 
-    private List<V> getVersionsForStamps(StampSequenceSet stampSequences) {
-        List<V> versions = new ArrayList<>(stampSequences.size());
-        stampSequences.stream().forEach((stampSequence) -> versions.add(getVersionForStamp(stampSequence).get()));
+    private List<V> getVersionsForStamps(int[] stampSequences) {
+        List<V> versions = new ArrayList<>(stampSequences.length);
+        for (int stampSequence : stampSequences) {
+            versions.add(getVersionForStamp(stampSequence).get());
+        }
         return versions;
     }
 
+    /**
+     * The latest stamps of a chronology with no unwritten versions are
+     * memoized by the calculator, keyed by nid and write sequence.
+     *
+     * @param calculator
+     * @return the latest stamp sequences of this chronology for the
+     * calculator. The array must not be modified.
+     */
+    public int[] getLatestStampSequences(RelativePositionCalculator calculator) {
+        if (writeSequence != Integer.MIN_VALUE && (unwrittenData == null || unwrittenData.isEmpty())) {
+            return calculator.getLatestStampSequences(nid, writeSequence, this::getVersionStampSequences);
+        }
+        return calculator.getLatestStampSequences(getVersionStampSequences().toArray());
+    }
+
     @Override
     public Optional<LatestVersion<V>> getLatestVersion(Class<V> type, StampCoordinate coordinate) {
         RelativePositionCalculator calc = RelativePositionCalculator.getCalculator(coordinate);
@@ -777,8 +794,8 @@ public abstract class ObjectChronologyImpl<V extends ObjectVersionImpl>
                 return calc.getLatestVersion(this);
             }
         }
-        StampSequenceSet latestStampSequences = calc.getLatestStampSequencesAsSet(this.getVersionStampSequences());
-        if (latestStampSequences.isEmpty()) {
+        int[] latestStampSequences = getLatestStampSequences(calc);
+        if (latestStampSequences.length == 0) {
             return Optional.empty();
         }
         return Optional.of(new LatestVersion<>((List<V>) getVersionsForStamps(latestStampSequences)));
@@ -787,11 +804,12 @@ public abstract class ObjectChronologyImpl<V extends ObjectVersionImpl>
     @Override
     public boolean isLatestVersionActive(StampCoordinate coordinate) {
         RelativePositionCalculator calc = RelativePositionCalculator.getCalculator(coordinate.makeAnalog(State.ACTIVE, State.INACTIVE, State.CANCELED, State.PRIMORDIAL));
-        StampSequenceSet latestStampSequences = calc.getLatestStampSequencesAsSet(this.getVersionStampSequences());
-        if (latestStampSequences.isEmpty()) {
-            return false;
+        for (int stampSequence : getLatestStampSequences(calc)) {
+            if (Get.stampService().getStatusForStamp(stampSequence) == State.ACTIVE) {
+                return true;
+            }
         }
-        return latestStampSequences.stream().anyMatch(stampSequence -> Get.stampService().getStatusForStamp(stampSequence) == State.ACTIVE);
+        return false;
     }
 
     @Override
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.model.logic;
+
+import gov.vha.isaac.ochre.api.DataSource;
+import gov.vha.isaac.ochre.api.logic.NodeSemantic;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.function.IntConsumer;
+
+/**
+ * A read only view of the internal graph data of a logic graph sememe, that
+ * reads node semantics, children, concepts, and literals in place, without
+ * creating a {@link LogicalExpressionOchreImpl} and its node objects.
+ *
+ * The graph data has one byte array per node, in node index order. Each
+ * array starts with the node semantic ordinal and the node index as a short.
+ * Connector and typed nodes follow with a child count short and the child
+ * node indexes as shorts; typed nodes then hold the type concept sequence,
+ * and feature nodes the operator ordinal. Concept nodes hold the concept
+ * sequence, and literal nodes the value, as written by a DataOutput.
+ *
+ * Nodes are identified by their node index, which is the same as the node
+ * index of the corresponding node of a {@code LogicalExpressionOchreImpl}
+ * made from the same data.
+ *
+ * @author kec
+ */
+public final class FlatLogicGraph {
+
+    private static final NodeSemantic[] NODE_SEMANTICS = NodeSemantic.values();
+    private static final ConcreteDomainOperators[] OPERATORS = ConcreteDomainOperators.values();
+
+    private static final int CHILD_COUNT_OFFSET = 3;
+    private static final int CHILDREN_OFFSET = 5;
+    private static final int VALUE_OFFSET = 3;
+
+    private final byte[][] graphData;
+    private int rootNodeIndex = -1;
+
+    /**
+     * @param graphData the internal graph data of a logic graph sememe.
+     * The data is not copied, and must not be modified.
+     */
+    public FlatLogicGraph(byte[][] graphData) {
+        this.graphData = graphData;
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return (short) (((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF));
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24)
+                | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    public int getNodeCount() {
+        return graphData.length;
+    }
+
+    /**
+     * @return the index of the definition root node.
+     */
+    public int getRootNodeIndex() {
+        if (rootNodeIndex < 0) {
+            for (int nodeIndex = 0; nodeIndex < graphData.length; nodeIndex++) {
+                if (getNodeSemantic(nodeIndex) == NodeSemantic.DEFINITION_ROOT) {
+                    rootNodeIndex = nodeIndex;
+                    break;
+                }
+            }
+            if (rootNodeIndex < 0) {
+                throw new IllegalStateException("No root node in graph of " + graphData.length + " nodes");
+            }
+        }
+        return rootNodeIndex;
+    }
+
+    public NodeSemantic getNodeSemantic(int nodeIndex) {
+        return NODE_SEMANTICS[graphData[nodeIndex][0]];
+    }
+
+    private static boolean hasChildren(NodeSemantic nodeSemantic) {
+        switch (nodeSemantic) {
+            case DEFINITION_ROOT:
+            case NECESSARY_SET:
+            case SUFFICIENT_SET:
+            case AND:
+            case OR:
+            case DISJOINT_WITH:
+            case ROLE_ALL:
+            case ROLE_SOME:
+            case FEATURE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param nodeIndex
+     * @return the number of children of the node, 0 for nodes that do not
+     * have children.
+     */
+    public int getChildCount(int nodeIndex) {
+        if (!hasChildren(getNodeSemantic(nodeIndex))) {
+            return 0;
+        }
+        return readShort(graphData[nodeIndex], CHILD_COUNT_OFFSET);
+    }
+
+    /**
+     * @param nodeIndex
+     * @param childPosition the position of the child, from 0 to the child
+     * count - 1.
+     * @return the node index of the child.
+     */
+    public int getChildIndex(int nodeIndex, int childPosition) {
+        return readShort(graphData[nodeIndex], CHILDREN_OFFSET + (childPosition * 2));
+    }
+
+    /**
+     * @param nodeIndex a role or feature node.
+     * @return the node index of the only child.
+     */
+    public int getOnlyChildIndex(int nodeIndex) {
+        if (getChildCount(nodeIndex) != 1) {
+            throw new IllegalStateException("Node " + nodeIndex + " must have exactly one child. Graph: " + this);
+        }
+        return getChildIndex(nodeIndex, 0);
+    }
+
+    public void forEachChild(int nodeIndex, IntConsumer childIndexConsumer) {
+        int childCount = getChildCount(nodeIndex);
+        for (int childPosition = 0; childPosition < childCount; childPosition++) {
+            childIndexConsumer.accept(getChildIndex(nodeIndex, childPosition));
+        }
+    }
+
+    /**
+     * Passes each relationship root to the consumer: each child of the
+     * connector nodes under the necessary and sufficient sets of the root.
+     *
+     * @param relationshipRootConsumer
+     */
+    public void forEachRelationshipRoot(IntConsumer relationshipRootConsumer) {
+        forEachChild(getRootNodeIndex(), (setIndex)
+                -> forEachChild(setIndex, (connectorIndex)
+                        -> forEachChild(connectorIndex, relationshipRootConsumer)));
+    }
+
+    private int getTypedValueOffset(int nodeIndex) {
+        return CHILDREN_OFFSET + (readShort(graphData[nodeIndex], CHILD_COUNT_OFFSET) * 2);
+    }
+
+    /**
+     * @param nodeIndex a concept node.
+     * @return the concept sequence of the node.
+     */
+    public int getConceptSequence(int nodeIndex) {
+        return readInt(graphData[nodeIndex], VALUE_OFFSET);
+    }
+
+    /**
+     * @param nodeIndex a role or feature node.
+     * @return the type concept sequence of the node.
+     */
+    public int getTypeConceptSequence(int nodeIndex) {
+        return readInt(graphData[nodeIndex], getTypedValueOffset(nodeIndex));
+    }
+
+    /**
+     * @param nodeIndex a feature node.
+     * @return the operator of the node.
+     */
+    public ConcreteDomainOperators getOperator(int nodeIndex) {
+        return OPERATORS[graphData[nodeIndex][getTypedValueOffset(nodeIndex) + 4]];
+    }
+
+    public boolean getBooleanLiteral(int nodeIndex) {
+        return graphData[nodeIndex][VALUE_OFFSET] != 0;
+    }
+
+    public float getFloatLiteral(int nodeIndex) {
+        return Float.intBitsToFloat(readInt(graphData[nodeIndex], VALUE_OFFSET));
+    }
+
+    public Instant getInstantLiteral(int nodeIndex) {
+        return Instant.ofEpochSecond(readLong(graphData[nodeIndex], VALUE_OFFSET));
+    }
+
+    public int getIntegerLiteral(int nodeIndex) {
+        return readInt(graphData[nodeIndex], VALUE_OFFSET);
+    }
+
+    public String getStringLiteral(int nodeIndex) {
+        byte[] bytes = graphData[nodeIndex];
+        try {
+            return new DataInputStream(new ByteArrayInputStream(bytes, VALUE_OFFSET, bytes.length - VALUE_OFFSET)).readUTF();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the graph as an expression, for messages.
+     */
+    @Override
+    public String toString() {
+        return new LogicalExpressionOchreImpl(graphData, DataSource.INTERNAL).toString();
+    }
+}
@@ -5,10 +5,11 @@
  */
 package gov.vha.isaac.ochre.model.waitfree;
 
+import gov.vha.isaac.ochre.api.memory.CacheStore;
+import gov.vha.isaac.ochre.api.memory.DiskIoPriority;
 import gov.vha.isaac.ochre.api.memory.DiskSemaphore;
 import gov.vha.isaac.ochre.api.memory.HoldInMemoryCache;
 import gov.vha.isaac.ochre.api.memory.MemoryManagedReference;
-import gov.vha.isaac.ochre.api.memory.WriteToDiskCache;
 import gov.vha.isaac.ochre.api.externalizable.ByteArrayDataBuffer;
 import gov.vha.isaac.ochre.model.ObjectChronologyImpl;
 import gov.vha.isaac.ochre.model.WaitFreeComparable;
@@ -16,7 +17,9 @@ import gov.vha.isaac.ochre.model.WaitFreeComparable;
 import java.io.*;
 import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.IntStream;
@@ -37,11 +40,24 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
     private static final Logger log = LogManager.getLogger();
     private static final int SEGMENT_SIZE = 1280;
     private static final int WRITE_SEQUENCES = 64;
+    /**
+     * Negative, so that it cannot be mistaken for the segment number that 
+     * begins a segment file written without a header. 
+     */
+    private static final int STREAM_FORMAT_MAGIC = 0xCA5E0002;
 
     private static final AtomicIntegerArray writeSequences = new AtomicIntegerArray(WRITE_SEQUENCES);
 
-    private static int getWriteSequence(int componentSequence) {
-        return writeSequences.incrementAndGet(componentSequence % WRITE_SEQUENCES);
+    /**
+     * @param componentSequence
+     * @param priorWriteSequence the write sequence of the data being replaced,
+     * which may have been written by an earlier run.
+     * @return a write sequence greater than the prior write sequence, so the
+     * write sequences of a component never repeat, even across runs.
+     */
+    private static int getWriteSequence(int componentSequence, int priorWriteSequence) {
+        return writeSequences.accumulateAndGet(componentSequence % WRITE_SEQUENCES, priorWriteSequence,
+                (current, prior) -> Math.max(current, prior) + 1);
     }
 
     ReentrantLock expandLock = new ReentrantLock();
@@ -49,19 +65,112 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
     private final String filePrefix;
     private final String fileSuffix;
     private final Path dbFolderPath;
+    private final SegmentStorage segmentStorage;
+    private final CacheStore cacheStore;
     WaitFreeMergeSerializer<T> elementSerializer;
     CasSequenceMapSerializer segmentSerializer = new CasSequenceMapSerializer();
 
     CopyOnWriteArrayList<MemoryManagedReference<SerializedAtomicReferenceArray>> objectByteList = new CopyOnWriteArrayList<>();
 
+    /**
+     * Occupancy of each segment, read from the segment file header on first 
+     * use, and maintained in memory as elements are added. 
+     */
+    private final ConcurrentHashMap<Integer, SegmentOccupancy> segmentOccupancies = new ConcurrentHashMap<>();
 
     public CasSequenceObjectMap(WaitFreeMergeSerializer<T> elementSerializer, Path dbFolderPath,
                                 String filePrefix, String fileSuffix) {
+        this(elementSerializer, dbFolderPath, filePrefix, fileSuffix, SegmentStorage.STREAM, CacheStore.OTHER);
+    }
+
+    public CasSequenceObjectMap(WaitFreeMergeSerializer<T> elementSerializer, Path dbFolderPath,
+                                String filePrefix, String fileSuffix, SegmentStorage segmentStorage, 
+                                CacheStore cacheStore) {
         this.elementSerializer = elementSerializer;
         this.dbFolderPath = dbFolderPath;
         this.filePrefix = filePrefix;
         this.fileSuffix = fileSuffix;
+        this.segmentStorage = segmentStorage;
+        this.cacheStore = cacheStore;
+        log.info("Segment storage for " + dbFolderPath + ": " + segmentStorage);
+    }
+
+    public SegmentStorage getSegmentStorage() {
+        return segmentStorage;
+    }
+
+    private MemoryManagedReference<SerializedAtomicReferenceArray> newSegmentReference(
+            SerializedAtomicReferenceArray segmentArray, File segmentFile) {
+        MemoryManagedReference<SerializedAtomicReferenceArray> reference;
+        if (segmentStorage == SegmentStorage.MAPPED) {
+            reference = new MappedSegmentReference(segmentArray, segmentFile);
+        } else {
+            reference = new MemoryManagedReference<>(segmentArray, segmentFile, segmentSerializer);
+        }
+        reference.setCacheStore(cacheStore);
+        return reference;
+    }
+
+    /**
+     * Holds a read only view of the segment file for use while the segment is 
+     * not resident in memory. The write generation is incremented before and
+     * after the segment file is replaced, so it is odd while the file is being
+     * replaced, when no view is served, and a view mapped before the
+     * replacement is discarded rather than served.
+     */
+    private class MappedSegmentReference extends MemoryManagedReference<SerializedAtomicReferenceArray> {
+
+        private final File segmentFile;
+        private final AtomicInteger writeGeneration = new AtomicInteger();
+        private volatile MappedSegment mappedSegment;
+        /**
+         * The write generation at which the segment file was found not to be
+         * in the mapped layout, so the file is not mapped again to find that out.
+         */
+        private volatile int streamLayoutGeneration = -1;
+
+        MappedSegmentReference(SerializedAtomicReferenceArray segmentArray, File segmentFile) {
+            super(segmentArray, segmentFile, segmentSerializer);
+            this.segmentFile = segmentFile;
+        }
+
+        /**
+         * @return a view of the segment file that is current with the last
+         * write of the segment, or empty if the segment file is not in the
+         * mapped layout.
+         */
+        Optional<MappedSegment> getMappedSegment() {
+            int generation = writeGeneration.get();
+            if ((generation & 1) != 0 || streamLayoutGeneration == generation) {
+                return Optional.empty();
+            }
+            MappedSegment current = mappedSegment;
+            if (current != null && current.getGeneration() == generation) {
+                return Optional.of(current);
+            }
+            Optional<MappedSegment> newMapping = MappedSegment.map(segmentFile, SEGMENT_SIZE, generation);
+            if (writeGeneration.get() != generation) {
+                // The file was replaced while it was being mapped.
+                return Optional.empty();
+            }
+            if (newMapping.isPresent()) {
+                mappedSegment = newMapping.get();
+            } else {
+                streamLayoutGeneration = generation;
+            }
+            return newMapping;
+        }
 
+        @Override
+        protected void replace(File source, File target) {
+            writeGeneration.incrementAndGet();
+            mappedSegment = null;
+            try {
+                super.replace(source, target);
+            } finally {
+                writeGeneration.incrementAndGet();
+            }
+        }
     }
 
     /**
@@ -72,6 +181,7 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
      */
     public boolean initialize() {
         objectByteList.clear();
+        segmentOccupancies.clear();
         int segmentIndex = 0;
         File segmentDirectory = new File(dbFolderPath.toString());
 
@@ -91,8 +201,7 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
                 throw new RuntimeException("Missing database file: " + segmentFile.getName());
             }
 
-            MemoryManagedReference<SerializedAtomicReferenceArray> reference = new MemoryManagedReference<>(null,
-                    segmentFile, segmentSerializer);
+            MemoryManagedReference<SerializedAtomicReferenceArray> reference = newSegmentReference(null, segmentFile);
             objectByteList.add(segmentIndex, reference);
             segmentIndex++;
         }
@@ -101,14 +210,44 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
         return numberOfSegmentFiles > 0;
     }
 
+    /**
+     * @param segmentArray
+     * @return the current element data of the segment, captured so that the
+     * header of a segment file agrees with its data if the segment is
+     * concurrently updated.
+     */
+    private static byte[][] getValues(SerializedAtomicReferenceArray segmentArray) {
+        byte[][] values = new byte[SEGMENT_SIZE][];
+        for (int indexValue = 0; indexValue < SEGMENT_SIZE; indexValue++) {
+            values[indexValue] = segmentArray.get(indexValue);
+        }
+        return values;
+    }
+
+    /**
+     * Segment files are written in one of two layouts, each beginning with a
+     * header that identifies the layout, and gives the segment number and the
+     * {@link SegmentOccupancy} of the segment. The stream layout follows the
+     * header with a length prefixed record for each index; the mapped layout
+     * is described by {@link MappedSegment}. Segment files written before
+     * the header was introduced begin with the segment number, followed by the
+     * length prefixed records.
+     */
     private class CasSequenceMapSerializer implements DataSerializer<SerializedAtomicReferenceArray> {
 
         @Override
         public void serialize(DataOutput out, SerializedAtomicReferenceArray segmentArray) {
+            byte[][] values = getValues(segmentArray);
+            SegmentOccupancy occupancy = SegmentOccupancy.of(SEGMENT_SIZE, values);
+            if (segmentStorage == SegmentStorage.MAPPED) {
+                serializeMapped(out, segmentArray.getSegment(), occupancy, values);
+                return;
+            }
             try {
+                out.writeInt(STREAM_FORMAT_MAGIC);
                 out.writeInt(segmentArray.getSegment());
-                for (int indexValue = 0; indexValue < SEGMENT_SIZE; indexValue++) {
-                    byte[] value = segmentArray.get(indexValue);
+                occupancy.write(out);
+                for (byte[] value : values) {
                     if (value == null) {
                         out.writeInt(-1);
                     } else {
@@ -121,10 +260,40 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
             }
         }
 
+        private void serializeMapped(DataOutput out, int segment, SegmentOccupancy occupancy, byte[][] values) {
+            try {
+                out.writeInt(MappedSegment.MAPPED_FORMAT_MAGIC);
+                out.writeInt(segment);
+                occupancy.write(out);
+                int offset = MappedSegment.headerSize(SEGMENT_SIZE);
+                out.writeInt(offset);
+                for (byte[] value : values) {
+                    if (value != null) {
+                        offset += value.length;
+                    }
+                    out.writeInt(offset);
+                }
+                for (byte[] value : values) {
+                    if (value != null) {
+                        out.write(value);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
         @Override
         public SerializedAtomicReferenceArray deserialize(DataInput in) {
             try {
                 int segment = in.readInt();
+                if (segment == MappedSegment.MAPPED_FORMAT_MAGIC) {
+                    return deserializeMapped(in);
+                }
+                if (segment == STREAM_FORMAT_MAGIC) {
+                    segment = in.readInt();
+                    SegmentOccupancy.read(in, SEGMENT_SIZE);
+                }
                 SerializedAtomicReferenceArray referenceArray =
                         new SerializedAtomicReferenceArray(SEGMENT_SIZE, elementSerializer, segment);
 
@@ -141,6 +310,54 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
                 throw new RuntimeException(e);
             }
         }
+
+        private SerializedAtomicReferenceArray deserializeMapped(DataInput in) throws IOException {
+            int segment = in.readInt();
+            SegmentOccupancy.read(in, SEGMENT_SIZE);
+            SerializedAtomicReferenceArray referenceArray =
+                    new SerializedAtomicReferenceArray(SEGMENT_SIZE, elementSerializer, segment);
+            int[] offsets = new int[SEGMENT_SIZE + 1];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = in.readInt();
+            }
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                int byteArrayLength = offsets[i + 1] - offsets[i];
+                if (byteArrayLength > 0) {
+                    byte[] bytes = new byte[byteArrayLength];
+                    in.readFully(bytes);
+                    referenceArray.set(i, bytes);
+                }
+            }
+            return referenceArray;
+        }
+
+        /**
+         * Reads only as much of a segment file as needed to determine its 
+         * occupancy. 
+         */
+        private SegmentOccupancy deserializeOccupancy(DataInputStream in) throws IOException {
+            int segment = in.readInt();
+            if (segment == MappedSegment.MAPPED_FORMAT_MAGIC || segment == STREAM_FORMAT_MAGIC) {
+                in.readInt();
+                return SegmentOccupancy.read(in, SEGMENT_SIZE);
+            }
+            SegmentOccupancy occupancy = new SegmentOccupancy(SEGMENT_SIZE);
+            for (int i = 0; i < SEGMENT_SIZE; i++) {
+                int byteArrayLength = in.readInt();
+                if (byteArrayLength > 0) {
+                    occupancy.set(i);
+                    int remaining = byteArrayLength;
+                    while (remaining > 0) {
+                        int skipped = in.skipBytes(remaining);
+                        if (skipped <= 0) {
+                            throw new EOFException("Truncated segment: " + segment);
+                        }
+                        remaining -= skipped;
+                    }
+                }
+            }
+            return occupancy;
+        }
     }
 
     public void write() {
@@ -148,33 +365,67 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
     }
 
     public Stream<T> getStream() {
-        IntStream sequences = IntStream.range(0, objectByteList.size() * SEGMENT_SIZE);
-        return sequences.filter(sequence -> containsKey(sequence)).mapToObj(sequence -> getQuick(sequence));
+        return getKeyStream().mapToObj(sequence -> getQuick(sequence));
     }
 
     public Stream<T> getParallelStream() {
-        IntStream sequences = IntStream.range(0, objectByteList.size() * SEGMENT_SIZE).parallel();
-        return sequences.filter(sequence -> containsKey(sequence)).mapToObj(sequence -> getQuick(sequence));
+        return getKeyParallelStream().mapToObj(sequence -> getQuick(sequence));
     }
     
     public IntStream getKeyStream() {
-        IntStream sequences = IntStream.range(0, objectByteList.size() * SEGMENT_SIZE);
-        return sequences.filter(sequence -> containsKey(sequence));
+        return getKeyStream(IntStream.range(0, objectByteList.size()));
     }
 
     public IntStream getKeyParallelStream() {
-        IntStream sequences = IntStream.range(0, objectByteList.size() * SEGMENT_SIZE).parallel();
-        return sequences.filter(sequence -> containsKey(sequence));
+        return getKeyStream(IntStream.range(0, objectByteList.size()).parallel());
+    }
+
+    private IntStream getKeyStream(IntStream segmentIndexes) {
+        return segmentIndexes.flatMap(segmentIndex -> getOccupancy(segmentIndex).getIndexes()
+                .map(indexInSegment -> (segmentIndex * SEGMENT_SIZE) + indexInSegment));
+    }
+
+    /**
+     * @param segmentIndex
+     * @return the occupancy of the segment, read from the segment file header
+     * if the segment is not resident in memory.
+     */
+    protected SegmentOccupancy getOccupancy(int segmentIndex) {
+        SegmentOccupancy occupancy = segmentOccupancies.get(segmentIndex);
+        if (occupancy == null) {
+            occupancy = segmentOccupancies.computeIfAbsent(segmentIndex, this::loadOccupancy);
+        }
+        return occupancy;
+    }
+
+    private SegmentOccupancy loadOccupancy(int segmentIndex) {
+        SerializedAtomicReferenceArray referenceArray = objectByteList.get(segmentIndex).get();
+        if (referenceArray != null) {
+            return SegmentOccupancy.of(SEGMENT_SIZE, getValues(referenceArray));
+        }
+        File segmentFile = new File(dbFolderPath.toFile(), filePrefix + segmentIndex + fileSuffix);
+        if (!segmentFile.exists()) {
+            return new SegmentOccupancy(SEGMENT_SIZE);
+        }
+        DiskSemaphore.acquire(segmentFile, DiskIoPriority.FOREGROUND);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segmentFile)))) {
+            return segmentSerializer.deserializeOccupancy(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            DiskSemaphore.release(segmentFile, DiskIoPriority.FOREGROUND);
+        }
     }
 
     protected SerializedAtomicReferenceArray readSegmentFromDisk(int segmentIndex) {
         File segmentFile = new File(dbFolderPath.toFile(), filePrefix + segmentIndex + fileSuffix);
-        DiskSemaphore.acquire();
+        DiskSemaphore.acquire(segmentFile, DiskIoPriority.FOREGROUND);
         try (DataInputStream in = new DataInputStream(new BufferedInputStream(
                 new FileInputStream(segmentFile)))) {
             SerializedAtomicReferenceArray segmentArray = segmentSerializer.deserialize(in);
             MemoryManagedReference<SerializedAtomicReferenceArray> reference =
-                    new MemoryManagedReference<>(segmentArray, segmentFile, segmentSerializer);
+                    newSegmentReference(segmentArray, segmentFile);
             if (objectByteList.size() > segmentArray.getSegment()) {
                 objectByteList.set(segmentArray.getSegment(), reference);
             } else {
@@ -182,13 +433,12 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
             }
 
             HoldInMemoryCache.addToCache(reference);
-            WriteToDiskCache.addToCache(reference);
 
             return segmentArray;
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            DiskSemaphore.release();
+            DiskSemaphore.release(segmentFile, DiskIoPriority.FOREGROUND);
         }
 
     }
@@ -204,10 +454,43 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
         return referenceArray;
     }
 
+    /**
+     * Returns the element data without loading the segment into memory when
+     * the segment is not resident and a mapped view of it is available.
+     *
+     * @param segmentIndex
+     * @param indexInSegment
+     * @return the element data, or null if there is none.
+     */
+    protected byte[] getElementData(int segmentIndex, int indexInSegment) {
+        Optional<MappedSegment> mappedSegment = getNonResidentMappedSegment(segmentIndex);
+        if (mappedSegment.isPresent()) {
+            return mappedSegment.get().get(indexInSegment);
+        }
+        return getSegment(segmentIndex).get(indexInSegment);
+    }
+
+    /**
+     * @param segmentIndex
+     * @return a mapped view of the segment if segment storage is MAPPED and
+     * the segment is not resident in memory, otherwise empty, in which case
+     * the segment is to be read with getSegment.
+     */
+    private Optional<MappedSegment> getNonResidentMappedSegment(int segmentIndex) {
+        if (segmentStorage != SegmentStorage.MAPPED) {
+            return Optional.empty();
+        }
+        MemoryManagedReference<SerializedAtomicReferenceArray> reference = objectByteList.get(segmentIndex);
+        if (reference.get() != null) {
+            return Optional.empty();
+        }
+        return ((MappedSegmentReference) reference).getMappedSegment();
+    }
+
     public boolean hasData(int sequence) {
           int segmentIndex = sequence / SEGMENT_SIZE;
           int indexInSegment = sequence % SEGMENT_SIZE;
-          return getSegment(segmentIndex).get(indexInSegment) != null;
+          return getOccupancy(segmentIndex).get(indexInSegment);
     }
 
     /**
@@ -221,15 +504,14 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
         int segmentIndex = sequence / SEGMENT_SIZE;
         int indexInSegment = sequence % SEGMENT_SIZE;
 
-        ByteArrayDataBuffer buff = new ByteArrayDataBuffer(getSegment(segmentIndex).get(indexInSegment));
+        ByteArrayDataBuffer buff = new ByteArrayDataBuffer(getElementData(segmentIndex, indexInSegment));
         return elementSerializer.deserialize(buff);
     }
     
 
     public int getSize() {
-        // TODO determine if this is the best way / if this method is necessary.  
-        // Calculating this is taking on the order of seconds, on the SOLOR-ALL db. 
-        return (int) getParallelStream().count();
+        return IntStream.range(0, objectByteList.size())
+                .map(segmentIndex -> getOccupancy(segmentIndex).getLiveCount()).sum();
     }
 
     public boolean containsKey(int sequence) {
@@ -238,7 +520,7 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
         if (segmentIndex >= objectByteList.size()) {
             return false;
         }
-        return getSegment(segmentIndex).get(indexInSegment) != null;
+        return getOccupancy(segmentIndex).get(indexInSegment);
     }
 
     public Optional<T> get(int sequence) {
@@ -252,7 +534,7 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
             return Optional.empty();
         }
 
-        byte[] objectBytes = getSegment(segmentIndex).get(indexInSegment);
+        byte[] objectBytes = getElementData(segmentIndex, indexInSegment);
         if (objectBytes != null) {
             ByteArrayDataBuffer buf = new ByteArrayDataBuffer(objectBytes);
             return Optional.of(elementSerializer.deserialize(buf));
@@ -273,9 +555,9 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
                     int newSegment = currentMaxSegment + 1;
                     File segmentFile = new File(dbFolderPath.toFile(), filePrefix + newSegment + fileSuffix);
                     MemoryManagedReference<SerializedAtomicReferenceArray> reference =
-                            new MemoryManagedReference<>(
+                            newSegmentReference(
                                     new SerializedAtomicReferenceArray(SEGMENT_SIZE, elementSerializer, newSegment),
-                                    segmentFile, segmentSerializer);
+                                    segmentFile);
                     objectByteList.add(newSegment, reference);
                     currentMaxSegment = objectByteList.size() -1;
                 }
@@ -285,6 +567,7 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
         }
         int indexInSegment = sequence % SEGMENT_SIZE;
         SerializedAtomicReferenceArray segment = getSegment(segmentIndex);
+        SegmentOccupancy occupancy = getOccupancy(segmentIndex);
         //
         int oldWriteSequence = value.getWriteSequence();
         int oldDataSize = 0;
@@ -301,13 +584,14 @@ public class CasSequenceObjectMap<T extends WaitFreeComparable> {
                 T oldObject = elementSerializer.deserialize(oldDataBuffer);
                 value = elementSerializer.merge(value, oldObject, oldWriteSequence);
             }
-            value.setWriteSequence(getWriteSequence(sequence));
+            value.setWriteSequence(getWriteSequence(sequence, oldWriteSequence));
             
             ByteArrayDataBuffer newDataBuffer = new ByteArrayDataBuffer(oldDataSize + 512);
             elementSerializer.serialize(newDataBuffer, value);
             newDataBuffer.trimToSize();
             if (segment.compareAndSet(indexInSegment, oldData, newDataBuffer.getData())) {
                 objectByteList.get(segmentIndex).elementUpdated();
+                occupancy.set(indexInSegment);
                 if (originalValue != value && value instanceof ObjectChronologyImpl) {
                     ObjectChronologyImpl objc = (ObjectChronologyImpl) originalValue;
                     objc.setWrittenData(newDataBuffer.getData());
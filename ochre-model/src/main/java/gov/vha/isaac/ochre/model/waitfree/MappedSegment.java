@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.model.waitfree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * A read only view of a segment file written in the mapped layout:
+ * <pre>
+ *  int     MAPPED_FORMAT_MAGIC
+ *  int     segment
+ *  int     live count            (see {@link SegmentOccupancy})
+ *  long[]  occupancy bitmap
+ *  int[]   offsets, segmentSize + 1 entries, relative to the start of the file
+ *  byte[]  data region
+ * </pre>
+ * The data for index i lies between offsets[i] and offsets[i + 1]; an
+ * empty range indicates that the index holds no data.
+ *
+ * @author kec
+ */
+public class MappedSegment {
+
+    /**
+     * Negative, so that it cannot be mistaken for the segment number that
+     * begins a segment file written without a header.
+     */
+    public static final int MAPPED_FORMAT_MAGIC = 0xCA5E0001;
+
+    private final MappedByteBuffer buffer;
+    private final int segment;
+    private final int segmentSize;
+    private final int offsetTableStart;
+    private final int generation;
+
+    private MappedSegment(MappedByteBuffer buffer, int segmentSize, int generation) {
+        this.buffer = buffer;
+        this.segment = buffer.getInt(4);
+        this.segmentSize = segmentSize;
+        this.offsetTableStart = offsetTableStart(segmentSize);
+        this.generation = generation;
+    }
+
+    private static int offsetTableStart(int segmentSize) {
+        return 8 + SegmentOccupancy.headerSize(segmentSize);
+    }
+
+    /**
+     * @param segmentFile the file to map.
+     * @param segmentSize the number of elements in the segment.
+     * @param generation the write generation of the segment at the time of
+     * mapping.
+     * @return the mapped segment, or empty if the file does not exist or is
+     * not in the mapped layout.
+     */
+    public static Optional<MappedSegment> map(File segmentFile, int segmentSize, int generation) {
+        if (!segmentFile.exists()) {
+            return Optional.empty();
+        }
+        try (FileChannel channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < headerSize(segmentSize)) {
+                return Optional.empty();
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAPPED_FORMAT_MAGIC) {
+                return Optional.empty();
+            }
+            return Optional.of(new MappedSegment(buffer, segmentSize, generation));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param segmentSize the number of elements in the segment.
+     * @return the number of bytes preceding the data region.
+     */
+    public static int headerSize(int segmentSize) {
+        return offsetTableStart(segmentSize) + ((segmentSize + 1) * 4);
+    }
+
+    public int getSegment() {
+        return segment;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    private int offset(int index) {
+        return buffer.getInt(offsetTableStart + (index * 4));
+    }
+
+    /**
+     * @param indexInSegment the index of the element within the segment.
+     * @return a copy of the element data, or null if there is no data at the
+     * index.
+     */
+    public byte[] get(int indexInSegment) {
+        int start = offset(indexInSegment);
+        int length = offset(indexInSegment + 1) - start;
+        if (length <= 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.get(data);
+        return data;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+}
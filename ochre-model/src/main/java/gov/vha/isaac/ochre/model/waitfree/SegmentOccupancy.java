@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.model.waitfree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * Tracks which indexes of a segment hold data, so that key lookups, key
+ * streams and counts can be answered without loading the segment payload.
+ * Since segments are append only, an index, once occupied, stays occupied.
+ *
+ * The occupancy is persisted in the header of a segment file as the live count
+ * followed by the bitmap words.
+ *
+ * @author kec
+ */
+public class SegmentOccupancy {
+
+    private final int segmentSize;
+    private final AtomicLongArray words;
+    private final AtomicInteger liveCount = new AtomicInteger();
+
+    public SegmentOccupancy(int segmentSize) {
+        this.segmentSize = segmentSize;
+        this.words = new AtomicLongArray(wordCount(segmentSize));
+    }
+
+    public static int wordCount(int segmentSize) {
+        return (segmentSize + 63) / 64;
+    }
+
+    /**
+     * @param segmentSize the number of elements in the segment.
+     * @return the number of bytes used by the occupancy in a segment header.
+     */
+    public static int headerSize(int segmentSize) {
+        return 4 + (wordCount(segmentSize) * 8);
+    }
+
+    /**
+     * @param segmentSize the number of elements in the segment.
+     * @param values the element data of the segment, null where there is none.
+     * @return the occupancy of the values.
+     */
+    public static SegmentOccupancy of(int segmentSize, byte[][] values) {
+        SegmentOccupancy occupancy = new SegmentOccupancy(segmentSize);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                occupancy.set(i);
+            }
+        }
+        return occupancy;
+    }
+
+    public static SegmentOccupancy read(DataInput in, int segmentSize) throws IOException {
+        SegmentOccupancy occupancy = new SegmentOccupancy(segmentSize);
+        occupancy.liveCount.set(in.readInt());
+        for (int i = 0; i < occupancy.words.length(); i++) {
+            occupancy.words.set(i, in.readLong());
+        }
+        return occupancy;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(liveCount.get());
+        for (int i = 0; i < words.length(); i++) {
+            out.writeLong(words.get(i));
+        }
+    }
+
+    /**
+     * Mark the index as occupied.
+     *
+     * @param indexInSegment
+     * @return true if the index was not previously occupied.
+     */
+    public boolean set(int indexInSegment) {
+        int wordIndex = indexInSegment >>> 6;
+        long mask = 1L << indexInSegment;
+        while (true) {
+            long word = words.get(wordIndex);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(wordIndex, word, word | mask)) {
+                liveCount.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public boolean get(int indexInSegment) {
+        return (words.get(indexInSegment >>> 6) & (1L << indexInSegment)) != 0;
+    }
+
+    /**
+     * @return the number of occupied indexes.
+     */
+    public int getLiveCount() {
+        return liveCount.get();
+    }
+
+    /**
+     * @return the occupied indexes, in ascending order.
+     */
+    public IntStream getIndexes() {
+        IntStream.Builder builder = IntStream.builder();
+        for (int wordIndex = 0; wordIndex < words.length(); wordIndex++) {
+            long word = words.get(wordIndex);
+            while (word != 0) {
+                int index = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+                if (index < segmentSize) {
+                    builder.add(index);
+                }
+                word &= word - 1;
+            }
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 kec.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.model.waitfree;
+
+import gov.vha.isaac.ochre.api.constants.Constants;
+
+/**
+ * How a {@link CasSequenceObjectMap} reads segments that are not resident in
+ * memory.
+ *
+ * @author kec
+ */
+public enum SegmentStorage {
+    /**
+     * A cold segment is read by deserializing the entire segment file.
+     */
+    STREAM,
+    /**
+     * Segment files are written as an offset table followed by a data region,
+     * and cold reads are served from a {@code MappedByteBuffer} without
+     * deserializing the segment. The segment is only fully read when it is
+     * written to. Segment files are replaced by an atomic rename, so this mode
+     * requires a file system that permits replacing a mapped file.
+     */
+    MAPPED;
+
+    /**
+     * @param storeName the name of the store, such as "concept", "sememe" or
+     * "taxonomy".
+     * @return the storage selected by the
+     * {@link Constants#SEGMENT_STORAGE_PROPERTY_PREFIX} system property for
+     * the store, or {@link #STREAM} if none is set.
+     */
+    public static SegmentStorage forStore(String storeName) {
+        String value = System.getProperty(Constants.SEGMENT_STORAGE_PROPERTY_PREFIX + storeName);
+        if (value == null || value.trim().isEmpty()) {
+            return STREAM;
+        }
+        return SegmentStorage.valueOf(value.trim().toUpperCase());
+    }
+}
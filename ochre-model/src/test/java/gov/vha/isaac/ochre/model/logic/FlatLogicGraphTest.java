@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.model.logic;
+
+import gov.vha.isaac.ochre.api.logic.NodeSemantic;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ *
+ * @author kec
+ */
+public class FlatLogicGraphTest {
+
+    private static byte[] node(NodeSemantic semantic, int nodeIndex, int[] children, Object... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(semantic.ordinal());
+        out.writeShort(nodeIndex);
+        if (children != null) {
+            out.writeShort(children.length);
+            for (int child : children) {
+                out.writeShort(child);
+            }
+        }
+        for (Object value : values) {
+            if (value instanceof Integer) {
+                out.writeInt((Integer) value);
+            } else if (value instanceof Byte) {
+                out.writeByte((Byte) value);
+            } else if (value instanceof Long) {
+                out.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                out.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                out.writeBoolean((Boolean) value);
+            } else {
+                out.writeUTF((String) value);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void readsNodesInPlace() throws IOException {
+        List<byte[]> graph = new ArrayList<>();
+        graph.add(node(NodeSemantic.CONCEPT, 0, null, 42));
+        graph.add(node(NodeSemantic.DEFINITION_ROOT, 1, new int[]{2}));
+        graph.add(node(NodeSemantic.NECESSARY_SET, 2, new int[]{3}));
+        graph.add(node(NodeSemantic.AND, 3, new int[]{0, 4, 6}));
+        graph.add(node(NodeSemantic.ROLE_SOME, 4, new int[]{5}, 7));
+        graph.add(node(NodeSemantic.CONCEPT, 5, null, 9));
+        graph.add(node(NodeSemantic.FEATURE, 6, new int[]{7}, 11, (byte) ConcreteDomainOperators.LESS_THAN.ordinal()));
+        graph.add(node(NodeSemantic.LITERAL_FLOAT, 7, null, 2.5f));
+        graph.add(node(NodeSemantic.LITERAL_STRING, 8, null, "text"));
+        graph.add(node(NodeSemantic.LITERAL_INSTANT, 9, null, 1234567890L));
+        graph.add(node(NodeSemantic.LITERAL_BOOLEAN, 10, null, true));
+        FlatLogicGraph logicGraph = new FlatLogicGraph(graph.toArray(new byte[graph.size()][]));
+
+        assertEquals(logicGraph.getNodeCount(), 11);
+        assertEquals(logicGraph.getRootNodeIndex(), 1);
+        List<Integer> relationshipRoots = new ArrayList<>();
+        logicGraph.forEachRelationshipRoot((nodeIndex) -> relationshipRoots.add(nodeIndex));
+        assertEquals(relationshipRoots.toString(), "[0, 4, 6]");
+
+        assertEquals(logicGraph.getConceptSequence(0), 42);
+        assertEquals(logicGraph.getChildCount(0), 0);
+        assertEquals(logicGraph.getNodeSemantic(4), NodeSemantic.ROLE_SOME);
+        assertEquals(logicGraph.getTypeConceptSequence(4), 7);
+        assertEquals(logicGraph.getConceptSequence(logicGraph.getOnlyChildIndex(4)), 9);
+        assertEquals(logicGraph.getTypeConceptSequence(6), 11);
+        assertEquals(logicGraph.getOperator(6), ConcreteDomainOperators.LESS_THAN);
+        assertEquals(logicGraph.getFloatLiteral(logicGraph.getOnlyChildIndex(6)), 2.5f);
+        assertEquals(logicGraph.getStringLiteral(8), "text");
+        assertEquals(logicGraph.getInstantLiteral(9), Instant.ofEpochSecond(1234567890L));
+        assertTrue(logicGraph.getBooleanLiteral(10));
+    }
+}
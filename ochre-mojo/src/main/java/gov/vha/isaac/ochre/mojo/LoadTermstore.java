@@ -16,11 +16,18 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Stream;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -41,7 +48,7 @@ import gov.vha.isaac.ochre.api.component.sememe.SememeChronology;
 import gov.vha.isaac.ochre.api.component.sememe.SememeType;
 import gov.vha.isaac.ochre.api.component.sememe.version.LogicGraphSememe;
 import gov.vha.isaac.ochre.api.component.sememe.version.MutableLogicGraphSememe;
-import gov.vha.isaac.ochre.api.externalizable.BinaryDataReaderQueueService;
+import gov.vha.isaac.ochre.api.externalizable.BinaryDataReaderService;
 import gov.vha.isaac.ochre.api.externalizable.OchreExternalizable;
 import gov.vha.isaac.ochre.api.externalizable.StampAlias;
 import gov.vha.isaac.ochre.api.externalizable.StampComment;
@@ -52,6 +59,7 @@ import gov.vha.isaac.ochre.api.logic.LogicalExpression;
 import gov.vha.isaac.ochre.api.logic.LogicalExpressionBuilder;
 import gov.vha.isaac.ochre.api.logic.NodeSemantic;
 import gov.vha.isaac.ochre.api.logic.assertions.Assertion;
+import gov.vha.isaac.ochre.api.util.NamedThreadFactory;
 import gov.vha.isaac.ochre.model.logic.node.AbstractLogicNode;
 import gov.vha.isaac.ochre.model.logic.node.AndNode;
 import gov.vha.isaac.ochre.model.logic.node.NecessarySetNode;
@@ -117,18 +125,77 @@ public class LoadTermstore extends AbstractMojo
 		sememeTypesToSkip.addAll(types);
 	}
 	
-	private int conceptCount, sememeCount, stampAliasCount, stampCommentCount, itemCount, itemFailure, mergeCount;
-	private final HashSet<Integer> skippedItems = new HashSet<>();
-	private boolean skippedAny = false;
+	/**
+	 * The number of files read concurrently, after the metadata file.  Each file is parsed by a parallel stream,
+	 * so a few files are enough to keep the parse pool busy.
+	 */
+	private static final int FILE_READER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+	/**
+	 * The parallel streams of the files run in their own pool, since they block on the write queues.
+	 */
+	private static final int PARSE_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int WRITE_SHARDS = Runtime.getRuntime().availableProcessors();
+	private static final int WRITE_QUEUE_CAPACITY = 1024;
 	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	/**
+	 * Load counts for one ibdf file, which are also added to the totals across all files.
+	 */
+	private static class LoadCounts
+	{
+		private final LoadCounts totals;
+		final AtomicInteger conceptCount = new AtomicInteger();
+		final AtomicInteger sememeCount = new AtomicInteger();
+		final AtomicInteger stampAliasCount = new AtomicInteger();
+		final AtomicInteger stampCommentCount = new AtomicInteger();
+		final Set<Integer> skippedItems = ConcurrentHashMap.newKeySet();
+		/**
+		 * Stated definitions of the file, held back to be written in a deterministic order.
+		 */
+		final Queue<SememeChronology<?>> statedDefinitions = new ConcurrentLinkedQueue<>();
+		
+		LoadCounts(LoadCounts totals)
+		{
+			this.totals = totals;
+		}
+		
+		void add(Function<LoadCounts, AtomicInteger> counter)
+		{
+			counter.apply(this).incrementAndGet();
+			if (totals != null)
+			{
+				counter.apply(totals).incrementAndGet();
+			}
+		}
+		
+		@Override
+		public String toString()
+		{
+			return conceptCount + " concepts, " + sememeCount + " sememes, " + stampAliasCount + " stampAlias, " + stampCommentCount + " stampComments";
+		}
+	}
+	
+	private final LoadCounts totals = new LoadCounts(null);
+	private final AtomicInteger itemCount = new AtomicInteger();
+	private final AtomicInteger itemFailure = new AtomicInteger();
+	private final AtomicInteger mergeCount = new AtomicInteger();
+	private final Set<Integer> deferredActionNids = ConcurrentHashMap.newKeySet();
+	private volatile boolean skippedAny = false;
+	private int statedSequence;
+	
+	/**
+	 * Loads the ibdf files as a pipeline:  the metadata file is read first, then the remaining files are read 
+	 * concurrently.  Each file is parsed by a parallel stream over its records, and the parsed objects are routed 
+	 * to a {@link ShardedWriter} keyed by sequence, so that all writes of a given concept or sememe happen in order 
+	 * on one thread.  Stated logic graphs are held back until their file is read, and are then written in file order, 
+	 * keyed by their referenced component, so that duplicate stated definitions merge serially and in the same order 
+	 * on every load.  The taxonomy is built at the end from the logic graphs that were loaded, again sharded by concept.
+	 */
 	@Override
 	public void execute() throws MojoExecutionException
 	{
 		Get.configurationService().setDBBuildMode();
 		
-		final int statedSequence = Get.identifierService().getConceptSequenceForUuids(TermAux.EL_PLUS_PLUS_STATED_ASSEMBLAGE.getPrimordialUuid());
-		int statedDups = 0;
+		statedSequence = Get.identifierService().getConceptSequenceForUuids(TermAux.EL_PLUS_PLUS_STATED_ASSEMBLAGE.getPrimordialUuid());
 		//Load IsaacMetadataAuxiliary first, otherwise, we have issues....
 		final AtomicBoolean hasMetadata = new AtomicBoolean(false);
 		
@@ -213,177 +280,45 @@ public class LoadTermstore extends AbstractMojo
 		
 		getLog().info("Identified " + temp.length + " ibdf files");
 		
-		Set<Integer> deferredActionNids = new HashSet<>();
+		ExecutorService fileReaders = null;
+		ForkJoinPool parsePool = null;
+		ShardedWriter writer = null;
+		ShardedWriter taxonomyWriter = null;
 		try
 		{
-			for (File f : temp)
+			writer = new ShardedWriter("ibdf-load-writer", WRITE_SHARDS, WRITE_QUEUE_CAPACITY);
+			parsePool = new ForkJoinPool(PARSE_THREADS);
+			int firstConcurrentFile = 0;
+			if (hasMetadata.get())
 			{
-				getLog().info("Loading termstore from " + f.getCanonicalPath() + (activeOnly ? " active items only" : ""));
-				BinaryDataReaderQueueService reader = Get.binaryDataQueueReader(f.toPath());
-				
-				BlockingQueue<OchreExternalizable> queue = reader.getQueue();
-				
-				while (!queue.isEmpty() || !reader.isFinished())
-				{
-					OchreExternalizable object = queue.poll(500, TimeUnit.MILLISECONDS);
-					if (object != null)
-					{
-						itemCount++;
-						try
-						{
-							if (null != object.getOchreObjectType())
-							switch (object.getOchreObjectType()) {
-								case CONCEPT:
-									if (!activeOnly || isActive((ObjectChronology)object))
-									{
-										Get.conceptService().writeConcept(((ConceptChronology)object));
-										conceptCount++;
-									}
-									else
-									{
-										skippedItems.add(((ObjectChronology)object).getNid());
-									}
-									break;
-								case SEMEME:
-									SememeChronology sc = (SememeChronology)object;
-									if (sc.getAssemblageSequence() == statedSequence) {
-										SememeSequenceSet sequences = Get.sememeService().getSememeSequencesForComponentFromAssemblage(sc.getReferencedComponentNid(), statedSequence);
-										if (!sequences.isEmpty()) {
-											List<LogicalExpression> listToMerge = new ArrayList<>();
-											listToMerge.add(getLatestLogicalExpression(sc));
-											getLog().debug("\nDuplicate: " + sc);
-											sequences.stream().forEach((sememeSequence) ->  listToMerge.add(getLatestLogicalExpression(Get.sememeService().getSememe(sememeSequence))));
-											
-											getLog().debug("Duplicates: " + listToMerge);
-											
-											if (listToMerge.size() > 2) {
-												throw new UnsupportedOperationException("Can't merge list of size: " + listToMerge.size() + "\n" + listToMerge);
-											}
-											
-											Set<Integer> mergedParents = new HashSet<>();
-											for (LogicalExpression le : listToMerge)
-											{
-												mergedParents.addAll(getParentConceptSequencesFromLogicExpression(le));
-											}
-											
-											byte[][] data;
-											
-											if (mergedParents.size() == 0)
-											{
-												//The logic graph is too complex for our stupid merger - Use the isomorphic one.
-												IsomorphicResults isomorphicResults = listToMerge.get(0).findIsomorphisms(listToMerge.get(1));
-												getLog().debug("Isomorphic results: " + isomorphicResults);
-												data = isomorphicResults.getMergedExpression().getData(DataTarget.INTERNAL);
-											}
-											else
-											{
-												//Use our stupid merger to just merge parents, cause the above merge isn't really designed to handle ibdf 
-												//import merges - especially in metadata where we keep adding additional parents one ibdf file at a time.
-												//Note, this hack won't work at all to merge more complex logic graphs.  Probably won't work for RF2 content.
-												//But for IBDF files, which are just adding extra parents, this avoids a bunch of issues with the logic graphs.
-												Assertion[] assertions = new Assertion[mergedParents.size()];
-												LogicalExpressionBuilder leb = Get.logicalExpressionBuilderService().getLogicalExpressionBuilder();
-												int i = 0;
-												for (Integer parent : mergedParents) {
-													assertions[i++] = ConceptAssertion(parent, leb);
-												}
-												
-												NecessarySet(And(assertions));
-												data = leb.build().getData(DataTarget.INTERNAL);
-											}
-											
-											mergeCount++;
-											
-											SememeChronology existingChronology = Get.sememeService().getSememe(sequences.findFirst().getAsInt());
-											
-											int stampSequence = Get.stampService().getStampSequence(State.ACTIVE, System.currentTimeMillis(), TermAux.USER.getConceptSequence(), 
-													TermAux.ISAAC_MODULE.getConceptSequence(), TermAux.DEVELOPMENT_PATH.getConceptSequence());
-											MutableLogicGraphSememe newVersion = (MutableLogicGraphSememe) existingChronology
-													.createMutableVersion(MutableLogicGraphSememe.class, stampSequence);
-											newVersion.setGraphData(data);
-											
-//											TODO mess - this isn't merging properly - how should we merge - I think this issue referrs to UUIDs... ?
-//											for (UUID uuid : sc.getUuidList())
-//											{
-//												Get.identifierService().addUuidForNid(uuid, newVersion.getNid());
-//											}
-											sc = existingChronology;
-										}
-									}
-									if (!sememeTypesToSkip.contains(sc.getSememeType()) &&
-										(!activeOnly || (isActive(sc) && !skippedItems.contains(sc.getReferencedComponentNid()))))
-									{
-										Get.sememeService().writeSememe(sc);
-										if (sc.getSememeType() == SememeType.LOGIC_GRAPH)
-										{
-											deferredActionNids.add(sc.getNid());
-										}
-										sememeCount++;
-									}
-									else
-									{
-										skippedItems.add(sc.getNid());
-									}
-									break;
-								case STAMP_ALIAS:
-									Get.commitService().addAlias(((StampAlias)object).getStampSequence(), ((StampAlias)object).getStampAlias(), null);
-									stampAliasCount++;
-									break;
-								case STAMP_COMMENT:
-									Get.commitService().setComment(((StampComment)object).getStampSequence(), ((StampComment)object).getComment());
-									stampCommentCount++;
-									break;
-								default:
-									throw new UnsupportedOperationException("Unknown ochre object type: " + object);
-							}
-						}
-						catch (Exception e)
-						{
-							itemFailure++;
-							getLog().error("Failure at " + conceptCount + " concepts, " + sememeCount + " sememes, " + stampAliasCount + " stampAlias, " 
-									+ stampCommentCount + " stampComments", e);
-							
-							Map<String, Object> args = new HashMap<>();
-							args.put(JsonWriter.PRETTY_PRINT, true);
-							ByteArrayOutputStream baos = new ByteArrayOutputStream();
-							JsonWriter json = new JsonWriter(baos, args);
-							
-							UUID primordial = null;
-							if (object instanceof ObjectChronology)
-							{
-								primordial = ((ObjectChronology)object).getPrimordialUuid();
-							}
-							
-							json.write(object);
-							getLog().error("Failed on " + (primordial == null ? ": " : "object with primoridial UUID " + primordial.toString() + ": ") +  baos.toString());
-							json.close();
-							
-						}
-						
-						if (itemCount % 50000 == 0)
-						{
-							getLog().info("Read " + itemCount + " entries, " + "Loaded " + conceptCount + " concepts, " + sememeCount + " sememes, " + stampAliasCount + " stampAlias, " 
-									+ stampCommentCount + " stampComment");
-						}
-					}
-				};
-				
-				if (skippedItems.size() > 0)
-				{
-					skippedAny = true;
-				}
-				
-				getLog().info("Loaded " + conceptCount + " concepts, " + sememeCount + " sememes, " + stampAliasCount + " stampAlias, " 
-						+ stampCommentCount + " stampComments, " + mergeCount + " merged sememes" + (skippedItems.size() > 0 ? ", skipped for inactive " + skippedItems.size() : "") 
-						+ (itemFailure > 0 ? " Failures " + itemFailure : "") + " from file " + f.getName());
-				conceptCount = 0;
-				sememeCount = 0;
-				stampAliasCount = 0;
-				stampCommentCount = 0;
-				skippedItems.clear();
+				// Everything else refers to the metadata, so it is fully written before any other file is read.
+				writeStatedDefinitions(loadFile(temp[0], writer, parsePool), writer);
+				writer.flush();
+				firstConcurrentFile = 1;
+			}
+			
+			fileReaders = Executors.newFixedThreadPool(FILE_READER_THREADS, new NamedThreadFactory("ibdf-load-reader", true));
+			List<Future<LoadCounts>> readerFutures = new ArrayList<>();
+			for (int i = firstConcurrentFile; i < temp.length; i++)
+			{
+				File f = temp[i];
+				ShardedWriter fileWriter = writer;
+				ForkJoinPool fileParsePool = parsePool;
+				readerFutures.add(fileReaders.submit(() -> loadFile(f, fileWriter, fileParsePool)));
 			}
+			for (Future<LoadCounts> readerFuture : readerFutures)
+			{
+				writeStatedDefinitions(readerFuture.get(), writer);
+			}
+			ShardedWriter finishing = writer;
+			writer = null;
+			finishing.finish();
+			
+			getLog().info("Loaded " + totals + ", " + mergeCount.get() + " merged sememes" + (itemFailure.get() > 0 ? " Failures " + itemFailure.get() : "") 
+					+ " from " + temp.length + " files");
 			
 			getLog().info("Completing processing on " + deferredActionNids.size() + " defered items");
+			taxonomyWriter = new ShardedWriter("ibdf-load-taxonomy", WRITE_SHARDS, WRITE_QUEUE_CAPACITY);
 			for (int nid : deferredActionNids)
 			{
 				if (ObjectChronologyType.SEMEME.equals(Get.identifierService().getChronologyTypeForNid(nid)))
@@ -391,22 +326,8 @@ public class LoadTermstore extends AbstractMojo
 					SememeChronology sc = Get.sememeService().getSememe(nid);
 					if (sc.getSememeType() == SememeType.LOGIC_GRAPH)
 					{
-						try
-						{
-							Get.taxonomyService().updateTaxonomy(sc);
-						}
-						catch (Exception e)
-						{
-							Map<String, Object> args = new HashMap<>();
-							args.put(JsonWriter.PRETTY_PRINT, true);
-							ByteArrayOutputStream baos = new ByteArrayOutputStream();
-							JsonWriter json = new JsonWriter(baos, args);
-							
-							UUID primordial = sc.getPrimordialUuid();
-							json.write(sc);
-							getLog().error("Failed on taxonomy update for object with primoridial UUID " + primordial.toString() + ": " +  baos.toString());
-							json.close();
-						}
+						// Taxonomy records are updated concept by concept, so updates for the same concept share a shard.
+						taxonomyWriter.submit(sc.getReferencedComponentNid(), () -> updateTaxonomy(sc));
 					}
 					else
 					{
@@ -418,6 +339,9 @@ public class LoadTermstore extends AbstractMojo
 					throw new UnsupportedOperationException("Unexpected nid in deferred set: " + nid);
 				}
 			}
+			finishing = taxonomyWriter;
+			taxonomyWriter = null;
+			finishing.finish();
 			
 			if (skippedAny)
 			{
@@ -427,10 +351,277 @@ public class LoadTermstore extends AbstractMojo
 		}
 		catch (Exception ex)
 		{
-			getLog().info("Loaded " + conceptCount + " concepts, " + sememeCount + " sememes, " + stampAliasCount + " stampAlias, " 
-					+ stampCommentCount + " stampComments" + (skippedItems.size() > 0 ? ", skipped for inactive " + skippedItems.size() : ""));
+			getLog().info("Loaded " + totals);
 			throw new MojoExecutionException(ex.getLocalizedMessage(), ex);
 		}
+		finally
+		{
+			if (fileReaders != null)
+			{
+				fileReaders.shutdownNow();
+			}
+			if (parsePool != null)
+			{
+				parsePool.shutdownNow();
+			}
+			// After a failure, still stop the write threads, once the work already queued is done.
+			finishAfterFailure(writer);
+			finishAfterFailure(taxonomyWriter);
+		}
+	}
+	
+	private void finishAfterFailure(ShardedWriter writer)
+	{
+		if (writer != null)
+		{
+			try
+			{
+				writer.finish();
+			}
+			catch (Exception e)
+			{
+				getLog().error("Failure finishing writes after a failed load", e);
+			}
+		}
+	}
+	
+	/**
+	 * Write the stated definitions held back while reading one file, in the order of their referenced component and 
+	 * then of their primordial UUID, so that the merge of duplicates does not depend on the order of parsing.
+	 */
+	private void writeStatedDefinitions(LoadCounts counts, ShardedWriter writer)
+	{
+		List<SememeChronology<?>> statedDefinitions = new ArrayList<>(counts.statedDefinitions);
+		counts.statedDefinitions.clear();
+		statedDefinitions.sort(Comparator.<SememeChronology<?>>comparingInt((sc) -> sc.getReferencedComponentNid())
+				.thenComparing((sc) -> sc.getPrimordialUuid()));
+		for (SememeChronology<?> sc : statedDefinitions)
+		{
+			writer.submit(sc.getReferencedComponentNid(), () -> write(sc, counts, () -> writeSememe(sc, counts)));
+		}
+	}
+	
+	/**
+	 * Parse the records of the file in parallel on the parse pool, and route each object to the write stage.
+	 * @return the counts of the file, with the stated definitions still to be written.
+	 */
+	private LoadCounts loadFile(File f, ShardedWriter writer, ForkJoinPool parsePool) throws Exception
+	{
+		getLog().info("Loading termstore from " + f.getCanonicalPath() + (activeOnly ? " active items only" : ""));
+		LoadCounts counts = new LoadCounts(totals);
+		BinaryDataReaderService reader = Get.binaryDataReader(f.toPath());
+		// A parallel stream run from a task of the parse pool forks its work in that pool, not the common pool.
+		parsePool.submit(() -> 
+		{
+			try (Stream<OchreExternalizable> stream = reader.getParallelStream())
+			{
+				if (activeOnly)
+				{
+					// The inactive check of a sememe depends on whether its referenced component was skipped, so route in file order.
+					stream.forEachOrdered((object) -> route(object, counts, writer));
+				}
+				else
+				{
+					stream.forEach((object) -> route(object, counts, writer));
+				}
+			}
+		}).get();
+		
+		if (counts.skippedItems.size() > 0)
+		{
+			skippedAny = true;
+		}
+		
+		getLog().info("Read " + counts + (counts.skippedItems.size() > 0 ? ", skipped " + counts.skippedItems.size() : "") + " from file " + f.getName());
+		return counts;
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void route(OchreExternalizable object, LoadCounts counts, ShardedWriter writer)
+	{
+		int count = itemCount.incrementAndGet();
+		if (count % 50000 == 0)
+		{
+			getLog().info("Read " + count + " entries, " + "Loaded " + totals);
+		}
+		
+		if (null != object.getOchreObjectType())
+		switch (object.getOchreObjectType()) {
+			case CONCEPT:
+				ConceptChronology concept = (ConceptChronology)object;
+				if (!activeOnly || isActive(concept))
+				{
+					writer.submit(concept.getConceptSequence(), () -> write(object, counts, () -> 
+					{
+						Get.conceptService().writeConcept(concept);
+						counts.add((c) -> c.conceptCount);
+					}));
+				}
+				else
+				{
+					counts.skippedItems.add(concept.getNid());
+				}
+				break;
+			case SEMEME:
+				SememeChronology sc = (SememeChronology)object;
+				if (!sememeTypesToSkip.contains(sc.getSememeType()) &&
+					(!activeOnly || (isActive(sc) && !counts.skippedItems.contains(sc.getReferencedComponentNid()))))
+				{
+					if (sc.getAssemblageSequence() == statedSequence)
+					{
+						// Merged with any existing stated definition of the same component, once the file is read.
+						counts.statedDefinitions.add(sc);
+					}
+					else
+					{
+						writer.submit(sc.getSememeSequence(), () -> write(object, counts, () -> writeSememe(sc, counts)));
+					}
+				}
+				else
+				{
+					counts.skippedItems.add(sc.getNid());
+				}
+				break;
+			case STAMP_ALIAS:
+				writer.submit(((StampAlias)object).getStampSequence(), () -> write(object, counts, () -> 
+				{
+					Get.commitService().addAlias(((StampAlias)object).getStampSequence(), ((StampAlias)object).getStampAlias(), null);
+					counts.add((c) -> c.stampAliasCount);
+				}));
+				break;
+			case STAMP_COMMENT:
+				writer.submit(((StampComment)object).getStampSequence(), () -> write(object, counts, () -> 
+				{
+					Get.commitService().setComment(((StampComment)object).getStampSequence(), ((StampComment)object).getComment());
+					counts.add((c) -> c.stampCommentCount);
+				}));
+				break;
+			default:
+				throw new UnsupportedOperationException("Unknown ochre object type: " + object);
+		}
+	}
+	
+	/**
+	 * Runs on a write shard.
+	 */
+	private void write(OchreExternalizable object, LoadCounts counts, Runnable write)
+	{
+		try
+		{
+			write.run();
+		}
+		catch (Exception e)
+		{
+			itemFailure.incrementAndGet();
+			getLog().error("Failure at " + counts, e);
+			
+			UUID primordial = null;
+			if (object instanceof ObjectChronology)
+			{
+				primordial = ((ObjectChronology<?>)object).getPrimordialUuid();
+			}
+			
+			getLog().error("Failed on " + (primordial == null ? ": " : "object with primoridial UUID " + primordial.toString() + ": ") +  toJson(object));
+		}
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void writeSememe(SememeChronology sc, LoadCounts counts)
+	{
+		if (sc.getAssemblageSequence() == statedSequence) {
+			SememeSequenceSet sequences = Get.sememeService().getSememeSequencesForComponentFromAssemblage(sc.getReferencedComponentNid(), statedSequence);
+			if (!sequences.isEmpty()) {
+				List<LogicalExpression> listToMerge = new ArrayList<>();
+				listToMerge.add(getLatestLogicalExpression(sc));
+				getLog().debug("\nDuplicate: " + sc);
+				sequences.stream().forEach((sememeSequence) ->  listToMerge.add(getLatestLogicalExpression(Get.sememeService().getSememe(sememeSequence))));
+				
+				getLog().debug("Duplicates: " + listToMerge);
+				
+				if (listToMerge.size() > 2) {
+					throw new UnsupportedOperationException("Can't merge list of size: " + listToMerge.size() + "\n" + listToMerge);
+				}
+				
+				Set<Integer> mergedParents = new HashSet<>();
+				for (LogicalExpression le : listToMerge)
+				{
+					mergedParents.addAll(getParentConceptSequencesFromLogicExpression(le));
+				}
+				
+				byte[][] data;
+				
+				if (mergedParents.size() == 0)
+				{
+					//The logic graph is too complex for our stupid merger - Use the isomorphic one.
+					IsomorphicResults isomorphicResults = listToMerge.get(0).findIsomorphisms(listToMerge.get(1));
+					getLog().debug("Isomorphic results: " + isomorphicResults);
+					data = isomorphicResults.getMergedExpression().getData(DataTarget.INTERNAL);
+				}
+				else
+				{
+					//Use our stupid merger to just merge parents, cause the above merge isn't really designed to handle ibdf 
+					//import merges - especially in metadata where we keep adding additional parents one ibdf file at a time.
+					//Note, this hack won't work at all to merge more complex logic graphs.  Probably won't work for RF2 content.
+					//But for IBDF files, which are just adding extra parents, this avoids a bunch of issues with the logic graphs.
+					Assertion[] assertions = new Assertion[mergedParents.size()];
+					LogicalExpressionBuilder leb = Get.logicalExpressionBuilderService().getLogicalExpressionBuilder();
+					int i = 0;
+					for (Integer parent : mergedParents) {
+						assertions[i++] = ConceptAssertion(parent, leb);
+					}
+					
+					NecessarySet(And(assertions));
+					data = leb.build().getData(DataTarget.INTERNAL);
+				}
+				
+				mergeCount.incrementAndGet();
+				
+				SememeChronology existingChronology = Get.sememeService().getSememe(sequences.findFirst().getAsInt());
+				
+				int stampSequence = Get.stampService().getStampSequence(State.ACTIVE, System.currentTimeMillis(), TermAux.USER.getConceptSequence(), 
+						TermAux.ISAAC_MODULE.getConceptSequence(), TermAux.DEVELOPMENT_PATH.getConceptSequence());
+				MutableLogicGraphSememe newVersion = (MutableLogicGraphSememe) existingChronology
+						.createMutableVersion(MutableLogicGraphSememe.class, stampSequence);
+				newVersion.setGraphData(data);
+				
+//				TODO mess - this isn't merging properly - how should we merge - I think this issue referrs to UUIDs... ?
+//				for (UUID uuid : sc.getUuidList())
+//				{
+//					Get.identifierService().addUuidForNid(uuid, newVersion.getNid());
+//				}
+				sc = existingChronology;
+			}
+		}
+		Get.sememeService().writeSememe(sc);
+		if (sc.getSememeType() == SememeType.LOGIC_GRAPH)
+		{
+			deferredActionNids.add(sc.getNid());
+		}
+		counts.add((c) -> c.sememeCount);
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void updateTaxonomy(SememeChronology sc)
+	{
+		try
+		{
+			Get.taxonomyService().updateTaxonomy(sc);
+		}
+		catch (Exception e)
+		{
+			getLog().error("Failed on taxonomy update for object with primoridial UUID " + sc.getPrimordialUuid().toString() + ": " +  toJson(sc));
+		}
+	}
+	
+	private static String toJson(Object object)
+	{
+		Map<String, Object> args = new HashMap<>();
+		args.put(JsonWriter.PRETTY_PRINT, true);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JsonWriter json = new JsonWriter(baos, args);
+		json.write(object);
+		json.close();
+		return baos.toString();
 	}
 	
 	private boolean isActive(ObjectChronology<?> object)
@@ -0,0 +1,169 @@
+/*
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.mojo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import gov.vha.isaac.ochre.api.util.NamedThreadFactory;
+
+/**
+ * The write stage of the load pipeline.  Work is routed to one of a fixed number of shards by a key,
+ * and each shard runs its work in order on its own thread - so all writes for a given key (a concept
+ * or sememe sequence) happen on one thread, and never contend with each other in the CAS merge of the
+ * object map.
+ *
+ * Each shard has a bounded queue, so the parse stage blocks rather than running ahead of the writers.  The parse 
+ * stage should run on its own threads, not the common pool, since it blocks on the queues.
+ */
+class ShardedWriter
+{
+	private static final Runnable END = () -> {};
+
+	private final BlockingQueue<Runnable>[] queues;
+	private final Thread[] threads;
+	private volatile Throwable failure;
+	private volatile boolean finished = false;
+	
+	/**
+	 * Runs even after a failure, so that {@link #flush()} returns.
+	 */
+	private static final class Flush implements Runnable
+	{
+		private final CountDownLatch flushed;
+		
+		Flush(CountDownLatch flushed)
+		{
+			this.flushed = flushed;
+		}
+		
+		@Override
+		public void run()
+		{
+			flushed.countDown();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	ShardedWriter(String name, int shardCount, int queueCapacity)
+	{
+		queues = new BlockingQueue[shardCount];
+		threads = new Thread[shardCount];
+		NamedThreadFactory threadFactory = new NamedThreadFactory(name, true);
+		for (int i = 0; i < shardCount; i++)
+		{
+			BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(queueCapacity);
+			queues[i] = queue;
+			threads[i] = threadFactory.newThread(() -> drain(queue));
+			threads[i].start();
+		}
+	}
+
+	private void drain(BlockingQueue<Runnable> queue)
+	{
+		try
+		{
+			while (true)
+			{
+				Runnable work = queue.take();
+				if (work == END)
+				{
+					return;
+				}
+				if (failure == null || work instanceof Flush)
+				{
+					work.run();
+				}
+			}
+		}
+		catch (Throwable t)
+		{
+			failure = t;
+			// Keep draining, so the parse stage isn't left blocked on a full queue.
+			drain(queue);
+		}
+	}
+
+	/**
+	 * @param key work with equal keys is run in submission order, on the same thread.
+	 * @param work
+	 */
+	void submit(int key, Runnable work)
+	{
+		BlockingQueue<Runnable> queue = queues[(key & Integer.MAX_VALUE) % queues.length];
+		try
+		{
+			// Waits in steps, so a submitter still running after finish fails rather than blocking for good.
+			while (!queue.offer(work, 100, TimeUnit.MILLISECONDS))
+			{
+				if (finished)
+				{
+					throw new IllegalStateException("Submit after finish");
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Wait for all work submitted so far to complete, leaving the shard threads running.
+	 * @throws Exception the first failure of any submitted work.
+	 */
+	void flush() throws Exception
+	{
+		CountDownLatch flushed = new CountDownLatch(queues.length);
+		for (BlockingQueue<Runnable> queue : queues)
+		{
+			queue.put(new Flush(flushed));
+		}
+		flushed.await();
+		throwFailure();
+	}
+	
+	/**
+	 * Wait for all submitted work to complete, and stop the shard threads.
+	 * @throws Exception the first failure of any submitted work.
+	 */
+	void finish() throws Exception
+	{
+		finished = true;
+		for (BlockingQueue<Runnable> queue : queues)
+		{
+			queue.put(END);
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		throwFailure();
+	}
+	
+	private void throwFailure() throws Exception
+	{
+		if (failure != null)
+		{
+			if (failure instanceof Exception)
+			{
+				throw (Exception)failure;
+			}
+			throw new RuntimeException(failure);
+		}
+	}
+}
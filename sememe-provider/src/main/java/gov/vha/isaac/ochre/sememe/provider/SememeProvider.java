@@ -15,22 +15,14 @@
  */
 package gov.vha.isaac.ochre.sememe.provider;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.NavigableSet;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.IntFunction;
 import java.util.stream.IntStream;
@@ -49,6 +41,7 @@ import gov.vha.isaac.ochre.api.SystemStatusService;
 import gov.vha.isaac.ochre.api.bootstrap.TermAux;
 import gov.vha.isaac.ochre.api.collections.NidSet;
 import gov.vha.isaac.ochre.api.collections.SememeSequenceSet;
+import gov.vha.isaac.ochre.api.collections.SortedIntTupleIndex;
 import gov.vha.isaac.ochre.api.component.sememe.SememeChronology;
 import gov.vha.isaac.ochre.api.component.sememe.SememeConstraints;
 import gov.vha.isaac.ochre.api.component.sememe.SememeService;
@@ -59,8 +52,10 @@ import gov.vha.isaac.ochre.api.component.sememe.version.DescriptionSememe;
 import gov.vha.isaac.ochre.api.component.sememe.version.SememeVersion;
 import gov.vha.isaac.ochre.api.coordinate.StampCoordinate;
 import gov.vha.isaac.ochre.api.coordinate.StampPosition;
+import gov.vha.isaac.ochre.api.memory.CacheStore;
 import gov.vha.isaac.ochre.model.sememe.SememeChronologyImpl;
 import gov.vha.isaac.ochre.model.waitfree.CasSequenceObjectMap;
+import gov.vha.isaac.ochre.model.waitfree.SegmentStorage;
 
 /**
  *
@@ -74,8 +69,14 @@ public class SememeProvider implements SememeService {
     private static final Logger LOG = LogManager.getLogger();
 
     final CasSequenceObjectMap<SememeChronologyImpl<? extends SememeVersion<?>>> sememeMap;
-    final ConcurrentSkipListSet<AssemblageSememeKey> assemblageSequenceSememeSequenceMap = new ConcurrentSkipListSet<>();
-    final ConcurrentSkipListSet<ReferencedNidAssemblageSequenceSememeSequenceKey> referencedNidAssemblageSequenceSememeSequenceMap = new ConcurrentSkipListSet<>();
+    /**
+     * (assemblage sequence, sememe sequence) pairs.
+     */
+    final SortedIntTupleIndex assemblageSequenceSememeSequenceMap = new SortedIntTupleIndex(2);
+    /**
+     * (referenced nid, assemblage sequence, sememe sequence) triples.
+     */
+    final SortedIntTupleIndex referencedNidAssemblageSequenceSememeSequenceMap = new SortedIntTupleIndex(3);
     final Path sememePath;
     private transient HashSet<Integer> inUseAssemblages = new HashSet<>();
     private AtomicBoolean loadRequired = new AtomicBoolean();
@@ -94,7 +95,8 @@ public class SememeProvider implements SememeService {
             Files.createDirectories(sememePath);
             LOG.info("Setting up sememe provider at " + sememePath.toAbsolutePath().toString());
 
-            sememeMap = new CasSequenceObjectMap<>(new SememeSerializer(), sememePath, "seg.", ".sememe.map");
+            sememeMap = new CasSequenceObjectMap<>(new SememeSerializer(), sememePath, "seg.", ".sememe.map",
+                    SegmentStorage.forStore("sememe"), CacheStore.SEMEME);
         } catch (Exception e) {
             LookupService.getService(SystemStatusService.class).notifyServiceConfigurationFailure("Cradle Commit Manager", e);
             throw e;
@@ -111,24 +113,11 @@ public class SememeProvider implements SememeService {
 
                 LOG.info("Reading existing SememeKeys.");
 
-                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(sememePath.toFile(), "assemblage-sememe.keys"))))) {
-                    int size = in.readInt();
-                    for (int i = 0; i < size; i++) {
-                        int assemblageSequence = in.readInt();
-                        int sequence = in.readInt();
-                        assemblageSequenceSememeSequenceMap.add(new AssemblageSememeKey(assemblageSequence, sequence));
-                        inUseAssemblages.add(assemblageSequence);
-                    }
-                }
-                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(sememePath.toFile(), "component-sememe.keys"))))) {
-                    int size = in.readInt();
-                    for (int i = 0; i < size; i++) {
-                        int referencedNid = in.readInt();
-                        int assemblageSequence = in.readInt();
-                        int sequence = in.readInt();
-                        referencedNidAssemblageSequenceSememeSequenceMap.add(new ReferencedNidAssemblageSequenceSememeSequenceKey(referencedNid, assemblageSequence, sequence));
-                    }
-                }
+                assemblageSequenceSememeSequenceMap.read(new File(sememePath.toFile(), "assemblage-sememe.keys"));
+                assemblageSequenceSememeSequenceMap.forEach((int[] tuples, int offset) -> {
+                    inUseAssemblages.add(tuples[offset]);
+                });
+                referencedNidAssemblageSequenceSememeSequenceMap.read(new File(sememePath.toFile(), "component-sememe.keys"));
 
                 if (isPopulated) {
                     databaseValidity = DatabaseValidity.POPULATED_DIRECTORY;
@@ -159,21 +148,8 @@ public class SememeProvider implements SememeService {
             sememeMap.write();
 
             LOG.info("writing SememeKeys.");
-            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(sememePath.toFile(), "assemblage-sememe.keys"))))) {
-                out.writeInt(assemblageSequenceSememeSequenceMap.size());
-                for (AssemblageSememeKey key : assemblageSequenceSememeSequenceMap) {
-                    out.writeInt(key.assemblageSequence);
-                    out.writeInt(key.sememeSequence);
-                }
-            }
-            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(sememePath.toFile(), "component-sememe.keys"))))) {
-                out.writeInt(referencedNidAssemblageSequenceSememeSequenceMap.size());
-                for (ReferencedNidAssemblageSequenceSememeSequenceKey key : referencedNidAssemblageSequenceSememeSequenceMap) {
-                    out.writeInt(key.referencedNid);
-                    out.writeInt(key.assemblageSequence);
-                    out.writeInt(key.sememeSequence);
-                }
-            }
+            assemblageSequenceSememeSequenceMap.write(new File(sememePath.toFile(), "assemblage-sememe.keys"));
+            referencedNidAssemblageSequenceSememeSequenceMap.write(new File(sememePath.toFile(), "component-sememe.keys"));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -200,13 +176,10 @@ public class SememeProvider implements SememeService {
     @Override
     public SememeSequenceSet getSememeSequencesFromAssemblage(int assemblageConceptSequence) {
         assemblageConceptSequence = Get.identifierService().getConceptSequence(assemblageConceptSequence);
-        AssemblageSememeKey rangeStart = new AssemblageSememeKey(assemblageConceptSequence, Integer.MIN_VALUE); // yes
-        AssemblageSememeKey rangeEnd = new AssemblageSememeKey(assemblageConceptSequence, Integer.MAX_VALUE); // no
-        NavigableSet<AssemblageSememeKey> assemblageSememeKeys
-            = assemblageSequenceSememeSequenceMap.subSet(rangeStart, true,
-                rangeEnd, true
-            );
-        return SememeSequenceSet.of(assemblageSememeKeys.stream().mapToInt((AssemblageSememeKey key) -> key.sememeSequence));
+        SememeSequenceSet sememeSequences = new SememeSequenceSet();
+        assemblageSequenceSememeSequenceMap.forEachWithPrefix(assemblageConceptSequence,
+            (int[] tuples, int offset) -> sememeSequences.add(tuples[offset + 1]));
+        return sememeSequences;
     }
 
     @Override
@@ -230,17 +203,13 @@ public class SememeProvider implements SememeService {
         if (componentNid >= 0) {
             throw new IndexOutOfBoundsException("Component identifiers must be negative. Found: " + componentNid);
         }
-        NavigableSet<ReferencedNidAssemblageSequenceSememeSequenceKey> assemblageSememeKeys
-            = referencedNidAssemblageSequenceSememeSequenceMap.subSet(
-                new ReferencedNidAssemblageSequenceSememeSequenceKey(componentNid, Integer.MIN_VALUE, Integer.MIN_VALUE), true,
-                new ReferencedNidAssemblageSequenceSememeSequenceKey(componentNid, Integer.MAX_VALUE, Integer.MAX_VALUE), true
-            );
-        return SememeSequenceSet.of(assemblageSememeKeys.stream().filter((ReferencedNidAssemblageSequenceSememeSequenceKey key) -> {
-            if (allowedAssemblageSequences == null || allowedAssemblageSequences.isEmpty() || allowedAssemblageSequences.contains(key.assemblageSequence)) {
-                return true;
+        SememeSequenceSet sememeSequences = new SememeSequenceSet();
+        referencedNidAssemblageSequenceSememeSequenceMap.forEachWithPrefix(componentNid, (int[] tuples, int offset) -> {
+            if (allowedAssemblageSequences == null || allowedAssemblageSequences.isEmpty() || allowedAssemblageSequences.contains(tuples[offset + 1])) {
+                sememeSequences.add(tuples[offset + 2]);
             }
-            return false;
-        }).mapToInt((ReferencedNidAssemblageSequenceSememeSequenceKey key) -> key.sememeSequence));
+        });
+        return sememeSequences;
     }
 
     @Override
@@ -261,16 +230,9 @@ public class SememeProvider implements SememeService {
             throw new IndexOutOfBoundsException("Component identifiers must be negative. Found: " + componentNid);
         }
         assemblageConceptSequence = Get.identifierService().getConceptSequence(assemblageConceptSequence);
-        ReferencedNidAssemblageSequenceSememeSequenceKey rcRangeStart = new ReferencedNidAssemblageSequenceSememeSequenceKey(componentNid, assemblageConceptSequence, Integer.MIN_VALUE); // yes
-        ReferencedNidAssemblageSequenceSememeSequenceKey rcRangeEnd = new ReferencedNidAssemblageSequenceSememeSequenceKey(componentNid, assemblageConceptSequence, Integer.MAX_VALUE); // no
-        NavigableSet<ReferencedNidAssemblageSequenceSememeSequenceKey> referencedComponentRefexKeys
-            = referencedNidAssemblageSequenceSememeSequenceMap.subSet(rcRangeStart, true,
-                rcRangeEnd, true
-            );
-
-        SememeSequenceSet referencedComponentSet
-            = SememeSequenceSet.of(referencedComponentRefexKeys.stream()
-                .mapToInt((ReferencedNidAssemblageSequenceSememeSequenceKey key) -> key.sememeSequence));
+        SememeSequenceSet referencedComponentSet = new SememeSequenceSet();
+        referencedNidAssemblageSequenceSememeSequenceMap.forEachWithPrefix(componentNid, assemblageConceptSequence,
+            (int[] tuples, int offset) -> referencedComponentSet.add(tuples[offset + 2]));
 
         return referencedComponentSet;
     }
@@ -282,16 +244,8 @@ public class SememeProvider implements SememeService {
         }
         SememeSequenceSet resultSet = new SememeSequenceSet();
         componentNidSet.stream().forEach((componentNid) -> {
-            ReferencedNidAssemblageSequenceSememeSequenceKey rcRangeStart = new ReferencedNidAssemblageSequenceSememeSequenceKey(componentNid, assemblageConceptSequence, Integer.MIN_VALUE); // yes
-            ReferencedNidAssemblageSequenceSememeSequenceKey rcRangeEnd = new ReferencedNidAssemblageSequenceSememeSequenceKey(componentNid, assemblageConceptSequence, Integer.MAX_VALUE); // no
-            NavigableSet<ReferencedNidAssemblageSequenceSememeSequenceKey> referencedComponentRefexKeys
-                = referencedNidAssemblageSequenceSememeSequenceMap.subSet(rcRangeStart, true,
-                    rcRangeEnd, true
-                );
-            referencedComponentRefexKeys.stream().forEach((key) -> {
-                resultSet.add(key.sememeSequence);
-            });
-
+            referencedNidAssemblageSequenceSememeSequenceMap.forEachWithPrefix(componentNid, assemblageConceptSequence,
+                (int[] tuples, int offset) -> resultSet.add(tuples[offset + 2]));
         });
 
         return resultSet;
@@ -302,28 +256,24 @@ public class SememeProvider implements SememeService {
         Arrays.stream(constraints).forEach((constraint) -> {
             switch (constraint) {
                 case ONE_SEMEME_PER_COMPONENT:
-                    ReferencedNidAssemblageSequenceSememeSequenceKey rcRangeStart = new ReferencedNidAssemblageSequenceSememeSequenceKey(sememeChronicle.getReferencedComponentNid(), sememeChronicle.getAssemblageSequence(), Integer.MIN_VALUE); // yes
-                    ReferencedNidAssemblageSequenceSememeSequenceKey rcRangeEnd = new ReferencedNidAssemblageSequenceSememeSequenceKey(sememeChronicle.getReferencedComponentNid(), sememeChronicle.getAssemblageSequence(), Integer.MAX_VALUE); // no
-                    NavigableSet<ReferencedNidAssemblageSequenceSememeSequenceKey> subset = referencedNidAssemblageSequenceSememeSequenceMap.subSet(rcRangeStart, rcRangeEnd);
-                    if (!subset.isEmpty()) {
-                        if (!subset.stream().allMatch((value) -> value.sememeSequence == sememeChronicle.getSememeSequence())) {
-                            throw new IllegalStateException("Attempt to add a second sememe for component, where assemblage has a ONE_SEMEME_PER_COMPONENT constraint."
-                                + "\n New sememe: " + sememeChronicle + "\n Existing in index: " + subset);
-                        }
+                    SememeSequenceSet existing = new SememeSequenceSet();
+                    referencedNidAssemblageSequenceSememeSequenceMap.forEachWithPrefix(sememeChronicle.getReferencedComponentNid(),
+                        sememeChronicle.getAssemblageSequence(), (int[] tuples, int offset) -> existing.add(tuples[offset + 2]));
+                    if (!existing.stream().allMatch((value) -> value == sememeChronicle.getSememeSequence())) {
+                        throw new IllegalStateException("Attempt to add a second sememe for component, where assemblage has a ONE_SEMEME_PER_COMPONENT constraint."
+                            + "\n New sememe: " + sememeChronicle + "\n Existing in index: " + existing);
                     }
                     break;
                 default:
                     throw new UnsupportedOperationException("Can't handle " + constraint);
             }
         });
-        assemblageSequenceSememeSequenceMap.add(
-            new AssemblageSememeKey(sememeChronicle.getAssemblageSequence(),
-                sememeChronicle.getSememeSequence()));
+        assemblageSequenceSememeSequenceMap.add(sememeChronicle.getAssemblageSequence(),
+            sememeChronicle.getSememeSequence());
         inUseAssemblages.add(sememeChronicle.getAssemblageSequence());
-        referencedNidAssemblageSequenceSememeSequenceMap.add(
-            new ReferencedNidAssemblageSequenceSememeSequenceKey(sememeChronicle.getReferencedComponentNid(),
-                sememeChronicle.getAssemblageSequence(),
-                sememeChronicle.getSememeSequence()));
+        referencedNidAssemblageSequenceSememeSequenceMap.add(sememeChronicle.getReferencedComponentNid(),
+            sememeChronicle.getAssemblageSequence(),
+            sememeChronicle.getSememeSequence());
         sememeMap.put(sememeChronicle.getSememeSequence(),
             (SememeChronologyImpl<?>) sememeChronicle);
     }
@@ -23,7 +23,6 @@ import java.util.stream.Stream;
 import gov.vha.isaac.ochre.api.ProgressTracker;
 import gov.vha.isaac.ochre.api.chronicle.LatestVersion;
 import gov.vha.isaac.ochre.api.collections.SememeSequenceSet;
-import gov.vha.isaac.ochre.api.collections.StampSequenceSet;
 import gov.vha.isaac.ochre.api.component.sememe.SememeService;
 import gov.vha.isaac.ochre.api.component.sememe.SememeSnapshotService;
 import gov.vha.isaac.ochre.api.component.sememe.SememeType;
@@ -54,16 +53,18 @@ public class SememeSnapshotProvider<V extends SememeVersion<?>> implements Semem
     @Override
     public Optional<LatestVersion<V>> getLatestSememeVersion(int sememeSequenceOrNid) {
         SememeChronologyImpl<?> sc = (SememeChronologyImpl<?>) sememeProvider.getSememe(sememeSequenceOrNid);
-        IntStream stampSequences = sc.getVersionStampSequences();
-        StampSequenceSet latestSequences = calculator.getLatestStampSequencesAsSet(stampSequences);
-        if (latestSequences.isEmpty()) {
+        return getLatestSememeVersion(sc);
+    }
+
+    private Optional<LatestVersion<V>> getLatestSememeVersion(SememeChronologyImpl<?> sc) {
+        int[] latestStampSequences = sc.getLatestStampSequences(calculator);
+        if (latestStampSequences.length == 0) {
             return Optional.empty();
         }
         LatestVersion<V> latest = new LatestVersion<>(versionType);
-        latestSequences.stream().forEach((stampSequence) -> {
+        for (int stampSequence : latestStampSequences) {
             latest.addLatest((V) sc.getVersionForStamp(stampSequence).get());
-        });
-
+        }
         return Optional.of(latest);
     }
 
@@ -83,17 +84,7 @@ public class SememeSnapshotProvider<V extends SememeVersion<?>> implements Semem
         return sememeSequenceStream
                 .mapToObj((int sememeSequence) -> {
                     try {
-                        SememeChronologyImpl<?> sc = (SememeChronologyImpl<?>) sememeProvider.getSememe(sememeSequence);
-                        IntStream stampSequences = sc.getVersionStampSequences();
-                        StampSequenceSet latestStampSequences = calculator.getLatestStampSequencesAsSet(stampSequences);
-                        if (latestStampSequences.isEmpty()) {
-                            return Optional.empty();
-                        }
-                        LatestVersion<V> latest = new LatestVersion<>(versionType);
-                        latestStampSequences.stream().forEach((stampSequence) -> {
-                            latest.addLatest((V) sc.getVersionForStamp(stampSequence).get());
-                        });
-                        return Optional.of(latest);
+                        return getLatestSememeVersion((SememeChronologyImpl<?>) sememeProvider.getSememe(sememeSequence));
                     } finally {
                         Arrays.stream(progressTrackers).forEach((tracker) -> {
                             tracker.completedUnitOfWork();
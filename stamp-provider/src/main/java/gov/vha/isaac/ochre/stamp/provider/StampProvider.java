@@ -4,11 +4,12 @@ import gov.vha.isaac.ochre.api.*;
 import gov.vha.isaac.ochre.api.DatabaseServices.DatabaseValidity;
 import gov.vha.isaac.ochre.api.bootstrap.TermAux;
 import gov.vha.isaac.ochre.api.collections.ConcurrentObjectIntMap;
-import gov.vha.isaac.ochre.api.collections.ConcurrentSequenceSerializedObjectMap;
+import gov.vha.isaac.ochre.api.commit.CheckpointWrites;
 import gov.vha.isaac.ochre.api.commit.Stamp;
 import gov.vha.isaac.ochre.api.commit.StampService;
 import gov.vha.isaac.ochre.api.commit.UncommittedStamp;
 import gov.vha.isaac.ochre.api.coordinate.EditCoordinate;
+import gov.vha.isaac.ochre.api.snapshot.calculator.RelativePositionCalculator;
 import gov.vha.isaac.ochre.api.task.TimedTask;
 import javafx.concurrent.Task;
 import org.apache.logging.log4j.LogManager;
@@ -38,6 +39,12 @@ public class StampProvider implements StampService {
 
     private static final Logger LOG = LogManager.getLogger();
     private static final String STAMP_MANAGER_DATA_FILENAME = "stamp-manager.data";
+    private static final String STAMP_TABLE_FILENAME = "stamp-table.data";
+    /**
+     * Written in place of the stamp count of stamp-manager.data, to indicate
+     * that the stamps are in the stamp table file.
+     */
+    private static final int STAMPS_IN_TABLE = -1;
     public static final String DEFAULT_STAMP_MANAGER_FOLDER = "stamp-manager";
     private final ReentrantLock stampLock = new ReentrantLock();
 
@@ -60,16 +67,14 @@ public class StampProvider implements StampService {
     
 
     /**
-     * Persistent as a result of reading and writing the stampMap.
+     * Stamp fields by stamp sequence, persisted in the stamp table file.
      */
-    private final ConcurrentSequenceSerializedObjectMap<Stamp> inverseStampMap;
+    private final StampTable inverseStampMap = new StampTable();
 
     public StampProvider() throws IOException {
         dbFolderPath = LookupService.getService(ConfigurationService.class).getChronicleFolderPath().resolve("stamp-provider");
         loadRequired.set(Files.exists(dbFolderPath));
         Files.createDirectories(dbFolderPath);
-        inverseStampMap = new ConcurrentSequenceSerializedObjectMap<>(new StampSerializer(),
-                dbFolderPath, null, null);
         stampManagerFolder = dbFolderPath.resolve(DEFAULT_STAMP_MANAGER_FOLDER);
         if (!Files.exists(stampManagerFolder)) {
         	databaseValidity = DatabaseValidity.MISSING_DIRECTORY;
@@ -82,17 +87,27 @@ public class StampProvider implements StampService {
     private void startMe() {
         try {
             LOG.info("Starting StampProvider post-construct");
+            CheckpointWrites.writeStarted(CheckpointWrites.Store.STAMPS);
             if (loadRequired.get()) {
                 LOG.info("Reading existing commit manager data. ");
                 LOG.info("Reading " + STAMP_MANAGER_DATA_FILENAME);
                 try (DataInputStream in = new DataInputStream(new FileInputStream(new File(stampManagerFolder.toFile(), STAMP_MANAGER_DATA_FILENAME)))) {
                     nextStampSequence.set(in.readInt());
                     int stampMapSize = in.readInt();
-                    for (int i = 0; i < stampMapSize; i++) {
-                        int stampSequence = in.readInt();
-                        Stamp stamp = new Stamp(in);
-                        stampMap.put(stamp, stampSequence);
-                        inverseStampMap.put(stampSequence, stamp);
+                    if (stampMapSize == STAMPS_IN_TABLE) {
+                        inverseStampMap.read(new File(stampManagerFolder.toFile(), STAMP_TABLE_FILENAME));
+                        inverseStampMap.forEach((Stamp stamp, int stampSequence) -> {
+                            if (stamp.getTime() != Long.MAX_VALUE) {
+                                stampMap.put(stamp, stampSequence);
+                            }
+                        });
+                    } else {
+                        for (int i = 0; i < stampMapSize; i++) {
+                            int stampSequence = in.readInt();
+                            Stamp stamp = new Stamp(in);
+                            stampMap.put(stamp, stampSequence);
+                            inverseStampMap.put(stampSequence, stamp);
+                        }
                     }
 
                     int uncommittedSize = in.readInt();
@@ -112,18 +127,12 @@ public class StampProvider implements StampService {
     @PreDestroy
     private void stopMe() {
         LOG.info("Stopping StampProvider pre-destroy. ");
+        CheckpointWrites.writeStarted(CheckpointWrites.Store.STAMPS);
 
         try (DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(stampManagerFolder.toFile(), STAMP_MANAGER_DATA_FILENAME)))) {
+            inverseStampMap.write(new File(stampManagerFolder.toFile(), STAMP_TABLE_FILENAME));
             out.writeInt(nextStampSequence.get());
-            out.writeInt(stampMap.size());
-            stampMap.forEachPair((Stamp stamp, int stampSequence) -> {
-                try {
-                    out.writeInt(stampSequence);
-                    stamp.write(out);
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
-            });
+            out.writeInt(STAMPS_IN_TABLE);
             int size = UNCOMMITTED_STAMP_TO_STAMP_SEQUENCE_MAP.size();
             out.writeInt(size);
 
@@ -135,6 +144,8 @@ public class StampProvider implements StampService {
         catch (IOException e) {
             throw new RuntimeException(e);
         }
+        // Only once the stream is closed, since the close flushes the last of the file.
+        CheckpointWrites.writeSucceeded(CheckpointWrites.Store.STAMPS);
     }
 
 
@@ -143,10 +154,9 @@ public class StampProvider implements StampService {
         if (stampSequence < 0) {
             return TermAux.USER.getConceptSequence();
         }
-        Optional<Stamp> s = inverseStampMap.get(stampSequence);
-        if (s.isPresent()) {
+        if (inverseStampMap.containsKey(stampSequence)) {
             return Get.identifierService().getConceptSequence(
-                    s.get().getAuthorSequence());
+                    inverseStampMap.getAuthor(stampSequence));
         }
         throw new NoSuchElementException("No stampSequence found: " + stampSequence);
     }
@@ -155,9 +165,8 @@ public class StampProvider implements StampService {
         if (stampSequence < 0) {
             return TermAux.USER.getNid();
         }
-        Optional<Stamp> s = inverseStampMap.get(stampSequence);
-        if (s.isPresent()) {
-            return s.get().getAuthorSequence();
+        if (inverseStampMap.containsKey(stampSequence)) {
+            return inverseStampMap.getAuthor(stampSequence);
         }
         throw new NoSuchElementException("No stampSequence found: " + stampSequence);
     }
@@ -167,10 +176,9 @@ public class StampProvider implements StampService {
         if (stampSequence < 0) {
             return TermAux.UNSPECIFIED_MODULE.getConceptSequence();
         }
-        Optional<Stamp> s = inverseStampMap.get(stampSequence);
-        if (s.isPresent()) {
+        if (inverseStampMap.containsKey(stampSequence)) {
             return Get.identifierService().getConceptSequence(
-                    s.get().getModuleSequence());
+                    inverseStampMap.getModule(stampSequence));
         }
         throw new NoSuchElementException("No stampSequence found: " + stampSequence);
     }
@@ -179,28 +187,20 @@ public class StampProvider implements StampService {
         if (stampSequence < 0) {
             return TermAux.UNSPECIFIED_MODULE.getNid();
         }
-        Optional<Stamp> s = inverseStampMap.get(stampSequence);
-        if (s.isPresent()) {
-            return s.get().getModuleSequence();
+        if (inverseStampMap.containsKey(stampSequence)) {
+            return inverseStampMap.getModule(stampSequence);
         }
         throw new NoSuchElementException("No stampSequence found: " + stampSequence);
     }
 
-    ConcurrentHashMap<Integer, Integer> stampSequencePathSequenceMap = new ConcurrentHashMap();
-
     @Override
     public int getPathSequenceForStamp(int stampSequence) {
         if (stampSequence < 0) {
             return TermAux.DEVELOPMENT_PATH.getConceptSequence();
         }
-        if (stampSequencePathSequenceMap.containsKey(stampSequence)) {
-            return stampSequencePathSequenceMap.get(stampSequence);
-        }
-        Optional<Stamp> s = inverseStampMap.get(stampSequence);
-        if (s.isPresent()) {
-            stampSequencePathSequenceMap.put(stampSequence, Get.identifierService().getConceptSequence(
-                    s.get().getPathSequence()));
-            return stampSequencePathSequenceMap.get(stampSequence);
+        if (inverseStampMap.containsKey(stampSequence)) {
+            return Get.identifierService().getConceptSequence(
+                    inverseStampMap.getPath(stampSequence));
         }
         throw new NoSuchElementException("No stampSequence found: " + stampSequence);
     }
@@ -209,9 +209,8 @@ public class StampProvider implements StampService {
         if (stampSequence < 0) {
             return TermAux.PATH.getNid();
         }
-        Optional<Stamp> s = inverseStampMap.get(stampSequence);
-        if (s.isPresent()) {
-            return s.get().getPathSequence();
+        if (inverseStampMap.containsKey(stampSequence)) {
+            return inverseStampMap.getPath(stampSequence);
         }
         throw new NoSuchElementException("No stampSequence found: " + stampSequence);
     }
@@ -221,9 +220,8 @@ public class StampProvider implements StampService {
         if (stampSequence < 0) {
             return State.CANCELED;
         }
-        Optional<Stamp> s = inverseStampMap.get(stampSequence);
-        if (s.isPresent()) {
-            return s.get().getStatus();
+        if (inverseStampMap.containsKey(stampSequence)) {
+            return inverseStampMap.getStatus(stampSequence);
         }
         throw new NoSuchElementException("No stampSequence found: " + stampSequence);
     }
@@ -233,15 +231,32 @@ public class StampProvider implements StampService {
         if (stampSequence < 0) {
             return Long.MIN_VALUE;
         }
-        Optional<Stamp> s = inverseStampMap.get(stampSequence);
-        if (s.isPresent()) {
-            return s.get().getTime();
+        if (inverseStampMap.containsKey(stampSequence)) {
+            return inverseStampMap.getTime(stampSequence);
         }
         throw new NoSuchElementException("No stampSequence found: " + stampSequence
                 + " map size: " + stampMap.size()
                 + " inverse map size: " + inverseStampMap.getSize());
     }
 
+    @Override
+    public void getStampPositions(int[] stampSequences, int count,
+            long[] times, int[] moduleSequences, int[] pathSequences) {
+        for (int i = 0; i < count; i++) {
+            int stampSequence = stampSequences[i];
+            if (stampSequence < 0) {
+                times[i] = Long.MIN_VALUE;
+                moduleSequences[i] = TermAux.UNSPECIFIED_MODULE.getConceptSequence();
+                pathSequences[i] = TermAux.DEVELOPMENT_PATH.getConceptSequence();
+            } else if (inverseStampMap.getPosition(stampSequence, i, times, moduleSequences, pathSequences)) {
+                moduleSequences[i] = Get.identifierService().getConceptSequence(moduleSequences[i]);
+                pathSequences[i] = Get.identifierService().getConceptSequence(pathSequences[i]);
+            } else {
+                throw new NoSuchElementException("No stampSequence found: " + stampSequence);
+            }
+        }
+    }
+
     @Override
     public int getStampSequence(State status, long time, int authorSequence, int moduleSequence, int pathSequence) {
         Stamp stampKey = new Stamp(status, time,
@@ -405,6 +420,8 @@ public class StampProvider implements StampService {
                 UNCOMMITTED_STAMP_TO_STAMP_SEQUENCE_MAP.remove(uncommittedStamp);
             }
         });
+        // Canceling gives stamps a time without rewriting their chronologies, as committing does.
+        RelativePositionCalculator.clearLatestStampSequences();
         // TODO make asynchronous with a actual task.
         Task<Void> task = new TimedTask() {
 
@@ -427,6 +444,18 @@ public class StampProvider implements StampService {
         return pendingStampsForCommit;
     }
 
+    @Override
+    synchronized public Map<UncommittedStamp, Integer> getPendingStampsForCommit(int authorSequence) {
+        Map<UncommittedStamp, Integer> pendingStampsForCommit = new HashMap<>();
+        UNCOMMITTED_STAMP_TO_STAMP_SEQUENCE_MAP.forEach((uncommittedStamp, stampSequence) -> {
+            if (uncommittedStamp.authorSequence == authorSequence) {
+                pendingStampsForCommit.put(uncommittedStamp, stampSequence);
+                UNCOMMITTED_STAMP_TO_STAMP_SEQUENCE_MAP.remove(uncommittedStamp);
+            }
+        });
+        return pendingStampsForCommit;
+    }
+
     @Override
      synchronized public void setPendingStampsForCommit(Map<UncommittedStamp, Integer> pendingStamps) {
         UNCOMMITTED_STAMP_TO_STAMP_SEQUENCE_MAP.putAll(pendingStamps);
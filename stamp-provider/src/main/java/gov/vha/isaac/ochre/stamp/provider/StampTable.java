@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.ochre.stamp.provider;
+
+import gov.vha.isaac.ochre.api.State;
+import gov.vha.isaac.ochre.api.commit.Stamp;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Memory resident stamp fields, held column by column and indexed by stamp
+ * sequence, so that the field accessors of the stamp service are array reads
+ * that allocate nothing.
+ *
+ * Stamps are added under the lock of the stamp provider, or by the commit
+ * manager, and each addition ends with a volatile write that readers pair
+ * with a volatile read before reading the columns.
+ *
+ * The table is persisted as a single file: a magic number, the sequence
+ * limit, then each column for sequences below the limit, and is bulk loaded
+ * through a {@code MappedByteBuffer}.
+ *
+ * @author kec
+ */
+class StampTable {
+
+    private static final int FORMAT_MAGIC = 0x57A30001;
+    private static final int SEGMENT_SHIFT = 14;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final byte NO_STAMP = -1;
+    private static final State[] STATES = State.values();
+
+    private static class Segment {
+
+        final long[] times = new long[SEGMENT_SIZE];
+        final int[] authors = new int[SEGMENT_SIZE];
+        final int[] modules = new int[SEGMENT_SIZE];
+        final int[] paths = new int[SEGMENT_SIZE];
+        final byte[] statuses = new byte[SEGMENT_SIZE];
+
+        Segment() {
+            Arrays.fill(statuses, NO_STAMP);
+        }
+    }
+
+    private volatile Segment[] segments = new Segment[0];
+
+    /**
+     * One greater than the largest sequence added.
+     */
+    private volatile int sequenceLimit = 0;
+
+    private Segment getSegment(int stampSequence) {
+        Segment[] current = segments;
+        int segmentIndex = stampSequence >>> SEGMENT_SHIFT;
+        if (segmentIndex < current.length) {
+            return current[segmentIndex];
+        }
+        return null;
+    }
+
+    private synchronized Segment getOrCreateSegment(int stampSequence) {
+        int segmentIndex = stampSequence >>> SEGMENT_SHIFT;
+        if (segmentIndex >= segments.length) {
+            Segment[] expanded = Arrays.copyOf(segments, segmentIndex + 1);
+            for (int i = segments.length; i < expanded.length; i++) {
+                expanded[i] = new Segment();
+            }
+            segments = expanded;
+        }
+        return segments[segmentIndex];
+    }
+
+    public synchronized void put(int stampSequence, Stamp stamp) {
+        Segment segment = getOrCreateSegment(stampSequence);
+        int index = stampSequence & SEGMENT_MASK;
+        segment.times[index] = stamp.getTime();
+        segment.authors[index] = stamp.getAuthorSequence();
+        segment.modules[index] = stamp.getModuleSequence();
+        segment.paths[index] = stamp.getPathSequence();
+        segment.statuses[index] = (byte) stamp.getStatus().ordinal();
+        // Volatile write, publishes the columns to readers.
+        sequenceLimit = Math.max(sequenceLimit, stampSequence + 1);
+    }
+
+    /**
+     * @param stampSequence
+     * @return the segment holding the stamp, or null if there is no stamp
+     * with the sequence.
+     */
+    private Segment getPublishedSegment(int stampSequence) {
+        if (stampSequence < 0 || stampSequence >= sequenceLimit) {
+            return null;
+        }
+        Segment segment = getSegment(stampSequence);
+        if (segment == null || segment.statuses[stampSequence & SEGMENT_MASK] == NO_STAMP) {
+            return null;
+        }
+        return segment;
+    }
+
+    public boolean containsKey(int stampSequence) {
+        return getPublishedSegment(stampSequence) != null;
+    }
+
+    public long getTime(int stampSequence) {
+        return getPublishedSegment(stampSequence).times[stampSequence & SEGMENT_MASK];
+    }
+
+    public int getAuthor(int stampSequence) {
+        return getPublishedSegment(stampSequence).authors[stampSequence & SEGMENT_MASK];
+    }
+
+    public int getModule(int stampSequence) {
+        return getPublishedSegment(stampSequence).modules[stampSequence & SEGMENT_MASK];
+    }
+
+    public int getPath(int stampSequence) {
+        return getPublishedSegment(stampSequence).paths[stampSequence & SEGMENT_MASK];
+    }
+
+    public State getStatus(int stampSequence) {
+        return STATES[getPublishedSegment(stampSequence).statuses[stampSequence & SEGMENT_MASK]];
+    }
+
+    /**
+     * Copies the time, module nid, and path nid of a stamp to the index of
+     * the arrays.
+     *
+     * @param stampSequence
+     * @param index
+     * @param times
+     * @param moduleNids
+     * @param pathNids
+     * @return false if there is no stamp with the sequence.
+     */
+    public boolean getPosition(int stampSequence, int index, long[] times, int[] moduleNids, int[] pathNids) {
+        Segment segment = getPublishedSegment(stampSequence);
+        if (segment == null) {
+            return false;
+        }
+        int segmentIndex = stampSequence & SEGMENT_MASK;
+        times[index] = segment.times[segmentIndex];
+        moduleNids[index] = segment.modules[segmentIndex];
+        pathNids[index] = segment.paths[segmentIndex];
+        return true;
+    }
+
+    /**
+     * @return the number of stamps in the table.
+     */
+    public int getSize() {
+        int size = 0;
+        int limit = sequenceLimit;
+        for (int sequence = 0; sequence < limit; sequence++) {
+            if (containsKey(sequence)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param consumer receives each stamp in the table, with its sequence, in
+     * sequence order.
+     */
+    public void forEach(ObjIntConsumer<Stamp> consumer) {
+        int limit = sequenceLimit;
+        for (int sequence = 0; sequence < limit; sequence++) {
+            Segment segment = getPublishedSegment(sequence);
+            if (segment != null) {
+                int index = sequence & SEGMENT_MASK;
+                consumer.accept(new Stamp(STATES[segment.statuses[index]], segment.times[index],
+                        segment.authors[index], segment.modules[index], segment.paths[index]), sequence);
+            }
+        }
+    }
+
+    public synchronized void write(File tableFile) throws IOException {
+        int limit = sequenceLimit;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tableFile), 1 << 16))) {
+            out.writeInt(FORMAT_MAGIC);
+            out.writeInt(limit);
+            for (int sequence = 0; sequence < limit; sequence++) {
+                out.writeLong(segments[sequence >>> SEGMENT_SHIFT].times[sequence & SEGMENT_MASK]);
+            }
+            for (int sequence = 0; sequence < limit; sequence++) {
+                out.writeInt(segments[sequence >>> SEGMENT_SHIFT].authors[sequence & SEGMENT_MASK]);
+            }
+            for (int sequence = 0; sequence < limit; sequence++) {
+                out.writeInt(segments[sequence >>> SEGMENT_SHIFT].modules[sequence & SEGMENT_MASK]);
+            }
+            for (int sequence = 0; sequence < limit; sequence++) {
+                out.writeInt(segments[sequence >>> SEGMENT_SHIFT].paths[sequence & SEGMENT_MASK]);
+            }
+            for (int sequence = 0; sequence < limit; sequence++) {
+                out.writeByte(segments[sequence >>> SEGMENT_SHIFT].statuses[sequence & SEGMENT_MASK]);
+            }
+        }
+    }
+
+    public synchronized void read(File tableFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != FORMAT_MAGIC) {
+                throw new IOException("Not a stamp table: " + tableFile);
+            }
+            int limit = buffer.getInt();
+            Segment[] loaded = new Segment[(limit + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT];
+            for (int i = 0; i < loaded.length; i++) {
+                loaded[i] = new Segment();
+            }
+            readColumn(buffer, loaded, limit, 8, (segment, view, count) ->
+                    view.asLongBuffer().get(segment.times, 0, count));
+            readColumn(buffer, loaded, limit, 4, (segment, view, count) ->
+                    view.asIntBuffer().get(segment.authors, 0, count));
+            readColumn(buffer, loaded, limit, 4, (segment, view, count) ->
+                    view.asIntBuffer().get(segment.modules, 0, count));
+            readColumn(buffer, loaded, limit, 4, (segment, view, count) ->
+                    view.asIntBuffer().get(segment.paths, 0, count));
+            readColumn(buffer, loaded, limit, 1, (segment, view, count) ->
+                    view.get(segment.statuses, 0, count));
+            segments = loaded;
+            sequenceLimit = limit;
+        }
+    }
+
+    private interface ColumnReader {
+
+        void read(Segment segment, ByteBuffer view, int count);
+    }
+
+    private static void readColumn(ByteBuffer buffer, Segment[] loaded, int limit, int width,
+            ColumnReader reader) {
+        for (int start = 0; start < limit; start += SEGMENT_SIZE) {
+            int count = Math.min(SEGMENT_SIZE, limit - start);
+            ByteBuffer view = buffer.slice();
+            reader.read(loaded[start >>> SEGMENT_SHIFT], view, count);
+            buffer.position(buffer.position() + (count * width));
+        }
+    }
+}
@@ -439,6 +439,26 @@ public class SyncServiceGIT implements SyncFiles
 		}
 	}
 
+	/**
+	 * @see gov.vha.isaac.ochre.api.sync.SyncFiles#removeMissingFiles()
+	 */
+	@Override
+	public void removeMissingFiles() throws IllegalArgumentException, IOException
+	{
+		log.info("Remove Missing files called");
+		try (Git git = getGit())
+		{
+			Status s = git.status().call();
+
+			removeFiles(s.getMissing().toArray(new String[s.getMissing().size()]));
+		}
+		catch (GitAPIException e)
+		{
+			log.error("Unexpected", e);
+			throw new IOException("Internal error", e);
+		}
+	}
+
 	/**
 	 * @throws MergeFailure 
 	 * @throws AuthenticationException 
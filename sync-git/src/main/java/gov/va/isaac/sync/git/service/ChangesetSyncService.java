@@ -114,6 +114,8 @@ public class ChangesetSyncService {
 				LOG.debug("Read {} files", loaded);
 				LOG.debug("Adding untracked local files");
 				ssg.addUntrackedFiles();
+				LOG.debug("Removing local files deleted by a compaction");
+				ssg.removeMissingFiles();
 				LOG.debug("Committing and Pushing");
 				Set<String> changedFiles = ssg.updateCommitAndPush("Synchronizing changesets", gitConfig.get().getUsername(), gitConfig.get().getPassword(), 
 						MergeFailOption.FAIL, (String[])null);
@@ -169,6 +171,8 @@ public class ChangesetSyncService {
 				
 				LOG.debug("Adding untracked local files");
 				ssg.addUntrackedFiles();
+				LOG.debug("Removing local files deleted by a compaction");
+				ssg.removeMissingFiles();
 				
 				LOG.debug("Committing and Syncing");
 				Set<String> changedFiles = ssg.updateCommitAndPush("Synchronizing changesets", gitConfig.get().getUsername(), gitConfig.get().getPassword(), 
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.taxonomy;
+
+import gov.vha.isaac.ochre.api.Get;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+/**
+ * The origin concepts of the relationships to each destination concept, for
+ * finding the children of a concept without scanning the origin to
+ * destination taxonomy records.
+ *
+ * The origins are kept in compressed sparse row form: an array of offsets
+ * indexed by destination sequence, into one array of origin sequences sorted
+ * within each destination. Origins added after the arrays are built go to a
+ * small concurrent delta of packed destination and origin longs, which is
+ * merged into new arrays once it grows past a fraction of the arrays. Readers
+ * never lock, and see the arrays and the delta merged in origin order.
+ *
+ * @author kec
+ */
+public class DestinationOriginIndex {
+
+    private static final int MIN_COMPACTION_SIZE = 1 << 16;
+
+    /**
+     * The compressed rows. The origins of destination d are
+     * origins[offsets[d]] to origins[offsets[d + 1] - 1].
+     */
+    private static class Rows {
+
+        final int[] offsets;
+        final int[] origins;
+
+        Rows(int[] offsets, int[] origins) {
+            this.offsets = offsets;
+            this.origins = origins;
+        }
+
+        int start(int destinationSequence) {
+            return destinationSequence + 1 < offsets.length ? offsets[destinationSequence] : origins.length;
+        }
+
+        int end(int destinationSequence) {
+            return destinationSequence + 1 < offsets.length ? offsets[destinationSequence + 1] : origins.length;
+        }
+
+        boolean contains(int destinationSequence, int originSequence) {
+            return Arrays.binarySearch(origins, start(destinationSequence), end(destinationSequence), originSequence) >= 0;
+        }
+    }
+
+    private volatile Rows rows;
+    private final ConcurrentSkipListSet<Long> delta = new ConcurrentSkipListSet<>();
+    private final AtomicInteger deltaSize = new AtomicInteger();
+    private final ReentrantLock compactionLock = new ReentrantLock();
+
+    public DestinationOriginIndex() {
+        this.rows = new Rows(new int[1], new int[0]);
+    }
+
+    private DestinationOriginIndex(Rows rows) {
+        this.rows = rows;
+    }
+
+    private static long pack(int destinationSequence, int originSequence) {
+        return ((long) destinationSequence << 32) | (originSequence & 0xFFFFFFFFL);
+    }
+
+    private static int toSequence(int conceptId) {
+        if (conceptId < 0) {
+            return Get.identifierService().getConceptSequence(conceptId);
+        }
+        return conceptId;
+    }
+
+    /**
+     * Builds rows from packed destination and origin longs.
+     *
+     * @param records packed records, sorted, which may contain duplicates.
+     * @param count the number of records to use.
+     */
+    private static Rows build(long[] records, int count) {
+        int maxDestination = count == 0 ? -1 : (int) (records[count - 1] >>> 32);
+        int[] offsets = new int[maxDestination + 2];
+        int[] origins = new int[count];
+        int originCount = 0;
+        int destination = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && records[i] == records[i - 1]) {
+                continue;
+            }
+            int recordDestination = (int) (records[i] >>> 32);
+            while (destination < recordDestination) {
+                offsets[++destination] = originCount;
+            }
+            origins[originCount++] = (int) records[i];
+        }
+        while (destination <= maxDestination) {
+            offsets[++destination] = originCount;
+        }
+        return new Rows(offsets, originCount == count ? origins : Arrays.copyOf(origins, originCount));
+    }
+
+    /**
+     * @param destinationId a concept sequence or nid.
+     * @param originId a concept sequence or nid.
+     */
+    public void add(int destinationId, int originId) {
+        int destinationSequence = toSequence(destinationId);
+        int originSequence = toSequence(originId);
+        if (rows.contains(destinationSequence, originSequence)) {
+            return;
+        }
+        if (delta.add(pack(destinationSequence, originSequence))) {
+            if (deltaSize.incrementAndGet() > Math.max(MIN_COMPACTION_SIZE, rows.origins.length / 8)) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Merges the delta into new rows. Records added while the rows are built
+     * stay in the delta. A thread that finds a compaction already running does
+     * not wait for it.
+     */
+    public void compact() {
+        if (!compactionLock.tryLock()) {
+            return;
+        }
+        try {
+            Rows current = rows;
+            long[] merged = new long[current.origins.length + deltaSize.get() + 16];
+            int count = 0;
+            for (int destination = 0; destination + 1 < current.offsets.length; destination++) {
+                for (int i = current.offsets[destination]; i < current.offsets[destination + 1]; i++) {
+                    merged[count++] = pack(destination, current.origins[i]);
+                }
+            }
+            int baseCount = count;
+            long[] compacted = new long[16];
+            int compactedCount = 0;
+            for (Long record : delta) {
+                if (count == merged.length) {
+                    merged = Arrays.copyOf(merged, merged.length * 2);
+                }
+                merged[count++] = record;
+                if (compactedCount == compacted.length) {
+                    compacted = Arrays.copyOf(compacted, compacted.length * 2);
+                }
+                compacted[compactedCount++] = record;
+            }
+            if (compactedCount == 0) {
+                return;
+            }
+            // The base records and the delta are each sorted, but not together.
+            if (baseCount > 0) {
+                Arrays.sort(merged, 0, count);
+            }
+            rows = build(merged, count);
+            // Readers merge duplicates, so records may leave the delta after
+            // the new rows are published.
+            for (int i = 0; i < compactedCount; i++) {
+                if (delta.remove(compacted[i])) {
+                    deltaSize.decrementAndGet();
+                }
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * @param destinationId a concept sequence or nid.
+     * @return the sorted, distinct origin sequences of the relationships to
+     * the destination.
+     */
+    public IntStream getOriginSequenceStream(int destinationId) {
+        int destinationSequence = toSequence(destinationId);
+        while (true) {
+            Rows current = rows;
+            int start = current.start(destinationSequence);
+            int end = current.end(destinationSequence);
+            NavigableSet<Long> destinationDelta = getDelta(destinationSequence);
+            IntStream origins;
+            if (destinationDelta.isEmpty()) {
+                origins = Arrays.stream(current.origins, start, end);
+            } else {
+                IntStream.Builder builder = IntStream.builder();
+                forEachOrigin(current, start, end, destinationDelta, builder);
+                origins = builder.build();
+            }
+            // Compaction publishes new rows before it removes records from
+            // the delta, so if the rows are unchanged no record was missed.
+            if (rows == current) {
+                return origins;
+            }
+        }
+    }
+    private NavigableSet<Long> getDelta(int destinationSequence) {
+        if (deltaSize.get() == 0) {
+            return Collections.emptyNavigableSet();
+        }
+        return delta.subSet(pack(destinationSequence, 0), true, pack(destinationSequence, -1), true);
+    }
+
+    private static void forEachOrigin(Rows current, int start, int end, NavigableSet<Long> destinationDelta,
+            IntStream.Builder consumer) {
+        int last = -1;
+        int i = start;
+        for (Long record : destinationDelta) {
+            int deltaOrigin = (int) record.longValue();
+            while (i < end && current.origins[i] <= deltaOrigin) {
+                last = current.origins[i++];
+                consumer.accept(last);
+            }
+            if (deltaOrigin != last) {
+                last = deltaOrigin;
+                consumer.accept(last);
+            }
+        }
+        while (i < end) {
+            consumer.accept(current.origins[i++]);
+        }
+    }
+
+    /**
+     * @return the number of relationship records in the index, which may
+     * count a record twice while a compaction is running.
+     */
+    public int size() {
+        return rows.origins.length + deltaSize.get();
+    }
+
+    /**
+     * Writes the record count, then a destination and origin sequence for
+     * each record, in destination then origin order.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+        compactionLock.lock();
+        try {
+            compact();
+            Rows current = rows;
+            long[] remaining = delta.stream().mapToLong(Long::longValue).toArray();
+            long[] records = new long[current.origins.length + remaining.length];
+            int count = 0;
+            for (int destination = 0; destination + 1 < current.offsets.length; destination++) {
+                for (int i = current.offsets[destination]; i < current.offsets[destination + 1]; i++) {
+                    records[count++] = pack(destination, current.origins[i]);
+                }
+            }
+            System.arraycopy(remaining, 0, records, count, remaining.length);
+            Arrays.sort(records);
+            Rows all = build(records, records.length);
+            out.writeInt(all.origins.length);
+            for (int destination = 0; destination + 1 < all.offsets.length; destination++) {
+                for (int i = all.offsets[destination]; i < all.offsets[destination + 1]; i++) {
+                    out.writeInt(destination);
+                    out.writeInt(all.origins[i]);
+                }
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(DataOutputStream)}.
+     *
+     * @param in
+     * @return the index.
+     * @throws IOException
+     */
+    public static DestinationOriginIndex read(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        long[] records = new long[size];
+        boolean sorted = true;
+        for (int i = 0; i < size; i++) {
+            records[i] = pack(toSequence(in.readInt()), toSequence(in.readInt()));
+            if (i > 0 && records[i] < records[i - 1]) {
+                sorted = false;
+            }
+        }
+        if (!sorted) {
+            Arrays.sort(records);
+        }
+        return new DestinationOriginIndex(build(records, size));
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.taxonomy;
+
+import gov.vha.isaac.ochre.api.collections.ConceptSequenceSet;
+import gov.vha.isaac.ochre.api.tree.hashtree.HashTreeWithBitSets;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * An interval labeling of the is-a hierarchy of one taxonomy tree, that
+ * answers subsumption queries without walking taxonomy records.
+ *
+ * Each concept of the tree is numbered in the post order of a depth first
+ * walk from the roots, so that the concepts of the walk below a concept have
+ * a contiguous range of numbers ending with the number of the concept. Each
+ * concept is then labeled with the sorted, merged ranges of itself and of all
+ * of its children, so that a concept is a kind of another if its number is
+ * within one of the ranges of the other.
+ *
+ * The index is immutable. A commit does not rebuild it: {@link #patch}
+ * returns an index for the patched tree that shares the labels, and marks the
+ * concepts whose ancestors may have changed as stale. Queries about a stale
+ * concept walk the patched tree instead of using the labels, until the stale
+ * concepts are enough of the tree to make a rebuild worthwhile.
+ *
+ * @author kec
+ */
+class SubsumptionIndex {
+
+    private final HashTreeWithBitSets tree;
+    /**
+     * Post order number by concept sequence, -1 for concepts not in the tree.
+     */
+    private final int[] sequenceToPost;
+    private final int[] postToSequence;
+    /**
+     * By post order number, inclusive [start, end] pairs, sorted and disjoint.
+     */
+    private final int[][] intervals;
+    /**
+     * Concepts whose ancestors in the tree may differ from their labels.
+     */
+    private final ConceptSequenceSet staleConcepts;
+
+    private SubsumptionIndex(HashTreeWithBitSets tree, int[] sequenceToPost, int[] postToSequence, int[][] intervals,
+            ConceptSequenceSet staleConcepts) {
+        this.tree = tree;
+        this.sequenceToPost = sequenceToPost;
+        this.postToSequence = postToSequence;
+        this.intervals = intervals;
+        this.staleConcepts = staleConcepts;
+    }
+
+    static SubsumptionIndex build(HashTreeWithBitSets tree) {
+        int[] sequenceToPost = new int[tree.getMaxSequence() + 1];
+        Arrays.fill(sequenceToPost, -1);
+        boolean[] entered = new boolean[sequenceToPost.length];
+        int[] postToSequence = new int[sequenceToPost.length];
+        int[] lowByPost = new int[sequenceToPost.length];
+
+        // Walk from the roots first, then from any concept left, which is only on a cycle.
+        int nextPost = 0;
+        int[] stack = new int[64];
+        int[] childIndexStack = new int[64];
+        int[] lowStack = new int[64];
+        int[] starts = IntStream.concat(tree.getRootSequenceStream(),
+                tree.getNodeSequences().stream()).toArray();
+        for (int start : starts) {
+            if (entered[start]) {
+                continue;
+            }
+            int depth = 0;
+            stack[0] = start;
+            childIndexStack[0] = 0;
+            lowStack[0] = nextPost;
+            entered[start] = true;
+            while (depth >= 0) {
+                int sequence = stack[depth];
+                int[] children = tree.getChildrenSequences(sequence);
+                if (childIndexStack[depth] < children.length) {
+                    int child = children[childIndexStack[depth]++];
+                    if (!entered[child]) {
+                        entered[child] = true;
+                        depth++;
+                        if (depth == stack.length) {
+                            stack = Arrays.copyOf(stack, depth * 2);
+                            childIndexStack = Arrays.copyOf(childIndexStack, depth * 2);
+                            lowStack = Arrays.copyOf(lowStack, depth * 2);
+                        }
+                        stack[depth] = child;
+                        childIndexStack[depth] = 0;
+                        lowStack[depth] = nextPost;
+                    }
+                } else {
+                    int post = nextPost++;
+                    sequenceToPost[sequence] = post;
+                    postToSequence[post] = sequence;
+                    lowByPost[post] = lowStack[depth];
+                    depth--;
+                }
+            }
+        }
+
+        // In post order, the children of a concept are labeled before it, except on a cycle.
+        int[][] intervals = new int[nextPost][];
+        int[] pairs = new int[16];
+        for (int post = 0; post < intervals.length; post++) {
+            pairs[0] = lowByPost[post];
+            pairs[1] = post;
+            int pairCount = 1;
+            for (int child : tree.getChildrenSequences(postToSequence[post])) {
+                int childPost = sequenceToPost[child];
+                if (childPost >= lowByPost[post] && childPost < post && intervals[childPost].length == 2
+                        && intervals[childPost][0] >= lowByPost[post]) {
+                    // A child within the walk below this concept, with nothing outside it.
+                    continue;
+                }
+                if (childPost < post) {
+                    int[] childIntervals = intervals[childPost];
+                    if ((pairCount * 2) + childIntervals.length > pairs.length) {
+                        pairs = Arrays.copyOf(pairs, Math.max(pairs.length * 2, (pairCount * 2) + childIntervals.length));
+                    }
+                    System.arraycopy(childIntervals, 0, pairs, pairCount * 2, childIntervals.length);
+                    pairCount += childIntervals.length / 2;
+                }
+            }
+            intervals[post] = merge(pairs, pairCount);
+        }
+        return new SubsumptionIndex(tree, sequenceToPost, postToSequence, intervals, new ConceptSequenceSet());
+    }
+
+    /**
+     * Only the ancestors of a changed concept, and of the concepts below it
+     * when the labels were built, can change. A concept that is below a
+     * changed concept only in the patched tree is below it through the new
+     * parents of some changed concept, and so was already below that one.
+     *
+     * @param patchedTree the tree with the parents of the changed concepts
+     * replaced.
+     * @param changedConcepts concepts whose parents were replaced.
+     * @return an index for the patched tree, sharing the labels of this one.
+     */
+    SubsumptionIndex patch(HashTreeWithBitSets patchedTree, ConceptSequenceSet changedConcepts) {
+        ConceptSequenceSet patchedStaleConcepts = new ConceptSequenceSet();
+        patchedStaleConcepts.or(staleConcepts);
+        changedConcepts.stream().forEach((conceptSequence) -> {
+            patchedStaleConcepts.add(conceptSequence);
+            int post = getPost(conceptSequence);
+            if (post >= 0 && !staleConcepts.contains(conceptSequence)) {
+                int[] conceptIntervals = intervals[post];
+                for (int i = 0; i < conceptIntervals.length; i += 2) {
+                    for (int descendantPost = conceptIntervals[i]; descendantPost <= conceptIntervals[i + 1]; descendantPost++) {
+                        patchedStaleConcepts.add(postToSequence[descendantPost]);
+                    }
+                }
+            }
+        });
+        return new SubsumptionIndex(patchedTree, sequenceToPost, postToSequence, intervals, patchedStaleConcepts);
+    }
+
+    /**
+     * @return true if so many concepts are stale that the index should be
+     * rebuilt from its tree.
+     */
+    boolean isRebuildDue() {
+        return staleConcepts.size() > intervals.length / 8;
+    }
+
+    private static int[] merge(int[] pairs, int pairCount) {
+        if (pairCount == 1) {
+            return new int[]{pairs[0], pairs[1]};
+        }
+        long[] packed = new long[pairCount];
+        for (int i = 0; i < pairCount; i++) {
+            packed[i] = ((long) pairs[i * 2] << 32) | pairs[(i * 2) + 1];
+        }
+        Arrays.sort(packed);
+        int[] merged = new int[pairCount * 2];
+        int mergedCount = 0;
+        for (long pair : packed) {
+            int start = (int) (pair >>> 32);
+            int end = (int) pair;
+            if (mergedCount > 0 && start <= merged[(mergedCount * 2) - 1] + 1) {
+                merged[(mergedCount * 2) - 1] = Math.max(end, merged[(mergedCount * 2) - 1]);
+            } else {
+                merged[mergedCount * 2] = start;
+                merged[(mergedCount * 2) + 1] = end;
+                mergedCount++;
+            }
+        }
+        return Arrays.copyOf(merged, mergedCount * 2);
+    }
+
+    /**
+     * @return the tree this index describes.
+     */
+    HashTreeWithBitSets getTree() {
+        return tree;
+    }
+
+    private int getPost(int conceptSequence) {
+        if (conceptSequence < 0 || conceptSequence >= sequenceToPost.length) {
+            return -1;
+        }
+        return sequenceToPost[conceptSequence];
+    }
+
+    /**
+     * @param childSequence
+     * @param parentSequence
+     * @return true if the child is the parent, or a descendant of the parent.
+     */
+    boolean isKindOf(int childSequence, int parentSequence) {
+        if (staleConcepts.contains(childSequence)) {
+            return childSequence == parentSequence
+                    || getAncestorOfSequenceSet(childSequence).contains(parentSequence);
+        }
+        int childPost = getPost(childSequence);
+        int parentPost = getPost(parentSequence);
+        if (childPost < 0 || parentPost < 0) {
+            return childSequence == parentSequence;
+        }
+        int[] parentIntervals = intervals[parentPost];
+        int low = 0;
+        int high = (parentIntervals.length / 2) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (childPost < parentIntervals[middle * 2]) {
+                high = middle - 1;
+            } else if (childPost > parentIntervals[(middle * 2) + 1]) {
+                low = middle + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param rootSequence
+     * @return the root, and all its descendants.
+     */
+    ConceptSequenceSet getKindOfSequenceSet(int rootSequence) {
+        ConceptSequenceSet kindOfSet = ConceptSequenceSet.of(rootSequence);
+        int rootPost = getPost(rootSequence);
+        if (rootPost >= 0) {
+            int[] rootIntervals = intervals[rootPost];
+            for (int i = 0; i < rootIntervals.length; i += 2) {
+                for (int post = rootIntervals[i]; post <= rootIntervals[i + 1]; post++) {
+                    kindOfSet.add(postToSequence[post]);
+                }
+            }
+        }
+        if (!staleConcepts.isEmpty()) {
+            kindOfSet.andNot(staleConcepts);
+            kindOfSet.add(rootSequence);
+            staleConcepts.stream()
+                    .filter((staleSequence) -> getAncestorOfSequenceSet(staleSequence).contains(rootSequence))
+                    .forEach((staleSequence) -> kindOfSet.add(staleSequence));
+        }
+        return kindOfSet;
+    }
+
+    /**
+     * @param childSequence
+     * @return all ancestors of the child, not including the child.
+     */
+    ConceptSequenceSet getAncestorOfSequenceSet(int childSequence) {
+        ConceptSequenceSet ancestors = new ConceptSequenceSet();
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = childSequence;
+        while (head < tail) {
+            for (int parentSequence : tree.getParentSequences(queue[head++])) {
+                if (!ancestors.contains(parentSequence)) {
+                    ancestors.add(parentSequence);
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, queue.length * 2);
+                    }
+                    queue[tail++] = parentSequence;
+                }
+            }
+        }
+        return ancestors;
+    }
+}
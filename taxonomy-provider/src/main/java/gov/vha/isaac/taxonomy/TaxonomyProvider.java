@@ -15,7 +15,7 @@
  */
 package gov.vha.isaac.taxonomy;
 
-import gov.vha.isaac.ochre.api.logic.LogicNode;
+import gov.vha.isaac.ochre.api.logic.NodeSemantic;
 import gov.vha.isaac.ochre.model.configuration.LogicCoordinates;
 import gov.vha.isaac.ochre.api.*;
 import gov.vha.isaac.ochre.api.DatabaseServices.DatabaseValidity;
@@ -41,13 +41,13 @@ import gov.vha.isaac.ochre.api.snapshot.calculator.RelativePositionCalculator;
 import gov.vha.isaac.ochre.api.tree.Tree;
 import gov.vha.isaac.ochre.api.tree.TreeNodeVisitData;
 import gov.vha.isaac.ochre.api.tree.hashtree.HashTreeBuilder;
+import gov.vha.isaac.ochre.api.tree.hashtree.HashTreeWithBitSets;
 import gov.vha.isaac.ochre.api.collections.ConceptSequenceSet;
-import gov.vha.isaac.ochre.api.collections.LruCache;
+import gov.vha.isaac.ochre.api.memory.CacheStore;
+import gov.vha.isaac.ochre.model.logic.FlatLogicGraph;
 import gov.vha.isaac.ochre.model.logic.IsomorphicResultsBottomUp;
-import gov.vha.isaac.ochre.model.logic.node.AndNode;
-import gov.vha.isaac.ochre.model.logic.node.internal.ConceptNodeWithSequences;
-import gov.vha.isaac.ochre.model.logic.node.internal.RoleNodeSomeWithSequences;
 import gov.vha.isaac.ochre.model.waitfree.CasSequenceObjectMap;
+import gov.vha.isaac.ochre.model.waitfree.SegmentStorage;
 import gov.vha.isaac.taxonomy.graph.GraphCollector;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -61,12 +61,17 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.NavigableSet;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.StampedLock;
 import java.util.stream.IntStream;
 import javax.annotation.PostConstruct;
@@ -93,7 +98,7 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
      */
     private final CasSequenceObjectMap<TaxonomyRecordPrimitive> originDestinationTaxonomyRecordMap;
     private static final String TAXONOMY = "taxonomy";
-    private final ConcurrentSkipListSet<DestinationOriginRecord> destinationOriginRecordSet = new ConcurrentSkipListSet<>();
+    private DestinationOriginIndex destinationOriginIndex = new DestinationOriginIndex();
     private final Path folderPath;
     private final Path taxonomyProviderFolder;
     private final AtomicBoolean loadRequired = new AtomicBoolean();
@@ -106,7 +111,31 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
     private IdentifierService identifierService;
     private DatabaseValidity databaseValidity = DatabaseValidity.NOT_SET;
     
-    private volatile LruCache<Integer, Tree> treeCache = new LruCache<>(5);
+    private static final int MAX_TREE_SNAPSHOTS = 5;
+    /**
+     * Taxonomy trees by coordinate. The map is replaced, never modified, so
+     * readers need no lock. Changes to the map are made under the
+     * {@code treeSnapshotLock}, and increment the {@code treeGeneration} if
+     * they patch or discard trees.
+     */
+    private volatile Map<TaxonomyCoordinate, HashTreeWithBitSets> treeSnapshots = new LinkedHashMap<>();
+    private final Object treeSnapshotLock = new Object();
+    private volatile long treeGeneration = 0;
+    /**
+     * Subsumption indexes by coordinate. An index is used only while it
+     * describes the current tree for its coordinate. When a commit patches
+     * the tree, the index is patched with it, and is rebuilt only once the
+     * patches leave too much of it stale.
+     */
+    private final ConcurrentHashMap<TaxonomyCoordinate, SubsumptionIndex> subsumptionIndexes = new ConcurrentHashMap<>();
+    private final Set<TaxonomyCoordinate> subsumptionIndexBuilds = ConcurrentHashMap.newKeySet();
+    /**
+     * An index is only built for a coordinate with a cached tree, once it has
+     * been queried this many times, so that a coordinate used once neither
+     * pays for an index nor pushes another coordinate's tree out of the cache.
+     */
+    private static final int SUBSUMPTION_INDEX_MIN_QUERIES = 32;
+    private final ConcurrentHashMap<TaxonomyCoordinate, AtomicInteger> subsumptionQueryCounts = new ConcurrentHashMap<>();
 
     private TaxonomyProvider() throws IOException {
         folderPath = LookupService.getService(ConfigurationService.class).getChronicleFolderPath();
@@ -119,7 +148,8 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
         Files.createDirectories(taxonomyProviderFolder);
         originDestinationTaxonomyRecordMap
                 = new CasSequenceObjectMap<>(new TaxonomyRecordSerializer(),
-                        taxonomyProviderFolder, "seg.", ".taxonomy.map");
+                        taxonomyProviderFolder, "seg.", ".taxonomy.map", SegmentStorage.forStore("taxonomy"),
+                        CacheStore.TAXONOMY);
         LOG.info("CradleTaxonomyProvider constructed");
     }
 
@@ -133,10 +163,7 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
                 File inputFile = new File(taxonomyProviderFolder.toFile(), ORIGIN_DESTINATION_MAP);
                 try (DataInputStream in = new DataInputStream(new BufferedInputStream(
                         new FileInputStream(inputFile)))) {
-                    int size = in.readInt();
-                    for (int i = 0; i < size; i++) {
-                        destinationOriginRecordSet.add(new DestinationOriginRecord(in.readInt(), in.readInt()));
-                    }
+                    destinationOriginIndex = DestinationOriginIndex.read(in);
                 }
 
                 if (isPopulated) {
@@ -160,16 +187,7 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
         outputFile.getParentFile().mkdirs();
         try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
                 new FileOutputStream(outputFile)))) {
-            out.writeInt(destinationOriginRecordSet.size());
-            destinationOriginRecordSet.forEach((rec) -> {
-                try {
-                    out.writeInt(rec.getDestinationSequence());
-                    out.writeInt(rec.getOriginSequence());
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
-
-            });
+            destinationOriginIndex.write(out);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
@@ -177,8 +195,8 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
     }
     private static final String ORIGIN_DESTINATION_MAP = "origin-destination.map";
 
-    public ConcurrentSkipListSet<DestinationOriginRecord> getDestinationOriginRecordSet() {
-        return destinationOriginRecordSet;
+    public DestinationOriginIndex getDestinationOriginIndex() {
+        return destinationOriginIndex;
     }
 
     public CasSequenceObjectMap<TaxonomyRecordPrimitive> getOriginDestinationTaxonomyRecords() {
@@ -187,44 +205,155 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
 
     @Override
     public Tree getTaxonomyTree(TaxonomyCoordinate tc) {
-        //TODO determine if the returned tree is thread safe for multiple accesses in parallel, if not, may need a pool of these.
-        Tree temp = treeCache.get(tc.hashCode());
-        {
-            if (temp != null)
-            {
-                LOG.trace("Returning cached tree for {}", tc);
-                return temp;
-            }
+        return getTreeSnapshot(tc);
+    }
+
+    private HashTreeWithBitSets getTreeSnapshot(TaxonomyCoordinate tc) {
+        HashTreeWithBitSets tree = treeSnapshots.get(tc);
+        if (tree != null) {
+            LOG.trace("Returning cached tree for {}", tc);
+            return tree;
         }
         LOG.debug("Building tree for {}", tc);
+        long generation = treeGeneration;
         long stamp = stampedLock.tryOptimisticRead();
+        tree = buildTaxonomyTree(tc);
+        if (!stampedLock.validate(stamp)) {
+            stamp = stampedLock.readLock();
+            try {
+                generation = treeGeneration;
+                tree = buildTaxonomyTree(tc);
+            } finally {
+                stampedLock.unlock(stamp);
+            }
+        }
+        publishTree(tc, tree, generation);
+        LOG.debug("Tree build completed");
+        return tree;
+    }
+
+    private HashTreeWithBitSets buildTaxonomyTree(TaxonomyCoordinate tc) {
         IntStream conceptSequenceStream = Get.identifierService().getParallelConceptSequenceStream();
         GraphCollector collector = new GraphCollector(originDestinationTaxonomyRecordMap, tc);
         HashTreeBuilder graphBuilder = conceptSequenceStream.collect(
                 HashTreeBuilder::new,
                 collector,
                 collector);
-        if (stampedLock.validate(stamp)) {
-            temp = graphBuilder.getSimpleDirectedGraphGraph();
-            treeCache.put(tc.hashCode(), temp);
-            return temp;
+        return graphBuilder.getSimpleDirectedGraphGraph();
+    }
+
+    /**
+     * Publish a newly built tree, unless the taxonomy was patched while it
+     * was being built, in which case the tree may be missing the patch.
+     */
+    private void publishTree(TaxonomyCoordinate tc, HashTreeWithBitSets tree, long generation) {
+        synchronized (treeSnapshotLock) {
+            if (generation != treeGeneration) {
+                return;
+            }
+            LinkedHashMap<TaxonomyCoordinate, HashTreeWithBitSets> snapshots = new LinkedHashMap<>(treeSnapshots);
+            snapshots.put(tc, tree);
+            Iterator<TaxonomyCoordinate> oldest = snapshots.keySet().iterator();
+            while (snapshots.size() > MAX_TREE_SNAPSHOTS) {
+                oldest.next();
+                oldest.remove();
+            }
+            treeSnapshots = snapshots;
+            subsumptionIndexes.keySet().retainAll(snapshots.keySet());
         }
-        stamp = stampedLock.readLock();
-        try {
-            conceptSequenceStream = Get.identifierService().getParallelConceptSequenceStream();
-            collector = new GraphCollector(originDestinationTaxonomyRecordMap, tc);
-            graphBuilder = conceptSequenceStream.collect(
-                    HashTreeBuilder::new,
-                    collector,
-                    collector);
-
-            temp = graphBuilder.getSimpleDirectedGraphGraph();
-            treeCache.put(tc.hashCode(), temp);
-            LOG.debug("Tree build completed");
-            return temp;
+    }
 
-        } finally {
-            stampedLock.unlock(stamp);
+    /**
+     * Patch each cached tree for the concepts whose taxonomy records changed,
+     * by replacing the parents of each concept with the parents computed from
+     * its current taxonomy record. Each tree is patched in a copy, and the
+     * copies are published together, so that readers of a tree never see it
+     * change and never wait for a patch.
+     *
+     * @param changedConcepts concepts whose taxonomy records changed.
+     */
+    private void patchTrees(ConceptSequenceSet changedConcepts) {
+        synchronized (treeSnapshotLock) {
+            treeGeneration++;
+            LinkedHashMap<TaxonomyCoordinate, HashTreeWithBitSets> snapshots = new LinkedHashMap<>();
+            treeSnapshots.forEach((tc, tree) -> {
+                HashTreeWithBitSets patchedTree = new HashTreeWithBitSets(tree);
+                changedConcepts.stream().forEach((conceptSequence) -> {
+                    Optional<TaxonomyRecordPrimitive> record = originDestinationTaxonomyRecordMap.get(conceptSequence);
+                    int[] parentSequences = record.isPresent()
+                            ? record.get().getParentSequences(tc).toArray()
+                            : new int[0];
+                    patchedTree.replaceParents(conceptSequence, parentSequences);
+                });
+                snapshots.put(tc, patchedTree);
+                SubsumptionIndex index = subsumptionIndexes.get(tc);
+                if (index != null && index.getTree() == tree) {
+                    subsumptionIndexes.put(tc, index.patch(patchedTree, changedConcepts));
+                }
+            });
+            treeSnapshots = snapshots;
+        }
+        LOG.debug("Patched {} taxonomy trees for {} concepts", treeSnapshots.size(), changedConcepts.size());
+    }
+
+    /**
+     * @param tc the coordinate of the index.
+     * @return the subsumption index of the current tree for the coordinate,
+     * if it has been built. If not, and the coordinate is in repeated use
+     * with a cached tree, a build of the index is started. Without an index,
+     * the caller should answer the query from the taxonomy records.
+     */
+    private Optional<SubsumptionIndex> getSubsumptionIndex(TaxonomyCoordinate tc) {
+        HashTreeWithBitSets tree = treeSnapshots.get(tc);
+        SubsumptionIndex index = subsumptionIndexes.get(tc);
+        if (index != null && index.getTree() == tree) {
+            if (index.isRebuildDue()) {
+                startSubsumptionIndexBuild(tc, tree);
+            }
+            return Optional.of(index);
+        }
+        if (tree == null) {
+            return Optional.empty();
+        }
+        if (subsumptionQueryCounts.size() > MAX_TREE_SNAPSHOTS * 4) {
+            subsumptionQueryCounts.keySet().retainAll(treeSnapshots.keySet());
+        }
+        int queryCount = subsumptionQueryCounts.computeIfAbsent(tc, (key) -> new AtomicInteger()).incrementAndGet();
+        if (queryCount >= SUBSUMPTION_INDEX_MIN_QUERIES) {
+            startSubsumptionIndexBuild(tc, tree);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Build an index of the tree in the background, and publish it only if
+     * the tree is still current, since a tree patched during the build would
+     * already have a patched index, or none to patch.
+     */
+    private void startSubsumptionIndexBuild(TaxonomyCoordinate tc, HashTreeWithBitSets tree) {
+        if (subsumptionIndexBuilds.add(tc)) {
+            Get.workExecutors().getExecutor().execute(() -> {
+                try {
+                    SubsumptionIndex newIndex = SubsumptionIndex.build(tree);
+                    synchronized (treeSnapshotLock) {
+                        if (treeSnapshots.get(tc) == tree) {
+                            subsumptionIndexes.put(tc, newIndex);
+                        }
+                        subsumptionIndexes.keySet().retainAll(treeSnapshots.keySet());
+                    }
+                } catch (Exception e) {
+                    LOG.error("Error building subsumption index for " + tc, e);
+                } finally {
+                    subsumptionIndexBuilds.remove(tc);
+                }
+            });
+        }
+    }
+
+    private void clearTrees() {
+        synchronized (treeSnapshotLock) {
+            treeGeneration++;
+            treeSnapshots = new LinkedHashMap<>();
         }
     }
 
@@ -240,15 +369,10 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
         Optional<TaxonomyRecordPrimitive> record = originDestinationTaxonomyRecordMap.get(childId);
         if (stampedLock.validate(stamp)) {
             if (record.isPresent()) {
-                TaxonomyRecordUnpacked childTaxonomyRecords = new TaxonomyRecordUnpacked(record.get().getArray());
-                Optional<TypeStampTaxonomyRecords> parentStampRecordsOptional = childTaxonomyRecords.getConceptSequenceStampRecords(parentId);
-                if (parentStampRecordsOptional.isPresent()) {
-                    TypeStampTaxonomyRecords parentStampRecords = parentStampRecordsOptional.get();
-                    if (computer.isLatestActive(parentStampRecords.getStampsOfTypeWithFlags(
-                            isaSequence, flags))) {
-                        if (stampedLock.validate(stamp)) {
-                            return true;
-                        }
+                TaxonomyRecordCursor cursor = new TaxonomyRecordCursor(record.get().getArray());
+                if (cursor.seekDestination(parentId) && cursor.isLatestActiveWithFlags(isaSequence, flags, computer)) {
+                    if (stampedLock.validate(stamp)) {
+                        return true;
                     }
                 }
             }
@@ -260,15 +384,10 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
         try {
             record = originDestinationTaxonomyRecordMap.get(childId);
             if (record.isPresent()) {
-                TaxonomyRecordUnpacked childTaxonomyRecords = new TaxonomyRecordUnpacked(record.get().getArray());
-                Optional<TypeStampTaxonomyRecords> parentStampRecordsOptional = childTaxonomyRecords.getConceptSequenceStampRecords(parentId);
-                if (parentStampRecordsOptional.isPresent()) {
-                    TypeStampTaxonomyRecords parentStampRecords = parentStampRecordsOptional.get();
-                    if (computer.isLatestActive(parentStampRecords.getStampsOfTypeWithFlags(
-                           isaSequence, flags))) {
-                        if (stampedLock.validate(stamp)) {
-                            return true;
-                        }
+                TaxonomyRecordCursor cursor = new TaxonomyRecordCursor(record.get().getArray());
+                if (cursor.seekDestination(parentId) && cursor.isLatestActiveWithFlags(isaSequence, flags, computer)) {
+                    if (stampedLock.validate(stamp)) {
+                        return true;
                     }
                 }
             }
@@ -329,6 +448,10 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
         if (childId == parentId) {
             return true;
         }
+        Optional<SubsumptionIndex> subsumptionIndex = getSubsumptionIndex(tc);
+        if (subsumptionIndex.isPresent()) {
+            return subsumptionIndex.get().isKindOf(childId, parentId);
+        }
         long stamp = stampedLock.tryOptimisticRead();
         boolean isKindOf = recursiveFindAncestor(childId, parentId, tc);
         if (stampedLock.validate(stamp)) {
@@ -344,31 +467,47 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
 
     private boolean recursiveFindAncestor(int childSequence, int parentSequence,
             TaxonomyCoordinate tc) {
-        // currently unpacking from array to object.
-        // TODO operate directly on array if unpacking is a performance bottleneck.
-
-        Optional<TaxonomyRecordPrimitive> record = originDestinationTaxonomyRecordMap.get(childSequence);
-
-        if (record.isPresent()) {
-            TaxonomyRecordUnpacked childTaxonomyRecords = new TaxonomyRecordUnpacked(record.get().getArray());
-            int[] activeConceptSequences
-                    = childTaxonomyRecords.getConceptSequencesForType(
-                            isaSequence, tc).toArray();
-            if (Arrays.stream(activeConceptSequences).anyMatch((int activeParentSequence) -> activeParentSequence == parentSequence)) {
-                return true;
+        // Walks the packed records breadth first, so no record is unpacked,
+        // and a concept reached by more than one path is only examined once.
+        ConceptSequenceSet examined = ConceptSequenceSet.of(childSequence);
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = childSequence;
+        int flags = TaxonomyFlags.getFlagsFromTaxonomyCoordinate(tc);
+        RelativePositionCalculator computer = RelativePositionCalculator.getCalculator(tc.getStampCoordinate());
+        TaxonomyRecordCursor cursor = new TaxonomyRecordCursor(new int[0]);
+        while (head < tail) {
+            Optional<TaxonomyRecordPrimitive> record = originDestinationTaxonomyRecordMap.get(queue[head++]);
+            if (!record.isPresent()) {
+                continue;
+            }
+            cursor.reset(record.get().getArray());
+            while (cursor.nextDestination()) {
+                int destinationSequence = cursor.getDestinationSequence();
+                if (!examined.contains(destinationSequence) && cursor.isLatestActive(isaSequence, flags, computer)) {
+                    if (destinationSequence == parentSequence) {
+                        return true;
+                    }
+                    examined.add(destinationSequence);
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, queue.length * 2);
+                    }
+                    queue[tail++] = destinationSequence;
+                }
             }
-            return Arrays.stream(activeConceptSequences).anyMatch(
-                    (int intermediateChild) -> recursiveFindAncestor(intermediateChild, parentSequence, tc));
         }
-
         return false;
     }
 
     @Override
     public ConceptSequenceSet getKindOfSequenceSet(int rootId, TaxonomyCoordinate tc) {
         rootId = Get.identifierService().getConceptSequence(rootId);
+        Optional<SubsumptionIndex> subsumptionIndex = getSubsumptionIndex(tc);
+        if (subsumptionIndex.isPresent()) {
+            return subsumptionIndex.get().getKindOfSequenceSet(rootId);
+        }
         long stamp = stampedLock.tryOptimisticRead();
-        // TODO Look at performance of getTaxonomyTree...
         Tree tree = getTaxonomyTree(tc);
         ConceptSequenceSet kindOfSet = ConceptSequenceSet.of(rootId);
         tree.depthFirstProcess(rootId, (TreeNodeVisitData t, int conceptSequence) -> {
@@ -472,25 +611,9 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
     }
 
     private IntStream getOriginSequenceStream(int parentId) {
-        // Set of all concept sequences that point to the parent. 
-        parentId = Get.identifierService().getConceptSequence(parentId);
-        long stamp = stampedLock.tryOptimisticRead();
-
-        NavigableSet<DestinationOriginRecord> subSet = destinationOriginRecordSet.subSet(
-                new DestinationOriginRecord(parentId, Integer.MIN_VALUE),
-                new DestinationOriginRecord(parentId, Integer.MAX_VALUE));
-        if (stampedLock.validate(stamp)) {
-            return subSet.stream().mapToInt((DestinationOriginRecord record) -> record.getOriginSequence());
-        }
-        stamp = stampedLock.readLock();
-        try {
-            subSet = destinationOriginRecordSet.subSet(
-                    new DestinationOriginRecord(parentId, Integer.MIN_VALUE),
-                    new DestinationOriginRecord(parentId, Integer.MAX_VALUE));
-            return subSet.stream().mapToInt((DestinationOriginRecord record) -> record.getOriginSequence());
-        } finally {
-            stampedLock.unlock(stamp);
-        }
+        // Set of all concept sequences that point to the parent.
+        // The index is read without locking; it never shows a partial update.
+        return destinationOriginIndex.getOriginSequenceStream(parentId);
     }
 
     @Override
@@ -739,15 +862,17 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
 
     @Override
     public void handleCommit(CommitRecord commitRecord) {
-        //If a logic graph changed, clear our cache.
-        if (sememeSequencesForUnhandledChanges.size() > 0) {
-            treeCache.clear();
-        }
         try {
-            UpdateTaxonomyAfterCommitTask.get(this, commitRecord, sememeSequencesForUnhandledChanges, stampedLock).get();
+            ConceptSequenceSet changedConcepts = UpdateTaxonomyAfterCommitTask.get(this, commitRecord,
+                    sememeSequencesForUnhandledChanges, stampedLock).get();
+            //If a logic graph changed, patch the cached trees for the changed concepts.
+            if (!changedConcepts.isEmpty()) {
+                patchTrees(changedConcepts);
+            }
         }
         catch (Exception e){
             LOG.error("Error updating taxonomy after commit!", e);
+            clearTrees();
         }
         
     }
@@ -775,7 +900,7 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
         List<Graph<? extends LogicGraphSememe<?>>> versionGraphList = logicGraphChronology.getVersionGraphList();
 
         versionGraphList.forEach((versionGraph) -> {
-            processVersionNode(versionGraph.getRoot(), parentTaxonomyRecord, taxonomyFlags);
+            processVersionNode(versionGraph.getRoot(), parentTaxonomyRecord, taxonomyFlags, conceptSequence);
         });
 
         originDestinationTaxonomyRecordMap.put(conceptSequence, parentTaxonomyRecord);
@@ -783,85 +908,82 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
 
     private void processVersionNode(Node<? extends LogicGraphSememe> node,
             TaxonomyRecordPrimitive parentTaxonomyRecord,
-            TaxonomyFlags taxonomyFlags) {
+            TaxonomyFlags taxonomyFlags, int originSequence) {
         if (node.getParent() == null) {
-            processNewLogicGraph(node.getData(), parentTaxonomyRecord, taxonomyFlags);
+            processNewLogicGraph(node.getData(), parentTaxonomyRecord, taxonomyFlags, originSequence);
         } else {
             LogicalExpression comparisonExpression = node.getParent().getData().getLogicalExpression();
             LogicalExpression referenceExpression = node.getData().getLogicalExpression();
             IsomorphicResultsBottomUp isomorphicResults = new IsomorphicResultsBottomUp(referenceExpression, comparisonExpression);
             LOG.trace("Computed {}", isomorphicResults);
+            // Added roots are nodes of the reference expression, and deleted roots of the comparison expression.
+            FlatLogicGraph referenceGraph = new FlatLogicGraph(node.getData().getGraphData());
+            FlatLogicGraph comparisonGraph = new FlatLogicGraph(node.getParent().getData().getGraphData());
             isomorphicResults.getAddedRelationshipRoots().forEach((logicalNode) -> {
                 int stampSequence = node.getData().getStampSequence();
-                processRelationshipRoot(logicalNode, parentTaxonomyRecord, taxonomyFlags, stampSequence, comparisonExpression);
+                processRelationshipRoot(referenceGraph, logicalNode.getNodeIndex(), parentTaxonomyRecord, taxonomyFlags, stampSequence, originSequence);
             });
             isomorphicResults.getDeletedRelationshipRoots().forEach((logicalNode) -> {
                 int activeStampSequence = node.getData().getStampSequence();
                 int stampSequence = Get.stampService().getRetiredStampSequence(activeStampSequence);
-                processRelationshipRoot(logicalNode, parentTaxonomyRecord, taxonomyFlags, stampSequence, comparisonExpression);
+                processRelationshipRoot(comparisonGraph, logicalNode.getNodeIndex(), parentTaxonomyRecord, taxonomyFlags, stampSequence, originSequence);
             });
         }
         node.getChildren().forEach((childNode) -> {
-            processVersionNode(childNode, parentTaxonomyRecord, taxonomyFlags);
+            processVersionNode(childNode, parentTaxonomyRecord, taxonomyFlags, originSequence);
         });
     }
 
-    private void processRelationshipRoot(LogicNode logicalLogicNode, TaxonomyRecordPrimitive parentTaxonomyRecord,
-                                         TaxonomyFlags taxonomyFlags, int stampSequence, LogicalExpression comparisonExpression) {
-        switch (logicalLogicNode.getNodeSemantic()) {
+    private void processRelationshipRoot(FlatLogicGraph logicGraph, int nodeIndex, TaxonomyRecordPrimitive parentTaxonomyRecord,
+                                         TaxonomyFlags taxonomyFlags, int stampSequence, int originSequence) {
+        switch (logicGraph.getNodeSemantic(nodeIndex)) {
             case CONCEPT:
-                updateIsaRel((ConceptNodeWithSequences) logicalLogicNode, parentTaxonomyRecord,
-                        taxonomyFlags, stampSequence,
-                        comparisonExpression.getConceptSequence());
+                updateIsaRel(logicGraph, nodeIndex, parentTaxonomyRecord,
+                        taxonomyFlags, stampSequence, originSequence);
                 break;
             case ROLE_SOME:
-                updateSomeRole((RoleNodeSomeWithSequences) logicalLogicNode, parentTaxonomyRecord,
-                        taxonomyFlags, stampSequence,
-                        comparisonExpression.getConceptSequence());
+                updateSomeRole(logicGraph, nodeIndex, parentTaxonomyRecord,
+                        taxonomyFlags, stampSequence, originSequence);
                 break;
             case FEATURE:
                 //Features do not have taxonomy implications...
                 break;
             default:
-                throw new UnsupportedOperationException("Can't handle: " + logicalLogicNode.getNodeSemantic());
+                throw new UnsupportedOperationException("Can't handle: " + logicGraph.getNodeSemantic(nodeIndex));
         }
     }
 
     private void processNewLogicGraph(LogicGraphSememe firstVersion,
-            TaxonomyRecordPrimitive parentTaxonomyRecord, TaxonomyFlags taxonomyFlags) {
+            TaxonomyRecordPrimitive parentTaxonomyRecord, TaxonomyFlags taxonomyFlags, int originSequence) {
         if (firstVersion.getCommitState() == CommitStates.COMMITTED) {
-            LogicalExpression expression = firstVersion.getLogicalExpression();
-
-            expression.getRoot()
-                    .getChildStream().forEach((necessaryOrSufficientSet) -> {
-                        necessaryOrSufficientSet.getChildStream().forEach((LogicNode andOrOrLogicNode)
-                                -> andOrOrLogicNode.getChildStream().forEach((LogicNode aLogicNode) -> {
-                            processRelationshipRoot(aLogicNode, parentTaxonomyRecord, taxonomyFlags, firstVersion.getStampSequence(), expression);
-                        }));
-                    });
+            FlatLogicGraph logicGraph = new FlatLogicGraph(firstVersion.getGraphData());
+            logicGraph.forEachRelationshipRoot((nodeIndex) -> {
+                processRelationshipRoot(logicGraph, nodeIndex, parentTaxonomyRecord, taxonomyFlags, firstVersion.getStampSequence(), originSequence);
+            });
         }
     }
 
-    private void updateIsaRel(ConceptNodeWithSequences conceptNode,
+    private void updateIsaRel(FlatLogicGraph logicGraph, int conceptNodeIndex,
             TaxonomyRecordPrimitive parentTaxonomyRecord,
             TaxonomyFlags taxonomyFlags, int stampSequence, int originSequence) {
+        int destinationSequence = logicGraph.getConceptSequence(conceptNodeIndex);
         parentTaxonomyRecord.getTaxonomyRecordUnpacked()
-                .addStampRecord(conceptNode.getConceptSequence(), isaSequence,
+                .addStampRecord(destinationSequence, isaSequence,
                         stampSequence, taxonomyFlags.bits);
-        destinationOriginRecordSet.add(new DestinationOriginRecord(conceptNode.getConceptSequence(), originSequence));
+        destinationOriginIndex.add(destinationSequence, originSequence);
 
     }
 
-    private void updateSomeRole(RoleNodeSomeWithSequences someNode,
+    private void updateSomeRole(FlatLogicGraph logicGraph, int someNodeIndex,
             TaxonomyRecordPrimitive parentTaxonomyRecord,
             TaxonomyFlags taxonomyFlags, int stampSequence, int originSequence) {
 
-        if (someNode.getTypeConceptSequence() == roleGroupSequence) {
-            AndNode andNode = (AndNode) someNode.getOnlyChild();
-            andNode.getChildStream().forEach((roleGroupSomeNode) -> {
-                if (roleGroupSomeNode instanceof RoleNodeSomeWithSequences)
+        if (logicGraph.getTypeConceptSequence(someNodeIndex) == roleGroupSequence) {
+            int andNodeIndex = logicGraph.getOnlyChildIndex(someNodeIndex);
+            logicGraph.forEachChild(andNodeIndex, (roleGroupSomeNodeIndex) -> {
+                if (logicGraph.getNodeSemantic(roleGroupSomeNodeIndex) == NodeSemantic.ROLE_SOME)
                 {
-                    updateSomeRole((RoleNodeSomeWithSequences) roleGroupSomeNode,
+                    updateSomeRole(logicGraph, roleGroupSomeNodeIndex,
                         parentTaxonomyRecord, taxonomyFlags, stampSequence, originSequence);
                 }
                 else
@@ -872,12 +994,13 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
             });
 
         } else {
-            if (someNode.getOnlyChild() instanceof ConceptNodeWithSequences) {
-                ConceptNodeWithSequences restrictionNode = (ConceptNodeWithSequences) someNode.getOnlyChild();
+            int restrictionNodeIndex = logicGraph.getOnlyChildIndex(someNodeIndex);
+            if (logicGraph.getNodeSemantic(restrictionNodeIndex) == NodeSemantic.CONCEPT) {
+                int destinationSequence = logicGraph.getConceptSequence(restrictionNodeIndex);
                 parentTaxonomyRecord.getTaxonomyRecordUnpacked()
-                        .addStampRecord(restrictionNode.getConceptSequence(), someNode.getTypeConceptSequence(),
+                        .addStampRecord(destinationSequence, logicGraph.getTypeConceptSequence(someNodeIndex),
                                 stampSequence, taxonomyFlags.bits);
-                destinationOriginRecordSet.add(new DestinationOriginRecord(restrictionNode.getConceptSequence(), originSequence));
+                destinationOriginIndex.add(destinationSequence, originSequence);
             }
             else {
                 //TODO dan put this here to stop a pile of errors. It was returning AndNode.  Not sure what to do with it
@@ -963,31 +1086,71 @@ public class TaxonomyProvider implements TaxonomyService, ConceptActiveService,
         });
     }
 
-    private void recursiveFindAncestors(int childSequence, ConceptSequenceSet ancestors,
-            TaxonomyCoordinate tc) {
-        // currently unpacking from array to object.
-        // TODO operate directly on array if unpacking is a performance bottleneck.
+    @Override
+    public void addTaxonomyParentSequences(int childId, TaxonomyCoordinate tc, ConceptSequenceSet parentSequences) {
+        int childSequence = Get.identifierService().getConceptSequence(childId);
+        long stamp = stampedLock.tryOptimisticRead();
+        ConceptSequenceSet parents = new ConceptSequenceSet();
+        addParentSequences(childSequence, tc, parents);
+        if (!stampedLock.validate(stamp)) {
+            stamp = stampedLock.readLock();
+            try {
+                parents.clear();
+                addParentSequences(childSequence, tc, parents);
+            } finally {
+                stampedLock.unlock(stamp);
+            }
+        }
+        parentSequences.or(parents);
+    }
 
+    private void addParentSequences(int childSequence, TaxonomyCoordinate tc, ConceptSequenceSet parentSequences) {
         Optional<TaxonomyRecordPrimitive> record = originDestinationTaxonomyRecordMap.get(childSequence);
-
         if (record.isPresent()) {
-            TaxonomyRecordUnpacked childTaxonomyRecords = new TaxonomyRecordUnpacked(record.get().getArray());
-            int[] activeConceptSequences
-                    = childTaxonomyRecords.getConceptSequencesForType(
-                            isaSequence, tc).toArray();
-            Arrays.stream(activeConceptSequences).forEach((parent) -> {
-                if (!ancestors.contains(parent)) {
-                    ancestors.add(parent);
-                    recursiveFindAncestors(parent, ancestors, tc);
+            record.get().forEachDestinationOfType(isaSequence, tc, parentSequences::add);
+        }
+    }
+
+    @Override
+    public void addAncestorSequences(int childId, TaxonomyCoordinate tc, ConceptSequenceSet ancestors) {
+        int childSequence = Get.identifierService().getConceptSequence(childId);
+        Optional<SubsumptionIndex> subsumptionIndex = getSubsumptionIndex(tc);
+        if (subsumptionIndex.isPresent()) {
+            ancestors.or(subsumptionIndex.get().getAncestorOfSequenceSet(childSequence));
+            return;
+        }
+        ConceptSequenceSet found = new ConceptSequenceSet();
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = childSequence;
+        int flags = TaxonomyFlags.getFlagsFromTaxonomyCoordinate(tc);
+        RelativePositionCalculator computer = RelativePositionCalculator.getCalculator(tc.getStampCoordinate());
+        TaxonomyRecordCursor cursor = new TaxonomyRecordCursor(new int[0]);
+        while (head < tail) {
+            Optional<TaxonomyRecordPrimitive> record = originDestinationTaxonomyRecordMap.get(queue[head++]);
+            if (!record.isPresent()) {
+                continue;
+            }
+            cursor.reset(record.get().getArray());
+            while (cursor.nextDestination()) {
+                int parentSequence = cursor.getDestinationSequence();
+                if (!found.contains(parentSequence) && cursor.isLatestActive(isaSequence, flags, computer)) {
+                    found.add(parentSequence);
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, queue.length * 2);
+                    }
+                    queue[tail++] = parentSequence;
                 }
-            });
+            }
         }
+        ancestors.or(found);
     }
 
     @Override
     public ConceptSequenceSet getAncestorOfSequenceSet(int childId, TaxonomyCoordinate tc) {
         ConceptSequenceSet ancestors = new ConceptSequenceSet();
-        recursiveFindAncestors(Get.identifierService().getConceptSequence(childId), ancestors, tc);
+        addAncestorSequences(childId, tc, ancestors);
         return ancestors;
     }
 
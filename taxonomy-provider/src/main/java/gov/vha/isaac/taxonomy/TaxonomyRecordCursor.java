@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 U.S. Department of Veterans Affairs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package gov.vha.isaac.taxonomy;
+
+import gov.vha.isaac.ochre.api.Get;
+import gov.vha.isaac.ochre.api.State;
+import gov.vha.isaac.ochre.api.snapshot.calculator.RelativePosition;
+import gov.vha.isaac.ochre.api.snapshot.calculator.RelativePositionCalculator;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * A flyweight cursor over the packed array of a
+ * {@code TaxonomyRecordPrimitive}, that reads destination, type, stamp, and
+ * flags values in place, rather than unpacking the record into a
+ * {@code TaxonomyRecordUnpacked}.
+ *
+ * The array holds a record for each destination: an int with the destination
+ * sequence in the low 24 bits and the length of the record in the high 8
+ * bits, followed by pairs of ints, the first holding a stamp sequence and the
+ * taxonomy flags, and the second the type sequence.
+ *
+ * A cursor is not thread safe, and may be reused with {@link #reset(int[])}.
+ *
+ * @author kec
+ */
+public class TaxonomyRecordCursor {
+
+    private static final Set<State> ACTIVE_ONLY = EnumSet.of(State.ACTIVE);
+
+    private int[] data;
+    /**
+     * Index of the header of the current destination record, -1 before the
+     * first.
+     */
+    private int destinationIndex;
+    /**
+     * Index after the end of the current destination record.
+     */
+    private int destinationEnd;
+    /**
+     * Index of the current type, stamp, and flags pair.
+     */
+    private int tupleIndex;
+
+    public TaxonomyRecordCursor(int[] data) {
+        reset(data);
+    }
+
+    /**
+     * @param data the packed array of a taxonomy record.
+     * @return this cursor, positioned before the first destination.
+     */
+    public final TaxonomyRecordCursor reset(int[] data) {
+        this.data = data;
+        this.destinationIndex = -1;
+        this.destinationEnd = 0;
+        this.tupleIndex = -1;
+        return this;
+    }
+
+    /**
+     * @return true if the cursor moved to the next destination.
+     */
+    public boolean nextDestination() {
+        if (destinationEnd >= data.length) {
+            return false;
+        }
+        destinationIndex = destinationEnd;
+        destinationEnd = destinationIndex + (data[destinationIndex] >>> 24);
+        tupleIndex = destinationIndex - 1;
+        return true;
+    }
+
+    /**
+     * @param destinationSequence
+     * @return true if the cursor moved to the destination.
+     */
+    public boolean seekDestination(int destinationSequence) {
+        reset(data);
+        while (nextDestination()) {
+            if (getDestinationSequence() == destinationSequence) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getDestinationSequence() {
+        return data[destinationIndex] & TaxonomyRecordPrimitive.SEQUENCE_BIT_MASK;
+    }
+
+    /**
+     * @return true if the cursor moved to the next type, stamp, and flags
+     * pair of the current destination.
+     */
+    public boolean nextTuple() {
+        tupleIndex += 2;
+        return tupleIndex < destinationEnd;
+    }
+
+    public int getTypeSequence() {
+        return data[tupleIndex + 1] & TaxonomyRecordPrimitive.SEQUENCE_BIT_MASK;
+    }
+
+    public int getStampSequence() {
+        return data[tupleIndex] & TaxonomyRecordPrimitive.STAMP_BIT_MASK;
+    }
+
+    public int getTaxonomyFlags() {
+        return data[tupleIndex] & TaxonomyRecordPrimitive.FLAGS_BIT_MASK;
+    }
+
+    private boolean matches(int index, int typeSequence, int flags, boolean exactFlags) {
+        int recordFlags = data[index] & (exactFlags ? TaxonomyRecordPrimitive.FLAGS_BIT_MASK : flags);
+        return recordFlags == flags
+                && (typeSequence == Integer.MAX_VALUE
+                || (data[index + 1] & TaxonomyRecordPrimitive.SEQUENCE_BIT_MASK) == typeSequence);
+    }
+
+    /**
+     * Equivalent to {@code computer.isLatestActive(stamps)} for the stamps of
+     * the current destination with the type, and with at least the flags,
+     * as selected by {@code TaxonomyRecordUnpacked.getConceptSequencesForType},
+     * without collecting the stamps.
+     *
+     * @param typeSequence the type to match, or Integer.MAX_VALUE to match
+     * all types.
+     * @param flags taxonomy flags that must be set.
+     * @param computer
+     * @return true if a latest stamp is active.
+     */
+    public boolean isLatestActive(int typeSequence, int flags, RelativePositionCalculator computer) {
+        return isLatestIn(typeSequence, flags, false, computer, ACTIVE_ONLY);
+    }
+
+    /**
+     * Equivalent to {@code computer.isLatestActive(stamps)} for the stamps of
+     * the current destination with the type, and with exactly the flags, as
+     * selected by {@code TypeStampTaxonomyRecords.getStampsOfTypeWithFlags},
+     * without collecting the stamps.
+     *
+     * @param typeSequence the type to match, or Integer.MAX_VALUE to match
+     * all types.
+     * @param flags the taxonomy flags of the stamps.
+     * @param computer
+     * @return true if a latest stamp is active.
+     */
+    public boolean isLatestActiveWithFlags(int typeSequence, int flags, RelativePositionCalculator computer) {
+        return isLatestIn(typeSequence, flags, true, computer, ACTIVE_ONLY);
+    }
+
+    /**
+     * Equivalent to a non empty {@code computer.getLatestStampSequencesAsSet(stamps)}
+     * for the stamps of the current destination with the type and flags,
+     * without collecting the stamps, but keeping only latest stamps with one
+     * of the states. A stamp is latest if no other matching stamp on route
+     * is after it. There are only a few stamps per destination, so each is
+     * compared with the others in place.
+     *
+     * @param typeSequence the type to match, or Integer.MAX_VALUE to match
+     * all types.
+     * @param flags taxonomy flags of the stamps.
+     * @param exactFlags true if a stamp must have exactly the flags, false if
+     * it must have at least the flags.
+     * @param computer
+     * @param states the states of interest, which are further limited to
+     * the allowed states of the coordinate of the computer.
+     * @return true if a latest stamp has one of the states.
+     */
+    public boolean isLatestIn(int typeSequence, int flags, boolean exactFlags,
+            RelativePositionCalculator computer, Set<State> states) {
+        Set<State> allowedStates = computer.getAllowedStates();
+        for (int index = destinationIndex + 1; index < destinationEnd; index += 2) {
+            if (matches(index, typeSequence, flags, exactFlags)) {
+                int stampSequence = data[index] & TaxonomyRecordPrimitive.STAMP_BIT_MASK;
+                State state = Get.stampService().getStatusForStamp(stampSequence);
+                if (states.contains(state) && allowedStates.contains(state)
+                        && computer.onRoute(stampSequence)
+                        && isLatest(index, stampSequence, typeSequence, flags, exactFlags, computer)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isLatest(int stampIndex, int stampSequence, int typeSequence, int flags,
+            boolean exactFlags, RelativePositionCalculator computer) {
+        for (int index = destinationIndex + 1; index < destinationEnd; index += 2) {
+            if (index == stampIndex || !matches(index, typeSequence, flags, exactFlags)) {
+                continue;
+            }
+            int otherStampSequence = data[index] & TaxonomyRecordPrimitive.STAMP_BIT_MASK;
+            if (otherStampSequence == stampSequence || !computer.onRoute(otherStampSequence)) {
+                continue;
+            }
+            RelativePosition position = computer.fastRelativePosition(otherStampSequence, stampSequence);
+            if (position == RelativePosition.AFTER
+                    || (position == RelativePosition.EQUAL && index < stampIndex)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
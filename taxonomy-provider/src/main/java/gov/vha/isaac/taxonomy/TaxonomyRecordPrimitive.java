@@ -9,8 +9,10 @@ import gov.vha.isaac.ochre.model.WaitFreeComparable;
 import gov.vha.isaac.ochre.api.coordinate.StampCoordinate;
 import gov.vha.isaac.ochre.api.coordinate.TaxonomyCoordinate;
 import gov.vha.isaac.ochre.api.collections.ConceptSequenceSet;
+import gov.vha.isaac.ochre.api.snapshot.calculator.RelativePositionCalculator;
 import gov.vha.isaac.ochre.model.waitfree.CasSequenceObjectMap;
 import java.util.Optional;
+import java.util.function.IntConsumer;
 import java.util.stream.IntStream;
 
 /**
@@ -148,7 +150,45 @@ public class TaxonomyRecordPrimitive implements WaitFreeComparable {
     }
     
     public IntStream getParentSequences(TaxonomyCoordinate tc) {
-        return getTaxonomyRecordUnpacked().getConceptSequencesForType(tc.getIsaConceptSequence(), tc);
+        IntStream.Builder parentSequences = IntStream.builder();
+        forEachDestinationOfType(tc.getIsaConceptSequence(), tc, parentSequences);
+        return parentSequences.build();
+    }
+
+    /**
+     * Passes the destinations of the record that have a latest active stamp
+     * for the type and taxonomy flags of the coordinate to the consumer,
+     * reading the packed array in place.
+     *
+     * @param typeSequence the type to match, or Integer.MAX_VALUE to match
+     * all types.
+     * @param tc
+     * @param consumer
+     */
+    public void forEachDestinationOfType(int typeSequence, TaxonomyCoordinate tc, IntConsumer consumer) {
+        int flags = TaxonomyFlags.getFlagsFromTaxonomyCoordinate(tc);
+        RelativePositionCalculator computer = RelativePositionCalculator.getCalculator(tc.getStampCoordinate());
+        TaxonomyRecordCursor cursor = new TaxonomyRecordCursor(getArray());
+        while (cursor.nextDestination()) {
+            if (cursor.isLatestActive(typeSequence, flags, computer)) {
+                consumer.accept(cursor.getDestinationSequence());
+            }
+        }
+    }
+
+    /**
+     * @param destinationSequence
+     * @param typeSequence the type to match, or Integer.MAX_VALUE to match
+     * all types.
+     * @param tc
+     * @return true if the destination has a latest active stamp for the type
+     * and taxonomy flags of the coordinate.
+     */
+    public boolean isLatestActiveDestination(int destinationSequence, int typeSequence, TaxonomyCoordinate tc) {
+        TaxonomyRecordCursor cursor = new TaxonomyRecordCursor(getArray());
+        return cursor.seekDestination(destinationSequence)
+                && cursor.isLatestActive(typeSequence, TaxonomyFlags.getFlagsFromTaxonomyCoordinate(tc),
+                        RelativePositionCalculator.getCalculator(tc.getStampCoordinate()));
     }
 
     public IntStream getParentSequences() {
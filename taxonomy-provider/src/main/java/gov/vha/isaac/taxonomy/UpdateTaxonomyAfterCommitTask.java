@@ -17,6 +17,7 @@ package gov.vha.isaac.taxonomy;
 
 import gov.vha.isaac.ochre.api.Get;
 import gov.vha.isaac.ochre.api.TaxonomyService;
+import gov.vha.isaac.ochre.api.collections.ConceptSequenceSet;
 import gov.vha.isaac.ochre.api.commit.CommitRecord;
 import gov.vha.isaac.ochre.api.component.sememe.SememeChronology;
 import gov.vha.isaac.ochre.api.component.sememe.version.LogicGraphSememe;
@@ -28,10 +29,13 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
+ * Updates the taxonomy for the logic graphs of a commit. The result of the
+ * task is the set of concepts whose taxonomy records were updated, so that
+ * cached taxonomy trees can be patched for only those concepts.
  *
  * @author kec
  */
-public class UpdateTaxonomyAfterCommitTask extends TimedTask<Void> {
+public class UpdateTaxonomyAfterCommitTask extends TimedTask<ConceptSequenceSet> {
 
     private static final Logger log = LogManager.getLogger();
     TaxonomyService taxonomyService;
@@ -75,10 +79,11 @@ public class UpdateTaxonomyAfterCommitTask extends TimedTask<Void> {
     }
 
     @Override
-    protected Void call() throws Exception {
+    protected ConceptSequenceSet call() throws Exception {
         long stamp = lock.writeLock();
         try {
             AtomicBoolean atLeastOneFailed = new AtomicBoolean(false);
+            ConceptSequenceSet updatedConcepts = new ConceptSequenceSet();
             sememeSequencesForUnhandledChanges.stream().forEach((sememeSequence) -> {
                 try
                 {
@@ -86,7 +91,10 @@ public class UpdateTaxonomyAfterCommitTask extends TimedTask<Void> {
                     this.updateProgress(workDone, totalWork);
                     if (commitRecord.getSememesInCommit().contains(sememeSequence)) {
                         this.updateMessage("Updating taxonomy for: " + sememeSequence);
-                        taxonomyService.updateTaxonomy((SememeChronology<LogicGraphSememe<?>>) Get.sememeService().getSememe(sememeSequence));
+                        SememeChronology<LogicGraphSememe<?>> logicGraphChronology
+                                = (SememeChronology<LogicGraphSememe<?>>) Get.sememeService().getSememe(sememeSequence);
+                        taxonomyService.updateTaxonomy(logicGraphChronology);
+                        updatedConcepts.add(Get.identifierService().getConceptSequence(logicGraphChronology.getReferencedComponentNid()));
                         sememeSequencesForUnhandledChanges.remove(sememeSequence);
                     }
                 }
@@ -99,7 +107,7 @@ public class UpdateTaxonomyAfterCommitTask extends TimedTask<Void> {
                 throw new RuntimeException("There were errors during taxonomy update after commit");
             }
             this.updateMessage("complete");
-            return null;
+            return updatedConcepts;
         } finally {
             lock.unlockWrite(stamp);
             Get.activeTasks().remove(this);